@@ -5,6 +5,7 @@ import org.messageduct.account.messages.AccountErrorMessage;
 import org.messageduct.account.messages.AccountMessage;
 import org.messageduct.account.messages.AccountResponseMessage;
 
+import java.net.InetAddress;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
@@ -12,10 +13,13 @@ import java.util.concurrent.ConcurrentHashMap;
 /**
  *
  */
-public abstract class AccountServiceBase extends ServiceBase implements AccountService {
+public abstract class AccountServiceBase extends ServiceBase implements SourceAddressAccountService {
 
     private final Map<Class<? extends AccountMessage>, AccountMessageHandler<? extends AccountMessage>> messageHandlers = new ConcurrentHashMap<Class<? extends AccountMessage>, AccountMessageHandler<? extends AccountMessage>>();
 
+    // Address of the client whose message is being handled by the current thread
+    private final ThreadLocal<InetAddress> sourceAddress = new ThreadLocal<InetAddress>();
+
 
     protected final <T extends AccountMessage> void registerHandler(Class<T> messageType, AccountMessageHandler<T> handler) {
         messageHandlers.put(messageType, handler);
@@ -26,6 +30,10 @@ public abstract class AccountServiceBase extends ServiceBase implements AccountS
     }
 
     @Override public AccountResponseMessage handleMessage(AccountMessage accountMessage) {
+        return handleMessage(accountMessage, null);
+    }
+
+    @Override public AccountResponseMessage handleMessage(AccountMessage accountMessage, InetAddress sourceAddress) {
         final Class<? extends AccountMessage> messageType = accountMessage.getClass();
 
         ensureActive("Handle " + messageType.getSimpleName());
@@ -33,7 +41,13 @@ public abstract class AccountServiceBase extends ServiceBase implements AccountS
         final AccountMessageHandler<AccountMessage> messageHandler = (AccountMessageHandler<AccountMessage>) messageHandlers.get(messageType);
 
         if (messageHandler != null) {
-            return messageHandler.handleMessage(accountMessage);
+            this.sourceAddress.set(sourceAddress);
+            try {
+                return messageHandler.handleMessage(accountMessage);
+            }
+            finally {
+                this.sourceAddress.remove();
+            }
         }
         else {
             return new AccountErrorMessage("UnknownMessage", "The account message of type "+messageType + " is not supported", true);
@@ -41,4 +55,12 @@ public abstract class AccountServiceBase extends ServiceBase implements AccountS
 
     }
 
+    /**
+     * @return IP address of the client that sent the message currently being handled, or null if not known.
+     *         Only available in the message handlers.
+     */
+    protected final InetAddress getSourceAddress() {
+        return sourceAddress.get();
+    }
+
 }
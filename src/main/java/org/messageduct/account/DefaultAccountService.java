@@ -3,6 +3,7 @@ package org.messageduct.account;
 import org.flowutils.service.ServiceProvider;
 import org.messageduct.account.messages.*;
 import org.messageduct.account.model.Account;
+import org.messageduct.account.model.CompactAccount;
 import org.messageduct.account.model.DefaultAccount;
 import org.messageduct.account.persistence.AccountPersistence;
 import org.messageduct.utils.*;
@@ -25,6 +26,8 @@ public class DefaultAccountService extends AccountServiceBase {
     private final StringValidator userNameValidator;
     private final PasswordValidator passwordValidator;
     private final PasswordHasher passwordHasher;
+    private final LoginThrottle loginThrottle;
+    private final SessionTokens sessionTokens;
 
     private final AtomicBoolean newUsersAllowed = new AtomicBoolean(true);
     private final AtomicBoolean loginAllowed = new AtomicBoolean(true);
@@ -48,7 +51,32 @@ public class DefaultAccountService extends AccountServiceBase {
                                  final StringValidator userNameValidator,
                                  final PasswordValidator passwordValidator,
                                  final PasswordHasher passwordHasher) {
+        this(accountPersistence, userNameValidator, passwordValidator, passwordHasher, new LoginThrottle());
+    }
+
+    public DefaultAccountService(final AccountPersistence accountPersistence,
+                                 final StringValidator userNameValidator,
+                                 final PasswordValidator passwordValidator,
+                                 final PasswordHasher passwordHasher,
+                                 final LoginThrottle loginThrottle) {
+        this(accountPersistence, userNameValidator, passwordValidator, passwordHasher, loginThrottle, new SessionTokens());
+    }
+
+    /**
+     * @param loginThrottle limits login attempts per username and IP, and concurrent password hashing.
+     *                      If null, logins are not throttled.
+     * @param sessionTokens issues the session tokens sent on successful logins, and verifies them on token logins.
+     *                      If null, no session tokens are issued and token logins are rejected.
+     */
+    public DefaultAccountService(final AccountPersistence accountPersistence,
+                                 final StringValidator userNameValidator,
+                                 final PasswordValidator passwordValidator,
+                                 final PasswordHasher passwordHasher,
+                                 final LoginThrottle loginThrottle,
+                                 final SessionTokens sessionTokens) {
         this.passwordHasher = passwordHasher;
+        this.loginThrottle = loginThrottle;
+        this.sessionTokens = sessionTokens;
         notNull(accountPersistence, "accountPersistence");
         notNull(userNameValidator, "userNameValidator");
         notNull(passwordValidator, "passwordValidator");
@@ -81,6 +109,11 @@ public class DefaultAccountService extends AccountServiceBase {
                 return login(message);
             }
         });
+        registerHandler(TokenLoginMessage.class, new AccountMessageHandler<TokenLoginMessage>() {
+            @Override public AccountResponseMessage handleMessage(TokenLoginMessage message) {
+                return loginWithToken(message);
+            }
+        });
 
         // TODO: Register handlers for other messages (password change, reset, account deletion, etc)
     }
@@ -133,19 +166,71 @@ public class DefaultAccountService extends AccountServiceBase {
         // Check that login is allowed (creating an account automatically logs you in as well)
         if (!isLoginAllowed()) return createErrorResponse("LoginDisabled", "Login is currently disabled.  Check back later.", true);
 
-        // Get user
+        // Reject too frequent attempts before doing any expensive work
         final String username = message.getUsername();
+        if (loginThrottle != null && !loginThrottle.tryAttempt(username, getSourceAddress())) {
+            return createErrorResponse("LoginThrottled", "Too many login attempts.  Wait a while before trying again.", true);
+        }
+
+        // Get user
         final Account account = accountPersistence.getAccount(username);
         if (account == null) return createErrorResponse("UnknownUsername", "No account found for username '"+username+"'", false);
 
         // Check password
-        if (!passwordHasher.isCorrectPassword(message.getPassword(), account.getPasswordHash())) {
-            return createErrorResponse("InvalidPassword", "The password was incorrect", true);
+        if (loginThrottle != null && !loginThrottle.tryStartHashing()) {
+            return createErrorResponse("ServerBusy", "The server is too busy to handle the login.  Try again soon.", true);
+        }
+        Account loggedInAccount = account;
+        try {
+            if (!passwordHasher.isCorrectPassword(message.getPassword(), account.getPasswordHash())) {
+                return createErrorResponse("InvalidPassword", "The password was incorrect", true);
+            }
+
+            // Upgrade hashes created with other hashing settings while the password is available
+            if (passwordHasher instanceof RehashingPasswordHasher &&
+                ((RehashingPasswordHasher) passwordHasher).needsRehash(account.getPasswordHash())) {
+                loggedInAccount = rehashPassword(account, message.getPassword());
+            }
+        }
+        finally {
+            if (loginThrottle != null) loginThrottle.endHashing();
         }
         message.scrubPassword();
 
         // Login succeeded
-        return new LoginSuccessMessage(username);
+        return createLoginSuccessResponse(username, loggedInAccount);
+    }
+
+    protected AccountResponseMessage loginWithToken(TokenLoginMessage message) {
+        if (!isLoginAllowed()) return createErrorResponse("LoginDisabled", "Login is currently disabled.  Check back later.", true);
+
+        if (sessionTokens == null) return createErrorResponse("InvalidToken", "Session tokens are not supported, log in with the password", true);
+
+        // Token checks are cheap, but still limited so that tokens can not be guessed at a high rate
+        final String username = message.getUsername();
+        if (loginThrottle != null && !loginThrottle.tryAttempt(username, getSourceAddress())) {
+            return createErrorResponse("LoginThrottled", "Too many login attempts.  Wait a while before trying again.", true);
+        }
+
+        // Get user
+        final Account account = accountPersistence.getAccount(username);
+        if (account == null) return createErrorResponse("UnknownUsername", "No account found for username '"+username+"'", false);
+
+        // Check the token, no password hashing needed
+        if (!sessionTokens.isValidToken(username, account.getPasswordHash(), message.getSessionToken())) {
+            return createErrorResponse("InvalidToken", "The session token was invalid or expired, log in with the password", true);
+        }
+
+        // Login succeeded
+        return createLoginSuccessResponse(username, account);
+    }
+
+    /**
+     * @return login success response for the account, with a new session token if session tokens are enabled.
+     */
+    protected final LoginSuccessMessage createLoginSuccessResponse(String username, Account account) {
+        final byte[] sessionToken = sessionTokens != null ? sessionTokens.createToken(username, account.getPasswordHash()) : null;
+        return new LoginSuccessMessage(username, sessionToken);
     }
 
     /**
@@ -186,12 +271,35 @@ public class DefaultAccountService extends AccountServiceBase {
      * @return new account, or null if account creation failed.
      */
     protected Account createNewAccountObject(CreateAccountMessage createAccountMessage, String passwordHash) {
-        return new DefaultAccount(createAccountMessage.getUsername(),
+        return new CompactAccount(createAccountMessage.getUsername(),
                                   passwordHash,
                                   createAccountMessage.getEmail(),
                                   createAccountMessage.getUserPublicKey());
     }
 
+    /**
+     * Creates a copy of an account object with a new password hash, used when the password of an account is hashed
+     * again with the current hashing settings.
+     *
+     * Override if you have a more complicated account object.
+     *
+     * @param account account to copy.
+     * @param passwordHash new hash of the password.
+     * @return the account with the new password hash, or null if the account should keep its old hash.
+     */
+    protected Account createRehashedAccountObject(Account account, String passwordHash) {
+        // Other account types may have fields that would be lost in the copy
+        if (account.getClass() == CompactAccount.class) {
+            return new CompactAccount(account.getUserName(), passwordHash, account.getEmail(), account.getPublicKey());
+        }
+        else if (account.getClass() == DefaultAccount.class) {
+            return new DefaultAccount(account.getUserName(), passwordHash, account.getEmail(), account.getPublicKey());
+        }
+        else {
+            return null;
+        }
+    }
+
     protected final AccountPersistence getAccountPersistence() {
         return accountPersistence;
     }
@@ -208,6 +316,24 @@ public class DefaultAccountService extends AccountServiceBase {
         return passwordHasher;
     }
 
+    /**
+     * @return the session tokens used for token logins, or null if token logins are disabled.
+     */
+    protected final SessionTokens getSessionTokens() {
+        return sessionTokens;
+    }
+
+    /**
+     * @return the account with the password hashed with the current settings, or the original account if it could not be updated.
+     */
+    private Account rehashPassword(Account account, char[] password) {
+        final Account rehashedAccount = createRehashedAccountObject(account, passwordHasher.hashPassword(password));
+        if (rehashedAccount == null || !accountPersistence.updateAccount(account.getUserName(), rehashedAccount)) {
+            return account;
+        }
+        return rehashedAccount;
+    }
+
     private AccountErrorMessage createErrorResponse(final String type, final String message, final boolean closeConnection) {
         return new AccountErrorMessage(type, message, closeConnection);
     }
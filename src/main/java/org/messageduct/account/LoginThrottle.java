@@ -0,0 +1,196 @@
+package org.messageduct.account;
+
+import org.flowutils.Check;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.security.SecureRandom;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Limits how often logins can be attempted for the same username and from the same IP address, and how many password
+ * hashes may be computed at the same time, so that password guessing can not use up the processor time of the server.
+ *
+ * The attempts are limited with token buckets, which allow a burst of attempts followed by a steady rate.  The buckets
+ * are kept in fixed size tables indexed by a hash of the username or IP, so memory use does not depend on the number
+ * of users or attackers, and checking does not lock.  Usernames or IPs that share a bucket share their limit, so the
+ * hash is randomly seeded, to keep attackers from picking usernames that share the bucket of another user.
+ *
+ * IPv6 addresses are limited by their /64 prefix, as a single client usually has a whole /64 network to pick
+ * addresses from.
+ *
+ * Thread safe.
+ */
+public final class LoginThrottle {
+
+    public static final int DEFAULT_ATTEMPTS_PER_MINUTE_PER_USER = 10;
+    public static final int DEFAULT_BURST_PER_USER = 5;
+    public static final int DEFAULT_ATTEMPTS_PER_MINUTE_PER_IP = 30;
+    public static final int DEFAULT_BURST_PER_IP = 10;
+    public static final int DEFAULT_BUCKET_COUNT = 1 << 16;
+
+    private static final int MAX_BUCKET_COUNT = 1 << 30;
+    private static final int IPV6_NETWORK_PREFIX_BYTES = 8;
+    private static final long NANOSECONDS_PER_MINUTE = 60L * 1000L * 1000L * 1000L;
+
+    private static final SecureRandom SEED_RANDOM = new SecureRandom();
+
+    private final long seed = SEED_RANDOM.nextLong();
+    private final TokenBuckets userBuckets;
+    private final TokenBuckets ipBuckets;
+    private final Semaphore hashingPermits;
+
+    /**
+     * Creates a login throttle with the default limits, allowing as many concurrent password hashes as there are processors.
+     */
+    public LoginThrottle() {
+        this(DEFAULT_ATTEMPTS_PER_MINUTE_PER_USER,
+             DEFAULT_BURST_PER_USER,
+             DEFAULT_ATTEMPTS_PER_MINUTE_PER_IP,
+             DEFAULT_BURST_PER_IP,
+             Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param attemptsPerMinutePerUser number of login attempts allowed per minute for the same username, over time.
+     * @param burstPerUser number of login attempts allowed in quick succession for the same username.
+     * @param attemptsPerMinutePerIp number of login attempts allowed per minute from the same IP, over time.
+     * @param burstPerIp number of login attempts allowed in quick succession from the same IP.
+     * @param maxConcurrentHashes maximum number of password hashes computed at the same time.
+     *                            Logins arriving when this many are being computed are rejected.
+     */
+    public LoginThrottle(int attemptsPerMinutePerUser,
+                         int burstPerUser,
+                         int attemptsPerMinutePerIp,
+                         int burstPerIp,
+                         int maxConcurrentHashes) {
+        this(attemptsPerMinutePerUser,
+             burstPerUser,
+             attemptsPerMinutePerIp,
+             burstPerIp,
+             maxConcurrentHashes,
+             DEFAULT_BUCKET_COUNT);
+    }
+
+    /**
+     * @param attemptsPerMinutePerUser number of login attempts allowed per minute for the same username, over time.
+     * @param burstPerUser number of login attempts allowed in quick succession for the same username.
+     * @param attemptsPerMinutePerIp number of login attempts allowed per minute from the same IP, over time.
+     * @param burstPerIp number of login attempts allowed in quick succession from the same IP.
+     * @param maxConcurrentHashes maximum number of password hashes computed at the same time.
+     *                            Logins arriving when this many are being computed are rejected.
+     * @param bucketCount number of buckets in the username table and in the IP table, rounded up to a power of two.
+     *                    Should be well above the number of usernames or IPs that attempt logins within a minute,
+     *                    so that few of them share a bucket.  Each bucket takes 8 bytes.
+     */
+    public LoginThrottle(int attemptsPerMinutePerUser,
+                         int burstPerUser,
+                         int attemptsPerMinutePerIp,
+                         int burstPerIp,
+                         int maxConcurrentHashes,
+                         int bucketCount) {
+        Check.positive(maxConcurrentHashes, "maxConcurrentHashes");
+        Check.positive(bucketCount, "bucketCount");
+
+        // Power of two, so that buckets can be picked with a mask
+        final int tableSize = bucketCount >= MAX_BUCKET_COUNT ? MAX_BUCKET_COUNT : Math.max(1, Integer.highestOneBit(bucketCount - 1) << 1);
+
+        userBuckets = new TokenBuckets(attemptsPerMinutePerUser, burstPerUser, tableSize);
+        ipBuckets = new TokenBuckets(attemptsPerMinutePerIp, burstPerIp, tableSize);
+        hashingPermits = new Semaphore(maxConcurrentHashes);
+    }
+
+    /**
+     * Uses up a login attempt for the username and IP, if both have attempts left.
+     *
+     * @param userName username that the login is attempted for.
+     * @param ipAddress IP address the login attempt came from, or null if not known.
+     * @return true if the login may be attempted, false if there have been too many attempts recently.
+     */
+    public boolean tryAttempt(String userName, InetAddress ipAddress) {
+        final long currentTime = System.nanoTime();
+
+        // Check the IP first, so that attempts from a throttled IP do not use up the attempts of the user
+        if (ipAddress != null && !ipBuckets.tryTake(hashAddress(ipAddress), currentTime)) return false;
+        return userName == null || userBuckets.tryTake(hashUserName(userName), currentTime);
+    }
+
+    /**
+     * Should be called before computing a password hash for a login.  If it returns true, endHashing must be called
+     * after the hash has been computed.
+     *
+     * @return true if the hash may be computed, false if the maximum number of hashes are already being computed.
+     */
+    public boolean tryStartHashing() {
+        return hashingPermits.tryAcquire();
+    }
+
+    /**
+     * Should be called after computing a password hash that was allowed by tryStartHashing.
+     */
+    public void endHashing() {
+        hashingPermits.release();
+    }
+
+    private long hashUserName(String userName) {
+        long hash = seed;
+        for (int i = 0; i < userName.length(); i++) {
+            hash = (hash ^ userName.charAt(i)) * 0x9e3779b97f4a7c15L;
+            hash ^= hash >>> 32;
+        }
+        return mix(hash ^ userName.length());
+    }
+
+    private long hashAddress(InetAddress ipAddress) {
+        // The hash code of an IPv4 address is the address itself, so it can be read without copying the address bytes
+        if (ipAddress instanceof Inet4Address) return mix(seed ^ ipAddress.hashCode());
+
+        final byte[] address = ipAddress.getAddress();
+        long network = 0;
+        for (int i = 0; i < IPV6_NETWORK_PREFIX_BYTES; i++) {
+            network = (network << 8) | (address[i] & 0xFF);
+        }
+        return mix(seed ^ network ^ Long.MIN_VALUE);
+    }
+
+    private long mix(long hash) {
+        hash = (hash + seed) * 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * Token buckets in a fixed size table, each stored as the time when it will be full again.
+     */
+    private static final class TokenBuckets {
+        private final AtomicLongArray fullTimes;
+        private final int indexMask;
+        private final long interval;
+        private final long capacity;
+
+        private TokenBuckets(int attemptsPerMinute, int burst, int bucketCount) {
+            Check.positive(attemptsPerMinute, "attemptsPerMinute");
+            Check.positive(burst, "burst");
+
+            fullTimes = new AtomicLongArray(bucketCount);
+            indexMask = bucketCount - 1;
+            interval = NANOSECONDS_PER_MINUTE / attemptsPerMinute;
+            capacity = interval * burst;
+        }
+
+        boolean tryTake(long hash, long currentTime) {
+            final int index = (int) hash & indexMask;
+            while (true) {
+                final long fullTime = fullTimes.get(index);
+
+                // Unused buckets are full.  Zero marks an unused bucket, so it is never stored as a time.
+                final long newFullTime = (fullTime == 0 || fullTime - currentTime < 0 ? currentTime : fullTime) + interval;
+                if (newFullTime - currentTime > capacity) return false;
+                if (fullTimes.compareAndSet(index, fullTime, newFullTime == 0 ? 1 : newFullTime)) return true;
+            }
+        }
+    }
+}
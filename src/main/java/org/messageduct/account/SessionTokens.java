@@ -0,0 +1,145 @@
+package org.messageduct.account;
+
+import org.flowutils.Check;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import static org.flowutils.Check.notNull;
+
+/**
+ * Issues and verifies session tokens, which let a client log in again without sending its password, and without the
+ * server computing a password hash.
+ *
+ * A token contains its expiry time and an HMAC-SHA256 over the username, the expiry time and the password hash of the
+ * account, so no tokens need to be stored on the server, and changing the password invalidates the earlier tokens.
+ * The HMAC key is random by default, so tokens are invalidated when the server restarts.  Servers that should accept
+ * each other's tokens, or tokens issued before a restart, can share a key.
+ *
+ * Thread safe.
+ */
+public final class SessionTokens {
+
+    /**
+     * Default time that a token is valid for.
+     */
+    public static final long DEFAULT_TOKEN_LIFETIME_MILLISECONDS = 24 * 60 * 60 * 1000L;
+
+    /**
+     * Length of the HMAC key in bytes.
+     */
+    public static final int KEY_LENGTH = 32;
+
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final byte TOKEN_VERSION = 1;
+    private static final int MAC_LENGTH = 32;
+    private static final int TOKEN_LENGTH = 1 + 8 + MAC_LENGTH;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final SecretKeySpec key;
+    private final long tokenLifetimeMilliseconds;
+
+    // Mac instances are not thread safe, so each thread uses its own
+    private final ThreadLocal<Mac> threadMac = new ThreadLocal<Mac>() {
+        @Override protected Mac initialValue() {
+            try {
+                final Mac mac = Mac.getInstance(MAC_ALGORITHM);
+                mac.init(key);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException("Could not create " + MAC_ALGORITHM + ": " + e.getMessage(), e);
+            }
+        }
+    };
+
+    /**
+     * Creates session tokens with a random key and the default token lifetime.
+     */
+    public SessionTokens() {
+        this(createRandomKey(), DEFAULT_TOKEN_LIFETIME_MILLISECONDS);
+    }
+
+    /**
+     * @param key secret key used to sign the tokens, KEY_LENGTH bytes.  Should be kept secret, as anyone knowing it
+     *            can create tokens for any account.
+     * @param tokenLifetimeMilliseconds time that a token is valid for after it has been issued.
+     */
+    public SessionTokens(byte[] key, long tokenLifetimeMilliseconds) {
+        notNull(key, "key");
+        Check.equal(key.length, "key length", KEY_LENGTH, "KEY_LENGTH");
+        Check.positive(tokenLifetimeMilliseconds, "tokenLifetimeMilliseconds");
+
+        this.key = new SecretKeySpec(Arrays.copyOf(key, key.length), MAC_ALGORITHM);
+        this.tokenLifetimeMilliseconds = tokenLifetimeMilliseconds;
+    }
+
+    /**
+     * @param userName account to issue the token for.
+     * @param passwordHash current password hash of the account.
+     * @return a new token for the account.
+     */
+    public byte[] createToken(String userName, String passwordHash) {
+        notNull(userName, "userName");
+
+        final long expiryTime = System.currentTimeMillis() + tokenLifetimeMilliseconds;
+
+        final ByteBuffer token = ByteBuffer.allocate(TOKEN_LENGTH);
+        token.put(TOKEN_VERSION);
+        token.putLong(expiryTime);
+        token.put(calculateMac(userName, passwordHash, expiryTime));
+        return token.array();
+    }
+
+    /**
+     * @param userName account that the token is presented for.
+     * @param passwordHash current password hash of the account.
+     * @param token token to check.
+     * @return true if the token was issued for the account with the same password hash, and has not expired.
+     */
+    public boolean isValidToken(String userName, String passwordHash, byte[] token) {
+        if (userName == null || token == null || token.length != TOKEN_LENGTH || token[0] != TOKEN_VERSION) return false;
+
+        final long expiryTime = ByteBuffer.wrap(token, 1, 8).getLong();
+        if (expiryTime <= System.currentTimeMillis()) return false;
+
+        // Constant time comparison, so that the correct MAC can not be found byte by byte from response times
+        final byte[] expectedMac = calculateMac(userName, passwordHash, expiryTime);
+        return MessageDigest.isEqual(expectedMac, Arrays.copyOfRange(token, 1 + 8, TOKEN_LENGTH));
+    }
+
+    /**
+     * @return time that a token is valid for after it has been issued.
+     */
+    public long getTokenLifetimeMilliseconds() {
+        return tokenLifetimeMilliseconds;
+    }
+
+    /**
+     * @return a new random key usable with the constructor.
+     */
+    public static byte[] createRandomKey() {
+        final byte[] key = new byte[KEY_LENGTH];
+        new SecureRandom().nextBytes(key);
+        return key;
+    }
+
+    private byte[] calculateMac(String userName, String passwordHash, long expiryTime) {
+        final Mac mac = threadMac.get();
+        mac.update(TOKEN_VERSION);
+        mac.update(ByteBuffer.allocate(8).putLong(expiryTime).array());
+
+        // Length prefixes keep the fields from running into each other
+        final byte[] userNameBytes = userName.getBytes(UTF_8);
+        mac.update(ByteBuffer.allocate(4).putInt(userNameBytes.length).array());
+        mac.update(userNameBytes);
+        if (passwordHash != null) mac.update(passwordHash.getBytes(UTF_8));
+
+        return mac.doFinal();
+    }
+}
@@ -0,0 +1,21 @@
+package org.messageduct.account;
+
+import org.messageduct.account.messages.AccountMessage;
+import org.messageduct.account.messages.AccountResponseMessage;
+
+import java.net.InetAddress;
+
+/**
+ * AccountService that can also be told the IP address of the client that sent a message.
+ */
+public interface SourceAddressAccountService extends AccountService {
+
+    /**
+     * Handle the specified AccountMessage received from the specified address.
+     *
+     * @param sourceAddress IP address of the client that sent the message, or null if not known.
+     *                      Can be used e.g. to limit login attempts per IP.
+     * @return AccountResponseMessage to send to the client, or null to send no response
+     */
+    AccountResponseMessage handleMessage(AccountMessage accountMessage, InetAddress sourceAddress);
+}
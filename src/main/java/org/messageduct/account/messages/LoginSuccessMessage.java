@@ -1,11 +1,30 @@
 package org.messageduct.account.messages;
 
 /**
- *
+ * Sent to the client when it has logged in.
  */
 public class LoginSuccessMessage extends AccountResponseMessageBase  {
 
+    private final byte[] sessionToken;
+
     public LoginSuccessMessage(String userName) {
+        this(userName, null);
+    }
+
+    /**
+     * @param userName account that was logged in to.
+     * @param sessionToken token that the client can use to log in again with a TokenLoginMessage, or null if none was issued.
+     */
+    public LoginSuccessMessage(String userName, byte[] sessionToken) {
         super(userName);
+        this.sessionToken = sessionToken;
+    }
+
+    /**
+     * @return token that the client can use to log in again with a TokenLoginMessage until it expires,
+     *         without sending the password, or null if the server did not issue one.
+     */
+    public final byte[] getSessionToken() {
+        return sessionToken;
     }
 }
@@ -0,0 +1,42 @@
+package org.messageduct.account.messages;
+
+import java.util.Arrays;
+
+import static org.flowutils.Check.nonEmptyString;
+import static org.flowutils.Check.notNull;
+
+/**
+ * Message used by a client to log in again with a session token received in an earlier LoginSuccessMessage,
+ * instead of sending the password.
+ */
+public class TokenLoginMessage implements NonAuthenticatedAccountMessage {
+
+    private final String username;
+    private final byte[] sessionToken;
+
+    /**
+     * @param username username that the session token was issued for.
+     * @param sessionToken session token from an earlier LoginSuccessMessage.
+     */
+    public TokenLoginMessage(String username, byte[] sessionToken) {
+        nonEmptyString(username, "username");
+        notNull(sessionToken, "sessionToken");
+
+        this.username = username;
+        this.sessionToken = Arrays.copyOf(sessionToken, sessionToken.length);
+    }
+
+    @Override public final String getUsername() {
+        return username;
+    }
+
+    public final byte[] getSessionToken() {
+        return sessionToken;
+    }
+
+    @Override public String toString() {
+        return getClass().getSimpleName() + "{" +
+               "username='" + username + '\'' +
+               '}';
+    }
+}
@@ -0,0 +1,119 @@
+package org.messageduct.account.model;
+
+import com.esotericsoftware.kryo.DefaultSerializer;
+import org.messageduct.utils.BCrypt;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.flowutils.Check.notNull;
+
+/**
+ * Account that uses less memory and storage space than DefaultAccount, for servers with very many accounts.
+ *
+ * The BCrypt password hash is kept in packed binary form (41 bytes instead of a 60 character String), and the email
+ * and public key are kept as UTF-8 bytes.  Hashes that are not in the standard BCrypt format are kept as they are.
+ *
+ * Serialized with CompactAccountSerializer, which writes no field metadata.
+ */
+@DefaultSerializer(CompactAccountSerializer.class)
+public final class CompactAccount implements Account {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final String userName;
+    private final byte[] packedPasswordHash;
+    private final String unpackedPasswordHash;
+    private final byte[] email;
+    private final byte[] publicKey;
+
+    public CompactAccount(String userName, String passwordHash) {
+        this(userName, passwordHash, null);
+    }
+
+    public CompactAccount(String userName, String passwordHash, String email) {
+        this(userName, passwordHash, email, null);
+    }
+
+    public CompactAccount(String userName, String passwordHash, String email, String publicKey) {
+        notNull(userName, "userName");
+
+        this.userName = userName;
+        this.packedPasswordHash = passwordHash == null ? null : BCrypt.packHash(passwordHash);
+        this.unpackedPasswordHash = packedPasswordHash == null ? passwordHash : null;
+        this.email = encode(email);
+        this.publicKey = encode(publicKey);
+    }
+
+    /**
+     * Used by the serializer, takes ownership of the arrays.
+     */
+    CompactAccount(String userName, byte[] packedPasswordHash, String unpackedPasswordHash, byte[] email, byte[] publicKey) {
+        this.userName = userName;
+        this.packedPasswordHash = packedPasswordHash;
+        this.unpackedPasswordHash = unpackedPasswordHash;
+        this.email = email;
+        this.publicKey = publicKey;
+    }
+
+    @Override public String getUserName() {
+        return userName;
+    }
+
+    @Override public String getPasswordHash() {
+        return packedPasswordHash != null ? BCrypt.unpackHash(packedPasswordHash) : unpackedPasswordHash;
+    }
+
+    @Override public String getEmail() {
+        return decode(email);
+    }
+
+    @Override public String getPublicKey() {
+        return decode(publicKey);
+    }
+
+    byte[] getPackedPasswordHash() {
+        return packedPasswordHash;
+    }
+
+    String getUnpackedPasswordHash() {
+        return unpackedPasswordHash;
+    }
+
+    byte[] getEmailBytes() {
+        return email;
+    }
+
+    byte[] getPublicKeyBytes() {
+        return publicKey;
+    }
+
+    @Override public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        final CompactAccount that = (CompactAccount) o;
+        return userName.equals(that.userName) &&
+               Arrays.equals(packedPasswordHash, that.packedPasswordHash) &&
+               (unpackedPasswordHash == null ? that.unpackedPasswordHash == null : unpackedPasswordHash.equals(that.unpackedPasswordHash)) &&
+               Arrays.equals(email, that.email) &&
+               Arrays.equals(publicKey, that.publicKey);
+    }
+
+    @Override public int hashCode() {
+        int result = userName.hashCode();
+        result = 31 * result + Arrays.hashCode(packedPasswordHash);
+        result = 31 * result + (unpackedPasswordHash != null ? unpackedPasswordHash.hashCode() : 0);
+        result = 31 * result + Arrays.hashCode(email);
+        result = 31 * result + Arrays.hashCode(publicKey);
+        return result;
+    }
+
+    private static byte[] encode(String value) {
+        return value == null ? null : value.getBytes(UTF_8);
+    }
+
+    private static String decode(byte[] value) {
+        return value == null ? null : new String(value, UTF_8);
+    }
+}
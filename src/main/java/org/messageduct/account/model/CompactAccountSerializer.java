@@ -0,0 +1,94 @@
+package org.messageduct.account.model;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import org.messageduct.utils.BCrypt;
+
+/**
+ * Kryo serializer for CompactAccount.
+ *
+ * Writes a schema version first, followed by the fields in a fixed order without any field names or types.
+ * Fields added later should be appended, and older schema versions still read, so existing account files keep loading.
+ */
+public final class CompactAccountSerializer extends Serializer<CompactAccount> {
+
+    /**
+     * Schema version written by this serializer.
+     */
+    public static final int SCHEMA_VERSION = 1;
+
+    private static final byte NO_HASH = 0;
+    private static final byte PACKED_HASH = 1;
+    private static final byte UNPACKED_HASH = 2;
+
+    public CompactAccountSerializer() {
+        // Accounts are immutable
+        setImmutable(true);
+    }
+
+    @Override public void write(Kryo kryo, Output output, CompactAccount account) {
+        output.writeInt(SCHEMA_VERSION, true);
+        output.writeString(account.getUserName());
+
+        if (account.getPackedPasswordHash() != null) {
+            output.writeByte(PACKED_HASH);
+            output.writeBytes(account.getPackedPasswordHash());
+        }
+        else if (account.getUnpackedPasswordHash() != null) {
+            output.writeByte(UNPACKED_HASH);
+            output.writeString(account.getUnpackedPasswordHash());
+        }
+        else {
+            output.writeByte(NO_HASH);
+        }
+
+        writeBytes(output, account.getEmailBytes());
+        writeBytes(output, account.getPublicKeyBytes());
+    }
+
+    @Override public CompactAccount read(Kryo kryo, Input input, Class<CompactAccount> type) {
+        final int schemaVersion = input.readInt(true);
+        if (schemaVersion < 1 || schemaVersion > SCHEMA_VERSION) {
+            throw new KryoException("Unsupported account schema version " + schemaVersion + ", the latest supported version is " + SCHEMA_VERSION);
+        }
+
+        final String userName = input.readString();
+
+        byte[] packedPasswordHash = null;
+        String unpackedPasswordHash = null;
+        final byte hashType = input.readByte();
+        if (hashType == PACKED_HASH) {
+            packedPasswordHash = input.readBytes(BCrypt.PACKED_HASH_LENGTH);
+        }
+        else if (hashType == UNPACKED_HASH) {
+            unpackedPasswordHash = input.readString();
+        }
+        else if (hashType != NO_HASH) {
+            throw new KryoException("Unknown password hash type " + hashType);
+        }
+
+        final byte[] email = readBytes(input);
+        final byte[] publicKey = readBytes(input);
+
+        return new CompactAccount(userName, packedPasswordHash, unpackedPasswordHash, email, publicKey);
+    }
+
+    private static void writeBytes(Output output, byte[] bytes) {
+        // Length plus one, so that zero can mark null
+        if (bytes == null) {
+            output.writeInt(0, true);
+        }
+        else {
+            output.writeInt(bytes.length + 1, true);
+            output.writeBytes(bytes);
+        }
+    }
+
+    private static byte[] readBytes(Input input) {
+        final int length = input.readInt(true);
+        return length == 0 ? null : input.readBytes(length - 1);
+    }
+}
@@ -0,0 +1,271 @@
+package org.messageduct.account.persistence;
+
+import org.flowutils.Check;
+import org.flowutils.serializer.Serializer;
+import org.flowutils.service.ServiceProvider;
+import org.messageduct.account.model.Account;
+import org.messageduct.utils.GroupCommit;
+import org.messageduct.utils.encryption.AesEncryption;
+import org.messageduct.utils.encryption.SymmetricEncryption;
+import org.messageduct.utils.encryption.WrongPasswordException;
+import org.messageduct.utils.serializer.PooledKryoSerializer;
+import org.messageduct.utils.storage.FileStorage;
+import org.messageduct.utils.storage.Journal;
+import org.messageduct.utils.storage.Storage;
+
+import javax.crypto.SecretKey;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static org.flowutils.Check.notNull;
+
+/**
+ * Account persistence that appends each changed account to a journal file, and periodically compacts the journal
+ * into a snapshot of all accounts in the background.
+ *
+ * The cost of a change is proportional to the size of the changed account, not to the number of accounts.
+ * On startup the snapshot is loaded and the journal replayed on top of it.
+ *
+ * Concurrent changes share journal syncs: a change waits for the next sync of the journal to the storage device,
+ * and one sync covers all changes appended before it.
+ *
+ * The snapshot is stored in the same format as StorageAccountPersistence uses, so an existing account file can be
+ * used as the snapshot file.  The journal is kept next to it, with ".journal" appended to the name.
+ */
+public final class JournalAccountPersistence extends MemoryAccountPersistence {
+
+    /**
+     * Number of journal records after which a new snapshot is made by default.
+     */
+    public static final int DEFAULT_SNAPSHOT_INTERVAL = 10000;
+
+    private static final int MAX_RECORD_SIZE = 1024 * 1024;
+    private static final String JOURNAL_SUFFIX = ".journal";
+    private static final String OLD_JOURNAL_SUFFIX = ".journal.old";
+    private static final long SNAPSHOT_SHUTDOWN_WAIT_SECONDS = 600;
+
+    private final Storage snapshotStorage;
+    private final File journalFile;
+    private final File oldJournalFile;
+    private final char[] password;
+    private final int snapshotInterval;
+
+    private final Serializer serializer = new PooledKryoSerializer(false, Collections.<Class>emptyList(), MAX_RECORD_SIZE);
+    private final SymmetricEncryption encryption = new AesEncryption();
+    private final Object journalLock = new Object();
+
+    private final GroupCommit journalSync = new GroupCommit(new GroupCommit.WriteAction() {
+        @Override public void write() throws IOException {
+            journal.sync();
+        }
+    });
+
+    private SecretKey journalKey;
+    private volatile Journal journal;
+    private ExecutorService snapshotExecutor;
+
+    /**
+     * Creates a new journal backed AccountPersistence with no encryption.
+     *
+     * @param snapshotFile file to store the account snapshots in.  The journal is stored in the same directory.
+     */
+    public JournalAccountPersistence(File snapshotFile) {
+        this(snapshotFile, null);
+    }
+
+    /**
+     * Creates a new journal backed AccountPersistence.
+     *
+     * @param snapshotFile file to store the account snapshots in.  The journal is stored in the same directory.
+     * @param password a password to use to encrypt the snapshot and journal with, or null to use no encryption.
+     */
+    public JournalAccountPersistence(File snapshotFile, char[] password) {
+        this(snapshotFile, password, DEFAULT_SNAPSHOT_INTERVAL);
+    }
+
+    /**
+     * Creates a new journal backed AccountPersistence.
+     *
+     * @param snapshotFile file to store the account snapshots in.  The journal is stored in the same directory.
+     * @param password a password to use to encrypt the snapshot and journal with, or null to use no encryption.
+     * @param snapshotInterval number of changes to write to the journal before a new snapshot is made.
+     */
+    public JournalAccountPersistence(File snapshotFile, char[] password, int snapshotInterval) {
+        notNull(snapshotFile, "snapshotFile");
+        Check.positive(snapshotInterval, "snapshotInterval");
+
+        this.snapshotStorage = new FileStorage(snapshotFile, password);
+        this.journalFile = new File(snapshotFile.getPath() + JOURNAL_SUFFIX);
+        this.oldJournalFile = new File(snapshotFile.getPath() + OLD_JOURNAL_SUFFIX);
+        this.password = password;
+        this.snapshotInterval = snapshotInterval;
+    }
+
+    @Override protected void doInit(ServiceProvider serviceProvider) {
+        // Derive the journal encryption key once, instead of for each record
+        if (password != null) journalKey = encryption.generateSecretKeyFromPassword(password);
+
+        try {
+            // Load the latest snapshot
+            final Map<String, Account> accounts = new HashMap<String, Account>();
+            final Map<String, Account> snapshot = snapshotStorage.load();
+            if (snapshot != null) accounts.putAll(snapshot);
+
+            // A remaining old journal means that the last snapshot was not completed, replay it first
+            final boolean snapshotInterrupted = oldJournalFile.exists();
+            if (snapshotInterrupted) replayJournal(oldJournalFile, accounts);
+            final int journalRecordCount = replayJournal(journalFile, accounts);
+
+            setAccounts(accounts);
+
+            journal = new Journal(journalFile, MAX_RECORD_SIZE);
+            journal.open(journalRecordCount);
+
+            // Complete the interrupted snapshot.  Replaying the current journal on top of it again later is harmless.
+            if (snapshotInterrupted) {
+                snapshotStorage.save(accounts);
+                deleteOldJournal();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Problem when loading stored accounts: " + e.getMessage(), e);
+        }
+
+        snapshotExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, "Account snapshot writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Override protected void doShutdown() {
+        // Let any running snapshot complete
+        snapshotExecutor.shutdown();
+        try {
+            if (!snapshotExecutor.awaitTermination(SNAPSHOT_SHUTDOWN_WAIT_SECONDS, TimeUnit.SECONDS)) {
+                log.error("Account snapshot did not complete in time, it will be completed on the next startup");
+            }
+        } catch (InterruptedException e) {
+            log.error("Interrupted while waiting for the account snapshot to complete, it will be completed on the next startup");
+        }
+
+        synchronized (journalLock) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                log.error("Problem when closing the account journal: " + e.getMessage(), e);
+            }
+        }
+
+        super.doShutdown();
+    }
+
+    @Override protected void accountChanged(String userName, ConcurrentHashMap<String, Account> accounts) {
+        synchronized (journalLock) {
+            // Store the current state of the account, in case changes from several threads were made out of order
+            final JournalRecord record = new JournalRecord(userName, accounts.get(userName));
+
+            try {
+                journal.append(encodeRecord(record), false);
+            } catch (IOException e) {
+                throw new IllegalStateException("Problem when saving account data: " + e.getMessage(), e);
+            }
+
+            // Compact the journal into a snapshot when it grows long, unless a previous snapshot is still in progress
+            if (journal.getRecordCount() >= snapshotInterval && !oldJournalFile.exists()) {
+                startSnapshot(accounts);
+            }
+        }
+
+        // Wait until the record has been synced, together with any records appended concurrently
+        try {
+            journalSync.commit();
+        } catch (IOException e) {
+            throw new IllegalStateException("Problem when saving account data: " + e.getMessage(), e);
+        }
+    }
+
+    private void startSnapshot(final ConcurrentHashMap<String, Account> accounts) {
+        // Changes made after this are written to the new journal
+        try {
+            journal.rotate(oldJournalFile);
+        } catch (IOException e) {
+            log.error("Could not rotate the account journal, will try again later: " + e.getMessage(), e);
+            return;
+        }
+
+        snapshotExecutor.submit(new Runnable() {
+            @Override public void run() {
+                // Changes made while copying are also in the new journal, and replaying them on top of the snapshot
+                // gives the same result, so the copy does not need to block changes.
+                final HashMap<String, Account> snapshot = new HashMap<String, Account>(accounts);
+
+                try {
+                    snapshotStorage.save(snapshot);
+                    deleteOldJournal();
+                } catch (IOException e) {
+                    log.error("Could not save the account snapshot, it will be retried on the next startup: " + e.getMessage(), e);
+                }
+            }
+        });
+    }
+
+    private void deleteOldJournal() throws IOException {
+        if (oldJournalFile.exists() && !oldJournalFile.delete()) {
+            throw new IOException("Could not delete the old account journal " + oldJournalFile);
+        }
+    }
+
+    private int replayJournal(File file, final Map<String, Account> accounts) throws IOException {
+        return Journal.replay(file, MAX_RECORD_SIZE, new Journal.RecordHandler() {
+            @Override public void handleRecord(byte[] data) throws IOException {
+                final JournalRecord record = decodeRecord(data);
+                if (record.account != null) {
+                    accounts.put(record.userName, record.account);
+                }
+                else {
+                    accounts.remove(record.userName);
+                }
+            }
+        }, true);
+    }
+
+    private byte[] encodeRecord(JournalRecord record) {
+        final byte[] data = serializer.serialize(record);
+        return journalKey != null ? encryption.encrypt(data, journalKey) : data;
+    }
+
+    private JournalRecord decodeRecord(byte[] data) throws IOException {
+        if (journalKey != null) {
+            try {
+                data = encryption.decrypt(data, journalKey);
+            } catch (WrongPasswordException e) {
+                throw new IOException("Wrong password used for attempting to decrypt the account journal: " + e.getMessage(), e);
+            }
+        }
+
+        return serializer.deserialize(data);
+    }
+
+    /**
+     * The state of an account after a change, with a null account if it was deleted.
+     */
+    private static final class JournalRecord {
+        private final String userName;
+        private final Account account;
+
+        private JournalRecord(String userName, Account account) {
+            this.userName = userName;
+            this.account = account;
+        }
+    }
+}
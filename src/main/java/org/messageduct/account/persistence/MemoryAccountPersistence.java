@@ -62,7 +62,10 @@ public class MemoryAccountPersistence extends ServiceBase implements AccountPers
         final boolean success = oldAccount == null;
 
         // Notify child classes that we could commit changes now
-        if (success) store(accounts);
+        if (success) {
+            accountChanged(userName, accounts);
+            store(accounts);
+        }
 
         return success;
     }
@@ -78,7 +81,10 @@ public class MemoryAccountPersistence extends ServiceBase implements AccountPers
         final boolean success = oldValue != null;
 
         // Notify child classes that we could commit changes now
-        if (success) store(accounts);
+        if (success) {
+            accountChanged(userName, accounts);
+            store(accounts);
+        }
 
         return success;
     }
@@ -93,7 +99,10 @@ public class MemoryAccountPersistence extends ServiceBase implements AccountPers
         final boolean success = oldValue != null;
 
         // Notify child classes that we could commit changes now
-        if (success) store(accounts);
+        if (success) {
+            accountChanged(userName, accounts);
+            store(accounts);
+        }
 
         return success;
     }
@@ -114,6 +123,20 @@ public class MemoryAccountPersistence extends ServiceBase implements AccountPers
     protected void store(ConcurrentHashMap<String, Account> accounts) {
     }
 
+    /**
+     * Called after an account was created, updated or deleted, before store is called.
+     * Does nothing in this class, subclasses may override to store only the changed account.
+     *
+     * Calls for the same account may arrive in a different order than the changes were made if the account is
+     * changed from several threads at the same time, so the current state of the account should be read from the
+     * accounts map instead of assuming what the change was.
+     *
+     * @param userName username of the changed account.
+     * @param accounts all accounts.  The changed account is missing from it if it was deleted.
+     */
+    protected void accountChanged(String userName, ConcurrentHashMap<String, Account> accounts) {
+    }
+
     /**
      * Can be called by a storage to specify the current accounts
      *
@@ -0,0 +1,376 @@
+package org.messageduct.account.persistence;
+
+import org.flowutils.Check;
+import org.flowutils.serializer.Serializer;
+import org.flowutils.service.ServiceBase;
+import org.flowutils.service.ServiceProvider;
+import org.messageduct.account.model.Account;
+import org.messageduct.utils.BloomFilter;
+import org.messageduct.utils.GroupCommit;
+import org.messageduct.utils.encryption.AesEncryption;
+import org.messageduct.utils.encryption.SymmetricEncryption;
+import org.messageduct.utils.encryption.WrongPasswordException;
+import org.messageduct.utils.serializer.PooledKryoSerializer;
+import org.messageduct.utils.storage.HashIndex;
+import org.messageduct.utils.storage.PagedRecordFile;
+
+import javax.crypto.SecretKey;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.flowutils.Check.notNull;
+
+/**
+ * Account persistence that keeps the accounts on disk, and only caches recently used accounts in memory.
+ *
+ * Each account is stored as a separate record in a paged file, and an index file maps hashes of usernames to the
+ * records.  A change rewrites only the record of the changed account.  Memory use depends on the cache size instead
+ * of the total number of accounts, and startup does not load any accounts, so this is suitable for a very large
+ * number of accounts of which only a small part are active at the same time.
+ *
+ * The index file is memory mapped, and a Bloom filter of the usernames is kept in memory in front of it, so checking
+ * whether a username is taken or looking up an unknown username does not read any account records, and usually
+ * does not touch the index either.  The filter takes a few bytes per account.
+ *
+ * At startup the index is verified against the account records, and rebuilt from them if the server was not shut
+ * down cleanly or the index does not match.
+ *
+ * Two different usernames with the same 64 bit hash can not both have accounts, the later one is treated as taken.
+ */
+public final class PagedAccountPersistence extends ServiceBase implements AccountPersistence {
+
+    /**
+     * Number of accounts cached in memory by default.
+     */
+    public static final int DEFAULT_CACHE_SIZE = 10000;
+
+    private static final int MAX_RECORD_SIZE = 1024 * 1024;
+    private static final int INITIAL_INDEX_CAPACITY = 1024;
+    private static final String INDEX_SUFFIX = ".index";
+    private static final int MIN_FILTER_SIZE = 1024;
+    private static final double FILTER_FALSE_POSITIVE_RATE = 0.01;
+
+    private final PagedRecordFile recordFile;
+    private final HashIndex index;
+    private final char[] password;
+    private final Map<String, Account> cache;
+
+    private final Serializer serializer = new PooledKryoSerializer(false, Collections.<Class>emptyList(), MAX_RECORD_SIZE);
+    private final SymmetricEncryption encryption = new AesEncryption();
+
+    // Guards the record file and index together, so that they are changed consistently
+    private final Object storeLock = new Object();
+
+    private final GroupCommit storeSync = new GroupCommit(new GroupCommit.WriteAction() {
+        @Override public void write() throws IOException {
+            recordFile.sync();
+            index.sync();
+        }
+    });
+
+    private SecretKey recordKey;
+    private volatile BloomFilter userNameFilter;
+
+    /**
+     * Creates a new paged AccountPersistence with no encryption and the default cache size.
+     *
+     * @param accountFile file to store the accounts in.  The index is stored in the same directory.
+     */
+    public PagedAccountPersistence(File accountFile) {
+        this(accountFile, null);
+    }
+
+    /**
+     * Creates a new paged AccountPersistence with the default cache size.
+     *
+     * @param accountFile file to store the accounts in.  The index is stored in the same directory.
+     * @param password a password to use to encrypt the accounts with, or null to use no encryption.
+     */
+    public PagedAccountPersistence(File accountFile, char[] password) {
+        this(accountFile, password, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * Creates a new paged AccountPersistence.
+     *
+     * @param accountFile file to store the accounts in.  The index is stored in the same directory.
+     * @param password a password to use to encrypt the accounts with, or null to use no encryption.
+     * @param cacheSize maximum number of accounts to keep in memory.
+     */
+    public PagedAccountPersistence(File accountFile, char[] password, final int cacheSize) {
+        notNull(accountFile, "accountFile");
+        Check.positive(cacheSize, "cacheSize");
+
+        this.recordFile = new PagedRecordFile(accountFile, PagedRecordFile.DEFAULT_PAGE_SIZE);
+        this.index = new HashIndex(new File(accountFile.getPath() + INDEX_SUFFIX), INITIAL_INDEX_CAPACITY);
+        this.password = password;
+
+        // Least recently used accounts are dropped from the cache first
+        this.cache = Collections.synchronizedMap(new LinkedHashMap<String, Account>(16, 0.75f, true) {
+            @Override protected boolean removeEldestEntry(Map.Entry<String, Account> eldest) {
+                return size() > cacheSize;
+            }
+        });
+    }
+
+    @Override protected void doInit(ServiceProvider serviceProvider) {
+        // Derive the record encryption key once, instead of for each record
+        if (password != null) recordKey = encryption.generateSecretKeyFromPassword(password);
+
+        try {
+            recordFile.open();
+            index.open();
+
+            // The index may not match the records if the server was stopped in the middle of a change
+            if (!recordFile.wasClosedCleanly() || index.size() != recordFile.getRecordCount()) {
+                log.warn("The account index " + index.getFile() + " is out of date, rebuilding it");
+                rebuildIndex();
+            }
+
+            rebuildUserNameFilter();
+        } catch (IOException e) {
+            throw new IllegalStateException("Problem when opening the account storage: " + e.getMessage(), e);
+        }
+    }
+
+    @Override protected void doShutdown() {
+        synchronized (storeLock) {
+            try {
+                index.close();
+            } catch (IOException e) {
+                log.error("Problem when closing the account index: " + e.getMessage(), e);
+            }
+
+            // Closing the record file marks the index as up to date, so it is closed last
+            try {
+                recordFile.close();
+            } catch (IOException e) {
+                log.error("Problem when closing the account storage: " + e.getMessage(), e);
+            }
+
+            cache.clear();
+        }
+    }
+
+    @Override public Account getAccount(String userName) {
+        ensureActive();
+
+        final Account cachedAccount = cache.get(userName);
+        if (cachedAccount != null) return cachedAccount;
+
+        synchronized (storeLock) {
+            final Account account = loadAccount(userName);
+            if (account != null) cache.put(userName, account);
+            return account;
+        }
+    }
+
+    @Override public boolean hasAccount(String userName) {
+        ensureActive();
+        if (userName == null) return false;
+
+        if (cache.containsKey(userName)) return true;
+
+        // Answered from the filter and index, without reading the account record.  A different username with the
+        // same hash counts as taken, the same as in createAccount
+        final long key = HashIndex.hash(userName);
+        return userNameFilter.mightContain(key) && index.get(key) != HashIndex.NO_VALUE;
+    }
+
+    @Override public boolean createAccount(String userName, Account account) {
+        ensureActive();
+        notNull(userName, "userName");
+        notNull(account, "account");
+
+        synchronized (storeLock) {
+            try {
+                final long key = HashIndex.hash(userName);
+                if (userNameFilter.mightContain(key) && index.get(key) != HashIndex.NO_VALUE) return false;
+
+                // Add to the filter before the index, so that every indexed username passes the filter
+                userNameFilter.add(key);
+                index.put(key, recordFile.write(encodeRecord(new AccountRecord(userName, account))));
+
+                // Keep the false positive rate low as the number of accounts grows
+                if (index.size() > userNameFilter.getExpectedKeyCount()) rebuildUserNameFilter();
+            } catch (IOException e) {
+                throw new IllegalStateException("Problem when saving account data: " + e.getMessage(), e);
+            }
+
+            cache.put(userName, account);
+        }
+
+        syncChanges();
+        return true;
+    }
+
+    @Override public boolean updateAccount(String userName, Account account) {
+        ensureActive();
+        notNull(userName, "userName");
+        notNull(account, "account");
+
+        synchronized (storeLock) {
+            if (loadAccount(userName) == null) return false;
+
+            try {
+                // Write the new record before freeing the old one, so a crash in between loses no data
+                final long oldRecordId = index.put(HashIndex.hash(userName),
+                                                   recordFile.write(encodeRecord(new AccountRecord(userName, account))));
+                recordFile.free(oldRecordId);
+            } catch (IOException e) {
+                throw new IllegalStateException("Problem when saving account data: " + e.getMessage(), e);
+            }
+
+            cache.put(userName, account);
+        }
+
+        syncChanges();
+        return true;
+    }
+
+    @Override public boolean deleteAccount(String userName) {
+        ensureActive();
+
+        synchronized (storeLock) {
+            if (loadAccount(userName) == null) return false;
+
+            try {
+                // Free the record before removing it from the index, so a crash in between can not bring it back
+                final long key = HashIndex.hash(userName);
+                recordFile.free(index.get(key));
+                index.remove(key);
+            } catch (IOException e) {
+                throw new IllegalStateException("Problem when saving account data: " + e.getMessage(), e);
+            }
+
+            cache.remove(userName);
+        }
+
+        syncChanges();
+        return true;
+    }
+
+    /**
+     * @return number of accounts currently cached in memory.
+     */
+    public int getCachedAccountCount() {
+        return cache.size();
+    }
+
+    /**
+     * Reads an account from the cache or the disk.  Should be called while holding the storeLock.
+     */
+    private Account loadAccount(String userName) {
+        if (userName == null) return null;
+
+        final Account cachedAccount = cache.get(userName);
+        if (cachedAccount != null) return cachedAccount;
+
+        final long key = HashIndex.hash(userName);
+        if (!userNameFilter.mightContain(key)) return null;
+
+        try {
+            final long recordId = index.get(key);
+            if (recordId == HashIndex.NO_VALUE) return null;
+
+            // Another username with the same hash
+            final AccountRecord record = decodeRecord(recordFile.read(recordId));
+            if (!userName.equals(record.userName)) return null;
+
+            return record.account;
+        } catch (IOException e) {
+            throw new IllegalStateException("Problem when loading account data: " + e.getMessage(), e);
+        }
+    }
+
+    private void syncChanges() {
+        // Wait until the change has been synced, together with any changes made concurrently
+        try {
+            storeSync.commit();
+        } catch (IOException e) {
+            throw new IllegalStateException("Problem when saving account data: " + e.getMessage(), e);
+        }
+    }
+
+    private void rebuildUserNameFilter() {
+        // Leave room to grow, so the filter does not need to be rebuilt often
+        final BloomFilter filter = new BloomFilter(Math.max(MIN_FILTER_SIZE, index.size() * 2), FILTER_FALSE_POSITIVE_RATE);
+        index.visitEntries(new HashIndex.EntryVisitor() {
+            @Override public void visitEntry(long key, long value) {
+                filter.add(key);
+            }
+        });
+        userNameFilter = filter;
+    }
+
+    private void rebuildIndex() throws IOException {
+        index.clear();
+
+        // If a crash left several records for the same user, keep the latest one
+        final Map<Long, Long> latestSequences = new HashMap<Long, Long>();
+        recordFile.scan(new PagedRecordFile.RecordVisitor() {
+            @Override public void visitRecord(long recordId, long sequence, byte[] data) throws IOException {
+                final long key = HashIndex.hash(decodeRecord(data).userName);
+                final Long previousSequence = latestSequences.get(key);
+                if (previousSequence == null || previousSequence < sequence) {
+                    latestSequences.put(key, sequence);
+                    index.put(key, recordId);
+                }
+            }
+        });
+
+        // Free the outdated records
+        if (index.size() != recordFile.getRecordCount()) {
+            final List<Long> outdatedRecords = new ArrayList<Long>();
+            recordFile.scan(new PagedRecordFile.RecordVisitor() {
+                @Override public void visitRecord(long recordId, long sequence, byte[] data) throws IOException {
+                    if (index.get(HashIndex.hash(decodeRecord(data).userName)) != recordId) {
+                        outdatedRecords.add(recordId);
+                    }
+                }
+            });
+            for (Long recordId : outdatedRecords) {
+                recordFile.free(recordId);
+            }
+        }
+
+        recordFile.sync();
+        index.sync();
+    }
+
+    private byte[] encodeRecord(AccountRecord record) {
+        final byte[] data = serializer.serialize(record);
+        return recordKey != null ? encryption.encrypt(data, recordKey) : data;
+    }
+
+    private AccountRecord decodeRecord(byte[] data) throws IOException {
+        if (recordKey != null) {
+            try {
+                data = encryption.decrypt(data, recordKey);
+            } catch (WrongPasswordException e) {
+                throw new IOException("Wrong password used for attempting to decrypt the account storage: " + e.getMessage(), e);
+            }
+        }
+
+        return serializer.deserialize(data);
+    }
+
+    /**
+     * An account together with its username, so that hash collisions can be detected and the index rebuilt.
+     */
+    private static final class AccountRecord {
+        private final String userName;
+        private final Account account;
+
+        private AccountRecord(String userName, Account account) {
+            this.userName = userName;
+            this.account = account;
+        }
+    }
+}
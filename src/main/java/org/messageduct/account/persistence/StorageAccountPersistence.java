@@ -2,7 +2,11 @@ package org.messageduct.account.persistence;
 
 import org.flowutils.service.ServiceProvider;
 import org.messageduct.account.model.Account;
+import org.messageduct.utils.GroupCommit;
+import org.messageduct.utils.WriteBehind;
+import org.messageduct.utils.WriteFuture;
 import org.messageduct.utils.storage.FileStorage;
+import org.messageduct.utils.storage.ShardedMapStorage;
 import org.messageduct.utils.storage.Storage;
 
 import java.io.File;
@@ -11,15 +15,44 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
+import static org.flowutils.Check.notNull;
+
 /**
  * Account persistence that saves the accounts to a storage provider whenever any account is changed.
  *
  * Note that this stores all accounts when any account changes, which could be ok for a medium number of accounts and a file storage,
  * but not suitable for a large number of accounts and a database storage.
+ * For a large number of accounts, use JournalAccountPersistence, which only writes the changed account, or a
+ * ShardedMapStorage, which only writes the part of the accounts containing the changed account.
+ *
+ * Concurrent changes are group committed: changes made while a save is in progress are all written by the next save.
+ * Optionally changes can be saved in a background thread (write behind), so that changing accounts does not block.
  */
 public final class StorageAccountPersistence extends MemoryAccountPersistence {
 
     private final Storage storage;
+    private final ShardedMapStorage shardedStorage;
+    private final long writeBehindMilliseconds;
+
+    private final GroupCommit.WriteAction saveAction = new GroupCommit.WriteAction() {
+        @Override public void write() throws IOException {
+            if (shardedStorage != null) {
+                // Only rewrite the shards with changed accounts
+                shardedStorage.saveChanged(accountsToSave);
+            }
+            else {
+                // Put data in HashMap for easier serialization(?)
+                final HashMap<String, Account> data = new HashMap<String, Account>(accountsToSave);
+
+                // Save
+                storage.save(data);
+            }
+        }
+    };
+    private final GroupCommit groupCommit = new GroupCommit(saveAction);
+
+    private volatile ConcurrentHashMap<String, Account> accountsToSave;
+    private WriteBehind writeBehind;
 
     /**
      * Creates a new FileStorage backed AccountPersistence with no encryption.
@@ -40,15 +73,62 @@ public final class StorageAccountPersistence extends MemoryAccountPersistence {
         this(new FileStorage(storageFile, accountFilePassword));
     }
 
+    /**
+     * Creates a new AccountPersistence that stores the accounts in several files, split by username.
+     * The files are loaded in parallel, and a change only rewrites the file with the changed account.
+     *
+     * @param storageFile file name to store the accounts under.  The account files are named after it.
+     *                    If only this file exists, the accounts are loaded from it and split into the account files.
+     * @param accountFilePassword a password to use to encrypt the accounts with, or null to use no encryption.
+     * @param shardCount number of files to split the accounts into.  Should not be changed for existing account files.
+     */
+    public StorageAccountPersistence(File storageFile, char[] accountFilePassword, int shardCount) {
+        this(new ShardedMapStorage(storageFile, accountFilePassword, shardCount));
+    }
+
     /**
      * Creates a new Storage backed AccountPersistence.
      *
      * @param storage storage to use to save and load accounts with.
+     *                If it is a ShardedMapStorage, only the shards with changed accounts are saved.
      */
     public StorageAccountPersistence(Storage storage) {
+        this(storage, -1);
+    }
+
+    /**
+     * Creates a new Storage backed AccountPersistence.
+     *
+     * @param storage storage to use to save and load accounts with.
+     * @param writeBehindMilliseconds if zero or larger, changes are saved in a background thread, and the methods
+     *                                that change accounts return without waiting for the save.  The save is done
+     *                                this many milliseconds after the first unsaved change, so this is the maximum
+     *                                time that a change stays unsaved (in addition to the time taken by the save).
+     *                                Use getPendingWrite to be notified when changes have been saved.
+     *                                If negative, the methods that change accounts wait until the change is saved.
+     */
+    public StorageAccountPersistence(Storage storage, long writeBehindMilliseconds) {
+        notNull(storage, "storage");
+
         this.storage = storage;
+        this.shardedStorage = storage instanceof ShardedMapStorage ? (ShardedMapStorage) storage : null;
+        this.writeBehindMilliseconds = writeBehindMilliseconds;
     }
 
+    /**
+     * @return true if changes are saved in a background thread.
+     */
+    public boolean isWriteBehind() {
+        return writeBehindMilliseconds >= 0;
+    }
+
+    /**
+     * @return future that completes when all changes made so far have been saved.
+     *         Already completed if not in write behind mode, as changes are saved before the changing methods return.
+     */
+    public WriteFuture getPendingWrite() {
+        return writeBehind != null ? writeBehind.getPendingWrite() : WriteFuture.COMPLETED;
+    }
 
     @Override protected void doInit(ServiceProvider serviceProvider) {
         // Load accounts
@@ -64,21 +144,43 @@ public final class StorageAccountPersistence extends MemoryAccountPersistence {
             // Update accounts
             setAccounts(storedAccounts);
         }
+
+        if (isWriteBehind()) {
+            writeBehind = new WriteBehind(saveAction, writeBehindMilliseconds, "Account writer");
+        }
     }
 
     @Override protected void doShutdown() {
+        // Save any unsaved changes before the accounts are cleared
+        if (writeBehind != null) {
+            try {
+                writeBehind.shutdown();
+            } catch (IOException e) {
+                log.error("Problem when saving account data at shutdown, latest changes were lost: " + e.getMessage(), e);
+            }
+        }
+
         super.doShutdown();
     }
 
+    @Override protected void accountChanged(String userName, ConcurrentHashMap<String, Account> accounts) {
+        if (shardedStorage != null) shardedStorage.markChanged(userName);
+    }
+
     @Override protected void store(ConcurrentHashMap <String, Account> accounts) {
-        // Put data in HashMap for easier serialization(?)
-        final HashMap<String, Account> data = new HashMap<String, Account>(accounts);
+        accountsToSave = accounts;
 
-        // Save
-        try {
-            storage.save(data);
-        } catch (IOException e) {
-            throw new IllegalStateException("Problem when saving account data: "+ e.getMessage(), e);
+        if (writeBehind != null) {
+            // Save in the background
+            writeBehind.changed();
+        }
+        else {
+            // Wait until a save that includes this change has completed
+            try {
+                groupCommit.commit();
+            } catch (IOException e) {
+                throw new IllegalStateException("Problem when saving account data: "+ e.getMessage(), e);
+            }
         }
     }
 }
@@ -20,7 +20,7 @@ import static org.flowutils.Check.notNull;
 /**
  * Common functionality for ClientNetworking.
  */
-public abstract class ClientNetworkingBase implements ClientNetworking {
+public abstract class ClientNetworkingBase implements TokenLoginClientNetworking {
 
     private final Set<ServerListener> listeners = new ConcurrentSet<ServerListener>();
     private final Deque<Object> queuedMessages = new ConcurrentLinkedDeque<Object>();
@@ -75,6 +75,19 @@ public abstract class ClientNetworkingBase implements ClientNetworking {
         sendMessage(new LoginMessage(accountName, password));
     }
 
+    @Override public final void loginWithToken(String accountName, byte[] sessionToken) {
+        ensureNotDisconnected();
+        if (loggedIn) throw new IllegalStateException("Already logged in with account name " + this.accountName +", can not log in with account '" + accountName +"'");
+        if (!connectCalled) throw new IllegalStateException("connect should be called before login!");
+
+        // Store account name
+        this.accountName = accountName;
+
+        // Send (or queue) login message
+        log.info("Logging into account '" + accountName + "' with a session token");
+        sendMessage(new TokenLoginMessage(accountName, sessionToken));
+    }
+
     @Override public final void createAccount(String accountName, char[] password) {
         createAccount(new CreateAccountMessage(accountName, password));
     }
@@ -0,0 +1,70 @@
+package org.messageduct.client;
+
+import org.flowutils.Check;
+import org.messageduct.serverinfo.ServerStatus;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import static org.flowutils.Check.notNull;
+
+/**
+ * Queries the status of a server with a single UDP request, without connecting to it.
+ * Intended for server browsers.  The server must have status queries enabled in its NetworkConfig.
+ */
+public final class ServerStatusQuery {
+
+    public static final int DEFAULT_TIMEOUT_MILLISECONDS = 2000;
+
+    private static final int MAX_RESPONSE_SIZE = ServerStatus.REQUEST_SIZE;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * Queries the status of a server.
+     *
+     * @param serverAddress address and port of the server.
+     * @param serverPublicKey public key of the server, used to verify the status.
+     *                        If null, the status is not verified and may have been forged.
+     * @param timeoutMilliseconds time to wait for an answer.
+     * @return the status of the server.
+     * @throws IOException if the server did not answer in time, or the answer was invalid.
+     */
+    public static ServerStatus queryStatus(InetSocketAddress serverAddress,
+                                           PublicKey serverPublicKey,
+                                           int timeoutMilliseconds) throws IOException {
+        notNull(serverAddress, "serverAddress");
+        Check.positive(timeoutMilliseconds, "timeoutMilliseconds");
+
+        final long token = RANDOM.nextLong();
+        final byte[] request = ServerStatus.createRequest(token);
+
+        final DatagramSocket socket = new DatagramSocket();
+        try {
+            socket.setSoTimeout(timeoutMilliseconds);
+            socket.send(new DatagramPacket(request, request.length, serverAddress));
+
+            final byte[] buffer = new byte[MAX_RESPONSE_SIZE];
+            final DatagramPacket responsePacket = new DatagramPacket(buffer, buffer.length);
+            try {
+                socket.receive(responsePacket);
+            } catch (SocketTimeoutException e) {
+                throw new IOException("No status response from server " + serverAddress + " within " + timeoutMilliseconds + " ms", e);
+            }
+
+            final byte[] response = Arrays.copyOf(buffer, responsePacket.getLength());
+            return ServerStatus.parseResponse(response, token, serverPublicKey);
+        }
+        finally {
+            socket.close();
+        }
+    }
+
+    private ServerStatusQuery() {
+    }
+}
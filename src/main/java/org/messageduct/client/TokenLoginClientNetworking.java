@@ -0,0 +1,18 @@
+package org.messageduct.client;
+
+/**
+ * ClientNetworking that can also log in with a session token instead of a password.
+ */
+public interface TokenLoginClientNetworking extends ClientNetworking {
+
+    /**
+     * Initiates a login with a session token received in the LoginSuccessMessage of an earlier login,
+     * which is faster for the server than checking the password.
+     * Connect must have been called first, although the connection does not yet need to be ready
+     * (the login is queued if the connection is still ongoing).
+     *
+     * @param accountName account name.
+     * @param sessionToken session token issued for the account.
+     */
+    void loginWithToken(String accountName, byte[] sessionToken);
+}
@@ -23,14 +23,26 @@ public class DefaultNetworkConfig implements NetworkConfig {
     public static final int DEFAULT_PORT = 28866;
     public static final int DEFAULT_IDLE_TIME_SECONDS = 30;
     public static final int DEFAULT_MESSAGE_SIZE = 1024*1024;
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_IP = 64;
+    public static final int DEFAULT_MAX_CONNECTIONS = 10000;
+    public static final int DEFAULT_MAX_CONCURRENT_HANDSHAKES = 128;
+    public static final int DEFAULT_MAX_NEW_CONNECTIONS_PER_SECOND = 500;
+    public static final int DEFAULT_HANDSHAKE_TIMEOUT_SECONDS = 10;
 
     private int port;
     private boolean encryptionEnabled;
     private boolean compressionEnabled;
     private boolean messageLoggingEnabled;
+    private boolean statusQueryEnabled;
+    private int maxConnectionsPerIp = DEFAULT_MAX_CONNECTIONS_PER_IP;
+    private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    private int maxConcurrentHandshakes = DEFAULT_MAX_CONCURRENT_HANDSHAKES;
+    private int maxNewConnectionsPerSecond = DEFAULT_MAX_NEW_CONNECTIONS_PER_SECOND;
+    private int handshakeTimeoutSeconds = DEFAULT_HANDSHAKE_TIMEOUT_SECONDS;
     private int idleTimeSeconds;
     private int maximumMessageSize;
     private KeyPair serverKeys;
+    private SerializerFactory serializerFactory = new KryoSerializerFactory();
 
     private final Set<Class> allowedClasses = new LinkedHashSet<Class>();
 
@@ -167,6 +179,69 @@ public class DefaultNetworkConfig implements NetworkConfig {
         this.idleTimeSeconds = idleTimeSeconds;
     }
 
+    @Override public SerializerFactory getSerializerFactory() {
+        return serializerFactory;
+    }
+
+    @Override public void setSerializerFactory(SerializerFactory serializerFactory) {
+        notNull(serializerFactory, "serializerFactory");
+
+        this.serializerFactory = serializerFactory;
+    }
+
+    @Override public boolean isStatusQueryEnabled() {
+        return statusQueryEnabled;
+    }
+
+    @Override public void setStatusQueryEnabled(boolean statusQueryEnabled) {
+        this.statusQueryEnabled = statusQueryEnabled;
+    }
+
+    @Override public int getMaxConnectionsPerIp() {
+        return maxConnectionsPerIp;
+    }
+
+    @Override public void setMaxConnectionsPerIp(int maxConnectionsPerIp) {
+        Check.positiveOrZero(maxConnectionsPerIp, "maxConnectionsPerIp");
+        this.maxConnectionsPerIp = maxConnectionsPerIp;
+    }
+
+    @Override public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    @Override public void setMaxConnections(int maxConnections) {
+        Check.positiveOrZero(maxConnections, "maxConnections");
+        this.maxConnections = maxConnections;
+    }
+
+    @Override public int getMaxConcurrentHandshakes() {
+        return maxConcurrentHandshakes;
+    }
+
+    @Override public void setMaxConcurrentHandshakes(int maxConcurrentHandshakes) {
+        Check.positiveOrZero(maxConcurrentHandshakes, "maxConcurrentHandshakes");
+        this.maxConcurrentHandshakes = maxConcurrentHandshakes;
+    }
+
+    @Override public int getMaxNewConnectionsPerSecond() {
+        return maxNewConnectionsPerSecond;
+    }
+
+    @Override public void setMaxNewConnectionsPerSecond(int maxNewConnectionsPerSecond) {
+        Check.positiveOrZero(maxNewConnectionsPerSecond, "maxNewConnectionsPerSecond");
+        this.maxNewConnectionsPerSecond = maxNewConnectionsPerSecond;
+    }
+
+    @Override public int getHandshakeTimeoutSeconds() {
+        return handshakeTimeoutSeconds;
+    }
+
+    @Override public void setHandshakeTimeoutSeconds(int handshakeTimeoutSeconds) {
+        Check.positiveOrZero(handshakeTimeoutSeconds, "handshakeTimeoutSeconds");
+        this.handshakeTimeoutSeconds = handshakeTimeoutSeconds;
+    }
+
     @Override public KeyPair getServerKeys() {
         return serverKeys;
     }
@@ -233,6 +308,7 @@ public class DefaultNetworkConfig implements NetworkConfig {
 
     protected void registerAccountManagementClasses() {
         registerAllowedClasses(LoginMessage.class,
+                               TokenLoginMessage.class,
                                LoginSuccessMessage.class,
                                CreateAccountMessage.class,
                                CreateAccountSuccessMessage.class,
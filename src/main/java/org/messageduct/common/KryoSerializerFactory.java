@@ -0,0 +1,35 @@
+package org.messageduct.common;
+
+import org.flowutils.Check;
+import org.flowutils.serializer.Serializer;
+import org.messageduct.utils.serializer.KryoPool;
+import org.messageduct.utils.serializer.PooledKryoSerializer;
+
+import java.util.Collection;
+
+/**
+ * Creates Kryo based serializers with the allowed classes registered in the order they were added to the NetworkConfig
+ * (so both ends of a connection get the same registration ids).
+ *
+ * The serializers take their Kryo instances and buffers from a pool shared by all connections with the same
+ * configuration, so a connection holds no serialization state of its own.  Call warmUp at startup to create the
+ * pooled instances before the first connections arrive.
+ */
+public class KryoSerializerFactory implements WarmableSerializerFactory {
+
+    @Override public Serializer createSerializer(int maximumMessageSize, Collection<Class> allowedClasses) {
+        return new PooledKryoSerializer(getPool(maximumMessageSize, allowedClasses));
+    }
+
+    @Override public void warmUp(int maximumMessageSize, Collection<Class> allowedClasses, int threadCount) {
+        getPool(maximumMessageSize, allowedClasses).warmUp(threadCount);
+    }
+
+    private KryoPool getPool(int maximumMessageSize, Collection<Class> allowedClasses) {
+        Check.positive(maximumMessageSize, "maximumMessageSize");
+
+        // Messages from the network may only contain the allowed classes
+        final boolean registrationRequired = true;
+        return KryoPool.getSharedPool(registrationRequired, allowedClasses, maximumMessageSize);
+    }
+}
@@ -112,4 +112,90 @@ public interface NetworkConfig {
      * @param sizeInBytes maximum size of a message in bytes (serialized, packed, or encrypted sizes all have to be smaller than this).
      */
     void setMaximumMessageSize(int sizeInBytes);
+
+    /**
+     * @return factory used to create the serializer that converts messages to and from binary form.
+     */
+    SerializerFactory getSerializerFactory();
+
+    /**
+     * Should not be called after the configuration has been passed to the networking service.
+     * @param serializerFactory factory used to create the serializer that converts messages to and from binary form.
+     *                          The server and client should use compatible serializers.
+     */
+    void setSerializerFactory(SerializerFactory serializerFactory);
+
+    /**
+     * @return true if the server answers status queries sent as UDP datagrams to the same port number.
+     *         Status queries return the server name, description and user count without a connection handshake.
+     *         Defaults to false.
+     */
+    boolean isStatusQueryEnabled();
+
+    /**
+     * Should not be called after the configuration has been passed to the networking service.
+     * @param statusQueryEnabled true if the server should answer status queries sent as UDP datagrams to the same port number.
+     */
+    void setStatusQueryEnabled(boolean statusQueryEnabled);
+
+    /**
+     * @return maximum number of simultaneous connections from the same IP address, or zero for no limit.
+     *         IPv6 addresses in the same /64 network count as the same IP address.
+     */
+    int getMaxConnectionsPerIp();
+
+    /**
+     * Should not be called after the configuration has been passed to the networking service.
+     * @param maxConnectionsPerIp maximum number of simultaneous connections from the same IP address, or zero for no limit.
+     */
+    void setMaxConnectionsPerIp(int maxConnectionsPerIp);
+
+    /**
+     * @return maximum number of simultaneous connections to the server, or zero for no limit.
+     */
+    int getMaxConnections();
+
+    /**
+     * Should not be called after the configuration has been passed to the networking service.
+     * @param maxConnections maximum number of simultaneous connections to the server, or zero for no limit.
+     */
+    void setMaxConnections(int maxConnections);
+
+    /**
+     * @return maximum number of connections that may be doing the encryption handshake at the same time, or zero for no limit.
+     *         The handshake uses public key encryption, which takes a lot of processor time.
+     */
+    int getMaxConcurrentHandshakes();
+
+    /**
+     * Should not be called after the configuration has been passed to the networking service.
+     * @param maxConcurrentHandshakes maximum number of connections that may be doing the encryption handshake at the same time,
+     *                                or zero for no limit.
+     */
+    void setMaxConcurrentHandshakes(int maxConcurrentHandshakes);
+
+    /**
+     * @return maximum number of new connections accepted per second, or zero for no limit.
+     *         Short bursts of up to this many connections are accepted at once.
+     */
+    int getMaxNewConnectionsPerSecond();
+
+    /**
+     * Should not be called after the configuration has been passed to the networking service.
+     * @param maxNewConnectionsPerSecond maximum number of new connections accepted per second, or zero for no limit.
+     */
+    void setMaxNewConnectionsPerSecond(int maxNewConnectionsPerSecond);
+
+    /**
+     * @return number of seconds a connection may take to complete the encryption handshake before it is closed,
+     *         or zero for no limit.  Keeps idle connections from holding on to the concurrent handshake slots.
+     */
+    int getHandshakeTimeoutSeconds();
+
+    /**
+     * Should not be called after the configuration has been passed to the networking service.
+     * @param handshakeTimeoutSeconds number of seconds a connection may take to complete the encryption handshake
+     *                                before it is closed, or zero for no limit.
+     */
+    void setHandshakeTimeoutSeconds(int handshakeTimeoutSeconds);
 }
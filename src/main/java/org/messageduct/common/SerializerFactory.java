@@ -0,0 +1,24 @@
+package org.messageduct.common;
+
+import org.flowutils.serializer.Serializer;
+
+import java.util.Collection;
+
+/**
+ * Creates the serializer used to convert messages to and from binary form on a network connection.
+ *
+ * Set an implementation with NetworkConfig.setSerializerFactory to change the wire format,
+ * e.g. to benchmark different serialization engines.  The server and client must use compatible serializers.
+ *
+ * Implement WarmableSerializerFactory as well if the serializers can be prepared ahead of time.
+ */
+public interface SerializerFactory {
+
+    /**
+     * @param maximumMessageSize maximum size of a serialized message in bytes.
+     * @param allowedClasses the classes that are allowed to be serialized.  No other classes should be accepted.
+     * @return a serializer for a connection.  May be shared between connections if the serializer is thread safe.
+     */
+    Serializer createSerializer(int maximumMessageSize, Collection<Class> allowedClasses);
+
+}
@@ -0,0 +1,21 @@
+package org.messageduct.common;
+
+import java.util.Collection;
+
+/**
+ * SerializerFactory whose serialization engine can be prepared before it is needed.
+ * The server calls warmUp at startup for factories that implement this.
+ */
+public interface WarmableSerializerFactory extends SerializerFactory {
+
+    /**
+     * Prepares the serialization engine for the given parameters ahead of time, so that the first messages sent
+     * on new connections do not have to wait for it to set up.
+     *
+     * @param maximumMessageSize maximum size of a serialized message in bytes.
+     * @param allowedClasses the classes that are allowed to be serialized.
+     * @param threadCount number of threads that are expected to serialize messages concurrently.
+     */
+    void warmUp(int maximumMessageSize, Collection<Class> allowedClasses, int threadCount);
+
+}
@@ -0,0 +1,161 @@
+package org.messageduct.common.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.MessageToMessageCodec;
+import org.flowutils.Check;
+import org.messageduct.utils.ByteBufUtils;
+import org.messageduct.utils.ObjectPool;
+
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses and decompresses each message separately with deflate.
+ *
+ * Unlike a streaming zlib codec, no compression state is kept between messages, so the Deflater and Inflater
+ * instances (which hold a few hundred kilobytes of native memory each) are borrowed from pools shared by all
+ * connections instead of being held by every connection.  The codec itself is stateless and can be shared.
+ *
+ * Each compressed message is prefixed with its uncompressed length, which is checked against the maximum message
+ * size before decompressing.
+ */
+@ChannelHandler.Sharable
+public final class CompressionCodec extends MessageToMessageCodec<ByteBuf, ByteBuf> {
+
+    private static final int MAX_POOLED_COMPRESSORS = 4 * Runtime.getRuntime().availableProcessors();
+    private static final int UNCOMPRESSED_LENGTH_BYTES = 4;
+    private static final int MIN_OUTPUT_CHUNK = 64;
+
+    private static final ObjectPool<Deflater> DEFLATERS = new ObjectPool<Deflater>(MAX_POOLED_COMPRESSORS) {
+        @Override protected Deflater create() {
+            return new Deflater(Deflater.DEFAULT_COMPRESSION);
+        }
+
+        @Override protected void reset(Deflater deflater) {
+            deflater.reset();
+        }
+
+        @Override protected void dispose(Deflater deflater) {
+            deflater.end();
+        }
+    };
+
+    private static final ObjectPool<Inflater> INFLATERS = new ObjectPool<Inflater>(MAX_POOLED_COMPRESSORS) {
+        @Override protected Inflater create() {
+            return new Inflater();
+        }
+
+        @Override protected void reset(Inflater inflater) {
+            inflater.reset();
+        }
+
+        @Override protected void dispose(Inflater inflater) {
+            inflater.end();
+        }
+    };
+
+    private final int maxMessageSize;
+
+    /**
+     * @param maxMessageSize maximum allowed size of a decompressed message.
+     */
+    public CompressionCodec(int maxMessageSize) {
+        Check.positive(maxMessageSize, "maxMessageSize");
+
+        this.maxMessageSize = maxMessageSize;
+    }
+
+    /**
+     * Compresses data into the format used on the wire by this codec.
+     * Can be used to prepare frequently sent messages in advance, see PreEncodedMessage.
+     *
+     * @param uncompressed data to compress.
+     * @return the uncompressed length followed by the compressed data.
+     */
+    public static byte[] compress(byte[] uncompressed) {
+        final ByteBuf compressed = Unpooled.buffer(UNCOMPRESSED_LENGTH_BYTES + uncompressed.length / 2 + MIN_OUTPUT_CHUNK);
+        compress(uncompressed, compressed);
+        return ByteBufUtils.byteBufToByteArray(compressed);
+    }
+
+    @Override public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof PreEncodedMessage && ((PreEncodedMessage) msg).isCompressed()) {
+            // Already compressed, pass on the data as is
+            ctx.write(((PreEncodedMessage) msg).createBuffer(), promise);
+        }
+        else {
+            super.write(ctx, msg, promise);
+        }
+    }
+
+    @Override protected void encode(ChannelHandlerContext ctx, ByteBuf msg, List<Object> out) throws Exception {
+        final byte[] uncompressed = ByteBufUtils.byteBufToByteArray(msg);
+
+        // Compressed data is usually smaller, the buffer is grown if needed
+        final ByteBuf compressed = ctx.alloc().heapBuffer(UNCOMPRESSED_LENGTH_BYTES + uncompressed.length / 2 + MIN_OUTPUT_CHUNK);
+        try {
+            compress(uncompressed, compressed);
+        }
+        catch (RuntimeException e) {
+            compressed.release();
+            throw e;
+        }
+
+        out.add(compressed);
+    }
+
+    @Override protected void decode(ChannelHandlerContext ctx, ByteBuf msg, List<Object> out) throws Exception {
+        if (msg.readableBytes() < UNCOMPRESSED_LENGTH_BYTES) throw new ProtocolException("Compressed message too short to contain the uncompressed length");
+
+        final int uncompressedLength = msg.readInt();
+        if (uncompressedLength < 0 || uncompressedLength > maxMessageSize) {
+            throw new ProtocolException("Invalid uncompressed message length " + uncompressedLength + ", maximum is " + maxMessageSize);
+        }
+
+        final byte[] compressed = ByteBufUtils.byteBufToByteArray(msg);
+        final byte[] uncompressed = new byte[uncompressedLength];
+
+        final Inflater inflater = INFLATERS.borrow();
+        try {
+            inflater.setInput(compressed);
+            final int inflatedBytes = inflater.inflate(uncompressed);
+            if (inflatedBytes != uncompressedLength) {
+                throw new ProtocolException("Decompressed message length did not match the length in the message header");
+            }
+        }
+        catch (DataFormatException e) {
+            throw new ProtocolException("Could not decompress message: " + e.getMessage(), e);
+        }
+        finally {
+            INFLATERS.release(inflater);
+        }
+
+        out.add(Unpooled.wrappedBuffer(uncompressed));
+    }
+
+    private static void compress(byte[] uncompressed, ByteBuf compressed) {
+        compressed.writeInt(uncompressed.length);
+
+        final Deflater deflater = DEFLATERS.borrow();
+        try {
+            deflater.setInput(uncompressed);
+            deflater.finish();
+            while (!deflater.finished()) {
+                compressed.ensureWritable(MIN_OUTPUT_CHUNK);
+                final int written = deflater.deflate(compressed.array(),
+                                                     compressed.arrayOffset() + compressed.writerIndex(),
+                                                     compressed.writableBytes());
+                compressed.writerIndex(compressed.writerIndex() + written);
+            }
+        }
+        finally {
+            DEFLATERS.release(deflater);
+        }
+    }
+}
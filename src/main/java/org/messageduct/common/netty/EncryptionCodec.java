@@ -45,12 +45,36 @@ public final class EncryptionCodec extends MessageToMessageCodec<ByteBuf, ByteBu
 
     private static final int SESSION_PASS_LENGTH_BYTES = 1024;
 
+    private static final SecureRandom SECURE_RANDOM = new SecureRandom();
+
+    /**
+     * User event fired down the pipeline when the handshake has completed and the connection is encrypted.
+     */
+    public static final Object HANDSHAKE_COMPLETED_EVENT = new Object() {
+        @Override public String toString() {
+            return "HANDSHAKE_COMPLETED_EVENT";
+        }
+    };
+
+    // The default encryption implementations are shared by all codecs used from the same thread (the event loop of
+    // the connection), instead of each connection holding its own instances.
+    private static final ThreadLocal<AsymmetricEncryption> THREAD_ASYMMETRIC_ENCRYPTION = new ThreadLocal<AsymmetricEncryption>() {
+        @Override protected AsymmetricEncryption initialValue() {
+            return new RsaEncryption();
+        }
+    };
+    private static final ThreadLocal<SymmetricEncryption> THREAD_SYMMETRIC_ENCRYPTION = new ThreadLocal<SymmetricEncryption>() {
+        @Override protected SymmetricEncryption initialValue() {
+            return new AesEncryption();
+        }
+    };
+
     private final boolean clientSide;
     private final AsymmetricEncryption asymmetricEncryption;
     private final SymmetricEncryption  symmetricEncryption;
     private PublicKey serverPublicKey;
     private final PrivateKey serverPrivateKey;
-    private final List<byte[]> queuedMessages = new ArrayList<byte[]>();
+    private List<byte[]> queuedMessages;
     private State state;
 
     private byte[] clientHalfOfSessionPass;
@@ -63,7 +87,7 @@ public final class EncryptionCodec extends MessageToMessageCodec<ByteBuf, ByteBu
      * @param serverPublicKey public key of the server to connect to, or null if unknown (if null, man in the middle attacks are possible).
      */
     public EncryptionCodec(PublicKey serverPublicKey) {
-        this(new RsaEncryption(), new AesEncryption(), true, serverPublicKey, null);
+        this(null, null, true, serverPublicKey, null);
     }
 
     /**
@@ -71,14 +95,16 @@ public final class EncryptionCodec extends MessageToMessageCodec<ByteBuf, ByteBu
      * @param serverKeys public and private keys of the server.
      */
     public EncryptionCodec(KeyPair serverKeys) {
-        this(new RsaEncryption(), new AesEncryption(), false,
+        this(null, null, false,
              serverKeys != null ? serverKeys.getPublic() : null,
              serverKeys != null ? serverKeys.getPrivate() : null);
     }
 
     /**
-     * @param asymmetricEncryption public & private key encryption to use in the handshake.
-     * @param symmetricEncryption symmetric encryption to encrypt the traffic with.
+     * @param asymmetricEncryption public & private key encryption to use in the handshake,
+     *                             or null to use a default implementation shared by the codecs on the same thread.
+     * @param symmetricEncryption symmetric encryption to encrypt the traffic with,
+     *                            or null to use a default implementation shared by the codecs on the same thread.
      * @param clientSide true if this is the client side, false if it is the server side.
      * @param serverPublicKey public key of the server, or null if unknown (if null, man in the middle attacks are possible).
      * @param serverPrivateKey private key of the server.  Should only be provided on the server side.
@@ -88,8 +114,6 @@ public final class EncryptionCodec extends MessageToMessageCodec<ByteBuf, ByteBu
                            boolean clientSide,
                            PublicKey serverPublicKey,
                            PrivateKey serverPrivateKey) {
-        notNull(asymmetricEncryption, "asymmetricEncryption");
-        notNull(symmetricEncryption, "symmetricEncryption");
         if (!clientSide && serverPrivateKey == null) throw new IllegalArgumentException("Server private key must be provided for server side encryption codec, but it was null");
         if (clientSide && serverPrivateKey != null) throw new IllegalArgumentException("Server private key should not be provided for client side encryption codec");
 
@@ -118,7 +142,7 @@ public final class EncryptionCodec extends MessageToMessageCodec<ByteBuf, ByteBu
             case CONNECTED:
                 // Encrypt message with session key and send it on
                 try {
-                    out.add(symmetricEncryption.encrypt(ByteBufUtils.byteBufToByteArray(msg), sessionKey));
+                    out.add(getSymmetricEncryption().encrypt(ByteBufUtils.byteBufToByteArray(msg), sessionKey));
                 } catch (Exception e) {
                     protocolError(ctx, "could not encrypt a message: " + e.getMessage());
                 }
@@ -163,6 +187,7 @@ public final class EncryptionCodec extends MessageToMessageCodec<ByteBuf, ByteBu
 
                 // Server is now connected
                 setState(CONNECTED);
+                ctx.fireUserEventTriggered(HANDSHAKE_COMPLETED_EVENT);
 
                 // Send any messages that were queued while the handshake was ongoing.
                 sendQueuedMessages(out);
@@ -173,6 +198,7 @@ public final class EncryptionCodec extends MessageToMessageCodec<ByteBuf, ByteBu
                 handleServerHandshakeOnClient(ctx, msg);
 
                 setState(CONNECTED);
+                ctx.fireUserEventTriggered(HANDSHAKE_COMPLETED_EVENT);
 
                 // Send any messages that were queued while the handshake was ongoing.
                 sendQueuedMessages(out);
@@ -183,7 +209,7 @@ public final class EncryptionCodec extends MessageToMessageCodec<ByteBuf, ByteBu
                 System.out.println("msg = " + msg);
                 // Decrypt the message with the session key
                 try {
-                    out.add(symmetricEncryption.decrypt(ByteBufUtils.byteBufToByteArray(msg), sessionKey));
+                    out.add(getSymmetricEncryption().decrypt(ByteBufUtils.byteBufToByteArray(msg), sessionKey));
                 } catch (Exception e) {
                     protocolError(ctx, "could not decrypt a message: " + e.getMessage());
                 }
@@ -229,7 +255,7 @@ public final class EncryptionCodec extends MessageToMessageCodec<ByteBuf, ByteBu
                 // Create public key message
                 final byte[] serverPublicKeyMessage = ByteArrayUtils.composeWithSizePrefixes(
                         SERVER_INITIAL_HANDSHAKE_HEADER.getBytes(ASCII),
-                        asymmetricEncryption.serializePublicKey(this.serverPublicKey)
+                        getAsymmetricEncryption().serializePublicKey(this.serverPublicKey)
                 );
 
                 // Update state
@@ -274,8 +300,8 @@ public final class EncryptionCodec extends MessageToMessageCodec<ByteBuf, ByteBu
         clientHalfOfSessionPass = generateSessionPassHalve();
 
         // Create client keypair
-        clientKeys = asymmetricEncryption.createNewPublicPrivateKey();
-        final byte[] clientPublicKey = asymmetricEncryption.serializePublicKey(clientKeys.getPublic());
+        clientKeys = getAsymmetricEncryption().createNewPublicPrivateKey();
+        final byte[] clientPublicKey = getAsymmetricEncryption().serializePublicKey(clientKeys.getPublic());
 
         // Create handshake by composing the byte buffers above
         final byte[] handshake = ByteArrayUtils.composeWithSizePrefixes(
@@ -285,7 +311,7 @@ public final class EncryptionCodec extends MessageToMessageCodec<ByteBuf, ByteBu
         );
 
         // Encrypt handshake with the servers public key
-        return asymmetricEncryption.encrypt(handshake, serverPublicKey);
+        return getAsymmetricEncryption().encrypt(handshake, serverPublicKey);
     }
 
     private byte[] handleClientHandshakeOnServer(ChannelHandlerContext ctx, ByteBuf msg) throws ProtocolException {
@@ -322,7 +348,7 @@ public final class EncryptionCodec extends MessageToMessageCodec<ByteBuf, ByteBu
         );
 
         // Encrypt handshake using client public key
-        return asymmetricEncryption.encrypt(serverHandshake, clientPublicKey);
+        return getAsymmetricEncryption().encrypt(serverHandshake, clientPublicKey);
     }
 
     private void handleServerHandshakeOnClient(ChannelHandlerContext ctx, ByteBuf msg) throws ProtocolException {
@@ -340,6 +366,10 @@ public final class EncryptionCodec extends MessageToMessageCodec<ByteBuf, ByteBu
 
         // Combine client and server session pass to get session key
         sessionKey = createSessionKey(clientHalfOfSessionPass, serverHalfOfSessionPass);
+
+        // The handshake data is no longer needed, release it
+        this.clientHalfOfSessionPass = null;
+        clientKeys = null;
     }
 
     private SecretKey createSessionKey(final byte[] clientHalfOfSessionPass,
@@ -356,13 +386,12 @@ public final class EncryptionCodec extends MessageToMessageCodec<ByteBuf, ByteBu
         }
 
         // Generate the actual key using the combined session pass as a password
-        return symmetricEncryption.generateSecretKeyFromPassword(combinedSessionPass);
+        return getSymmetricEncryption().generateSecretKeyFromPassword(combinedSessionPass);
     }
 
     private byte[] generateSessionPassHalve() {
         final byte[] sessionPassHalve = new byte[SESSION_PASS_LENGTH_BYTES];
-        SecureRandom secureRandom = new SecureRandom();
-        secureRandom.nextBytes(sessionPassHalve);
+        SECURE_RANDOM.nextBytes(sessionPassHalve);
         return sessionPassHalve;
     }
 
@@ -372,13 +401,16 @@ public final class EncryptionCodec extends MessageToMessageCodec<ByteBuf, ByteBu
     }
 
     private void clearQueuedMessages() {
-        queuedMessages.clear();
+        queuedMessages = null;
     }
 
     /**
      * Queues a message until the handshake is complete.
      */
     private void queueMessage(ByteBuf msg) {
+        // Most connections never queue anything, so only create the queue when needed
+        if (queuedMessages == null) queuedMessages = new ArrayList<byte[]>(2);
+
         byte[] storedMessage = ByteBufUtils.byteBufToByteArray(msg);
         queuedMessages.add(storedMessage);
     }
@@ -387,12 +419,14 @@ public final class EncryptionCodec extends MessageToMessageCodec<ByteBuf, ByteBu
      * Sends any messages that were queued before
      */
     private void sendQueuedMessages(List<Object> out) throws Exception {
-        for (byte[] queuedMessage : queuedMessages) {
-            final byte[] encryptedMessage = symmetricEncryption.encrypt(queuedMessage, sessionKey);
-            out.add(encryptedMessage);
-        }
+        if (queuedMessages != null) {
+            for (byte[] queuedMessage : queuedMessages) {
+                final byte[] encryptedMessage = getSymmetricEncryption().encrypt(queuedMessage, sessionKey);
+                out.add(encryptedMessage);
+            }
 
-        queuedMessages.clear();
+            clearQueuedMessages();
+        }
     }
 
     private List<byte[]> decomposeAndCheckHandshake(ChannelHandlerContext ctx,
@@ -432,7 +466,7 @@ public final class EncryptionCodec extends MessageToMessageCodec<ByteBuf, ByteBu
                            final String source) throws ProtocolException {
         byte[] handshake = null;
         try {
-            handshake = asymmetricEncryption.decrypt(encryptedHandshake, privateKey);
+            handshake = getAsymmetricEncryption().decrypt(encryptedHandshake, privateKey);
         } catch (WrongPasswordException e) {
             protocolError(ctx, "could not decrypt the " + source + " handshake: " + e.getMessage());
         }
@@ -444,7 +478,7 @@ public final class EncryptionCodec extends MessageToMessageCodec<ByteBuf, ByteBu
                                            final String source) throws ProtocolException {
         PublicKey publicKey = null;
         try {
-            publicKey = asymmetricEncryption.deserializePublicKey(serializedPublicKey);
+            publicKey = getAsymmetricEncryption().deserializePublicKey(serializedPublicKey);
             notNull(publicKey, "publicKey");
         }
         catch (Throwable e) {
@@ -488,6 +522,14 @@ public final class EncryptionCodec extends MessageToMessageCodec<ByteBuf, ByteBu
         this.state = state;
     }
 
+    private AsymmetricEncryption getAsymmetricEncryption() {
+        return asymmetricEncryption != null ? asymmetricEncryption : THREAD_ASYMMETRIC_ENCRYPTION.get();
+    }
+
+    private SymmetricEncryption getSymmetricEncryption() {
+        return symmetricEncryption != null ? symmetricEncryption : THREAD_SYMMETRIC_ENCRYPTION.get();
+    }
+
     public State getState() {
         return state;
     }
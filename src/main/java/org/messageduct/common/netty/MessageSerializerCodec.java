@@ -4,19 +4,16 @@ import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufInputStream;
 import io.netty.buffer.ByteBufUtil;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
 import io.netty.handler.codec.ByteToMessageCodec;
-import org.flowutils.Check;
-import org.flowutils.serializer.KryoSerializer;
 import org.flowutils.serializer.Serializer;
+import org.messageduct.common.KryoSerializerFactory;
 import org.messageduct.utils.ByteBufUtils;
 
 import java.util.Collection;
-import java.util.Collections;
 import java.util.List;
 
-import static org.flowutils.Check.identifier;
 import static org.flowutils.Check.notNull;
-import static org.flowutils.Check.strictIdentifier;
 
 /**
  * Serializes and de-serializes objects with a given serializer.
@@ -26,12 +23,11 @@ public final class MessageSerializerCodec extends ByteToMessageCodec<Object> {
     private final Serializer serializer;
 
     /**
-     * @param maxMessageSize maximum allowed serialized message size.  Used to reserve a serialization buffer.
+     * @param maxMessageSize maximum allowed serialized message size.
      * @param allowedClasses only classes of these types and primitive types are allowed to be serialized.
      */
     public MessageSerializerCodec(int maxMessageSize, Collection<Class> allowedClasses) {
-        this(new KryoSerializer(maxMessageSize/8, maxMessageSize, false, allowedClasses));
-        Check.positive(maxMessageSize, "maxMessageSize");
+        this(new KryoSerializerFactory().createSerializer(maxMessageSize, allowedClasses));
     }
 
     /**
@@ -44,6 +40,22 @@ public final class MessageSerializerCodec extends ByteToMessageCodec<Object> {
         this.serializer = serializer;
     }
 
+    @Override public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof PreEncodedMessage) {
+            final PreEncodedMessage preEncodedMessage = (PreEncodedMessage) msg;
+            if (preEncodedMessage.isCompressed()) {
+                // Passed through the compression codec as is
+                ctx.write(preEncodedMessage, promise);
+            }
+            else {
+                ctx.write(preEncodedMessage.createBuffer(), promise);
+            }
+        }
+        else {
+            super.write(ctx, msg, promise);
+        }
+    }
+
     @Override protected void encode(ChannelHandlerContext ctx, Object msg, ByteBuf out) throws Exception {
         // Ignore null messages
         if (msg != null) {
@@ -3,11 +3,9 @@ package org.messageduct.common.netty;
 import io.netty.channel.ChannelPipeline;
 import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
 import io.netty.handler.codec.LengthFieldPrepender;
-import io.netty.handler.codec.compression.JdkZlibDecoder;
-import io.netty.handler.codec.compression.JdkZlibEncoder;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.logging.LoggingHandler;
-import org.flowutils.serializer.*;
+import org.messageduct.common.SerializerFactory;
 import org.messageduct.serverinfo.ServerInfo;
 import org.messageduct.common.NetworkConfig;
 
@@ -16,6 +14,9 @@ import org.messageduct.common.NetworkConfig;
  */
 public final class NettyPipelineBuilder {
 
+    // Logging handler is stateless and sharable, so all connections use the same one
+    private static final LoggingHandler LOGGING_HANDLER = new LoggingHandler(LogLevel.INFO);
+
     /**
      * Creates and sets up common filters for the networking pipeline on the server side.
      *
@@ -78,16 +79,17 @@ public final class NettyPipelineBuilder {
 
         // Compress/decompress traffic if compression is enabled
         if (networkConfig.isCompressionEnabled()) {
-            pipeline.addLast(new JdkZlibEncoder());
-            pipeline.addLast(new JdkZlibDecoder());
+            pipeline.addLast(new CompressionCodec(networkConfig.getMaximumMessageSize()));
         }
 
         // Encode/Decode traffic between Java Objects and binary data
-        pipeline.addLast(new MessageSerializerCodec(networkConfig.getMaximumMessageSize(), networkConfig.getAllowedClasses()));
+        final SerializerFactory serializerFactory = networkConfig.getSerializerFactory();
+        pipeline.addLast(new MessageSerializerCodec(serializerFactory.createSerializer(networkConfig.getMaximumMessageSize(),
+                                                                                       networkConfig.getAllowedClasses())));
 
         // Log messages if desired
         if (networkConfig.isMessageLoggingEnabled()) {
-            pipeline.addLast(new LoggingHandler(LogLevel.INFO));
+            pipeline.addLast(LOGGING_HANDLER);
         }
 
     }
@@ -0,0 +1,46 @@
+package org.messageduct.common.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import static org.flowutils.Check.notNull;
+
+/**
+ * A message that has already been serialized, and optionally compressed, in advance.
+ *
+ * Written to a channel like any other message, but the serializer (and compression, if already applied) pass the
+ * prepared data through as is.  Useful for messages that are sent unchanged to many clients.
+ * Encryption is still done separately for each connection.
+ */
+public final class PreEncodedMessage {
+
+    private final byte[] data;
+    private final boolean compressed;
+
+    /**
+     * @param data the serialized message, compressed with CompressionCodec.compress if compressed is true.
+     *             Should not be modified after passing it in.
+     * @param compressed true if the data is already compressed.
+     *                   Should match whether compression is enabled on the channels the message is written to.
+     */
+    public PreEncodedMessage(byte[] data, boolean compressed) {
+        notNull(data, "data");
+
+        this.data = data;
+        this.compressed = compressed;
+    }
+
+    /**
+     * @return true if the data is already compressed.
+     */
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * @return a new buffer wrapping the prepared data, without copying it.
+     */
+    public ByteBuf createBuffer() {
+        return Unpooled.wrappedBuffer(data);
+    }
+}
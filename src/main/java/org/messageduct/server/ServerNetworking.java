@@ -40,5 +40,4 @@ public interface ServerNetworking extends Service {
      */
     BanList getBanList();
 
-
 }
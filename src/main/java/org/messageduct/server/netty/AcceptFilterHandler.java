@@ -0,0 +1,307 @@
+package org.messageduct.server.netty;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOption;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.ScheduledFuture;
+import org.messageduct.common.NetworkConfig;
+import org.messageduct.common.netty.EncryptionCodec;
+import org.messageduct.server.ServerNetworking;
+import org.messageduct.utils.banlist.BanList;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.flowutils.Check.notNull;
+
+/**
+ * Handler for the server socket pipeline that decides whether to admit connections as soon as they are accepted,
+ * before they are registered with a worker event loop or get any pipeline handlers.
+ *
+ * Rejects connections from banned IPs, and connections exceeding the limits in the NetworkConfig for new connections
+ * per second, total connections, connections per IP, and concurrent encryption handshakes.  So under overload the
+ * server turns away new connections cheaply, instead of slowing down for everyone.
+ *
+ * IPv6 addresses are counted against the connection per IP limit by their /64 prefix, as a single client usually
+ * has a whole /64 network to pick addresses from.
+ *
+ * Connections that do not complete the handshake within the handshake timeout are closed, so that idle clients can
+ * not keep the handshake slots occupied.
+ *
+ * Rejected connections are reset (closed with SO_LINGER 0), so they do not leave sockets lingering in the TIME_WAIT
+ * state, and counted.
+ */
+@ChannelHandler.Sharable
+public final class AcceptFilterHandler extends ChannelInboundHandlerAdapter {
+
+    private static final AttributeKey<Boolean> HANDSHAKE_SLOT = AttributeKey.valueOf(AcceptFilterHandler.class.getName() + ".handshakeSlot");
+    private static final AttributeKey<ScheduledFuture<?>> HANDSHAKE_TIMEOUT = AttributeKey.valueOf(AcceptFilterHandler.class.getName() + ".handshakeTimeout");
+
+    private static final long NANOSECONDS_PER_SECOND = 1000L * 1000L * 1000L;
+    private static final int IPV6_NETWORK_PREFIX_BYTES = 8;
+
+    private final ServerNetworking serverNetworking;
+    private final NetworkConfig networkConfig;
+
+    private final AtomicLong rejectedConnectionCount = new AtomicLong();
+    private final AtomicLong handshakeTimeoutCount = new AtomicLong();
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private final AtomicInteger handshakeCount = new AtomicInteger();
+    private final ConcurrentMap<InetAddress, AtomicInteger> connectionsPerIp = new ConcurrentHashMap<InetAddress, AtomicInteger>();
+
+    // Earliest time at which the connection rate is back within the limit, for a generic cell rate algorithm
+    private final AtomicLong rateLimitTime = new AtomicLong(System.nanoTime());
+
+    private final ChannelHandler handshakeCompletionHandler = new HandshakeCompletionHandler();
+
+    /**
+     * @param serverNetworking server networking to get the current banlist from.
+     * @param networkConfig configuration with the connection limits.
+     */
+    public AcceptFilterHandler(ServerNetworking serverNetworking, NetworkConfig networkConfig) {
+        notNull(serverNetworking, "serverNetworking");
+        notNull(networkConfig, "networkConfig");
+
+        this.serverNetworking = serverNetworking;
+        this.networkConfig = networkConfig;
+    }
+
+    @Override public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        // The messages of the server socket pipeline are the accepted connections
+        if (msg instanceof Channel) {
+            final Channel channel = (Channel) msg;
+            if (admit(channel)) {
+                ctx.fireChannelRead(msg);
+            }
+            else {
+                reject(channel);
+            }
+        }
+        else {
+            ctx.fireChannelRead(msg);
+        }
+    }
+
+    /**
+     * @return handler to add to the pipeline of admitted connections, after the encryption codec.
+     *         Frees the handshake slot of the connection when the handshake completes, and closes the connection
+     *         if the handshake does not complete within the handshake timeout.
+     */
+    public ChannelHandler getHandshakeCompletionHandler() {
+        return handshakeCompletionHandler;
+    }
+
+    /**
+     * @return number of connections rejected since the server was started.
+     */
+    public long getRejectedConnectionCount() {
+        return rejectedConnectionCount.get();
+    }
+
+    /**
+     * @return number of connections closed because they did not complete the encryption handshake in time.
+     */
+    public long getHandshakeTimeoutCount() {
+        return handshakeTimeoutCount.get();
+    }
+
+    /**
+     * @return number of currently open admitted connections.
+     */
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * @return number of different IPs with currently open admitted connections.
+     *         IPv6 addresses in the same /64 network are counted as one.
+     */
+    public int getConnectedIpCount() {
+        return connectionsPerIp.size();
+    }
+
+    /**
+     * @return number of admitted connections that have not yet completed the encryption handshake.
+     */
+    public int getHandshakeCount() {
+        return handshakeCount.get();
+    }
+
+    private boolean admit(final Channel channel) {
+        final SocketAddress remoteAddress = channel.remoteAddress();
+        final InetAddress ipAddress = remoteAddress instanceof InetSocketAddress ? ((InetSocketAddress) remoteAddress).getAddress() : null;
+
+        // Checked from the cheapest to the most expensive to undo
+        final BanList banList = serverNetworking.getBanList();
+        if (banList != null && ipAddress != null && banList.isBanned(ipAddress)) return false;
+
+        if (!acquireRate()) return false;
+
+        if (!acquire(connectionCount, networkConfig.getMaxConnections())) return false;
+
+        final boolean handshake = networkConfig.isEncryptionEnabled();
+        if (handshake && !acquire(handshakeCount, networkConfig.getMaxConcurrentHandshakes())) {
+            connectionCount.decrementAndGet();
+            return false;
+        }
+
+        final InetAddress ipKey = ipAddress != null ? ipConnectionKey(ipAddress) : null;
+        final AtomicInteger ipConnectionCount = ipKey != null ? acquireIpConnection(ipKey) : null;
+        if (ipAddress != null && ipConnectionCount == null) {
+            if (handshake) handshakeCount.decrementAndGet();
+            connectionCount.decrementAndGet();
+            return false;
+        }
+
+        // Release the limits when the connection closes
+        if (handshake) channel.attr(HANDSHAKE_SLOT).set(Boolean.TRUE);
+        channel.closeFuture().addListener(new ChannelFutureListener() {
+            @Override public void operationComplete(ChannelFuture future) throws Exception {
+                releaseHandshake(channel);
+                connectionCount.decrementAndGet();
+                if (ipConnectionCount != null && ipConnectionCount.decrementAndGet() == 0) {
+                    connectionsPerIp.remove(ipKey, ipConnectionCount);
+                }
+            }
+        });
+
+        return true;
+    }
+
+    private boolean acquireRate() {
+        final int maxNewConnectionsPerSecond = networkConfig.getMaxNewConnectionsPerSecond();
+        if (maxNewConnectionsPerSecond <= 0) return true;
+
+        // Each connection moves the limit time forward, and up to a second worth of connections may be ahead of the clock
+        final long interval = NANOSECONDS_PER_SECOND / maxNewConnectionsPerSecond;
+        final long currentTime = System.nanoTime();
+        while (true) {
+            final long limitTime = rateLimitTime.get();
+            final long newLimitTime = Math.max(limitTime, currentTime) + interval;
+            if (newLimitTime - currentTime > NANOSECONDS_PER_SECOND) return false;
+            if (rateLimitTime.compareAndSet(limitTime, newLimitTime)) return true;
+        }
+    }
+
+    private static boolean acquire(AtomicInteger count, int max) {
+        if (max <= 0) {
+            count.incrementAndGet();
+            return true;
+        }
+
+        while (true) {
+            final int current = count.get();
+            if (current >= max) return false;
+            if (count.compareAndSet(current, current + 1)) return true;
+        }
+    }
+
+    /**
+     * @return the address the connections of the IP are counted under, the /64 network address for IPv6 addresses.
+     */
+    private static InetAddress ipConnectionKey(InetAddress ipAddress) {
+        if (!(ipAddress instanceof Inet6Address)) return ipAddress;
+
+        final byte[] address = ipAddress.getAddress();
+        Arrays.fill(address, IPV6_NETWORK_PREFIX_BYTES, address.length, (byte) 0);
+        try {
+            return InetAddress.getByAddress(address);
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException("Could not create the network address of " + ipAddress + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * @return the connection count of the IP after increasing it, or null if the IP already has the maximum number of connections.
+     */
+    private AtomicInteger acquireIpConnection(InetAddress ipAddress) {
+        final int max = networkConfig.getMaxConnectionsPerIp();
+        while (true) {
+            AtomicInteger ipConnectionCount = connectionsPerIp.get(ipAddress);
+            if (ipConnectionCount == null) {
+                ipConnectionCount = new AtomicInteger(1);
+                if (connectionsPerIp.putIfAbsent(ipAddress, ipConnectionCount) == null) return ipConnectionCount;
+            }
+            else {
+                // A count that has dropped to zero is being removed, and is not used again
+                final int current = ipConnectionCount.get();
+                if (current > 0) {
+                    if (max > 0 && current >= max) return null;
+                    if (ipConnectionCount.compareAndSet(current, current + 1)) return ipConnectionCount;
+                }
+                else {
+                    connectionsPerIp.remove(ipAddress, ipConnectionCount);
+                }
+            }
+        }
+    }
+
+    private void releaseHandshake(Channel channel) {
+        // Released exactly once, either when the handshake completes or when the connection closes
+        if (channel.attr(HANDSHAKE_SLOT).getAndSet(null) != null) {
+            handshakeCount.decrementAndGet();
+        }
+
+        final ScheduledFuture<?> timeout = channel.attr(HANDSHAKE_TIMEOUT).getAndSet(null);
+        if (timeout != null) timeout.cancel(false);
+    }
+
+    private void reject(Channel channel) {
+        rejectedConnectionCount.incrementAndGet();
+
+        try {
+            channel.config().setOption(ChannelOption.SO_LINGER, 0);
+        } catch (Throwable t) {
+            // Close normally if the connection can not be reset
+        }
+
+        // The channel is not registered yet, so close it directly without going through an event loop
+        channel.unsafe().closeForcibly();
+    }
+
+    /**
+     * Frees the handshake slot of a connection when its encryption handshake completes, and closes the connection
+     * if that takes too long.
+     */
+    @ChannelHandler.Sharable
+    private final class HandshakeCompletionHandler extends ChannelInboundHandlerAdapter {
+        @Override public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+            final int timeoutSeconds = networkConfig.getHandshakeTimeoutSeconds();
+            final Channel channel = ctx.channel();
+            if (timeoutSeconds > 0 && channel.attr(HANDSHAKE_SLOT).get() != null) {
+                channel.attr(HANDSHAKE_TIMEOUT).set(ctx.executor().schedule(new Runnable() {
+                    @Override public void run() {
+                        if (channel.attr(HANDSHAKE_SLOT).get() != null) {
+                            handshakeTimeoutCount.incrementAndGet();
+                            channel.close();
+                        }
+                    }
+                }, timeoutSeconds, TimeUnit.SECONDS));
+            }
+
+            super.handlerAdded(ctx);
+        }
+
+        @Override public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+            if (evt == EncryptionCodec.HANDSHAKE_COMPLETED_EVENT) {
+                releaseHandshake(ctx.channel());
+            }
+
+            super.userEventTriggered(ctx, evt);
+        }
+    }
+}
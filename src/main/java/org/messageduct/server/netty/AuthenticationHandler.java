@@ -4,7 +4,14 @@ import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import org.flowutils.LogUtils;
 import org.messageduct.account.AccountService;
+import org.messageduct.account.SourceAddressAccountService;
 import org.messageduct.account.messages.*;
+import org.messageduct.common.netty.ProtocolException;
+import org.messageduct.utils.banlist.OffenceTracker;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 
 import static org.flowutils.Check.notNull;
 
@@ -14,6 +21,7 @@ import static org.flowutils.Check.notNull;
 public final class AuthenticationHandler extends ChannelInboundHandlerAdapter {
 
     private final AccountService accountService;
+    private final OffenceTracker offenceTracker;
 
     private String loggedInAccountName = null;
 
@@ -21,9 +29,19 @@ public final class AuthenticationHandler extends ChannelInboundHandlerAdapter {
      * @param accountService service used to handle login and other account related messages.
      */
     public AuthenticationHandler(AccountService accountService) {
+        this(accountService, null);
+    }
+
+    /**
+     * @param accountService service used to handle login and other account related messages.
+     * @param offenceTracker used to count protocol errors, unauthorized messages and failed logins from the client IP,
+     *                       and ban IPs with too many of them.  If null, offences are not tracked.
+     */
+    public AuthenticationHandler(AccountService accountService, OffenceTracker offenceTracker) {
         notNull(accountService, "accountService");
 
         this.accountService = accountService;
+        this.offenceTracker = offenceTracker;
     }
 
     @Override public void channelActive(ChannelHandlerContext ctx) throws Exception {
@@ -51,11 +69,12 @@ public final class AuthenticationHandler extends ChannelInboundHandlerAdapter {
         if (loggedInAccountName == null) {
             // Only allow non authenticated messages if not logged in
             if (NonAuthenticatedAccountMessage.class.isInstance(message)) {
-                response = accountService.handleMessage((AccountMessage) message);
+                response = handleAccountMessage(ctx, (AccountMessage) message);
             }
             else {
                 // All other messages require that we are logged in
                 response = new AccountErrorMessage("Unauthorized message", "The message " +message.getClass().getSimpleName() + " is not supported when not logged in.  Please log in first.", true);
+                recordOffence(ctx, OffenceTracker.Offence.UNAUTHORIZED_MESSAGE);
             }
         }
         else {
@@ -68,7 +87,7 @@ public final class AuthenticationHandler extends ChannelInboundHandlerAdapter {
                                                                         "did not match with the logged in username.", true);
                 } else {
                     // Forward message to account service for handling
-                    response = accountService.handleMessage(accountMessage);
+                    response = handleAccountMessage(ctx, accountMessage);
                 }
             }
             else {
@@ -86,6 +105,17 @@ public final class AuthenticationHandler extends ChannelInboundHandlerAdapter {
                 ctx.close();
             }
 
+            // Count failed logins, so that password guessing gets the IP banned
+            if ((message instanceof LoginMessage || message instanceof TokenLoginMessage) && response instanceof AccountErrorMessage) {
+                final String errorType = ((AccountErrorMessage) response).getErrorType();
+                if ("InvalidPassword".equals(errorType) ||
+                    "InvalidToken".equals(errorType) ||
+                    "UnknownUsername".equals(errorType) ||
+                    "LoginThrottled".equals(errorType)) {
+                    recordOffence(ctx, OffenceTracker.Offence.FAILED_LOGIN);
+                }
+            }
+
             // Notify listeners about some types of account message responses
             if (response instanceof LoginSuccessMessage) {
                 // Login ok, store account name
@@ -108,6 +138,18 @@ public final class AuthenticationHandler extends ChannelInboundHandlerAdapter {
         }
     }
 
+    @Override public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        // Protocol errors from the handlers before this one arrive wrapped in decoder or encoder exceptions
+        for (Throwable t = cause; t != null; t = t.getCause()) {
+            if (t instanceof ProtocolException) {
+                recordOffence(ctx, OffenceTracker.Offence.PROTOCOL_ERROR);
+                break;
+            }
+        }
+
+        super.exceptionCaught(ctx, cause);
+    }
+
     /**
      * Store accountName of logged in account for this channel.
      */
@@ -124,6 +166,34 @@ public final class AuthenticationHandler extends ChannelInboundHandlerAdapter {
 
     private void protocolError(ChannelHandlerContext ctx, String reason) {
         LogUtils.getLogger().debug("Terminating connection: " + reason);
+        recordOffence(ctx, OffenceTracker.Offence.PROTOCOL_ERROR);
         ctx.close();
     }
+
+    private AccountResponseMessage handleAccountMessage(ChannelHandlerContext ctx, AccountMessage accountMessage) {
+        if (accountService instanceof SourceAddressAccountService) {
+            return ((SourceAddressAccountService) accountService).handleMessage(accountMessage, getRemoteAddress(ctx));
+        }
+        else {
+            return accountService.handleMessage(accountMessage);
+        }
+    }
+
+    private void recordOffence(ChannelHandlerContext ctx, OffenceTracker.Offence offence) {
+        if (offenceTracker != null) {
+            final InetAddress remoteAddress = getRemoteAddress(ctx);
+            if (remoteAddress != null) {
+                final long banDuration = offenceTracker.recordOffence(remoteAddress, offence);
+                if (banDuration > 0) {
+                    LogUtils.getLogger().info("Banned " + remoteAddress + " for " + banDuration + " ms after repeated offences");
+                    ctx.close();
+                }
+            }
+        }
+    }
+
+    private static InetAddress getRemoteAddress(ChannelHandlerContext ctx) {
+        final SocketAddress remoteAddress = ctx.channel().remoteAddress();
+        return remoteAddress instanceof InetSocketAddress ? ((InetSocketAddress) remoteAddress).getAddress() : null;
+    }
 }
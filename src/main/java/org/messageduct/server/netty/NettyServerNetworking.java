@@ -2,22 +2,30 @@ package org.messageduct.server.netty;
 
 import io.netty.bootstrap.ServerBootstrap;
 import io.netty.channel.*;
+import io.netty.bootstrap.Bootstrap;
 import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioDatagramChannel;
 import io.netty.channel.socket.nio.NioServerSocketChannel;
 import org.flowutils.service.ServiceBase;
 import org.flowutils.service.ServiceProvider;
 import org.messageduct.account.AccountService;
 import org.messageduct.common.NetworkConfig;
+import org.messageduct.common.SerializerFactory;
+import org.messageduct.common.WarmableSerializerFactory;
 import org.messageduct.common.netty.NettyPipelineBuilder;
 import org.messageduct.server.MessageListener;
+import org.messageduct.server.MessageListenerAdapter;
 import org.messageduct.server.ServerNetworking;
+import org.messageduct.server.UserSession;
 import org.messageduct.serverinfo.ServerInfo;
 import org.messageduct.utils.banlist.BanList;
+import org.messageduct.utils.banlist.OffenceTracker;
 
-import java.net.InetAddress;
+import java.security.PrivateKey;
 import java.util.List;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.flowutils.Check.notNull;
 import static org.messageduct.utils.LoggingUtils.*;
@@ -27,14 +35,23 @@ import static org.messageduct.utils.LoggingUtils.*;
  */
 public class NettyServerNetworking extends ServiceBase implements ServerNetworking {
 
+    // Same as the netty default
+    private static final int MESSAGE_HANDLING_THREADS = 2 * Runtime.getRuntime().availableProcessors();
+
     private final List<MessageListener> messageListeners = new CopyOnWriteArrayList<MessageListener>();
+    private final AtomicInteger connectedUserCount = new AtomicInteger();
 
     private final NetworkConfig networkConfig;
     private final AccountService accountService;
     private final ServerInfo serverInfo;
+    private final ServerInfoFrameCache serverInfoFrameCache;
+    private final AcceptFilterHandler acceptFilterHandler;
     private BanList banList;
+    private volatile OffenceTracker offenceTracker;
 
     private Channel serverChannel;
+    private Channel statusQueryChannel;
+    private EventLoopGroup statusQueryGroup;
 
     /**
      * Creates a new server networking handler.
@@ -80,6 +97,25 @@ public class NettyServerNetworking extends ServiceBase implements ServerNetworki
         this.accountService = accountService;
         this.serverInfo = serverInfo;
         this.banList = banList;
+        this.offenceTracker = banList != null ? new OffenceTracker(banList) : null;
+
+        serverInfoFrameCache = new ServerInfoFrameCache(serverInfo, networkConfig);
+        acceptFilterHandler = new AcceptFilterHandler(this, networkConfig);
+
+        // Keep track of the number of logged in users
+        messageListeners.add(new MessageListenerAdapter() {
+            @Override public void userCreated(UserSession session) {
+                connectedUserCount.incrementAndGet();
+            }
+
+            @Override public void userConnected(UserSession session) {
+                connectedUserCount.incrementAndGet();
+            }
+
+            @Override public void userDisconnected(UserSession session) {
+                connectedUserCount.decrementAndGet();
+            }
+        });
 
         if (listener != null) {
             addMessageListener(listener);
@@ -100,14 +136,57 @@ public class NettyServerNetworking extends ServiceBase implements ServerNetworki
         return banList;
     }
 
+    /**
+     * Also replaces the offence tracker with one using the default thresholds and the new banlist.
+     */
     @Override public final void setBanList(BanList banList) {
         this.banList = banList;
+        this.offenceTracker = banList != null ? new OffenceTracker(banList) : null;
+    }
+
+    /**
+     * @return tracker that bans IPs of clients with too many protocol errors or failed logins, or null if there is no banlist.
+     */
+    public final OffenceTracker getOffenceTracker() {
+        return offenceTracker;
+    }
+
+    /**
+     * Use to change the offence thresholds and ban durations.  Applies to connections created after the call.
+     * @param offenceTracker tracker that bans IPs of clients with too many protocol errors or failed logins,
+     *                       or null to not ban IPs automatically.
+     */
+    public final void setOffenceTracker(OffenceTracker offenceTracker) {
+        this.offenceTracker = offenceTracker;
+    }
+
+    /**
+     * @return number of users currently logged in.
+     */
+    public final int getConnectedUserCount() {
+        return connectedUserCount.get();
+    }
+
+    /**
+     * @return number of connections that have been rejected because they came from banned IPs or exceeded the
+     *         connection limits in the NetworkConfig.
+     */
+    public final long getRejectedConnectionCount() {
+        return acceptFilterHandler.getRejectedConnectionCount();
     }
 
     @Override protected void doInit(ServiceProvider serviceProvider) {
         // Initialize account service if needed
         if (!accountService.isInitialized()) accountService.init();
 
+        // Prepare the message serializers before accepting connections, so that the first messages are not delayed
+        final SerializerFactory serializerFactory = networkConfig.getSerializerFactory();
+        if (serializerFactory instanceof WarmableSerializerFactory) {
+            ((WarmableSerializerFactory) serializerFactory).warmUp(networkConfig.getMaximumMessageSize(),
+                                                                   networkConfig.getAllowedClasses(),
+                                                                   MESSAGE_HANDLING_THREADS);
+        }
+
         // Configure the server networking
         ServerBootstrap serverBootstrap = createServerBootstrap();
 
@@ -123,6 +202,17 @@ public class NettyServerNetworking extends ServiceBase implements ServerNetworki
         } catch (Exception e) {
             logAndThrowError(e, "Server listening to port " + networkConfig.getPort() + " failed");
         }
+
+        // Answer status queries if enabled
+        if (networkConfig.isStatusQueryEnabled()) {
+            logInfo("Answer status queries on UDP port " + networkConfig.getPort());
+            statusQueryGroup = new NioEventLoopGroup(1);
+            try {
+                statusQueryChannel = createStatusQueryBootstrap(statusQueryGroup).bind(networkConfig.getPort()).sync().channel();
+            } catch (Exception e) {
+                logAndThrowError(e, "Listening to status queries on UDP port " + networkConfig.getPort() + " failed");
+            }
+        }
     }
 
     @Override protected void doShutdown() {
@@ -136,6 +226,13 @@ public class NettyServerNetworking extends ServiceBase implements ServerNetworki
             }
         }
 
+        if (statusQueryChannel != null) {
+            statusQueryChannel.close().awaitUninterruptibly();
+        }
+        if (statusQueryGroup != null) {
+            statusQueryGroup.shutdownGracefully();
+        }
+
     }
 
     /**
@@ -143,26 +240,30 @@ public class NettyServerNetworking extends ServiceBase implements ServerNetworki
      */
     protected ServerBootstrap createServerBootstrap() {
         EventLoopGroup incomingConnectionGroup = new NioEventLoopGroup();
-        EventLoopGroup incomingMessageGroup = new NioEventLoopGroup();
+        EventLoopGroup incomingMessageGroup = new NioEventLoopGroup(MESSAGE_HANDLING_THREADS);
 
         // Setup server networking
         ServerBootstrap serverBootstrap = new ServerBootstrap();
         serverBootstrap.group(incomingConnectionGroup, incomingMessageGroup)
                        .channel(NioServerSocketChannel.class)
+                       // Kick banned users and connections over the limits as soon as they are accepted
+                       .handler(acceptFilterHandler)
                        .childHandler(new ChannelInitializer<SocketChannel>() {
                            @Override
                            public void initChannel(SocketChannel socketChannel) throws Exception {
                                // Called when a client connection is created
 
-                               // Check banlist and kick banned users
-                               if (ipAddressKicked(socketChannel)) return;
-
                                // Set up the channel pipeline
                                buildChannelPipeline(socketChannel.pipeline(),
                                                     NettyServerNetworking.this.networkConfig,
                                                     NettyServerNetworking.this.serverInfo,
                                                     NettyServerNetworking.this.accountService,
                                                     NettyServerNetworking.this.messageListeners);
+
+                               // Free the handshake slot of the connection when the handshake is done
+                               if (NettyServerNetworking.this.networkConfig.isEncryptionEnabled()) {
+                                   socketChannel.pipeline().addLast(acceptFilterHandler.getHandshakeCompletionHandler());
+                               }
                            }
                        })
                        .option(ChannelOption.SO_BACKLOG, 128)
@@ -172,6 +273,20 @@ public class NettyServerNetworking extends ServiceBase implements ServerNetworki
         return serverBootstrap;
     }
 
+    /**
+     * @param group event loop group to handle the status queries in.
+     * @return configuration for answering status queries.
+     */
+    protected Bootstrap createStatusQueryBootstrap(EventLoopGroup group) {
+        final PrivateKey signingKey = networkConfig.getServerKeys() != null ? networkConfig.getServerKeys().getPrivate() : null;
+
+        final Bootstrap bootstrap = new Bootstrap();
+        bootstrap.group(group)
+                 .channel(NioDatagramChannel.class)
+                 .handler(new StatusQueryHandler(this, serverInfo, signingKey));
+        return bootstrap;
+    }
+
     /**
      * Builds the pipeline for a connection between a client and the server.
      * @param pipeline pipeline to add handlers to
@@ -186,8 +301,14 @@ public class NettyServerNetworking extends ServiceBase implements ServerNetworki
                                         final AccountService accountService,
                                         final List<MessageListener> messageListeners) {
         NettyPipelineBuilder.buildCommonServerHandlers(networkConfig, pipeline);
-        pipeline.addLast(new ServerInfoHandler(serverInfo));
-        pipeline.addLast(new AuthenticationHandler(accountService));
+        if (serverInfo == this.serverInfo && networkConfig == this.networkConfig) {
+            // Send the server info in pre-encoded form shared by all connections
+            pipeline.addLast(new ServerInfoHandler(serverInfoFrameCache, true));
+        }
+        else {
+            pipeline.addLast(new ServerInfoHandler(serverInfo));
+        }
+        pipeline.addLast(new AuthenticationHandler(accountService, offenceTracker));
         pipeline.addLast(new MessageListenerHandler(messageListeners));
     }
 
@@ -198,20 +319,4 @@ public class NettyServerNetworking extends ServiceBase implements ServerNetworki
         return serverChannel;
     }
 
-    /**
-     * @return true if the ip address of the given socketChannel was banned and the connection has been closed.
-     */
-    private boolean ipAddressKicked(SocketChannel socketChannel) {
-        if (banList != null) {
-            final InetAddress ipAddress = socketChannel.remoteAddress().getAddress();
-            if (banList.isBanned(ipAddress)) {
-                log.debug("Kicked banned IP " + ipAddress.toString() + " that tried to connect");
-                socketChannel.close();
-                return true;
-            }
-        }
-
-        return false;
-    }
-
 }
@@ -0,0 +1,85 @@
+package org.messageduct.server.netty;
+
+import org.flowutils.serializer.Serializer;
+import org.messageduct.common.NetworkConfig;
+import org.messageduct.common.netty.CompressionCodec;
+import org.messageduct.common.netty.PreEncodedMessage;
+import org.messageduct.serverinfo.ServerInfo;
+import org.messageduct.serverinfo.ServerInfoMessage;
+import org.messageduct.serverinfo.VersionedServerInfo;
+
+import static org.flowutils.Check.notNull;
+
+/**
+ * Keeps the ServerInfoMessage of a server in serialized and compressed form, so that it does not need to be
+ * encoded again for every client that connects or asks for it.
+ *
+ * The cached form is re-created when the version of the ServerInfo changes, or compression is turned on or off
+ * in the network configuration.  A ServerInfo that is not a VersionedServerInfo is encoded again every time,
+ * as its changes can not be detected.  Thread safe.
+ */
+public final class ServerInfoFrameCache {
+
+    private final ServerInfo serverInfo;
+    private final NetworkConfig networkConfig;
+
+    private volatile CachedFrame cachedFrame;
+
+    /**
+     * @param serverInfo information about this server.
+     * @param networkConfig configuration of the connections the message is sent on.
+     */
+    public ServerInfoFrameCache(ServerInfo serverInfo, NetworkConfig networkConfig) {
+        notNull(serverInfo, "serverInfo");
+        notNull(networkConfig, "networkConfig");
+
+        this.serverInfo = serverInfo;
+        this.networkConfig = networkConfig;
+    }
+
+    /**
+     * @return the server info.
+     */
+    public ServerInfo getServerInfo() {
+        return serverInfo;
+    }
+
+    /**
+     * @return the pre-encoded server info message, ready to be written to a channel.
+     */
+    public PreEncodedMessage getServerInfoMessage() {
+        final boolean compressed = networkConfig.isCompressionEnabled();
+        if (!(serverInfo instanceof VersionedServerInfo)) return encode(compressed);
+
+        CachedFrame frame = cachedFrame;
+
+        // Read the version before encoding, so that a change made while encoding causes the next call to encode again
+        final long version = ((VersionedServerInfo) serverInfo).getVersion();
+        if (frame == null || frame.version != version || frame.message.isCompressed() != compressed) {
+            frame = new CachedFrame(version, encode(compressed));
+            cachedFrame = frame;
+        }
+
+        return frame.message;
+    }
+
+    private PreEncodedMessage encode(boolean compressed) {
+        final Serializer serializer = networkConfig.getSerializerFactory().createSerializer(networkConfig.getMaximumMessageSize(),
+                                                                                          networkConfig.getAllowedClasses());
+
+        byte[] data = serializer.serialize(new ServerInfoMessage(serverInfo));
+        if (compressed) data = CompressionCodec.compress(data);
+
+        return new PreEncodedMessage(data, compressed);
+    }
+
+    private static final class CachedFrame {
+        private final long version;
+        private final PreEncodedMessage message;
+
+        private CachedFrame(long version, PreEncodedMessage message) {
+            this.version = version;
+            this.message = message;
+        }
+    }
+}
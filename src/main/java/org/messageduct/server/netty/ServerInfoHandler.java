@@ -16,6 +16,7 @@ import static org.flowutils.Check.notNull;
 public final class ServerInfoHandler extends ChannelInboundHandlerAdapter {
 
     private final ServerInfo serverInfo;
+    private final ServerInfoFrameCache serverInfoFrameCache;
     private final boolean sendServerInfoOnConnect;
 
     /**
@@ -34,6 +35,20 @@ public final class ServerInfoHandler extends ChannelInboundHandlerAdapter {
 
         this.sendServerInfoOnConnect = sendServerInfoOnConnect;
         this.serverInfo = serverInfo;
+        this.serverInfoFrameCache = null;
+    }
+
+    /**
+     * @param serverInfoFrameCache cache with the server info in pre-encoded form, shared by all connections.
+     *                             Must be created with the same network configuration as the channel.
+     * @param sendServerInfoOnConnect if true automatically sends the server info to the clients when they connect.
+     */
+    public ServerInfoHandler(ServerInfoFrameCache serverInfoFrameCache, boolean sendServerInfoOnConnect) {
+        notNull(serverInfoFrameCache, "serverInfoFrameCache");
+
+        this.sendServerInfoOnConnect = sendServerInfoOnConnect;
+        this.serverInfo = serverInfoFrameCache.getServerInfo();
+        this.serverInfoFrameCache = serverInfoFrameCache;
     }
 
     @Override public void channelActive(ChannelHandlerContext ctx) throws Exception {
@@ -60,7 +75,12 @@ public final class ServerInfoHandler extends ChannelInboundHandlerAdapter {
     }
 
     private void sendServerInfo(ChannelHandlerContext ctx) {
-        ctx.writeAndFlush(new ServerInfoMessage(serverInfo));
+        if (serverInfoFrameCache != null) {
+            ctx.writeAndFlush(serverInfoFrameCache.getServerInfoMessage());
+        }
+        else {
+            ctx.writeAndFlush(new ServerInfoMessage(serverInfo));
+        }
     }
 
 }
@@ -0,0 +1,148 @@
+package org.messageduct.server.netty;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.channel.socket.DatagramPacket;
+import org.flowutils.Check;
+import org.flowutils.LogUtils;
+import org.messageduct.serverinfo.ServerInfo;
+import org.messageduct.serverinfo.ServerStatus;
+import org.messageduct.serverinfo.VersionedServerInfo;
+import org.messageduct.utils.banlist.BanList;
+
+import java.nio.ByteBuffer;
+import java.security.PrivateKey;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.flowutils.Check.notNull;
+
+/**
+ * Answers server status queries sent as UDP datagrams, see ServerStatus for the protocol.
+ *
+ * The signed status is cached and re-created at most once per refresh interval, so a flood of queries costs
+ * a datagram copy each, not a signature each.
+ */
+@ChannelHandler.Sharable
+public final class StatusQueryHandler extends SimpleChannelInboundHandler<DatagramPacket> {
+
+    /**
+     * Status is re-signed at most this often, even if it changes.
+     */
+    public static final long DEFAULT_REFRESH_INTERVAL_MILLISECONDS = 1000;
+
+    /**
+     * An unchanged status is re-signed this often, so that clients see a recent timestamp.
+     */
+    private static final long MAX_STATUS_AGE_MILLISECONDS = 60 * 1000;
+
+    private final NettyServerNetworking serverNetworking;
+    private final ServerInfo serverInfo;
+    private final PrivateKey signingKey;
+    private final long refreshIntervalMilliseconds;
+
+    private volatile CachedStatus cachedStatus;
+
+    // Queries can be sent by anyone, so a too large response is only logged once
+    private final AtomicBoolean oversizedResponseLogged = new AtomicBoolean();
+
+    /**
+     * @param serverNetworking server to report the user count and ban list of.
+     * @param serverInfo information about the server.
+     * @param signingKey private key of the server to sign the status with, or null to send the status unsigned.
+     */
+    public StatusQueryHandler(NettyServerNetworking serverNetworking, ServerInfo serverInfo, PrivateKey signingKey) {
+        this(serverNetworking, serverInfo, signingKey, DEFAULT_REFRESH_INTERVAL_MILLISECONDS);
+    }
+
+    /**
+     * @param serverNetworking server to report the user count and ban list of.
+     * @param serverInfo information about the server.
+     * @param signingKey private key of the server to sign the status with, or null to send the status unsigned.
+     * @param refreshIntervalMilliseconds minimum time between re-creating the signed status.
+     */
+    public StatusQueryHandler(NettyServerNetworking serverNetworking,
+                              ServerInfo serverInfo,
+                              PrivateKey signingKey,
+                              long refreshIntervalMilliseconds) {
+        notNull(serverNetworking, "serverNetworking");
+        notNull(serverInfo, "serverInfo");
+        Check.positiveOrZero(refreshIntervalMilliseconds, "refreshIntervalMilliseconds");
+
+        this.serverNetworking = serverNetworking;
+        this.serverInfo = serverInfo;
+        this.signingKey = signingKey;
+        this.refreshIntervalMilliseconds = refreshIntervalMilliseconds;
+    }
+
+    @Override protected void channelRead0(ChannelHandlerContext ctx, DatagramPacket packet) throws Exception {
+        // Ignore banned addresses
+        final BanList banList = serverNetworking.getBanList();
+        if (banList != null && banList.isBanned(packet.sender().getAddress())) return;
+
+        // Ignore anything that is not a properly padded request
+        final ByteBuf requestContent = packet.content();
+        final ByteBuffer request = requestContent.nioBuffer();
+        if (!ServerStatus.isValidRequest(request)) return;
+
+        final byte[] responseBody = getResponseBody();
+
+        // Never answer with more data than was received
+        final int responseSize = ServerStatus.getResponseHeaderSize() + responseBody.length;
+        if (responseSize > requestContent.readableBytes()) {
+            if (oversizedResponseLogged.compareAndSet(false, true)) {
+                LogUtils.getLogger().warn("Server status response of " + responseSize + " bytes is larger than the request, not sending it.  " +
+                                          "Further oversized responses are not logged");
+            }
+            return;
+        }
+
+        final ByteBuf response = ctx.alloc().buffer(responseSize);
+        response.writeBytes(ServerStatus.RESPONSE_MAGIC);
+        response.writeLong(ServerStatus.getRequestToken(request));
+        response.writeBytes(responseBody);
+
+        ctx.writeAndFlush(new DatagramPacket(response, packet.sender()));
+    }
+
+    @Override public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) throws Exception {
+        // Do not close the shared datagram channel because of a single bad request
+        LogUtils.getLogger().warn("Problem when answering a server status query: " + cause + ": " + cause.getMessage(), cause);
+    }
+
+    private byte[] getResponseBody() {
+        final long now = System.currentTimeMillis();
+        // Without a version, a changed server info is noticed when the status is re-created for its age
+        final long infoVersion = serverInfo instanceof VersionedServerInfo ? ((VersionedServerInfo) serverInfo).getVersion() : 0;
+        final int userCount = serverNetworking.getConnectedUserCount();
+
+        CachedStatus status = cachedStatus;
+        if (status == null ||
+            (now - status.createdTime >= refreshIntervalMilliseconds &&
+             (status.infoVersion != infoVersion ||
+              status.userCount != userCount ||
+              now - status.createdTime >= MAX_STATUS_AGE_MILLISECONDS))) {
+
+            final ServerStatus serverStatus = new ServerStatus(serverInfo.getName(), serverInfo.getDescription(), userCount, now);
+            status = new CachedStatus(now, infoVersion, userCount, serverStatus.createSignedResponseBody(signingKey));
+            cachedStatus = status;
+        }
+
+        return status.responseBody;
+    }
+
+    private static final class CachedStatus {
+        private final long createdTime;
+        private final long infoVersion;
+        private final int userCount;
+        private final byte[] responseBody;
+
+        private CachedStatus(long createdTime, long infoVersion, int userCount, byte[] responseBody) {
+            this.createdTime = createdTime;
+            this.infoVersion = infoVersion;
+            this.userCount = userCount;
+            this.responseBody = responseBody;
+        }
+    }
+}
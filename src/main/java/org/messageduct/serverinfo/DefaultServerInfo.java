@@ -2,6 +2,7 @@ package org.messageduct.serverinfo;
 
 import java.net.InetSocketAddress;
 import java.security.PublicKey;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
 
 /**
  * Default ServerInfo implementation.
@@ -10,13 +11,20 @@ import java.security.PublicKey;
  */
 // TODO: Store public key as serialized in ServerInfo, and store internet address as a string (and port number).
 // TODO  This allows serialization of ServerInfo without dragging along a lot of internal implementation classes.
-public class DefaultServerInfo implements ServerInfo {
+public class DefaultServerInfo implements VersionedServerInfo {
+
+    // Updates the version atomically.  A primitive field is used instead of an AtomicLong, as deserialized instances
+    // are created without running the field initializers
+    private static final AtomicLongFieldUpdater<DefaultServerInfo> VERSION_UPDATER = AtomicLongFieldUpdater.newUpdater(DefaultServerInfo.class, "version");
 
     private InetSocketAddress address;
     private String name;
     private String description;
     private PublicKey publicKey;
 
+    // Not sent over the network
+    private transient volatile long version;
+
     /**
      * @param hostname hostname to connect to
      * @param port port to connect to
@@ -70,6 +78,7 @@ public class DefaultServerInfo implements ServerInfo {
 
     @Override public void setName(String name) {
         this.name = name;
+        changed();
     }
 
     public String getDescription() {
@@ -78,6 +87,7 @@ public class DefaultServerInfo implements ServerInfo {
 
     @Override public void setDescription(String description) {
         this.description = description;
+        changed();
     }
 
     public InetSocketAddress getAddress() {
@@ -86,6 +96,7 @@ public class DefaultServerInfo implements ServerInfo {
 
     @Override public void setAddress(InetSocketAddress address) {
         this.address = address;
+        changed();
     }
 
     @Override public PublicKey getPublicKey() {
@@ -94,5 +105,17 @@ public class DefaultServerInfo implements ServerInfo {
 
     @Override public void setPublicKey(PublicKey publicKey) {
         this.publicKey = publicKey;
+        changed();
+    }
+
+    @Override public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Should be called by subclasses when they change any of their fields.
+     */
+    protected final void changed() {
+        VERSION_UPDATER.incrementAndGet(this);
     }
 }
@@ -0,0 +1,270 @@
+package org.messageduct.serverinfo;
+
+import org.messageduct.utils.encryption.EncryptionUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+
+import static org.flowutils.Check.notNull;
+
+/**
+ * Snapshot of the publicly visible status of a server, as returned to status queries.
+ *
+ * Status queries are single UDP datagrams sent to the port of the server, and are answered without any connection
+ * or encryption handshake, so that server browsers can poll many servers cheaply.  The answer is signed with the
+ * private key of the server, so a client that knows the public key of the server can verify it.
+ *
+ * Request: REQUEST_MAGIC, an 8 byte token chosen by the client, and padding up to REQUEST_SIZE bytes.
+ * The server never sends a response that is larger than the request, so the service can not be used to amplify traffic.
+ *
+ * Response: RESPONSE_MAGIC, the token from the request, the status data length as an unsigned short,
+ * the status data, the signature length as an unsigned short, and the signature of the status data.
+ */
+public final class ServerStatus {
+
+    public static final byte[] REQUEST_MAGIC = "MDStatQ1".getBytes(Charset.forName("US-ASCII"));
+    public static final byte[] RESPONSE_MAGIC = "MDStatR1".getBytes(Charset.forName("US-ASCII"));
+
+    /**
+     * Size that requests are padded to.  Fits in a single unfragmented datagram on most networks.
+     */
+    public static final int REQUEST_SIZE = 1200;
+
+    public static final int MAX_NAME_LENGTH = 64;
+    public static final int MAX_DESCRIPTION_LENGTH = 128;
+
+    private static final int TOKEN_BYTES = 8;
+    private static final int FORMAT_VERSION = 1;
+    private static final String SIGNATURE_ALGORITHM = "SHA256withRSA";
+    private static final String PROVIDER = "BC";
+
+    static {
+        EncryptionUtils.installBouncyCastleProviderIfNotInstalled();
+    }
+
+    private final String name;
+    private final String description;
+    private final int userCount;
+    private final long timestamp;
+
+    /**
+     * @param name name of the server.  Truncated to MAX_NAME_LENGTH characters.
+     * @param description description of the server.  Truncated to MAX_DESCRIPTION_LENGTH characters.
+     * @param userCount number of users currently connected.
+     * @param timestamp time the status was created, in milliseconds since epoch.
+     */
+    public ServerStatus(String name, String description, int userCount, long timestamp) {
+        this.name = truncate(name, MAX_NAME_LENGTH);
+        this.description = truncate(description, MAX_DESCRIPTION_LENGTH);
+        this.userCount = userCount;
+        this.timestamp = timestamp;
+    }
+
+    /**
+     * @return name of the server, or null if not set.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return description of the server, or null if not set.
+     */
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * @return number of users connected to the server when the status was created.
+     */
+    public int getUserCount() {
+        return userCount;
+    }
+
+    /**
+     * @return time the status was created on the server, in milliseconds since epoch (server clock).
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Creates the part of a response that does not depend on the request, so that it can be cached and sent to
+     * many clients.
+     *
+     * @param signingKey private key of the server to sign the status with, or null to send it unsigned.
+     * @return status data length, status data, signature length and signature.
+     */
+    public byte[] createSignedResponseBody(PrivateKey signingKey) {
+        final byte[] statusData = encodeStatusData();
+        final byte[] signature = signingKey != null ? sign(statusData, signingKey) : new byte[0];
+
+        final ByteBuffer body = ByteBuffer.allocate(2 + statusData.length + 2 + signature.length);
+        body.putShort((short) statusData.length);
+        body.put(statusData);
+        body.putShort((short) signature.length);
+        body.put(signature);
+        return body.array();
+    }
+
+    /**
+     * @param token value chosen by the client to recognize the response.
+     * @return a status request datagram payload.
+     */
+    public static byte[] createRequest(long token) {
+        final ByteBuffer request = ByteBuffer.allocate(REQUEST_SIZE);
+        request.put(REQUEST_MAGIC);
+        request.putLong(token);
+        return request.array();
+    }
+
+    /**
+     * @param request received datagram payload.
+     * @return true if the payload is a valid status request.
+     */
+    public static boolean isValidRequest(ByteBuffer request) {
+        if (request.remaining() < REQUEST_SIZE) return false;
+
+        for (int i = 0; i < REQUEST_MAGIC.length; i++) {
+            if (request.get(request.position() + i) != REQUEST_MAGIC[i]) return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * @param request a valid status request.
+     * @return the token in the request.
+     */
+    public static long getRequestToken(ByteBuffer request) {
+        return request.getLong(request.position() + REQUEST_MAGIC.length);
+    }
+
+    /**
+     * @return the size of the header of a response, before the response body.
+     */
+    public static int getResponseHeaderSize() {
+        return RESPONSE_MAGIC.length + TOKEN_BYTES;
+    }
+
+    /**
+     * Parses and verifies a status response.
+     *
+     * @param response received datagram payload.
+     * @param expectedToken the token sent in the request.
+     * @param serverPublicKey public key of the server to verify the signature with,
+     *                        or null to accept the status without verifying it.
+     * @return the server status.
+     * @throws IOException if the response was not valid, was for a different request, or the signature did not match.
+     */
+    public static ServerStatus parseResponse(byte[] response, long expectedToken, PublicKey serverPublicKey) throws IOException {
+        notNull(response, "response");
+
+        try {
+            final ByteBuffer buffer = ByteBuffer.wrap(response);
+            final byte[] magic = new byte[RESPONSE_MAGIC.length];
+            buffer.get(magic);
+            for (int i = 0; i < RESPONSE_MAGIC.length; i++) {
+                if (magic[i] != RESPONSE_MAGIC[i]) throw new IOException("Not a server status response");
+            }
+
+            if (buffer.getLong() != expectedToken) throw new IOException("Server status response was for a different request");
+
+            final byte[] statusData = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(statusData);
+            final byte[] signature = new byte[buffer.getShort() & 0xFFFF];
+            buffer.get(signature);
+
+            if (serverPublicKey != null && !verify(statusData, signature, serverPublicKey)) {
+                throw new IOException("The server status signature did not match the public key of the server");
+            }
+
+            return decodeStatusData(statusData);
+        } catch (RuntimeException e) {
+            throw new IOException("Invalid server status response: " + e.getMessage(), e);
+        }
+    }
+
+    private byte[] encodeStatusData() {
+        try {
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(FORMAT_VERSION);
+            out.writeLong(timestamp);
+            out.writeInt(userCount);
+            writeNullableString(out, name);
+            writeNullableString(out, description);
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not encode server status: " + e.getMessage(), e);
+        }
+    }
+
+    private static ServerStatus decodeStatusData(byte[] statusData) throws IOException {
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(statusData));
+        final int formatVersion = in.readUnsignedByte();
+        if (formatVersion != FORMAT_VERSION) throw new IOException("Unsupported server status format version " + formatVersion);
+
+        final long timestamp = in.readLong();
+        final int userCount = in.readInt();
+        final String name = readNullableString(in);
+        final String description = readNullableString(in);
+
+        return new ServerStatus(name, description, userCount, timestamp);
+    }
+
+    private static void writeNullableString(DataOutputStream out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) out.writeUTF(s);
+    }
+
+    private static String readNullableString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static byte[] sign(byte[] data, PrivateKey signingKey) {
+        try {
+            final Signature signature = Signature.getInstance(SIGNATURE_ALGORITHM, PROVIDER);
+            signature.initSign(signingKey);
+            signature.update(data);
+            return signature.sign();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Could not sign server status: " + e.getMessage(), e);
+        }
+    }
+
+    private static boolean verify(byte[] data, byte[] signatureBytes, PublicKey publicKey) throws IOException {
+        try {
+            final Signature signature = Signature.getInstance(SIGNATURE_ALGORITHM, PROVIDER);
+            signature.initVerify(publicKey);
+            signature.update(data);
+            return signature.verify(signatureBytes);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not verify server status signature: " + e.getMessage(), e);
+        }
+    }
+
+    private static String truncate(String s, int maxLength) {
+        if (s == null || s.length() <= maxLength) return s;
+        else return s.substring(0, maxLength);
+    }
+
+    @Override public String toString() {
+        return "ServerStatus{" +
+               "name='" + name + '\'' +
+               ", description='" + description + '\'' +
+               ", userCount=" + userCount +
+               ", timestamp=" + timestamp +
+               '}';
+    }
+}
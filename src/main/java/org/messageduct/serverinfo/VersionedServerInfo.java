@@ -0,0 +1,15 @@
+package org.messageduct.serverinfo;
+
+/**
+ * ServerInfo that keeps track of changes to its fields, so that the server can cache serialized forms of it.
+ *
+ * ServerInfo implementations that do not implement this are encoded again whenever they are needed.
+ */
+public interface VersionedServerInfo extends ServerInfo {
+
+    /**
+     * @return a number that changes whenever any of the server info fields are changed.
+     *         Used by the server to know when cached serialized forms of the server info need to be updated.
+     */
+    long getVersion();
+}
@@ -66,20 +66,20 @@ import java.security.SecureRandom;
 public final class BCrypt {
     // BCrypt parameters
     private static final int GENSALT_DEFAULT_LOG2_ROUNDS = 10;
-    private static final int BCRYPT_SALT_LEN = 16;
+    static final int BCRYPT_SALT_LEN = 16;
 
     // Blowfish parameters
-    private static final int BLOWFISH_NUM_ROUNDS = 16;
+    static final int BLOWFISH_NUM_ROUNDS = 16;
 
     // Initial contents of key schedule
-    private static final int P_orig[] = {
+    static final int P_orig[] = {
             0x243f6a88, 0x85a308d3, 0x13198a2e, 0x03707344,
             0xa4093822, 0x299f31d0, 0x082efa98, 0xec4e6c89,
             0x452821e6, 0x38d01377, 0xbe5466cf, 0x34e90c6c,
             0xc0ac29b7, 0xc97c50dd, 0x3f84d5b5, 0xb5470917,
             0x9216d5d9, 0x8979fb1b
     };
-    private static final int S_orig[] = {
+    static final int S_orig[] = {
             0xd1310ba6, 0x98dfb5ac, 0x2ffd72db, 0xd01adfb7,
             0xb8e1afed, 0x6a267e96, 0xba7c9045, 0xf12c7f99,
             0x24a19947, 0xb3916cf7, 0x0801f2e2, 0x858efc16,
@@ -339,13 +339,13 @@ public final class BCrypt {
     };
 
     // bcrypt IV: "OrpheanBeholderScryDoubt"
-    static private final int bf_crypt_ciphertext[] = {
+    static final int bf_crypt_ciphertext[] = {
             0x4f727068, 0x65616e42, 0x65686f6c,
             0x64657253, 0x63727944, 0x6f756274
     };
 
     // Table for Base64 encoding
-    static private final char base64_code[] = {
+    static final char base64_code[] = {
             '.', '/', 'A', 'B', 'C', 'D', 'E', 'F', 'G', 'H', 'I', 'J',
             'K', 'L', 'M', 'N', 'O', 'P', 'Q', 'R', 'S', 'T', 'U', 'V',
             'W', 'X', 'Y', 'Z', 'a', 'b', 'c', 'd', 'e', 'f', 'g', 'h',
@@ -424,7 +424,7 @@ public final class BCrypt {
      * @param x	the base64-encoded value
      * @return	the decoded value of x
      */
-    private static byte char64(char x) {
+    static byte char64(char x) {
         if ((int)x < 0 || (int)x > index_64.length)
             return -1;
         return index_64[(int)x];
@@ -752,4 +752,104 @@ public final class BCrypt {
         return (hashed.compareTo(hashpw(plaintext, hashed)) == 0);
     }
 
+    /**
+     * Get the log2 of the number of rounds a hash was computed with
+     * @param hashed	a hash produced by hashpw
+     * @return	the log2 of the number of rounds, or -1 if the hash is
+     * not in a recognized format
+     */
+    public static int getLogRounds(String hashed) {
+        if (hashed == null || hashed.length() < 7 || hashed.charAt(0) != '$' || hashed.charAt(1) != '2')
+            return -1;
+
+        final int off = hashed.charAt(2) == '$' ? 3 : 4;
+        if (hashed.length() < off + 3 || hashed.charAt(off + 2) != '$')
+            return -1;
+
+        final char high = hashed.charAt(off);
+        final char low = hashed.charAt(off + 1);
+        if (high < '0' || high > '9' || low < '0' || low > '9')
+            return -1;
+        return (high - '0') * 10 + (low - '0');
+    }
+
+
+    /**
+     * Length of a hash packed with packHash: the minor version, the log2 of
+     * the rounds, the salt and the digest.
+     */
+    public static final int PACKED_HASH_LENGTH = 2 + BCRYPT_SALT_LEN + 23;
+
+    /**
+     * Pack a hash produced by hashpw into binary form, which takes less
+     * than half the memory of the string form
+     * @param hashed	the hashed password
+     * @return	the packed hash, or null if the hash is not in the
+     * standard format and can not be packed without losing information
+     */
+    public static byte[] packHash(String hashed) {
+        try {
+            int off;
+            char minor = (char) 0;
+            if (hashed.length() < 7 || hashed.charAt(0) != '$' || hashed.charAt(1) != '2')
+                return null;
+            if (hashed.charAt(2) == '$')
+                off = 3;
+            else {
+                minor = hashed.charAt(2);
+                if (minor != 'a' || hashed.charAt(3) != '$')
+                    return null;
+                off = 4;
+            }
+            if (hashed.length() != off + 3 + 22 + 31 || hashed.charAt(off + 2) != '$')
+                return null;
+
+            final int rounds = Integer.parseInt(hashed.substring(off, off + 2));
+            final byte[] salt = decode_base64(hashed.substring(off + 3, off + 25), BCRYPT_SALT_LEN);
+            final byte[] digest = decode_base64(hashed.substring(off + 25), 23);
+            if (salt.length != BCRYPT_SALT_LEN || digest.length != 23)
+                return null;
+
+            final byte[] packed = new byte[PACKED_HASH_LENGTH];
+            packed[0] = (byte) minor;
+            packed[1] = (byte) rounds;
+            System.arraycopy(salt, 0, packed, 2, BCRYPT_SALT_LEN);
+            System.arraycopy(digest, 0, packed, 2 + BCRYPT_SALT_LEN, 23);
+
+            // Only accept hashes that unpack to exactly the same string
+            return hashed.equals(unpackHash(packed)) ? packed : null;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Convert a hash packed with packHash back to the string form
+     * @param packed	the packed hash
+     * @return	the hash in the same form as hashpw returns it
+     */
+    public static String unpackHash(byte[] packed) {
+        if (packed.length != PACKED_HASH_LENGTH)
+            throw new IllegalArgumentException ("Invalid packed hash length");
+
+        final char minor = (char) packed[0];
+        final int rounds = packed[1];
+        final byte[] salt = new byte[BCRYPT_SALT_LEN];
+        final byte[] digest = new byte[23];
+        System.arraycopy(packed, 2, salt, 0, BCRYPT_SALT_LEN);
+        System.arraycopy(packed, 2 + BCRYPT_SALT_LEN, digest, 0, 23);
+
+        StringBuffer rs = new StringBuffer(60);
+        rs.append("$2");
+        if (minor >= 'a')
+            rs.append(minor);
+        rs.append("$");
+        if (rounds < 10)
+            rs.append("0");
+        rs.append(Integer.toString(rounds));
+        rs.append("$");
+        rs.append(encode_base64(salt, salt.length));
+        rs.append(encode_base64(digest, digest.length));
+        return rs.toString();
+    }
 }
\ No newline at end of file
@@ -0,0 +1,378 @@
+package org.messageduct.utils;
+
+import java.util.Arrays;
+
+/**
+ * Computes the same hashes as BCrypt.hashpw and BCrypt.checkpw, but keeps its key schedule and work buffers between
+ * hashes and resets them instead of allocating new ones, so a hash only allocates the resulting hash string, and
+ * checking a password allocates nothing.
+ *
+ * Not thread safe, each thread should use its own engine.
+ */
+public final class BCryptEngine {
+
+    private static final int CIPHERTEXT_WORDS = BCrypt.bf_crypt_ciphertext.length;
+    private static final int HASH_BYTES = CIPHERTEXT_WORDS * 4;
+    private static final int MAX_HASH_CHARS = 60;
+    private static final int INITIAL_KEY_CAPACITY = 64;
+
+    // Expanded Blowfish key
+    private final int[] P = new int[BCrypt.P_orig.length];
+    private final int[] S = new int[BCrypt.S_orig.length];
+
+    private final int[] cdata = new int[CIPHERTEXT_WORDS];
+    private final int[] lr = new int[2];
+    private final int[] keyOffp = new int[1];
+    private final int[] dataOffp = new int[1];
+    private final byte[] salt = new byte[BCrypt.BCRYPT_SALT_LEN];
+    private final byte[] hashed = new byte[HASH_BYTES];
+    private final char[] output = new char[MAX_HASH_CHARS];
+
+    // UTF-8 encoded password, only the first keyLength bytes are used
+    private byte[] key = new byte[INITIAL_KEY_CAPACITY];
+    private int keyLength;
+    private int outputLength;
+
+    /**
+     * Hash a password, giving the same result as BCrypt.hashpw.
+     * @param password	the password to hash
+     * @param salt	the salt to hash with (perhaps generated
+     * using BCrypt.gensalt)
+     * @return	the hashed password
+     */
+    public String hashpw(char[] password, String salt) {
+        crypt(password, salt);
+        return new String(output, 0, outputLength);
+    }
+
+    /**
+     * Check that a plaintext password matches a previously hashed
+     * one, giving the same result as BCrypt.checkpw.
+     * @param plaintext	the plaintext password to verify
+     * @param hashed	the previously-hashed password
+     * @return	true if the passwords match, false otherwise
+     */
+    public boolean checkpw(char[] plaintext, String hashed) {
+        crypt(plaintext, hashed);
+        if (hashed.length() != outputLength) return false;
+
+        int difference = 0;
+        for (int i = 0; i < outputLength; i++) {
+            difference |= hashed.charAt(i) ^ output[i];
+        }
+        return difference == 0;
+    }
+
+    private void crypt(char[] password, String saltString) {
+        char minor = (char) 0;
+        int off;
+
+        if (saltString.charAt(0) != '$' || saltString.charAt(1) != '2')
+            throw new IllegalArgumentException ("Invalid salt version");
+        if (saltString.charAt(2) == '$')
+            off = 3;
+        else {
+            minor = saltString.charAt(2);
+            if (minor != 'a' || saltString.charAt(3) != '$')
+                throw new IllegalArgumentException ("Invalid salt revision");
+            off = 4;
+        }
+
+        // Extract number of rounds
+        if (saltString.charAt(off + 2) > '$')
+            throw new IllegalArgumentException ("Missing salt rounds");
+        final char roundsHigh = saltString.charAt(off);
+        final char roundsLow = saltString.charAt(off + 1);
+        if (roundsHigh < '0' || roundsHigh > '9' || roundsLow < '0' || roundsLow > '9')
+            throw new IllegalArgumentException ("Invalid salt rounds");
+        final int logRounds = (roundsHigh - '0') * 10 + (roundsLow - '0');
+
+        if (saltString.length() < off + 25)
+            throw new IllegalArgumentException ("Invalid salt length");
+
+        encodePassword(password, minor >= 'a');
+        try {
+            final int saltLength = decodeSalt(saltString, off + 3, off + 25);
+            cryptRaw(saltLength, logRounds);
+        }
+        finally {
+            // Do not keep the password around
+            Arrays.fill(key, 0, keyLength, (byte) 0);
+        }
+
+        outputLength = 0;
+        append('$');
+        append('2');
+        if (minor >= 'a')
+            append(minor);
+        append('$');
+        append((char) ('0' + logRounds / 10));
+        append((char) ('0' + logRounds % 10));
+        append('$');
+        encodeBase64(salt, salt.length);
+        encodeBase64(hashed, HASH_BYTES - 1);
+    }
+
+    /**
+     * Encode the password to UTF-8 in the key buffer, the same way as String.getBytes does.
+     */
+    private void encodePassword(char[] password, boolean nullTerminate) {
+        // At most three bytes per char, as surrogate pairs take four bytes for two chars
+        final int maxLength = password.length * 3 + 1;
+        if (key.length < maxLength) {
+            Arrays.fill(key, (byte) 0);
+            key = new byte[Math.max(maxLength, 2 * key.length)];
+        }
+
+        int length = 0;
+        for (int i = 0; i < password.length; i++) {
+            final char c = password[i];
+            if (c < 0x80) {
+                key[length++] = (byte) c;
+            }
+            else if (c < 0x800) {
+                key[length++] = (byte) (0xc0 | (c >> 6));
+                key[length++] = (byte) (0x80 | (c & 0x3f));
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < password.length && Character.isLowSurrogate(password[i + 1])) {
+                final int codePoint = Character.toCodePoint(c, password[++i]);
+                key[length++] = (byte) (0xf0 | (codePoint >> 18));
+                key[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                key[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                key[length++] = (byte) (0x80 | (codePoint & 0x3f));
+            }
+            else if (Character.isSurrogate(c)) {
+                // Unpaired surrogates are replaced, like String.getBytes does
+                key[length++] = (byte) '?';
+            }
+            else {
+                key[length++] = (byte) (0xe0 | (c >> 12));
+                key[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                key[length++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        if (nullTerminate)
+            key[length++] = 0;
+
+        keyLength = length;
+    }
+
+    /**
+     * Decode the base64 encoded salt between the start and end positions of the string into the salt buffer.
+     * @return	the number of bytes decoded
+     */
+    private int decodeSalt(String s, int start, int end) {
+        int off = start, olen = 0;
+        byte c1, c2, c3, c4, o;
+
+        while (off < end - 1 && olen < salt.length) {
+            c1 = BCrypt.char64(s.charAt(off++));
+            c2 = BCrypt.char64(s.charAt(off++));
+            if (c1 == -1 || c2 == -1)
+                break;
+            o = (byte)(c1 << 2);
+            o |= (c2 & 0x30) >> 4;
+            salt[olen] = o;
+            if (++olen >= salt.length || off >= end)
+                break;
+            c3 = BCrypt.char64(s.charAt(off++));
+            if (c3 == -1)
+                break;
+            o = (byte)((c2 & 0x0f) << 4);
+            o |= (c3 & 0x3c) >> 2;
+            salt[olen] = o;
+            if (++olen >= salt.length || off >= end)
+                break;
+            c4 = BCrypt.char64(s.charAt(off++));
+            o = (byte)((c3 & 0x03) << 6);
+            o |= c4;
+            salt[olen] = o;
+            ++olen;
+        }
+        return olen;
+    }
+
+    private void encodeBase64(byte d[], int len) {
+        int off = 0;
+        int c1, c2;
+
+        while (off < len) {
+            c1 = d[off++] & 0xff;
+            append(BCrypt.base64_code[(c1 >> 2) & 0x3f]);
+            c1 = (c1 & 0x03) << 4;
+            if (off >= len) {
+                append(BCrypt.base64_code[c1 & 0x3f]);
+                break;
+            }
+            c2 = d[off++] & 0xff;
+            c1 |= (c2 >> 4) & 0x0f;
+            append(BCrypt.base64_code[c1 & 0x3f]);
+            c1 = (c2 & 0x0f) << 2;
+            if (off >= len) {
+                append(BCrypt.base64_code[c1 & 0x3f]);
+                break;
+            }
+            c2 = d[off++] & 0xff;
+            c1 |= (c2 >> 6) & 0x03;
+            append(BCrypt.base64_code[c1 & 0x3f]);
+            append(BCrypt.base64_code[c2 & 0x3f]);
+        }
+    }
+
+    private void append(char c) {
+        output[outputLength++] = c;
+    }
+
+    /**
+     * Perform the central password hashing step, with the password in the key buffer and the salt in the salt buffer,
+     * leaving the result in the hashed buffer.
+     */
+    private void cryptRaw(int saltLength, int logRounds) {
+        int rounds, i, j;
+
+        if (logRounds < 4 || logRounds > 31)
+            throw new IllegalArgumentException ("Bad number of rounds");
+        rounds = 1 << logRounds;
+        if (saltLength != BCrypt.BCRYPT_SALT_LEN)
+            throw new IllegalArgumentException ("Bad salt length");
+
+        // Reset the key schedule
+        System.arraycopy(BCrypt.P_orig, 0, P, 0, P.length);
+        System.arraycopy(BCrypt.S_orig, 0, S, 0, S.length);
+
+        ekskey(salt, salt.length, key, keyLength);
+        for (i = 0; i < rounds; i++) {
+            key(key, keyLength);
+            key(salt, salt.length);
+        }
+
+        System.arraycopy(BCrypt.bf_crypt_ciphertext, 0, cdata, 0, CIPHERTEXT_WORDS);
+        for (i = 0; i < 64; i++) {
+            for (j = 0; j < (CIPHERTEXT_WORDS >> 1); j++)
+                encipher(cdata, j << 1);
+        }
+
+        for (i = 0, j = 0; i < CIPHERTEXT_WORDS; i++) {
+            hashed[j++] = (byte)((cdata[i] >> 24) & 0xff);
+            hashed[j++] = (byte)((cdata[i] >> 16) & 0xff);
+            hashed[j++] = (byte)((cdata[i] >> 8) & 0xff);
+            hashed[j++] = (byte)(cdata[i] & 0xff);
+        }
+    }
+
+    /**
+     * Blowfish encipher a single 64-bit block encoded as
+     * two 32-bit halves
+     * @param lr	an array containing the two 32-bit half blocks
+     * @param off	the position in the array of the blocks
+     */
+    private void encipher(int lr[], int off) {
+        int i, n, l = lr[off], r = lr[off + 1];
+
+        l ^= P[0];
+        for (i = 0; i <= BCrypt.BLOWFISH_NUM_ROUNDS - 2;) {
+            // Feistel substitution on left word
+            n = S[(l >> 24) & 0xff];
+            n += S[0x100 | ((l >> 16) & 0xff)];
+            n ^= S[0x200 | ((l >> 8) & 0xff)];
+            n += S[0x300 | (l & 0xff)];
+            r ^= n ^ P[++i];
+
+            // Feistel substitution on right word
+            n = S[(r >> 24) & 0xff];
+            n += S[0x100 | ((r >> 16) & 0xff)];
+            n ^= S[0x200 | ((r >> 8) & 0xff)];
+            n += S[0x300 | (r & 0xff)];
+            l ^= n ^ P[++i];
+        }
+        lr[off] = r ^ P[BCrypt.BLOWFISH_NUM_ROUNDS + 1];
+        lr[off + 1] = l;
+    }
+
+    /**
+     * Cycically extract a word of key material
+     * @param data	the array to extract the data from
+     * @param length	the number of bytes used in the array
+     * @param offp	a "pointer" (as a one-entry array) to the
+     * current offset into data
+     * @return	the next word of material from data
+     */
+    private static int streamtoword(byte data[], int length, int offp[]) {
+        int i;
+        int word = 0;
+        int off = offp[0];
+
+        for (i = 0; i < 4; i++) {
+            word = (word << 8) | (data[off] & 0xff);
+            off = (off + 1) % length;
+        }
+
+        offp[0] = off;
+        return word;
+    }
+
+    /**
+     * Key the Blowfish cipher
+     * @param key	an array containing the key
+     * @param keyLength	the number of bytes used in the key array
+     */
+    private void key(byte key[], int keyLength) {
+        int i;
+        int plen = P.length, slen = S.length;
+        keyOffp[0] = 0;
+        lr[0] = 0;
+        lr[1] = 0;
+
+        for (i = 0; i < plen; i++)
+            P[i] = P[i] ^ streamtoword(key, keyLength, keyOffp);
+
+        for (i = 0; i < plen; i += 2) {
+            encipher(lr, 0);
+            P[i] = lr[0];
+            P[i + 1] = lr[1];
+        }
+
+        for (i = 0; i < slen; i += 2) {
+            encipher(lr, 0);
+            S[i] = lr[0];
+            S[i + 1] = lr[1];
+        }
+    }
+
+    /**
+     * Perform the "enhanced key schedule" step described by
+     * Provos and Mazieres in "A Future-Adaptable Password Scheme"
+     * http://www.openbsd.org/papers/bcrypt-paper.ps
+     * @param data	salt information
+     * @param dataLength	the number of bytes used in the data array
+     * @param key	password information
+     * @param keyLength	the number of bytes used in the key array
+     */
+    private void ekskey(byte data[], int dataLength, byte key[], int keyLength) {
+        int i;
+        int plen = P.length, slen = S.length;
+        keyOffp[0] = 0;
+        dataOffp[0] = 0;
+        lr[0] = 0;
+        lr[1] = 0;
+
+        for (i = 0; i < plen; i++)
+            P[i] = P[i] ^ streamtoword(key, keyLength, keyOffp);
+
+        for (i = 0; i < plen; i += 2) {
+            lr[0] ^= streamtoword(data, dataLength, dataOffp);
+            lr[1] ^= streamtoword(data, dataLength, dataOffp);
+            encipher(lr, 0);
+            P[i] = lr[0];
+            P[i + 1] = lr[1];
+        }
+
+        for (i = 0; i < slen; i += 2) {
+            lr[0] ^= streamtoword(data, dataLength, dataOffp);
+            lr[1] ^= streamtoword(data, dataLength, dataOffp);
+            encipher(lr, 0);
+            S[i] = lr[0];
+            S[i + 1] = lr[1];
+        }
+    }
+}
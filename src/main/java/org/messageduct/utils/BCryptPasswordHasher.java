@@ -5,12 +5,18 @@ import org.flowutils.Check;
 /**
  * Password hasher that uses BCrypt (blowfish style hasher).
  *
- * Not thread safe.
+ * Each thread hashes with its own reused BCryptEngine, so hashing does not allocate new key schedules.
  */
-public final class BCryptPasswordHasher implements PasswordHasher {
+public final class BCryptPasswordHasher implements RehashingPasswordHasher {
 
     private static final int DEFAULT_LOG_OF_SALT_ROUNDS = 11;
-    private static final int MINIMUM_LOG_OF_SALT_ROUNDS = 8;
+    static final int MINIMUM_LOG_OF_SALT_ROUNDS = 8;
+
+    private static final ThreadLocal<BCryptEngine> threadEngine = new ThreadLocal<BCryptEngine>() {
+        @Override protected BCryptEngine initialValue() {
+            return new BCryptEngine();
+        }
+    };
 
     private final int logOfSaltRounds;
 
@@ -32,10 +38,21 @@ public final class BCryptPasswordHasher implements PasswordHasher {
     }
 
     @Override public String hashPassword(char[] password) {
-        return BCrypt.hashpw(password, BCrypt.gensalt(logOfSaltRounds));
+        return threadEngine.get().hashpw(password, BCrypt.gensalt(logOfSaltRounds));
     }
 
     @Override public boolean isCorrectPassword(char[] password, String hash) {
-        return BCrypt.checkpw(password, hash);
+        return threadEngine.get().checkpw(password, hash);
+    }
+
+    @Override public boolean needsRehash(String hash) {
+        return BCrypt.getLogRounds(hash) != logOfSaltRounds;
+    }
+
+    /**
+     * @return logarithm of the number of salting rounds that new hashes are created with.
+     */
+    public int getLogOfSaltRounds() {
+        return logOfSaltRounds;
     }
 }
@@ -0,0 +1,92 @@
+package org.messageduct.utils;
+
+import org.flowutils.Check;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Compact probabilistic set of 64 bit keys (e.g. hashes of names).
+ *
+ * mightContain never returns false for an added key, but may return true for a key that was not added, with roughly
+ * the false positive rate specified at creation as long as no more than the expected number of keys are added.
+ * Keys can not be removed.
+ *
+ * Thread safe, and does not block.
+ */
+public final class BloomFilter {
+
+    private final AtomicLongArray bits;
+    private final long bitCount;
+    private final int hashCount;
+    private final int expectedKeyCount;
+
+    /**
+     * @param expectedKeyCount number of keys expected to be added.
+     * @param falsePositiveRate wanted probability of mightContain returning true for a key that was not added,
+     *                          when the expected number of keys have been added.
+     */
+    public BloomFilter(int expectedKeyCount, double falsePositiveRate) {
+        Check.positive(expectedKeyCount, "expectedKeyCount");
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1) {
+            throw new IllegalArgumentException("The falsePositiveRate should be between 0 and 1, but it was " + falsePositiveRate);
+        }
+
+        // Optimal size and number of hash functions for the expected key count and false positive rate
+        final double ln2 = Math.log(2);
+        final long optimalBitCount = (long) Math.ceil(-expectedKeyCount * Math.log(falsePositiveRate) / (ln2 * ln2));
+        final int wordCount = (int) Math.min((Math.max(optimalBitCount, 64) + 63) / 64, Integer.MAX_VALUE);
+
+        this.bits = new AtomicLongArray(wordCount);
+        this.bitCount = wordCount * 64L;
+        this.hashCount = Math.max(1, (int) Math.round(bitCount / (double) expectedKeyCount * ln2));
+        this.expectedKeyCount = expectedKeyCount;
+    }
+
+    /**
+     * Adds a key to the filter.
+     */
+    public void add(long key) {
+        // Derive the bit positions from two hashes of the key with double hashing
+        final long hash1 = mix(key);
+        final long hash2 = mix(hash1) | 1;
+        for (int i = 0; i < hashCount; i++) {
+            final long bit = ((hash1 + i * hash2) & Long.MAX_VALUE) % bitCount;
+            final int word = (int) (bit >>> 6);
+            final long mask = 1L << bit;
+
+            long current = bits.get(word);
+            while ((current & mask) == 0 && !bits.compareAndSet(word, current, current | mask)) {
+                current = bits.get(word);
+            }
+        }
+    }
+
+    /**
+     * @return false if the key has definitely not been added, true if it probably has been.
+     */
+    public boolean mightContain(long key) {
+        final long hash1 = mix(key);
+        final long hash2 = mix(hash1) | 1;
+        for (int i = 0; i < hashCount; i++) {
+            final long bit = ((hash1 + i * hash2) & Long.MAX_VALUE) % bitCount;
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return number of keys the filter was sized for.  If many more keys are added, the false positive rate grows.
+     */
+    public int getExpectedKeyCount() {
+        return expectedKeyCount;
+    }
+
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,60 @@
+package org.messageduct.utils;
+
+import java.util.Collection;
+
+import static org.flowutils.Check.notNull;
+
+/**
+ * Password dictionary for large lists, such as passwords from breached sites, kept in a Bloom filter.
+ *
+ * Takes a fixed amount of memory depending on the expected number of words and the false positive rate, e.g. about
+ * 1.2 bytes per word for a 1% rate, and a lookup checks a fixed number of bits regardless of the dictionary size.
+ * Some passwords that are not in the list are rejected, with roughly the false positive rate.
+ *
+ * Thread safe, and does not block.
+ */
+public final class BloomFilterPasswordDictionary implements PasswordDictionary {
+
+    public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.001;
+
+    private final BloomFilter filter;
+
+    /**
+     * @param expectedWordCount number of words expected to be added.
+     */
+    public BloomFilterPasswordDictionary(int expectedWordCount) {
+        this(expectedWordCount, DEFAULT_FALSE_POSITIVE_RATE);
+    }
+
+    /**
+     * @param expectedWordCount number of words expected to be added.
+     * @param falsePositiveRate wanted probability of rejecting a password that is not in the dictionary,
+     *                          when the expected number of words have been added.
+     */
+    public BloomFilterPasswordDictionary(int expectedWordCount, double falsePositiveRate) {
+        filter = new BloomFilter(expectedWordCount, falsePositiveRate);
+    }
+
+    /**
+     * Adds a word to the dictionary.
+     */
+    public void add(String word) {
+        notNull(word, "word");
+        filter.add(FoldedHash.of(word));
+    }
+
+    /**
+     * Adds words to the dictionary.
+     */
+    public void addAll(Collection<String> words) {
+        notNull(words, "words");
+        for (String word : words) {
+            add(word);
+        }
+    }
+
+    @Override public boolean contains(char[] password) {
+        notNull(password, "password");
+        return filter.mightContain(FoldedHash.of(password));
+    }
+}
@@ -0,0 +1,108 @@
+package org.messageduct.utils;
+
+import org.flowutils.Check;
+import org.flowutils.LogUtils;
+
+/**
+ * BCrypt password hasher that picks its work factor when it is created, by timing hashes on the current hardware,
+ * so that hashing a password takes roughly a target time.  Fast servers get stronger hashes, and slow ones keep
+ * login latency down.
+ *
+ * The work factor is stored in each hash, so hashes created with an earlier work factor can still be checked, and
+ * needsRehash reports them, so that they can be replaced with a hash using the current work factor on the next login.
+ *
+ * Thread safe.
+ */
+public final class CalibratingPasswordHasher implements RehashingPasswordHasher {
+
+    public static final long DEFAULT_TARGET_HASH_MILLISECONDS = 100;
+    public static final int DEFAULT_MAX_LOG_OF_SALT_ROUNDS = 16;
+
+    private static final int CALIBRATION_SAMPLES = 3;
+    private static final char[] CALIBRATION_PASSWORD = "calibrationPassword".toCharArray();
+
+    private final BCryptPasswordHasher hasher;
+
+    /**
+     * Creates a hasher calibrated to the default target time per hash.
+     */
+    public CalibratingPasswordHasher() {
+        this(DEFAULT_TARGET_HASH_MILLISECONDS);
+    }
+
+    /**
+     * @param targetHashMilliseconds approximate time that hashing a password should take.
+     */
+    public CalibratingPasswordHasher(long targetHashMilliseconds) {
+        this(targetHashMilliseconds, BCryptPasswordHasher.MINIMUM_LOG_OF_SALT_ROUNDS, DEFAULT_MAX_LOG_OF_SALT_ROUNDS);
+    }
+
+    /**
+     * @param targetHashMilliseconds approximate time that hashing a password should take.
+     * @param minLogOfSaltRounds work factor to use if even that takes longer than the target time.
+     * @param maxLogOfSaltRounds work factor to use at most, however fast the hardware is.
+     */
+    public CalibratingPasswordHasher(long targetHashMilliseconds, int minLogOfSaltRounds, int maxLogOfSaltRounds) {
+        Check.positive(targetHashMilliseconds, "targetHashMilliseconds");
+        Check.greaterOrEqual(minLogOfSaltRounds, "minLogOfSaltRounds",
+                             BCryptPasswordHasher.MINIMUM_LOG_OF_SALT_ROUNDS, "minimum secure level of salt rounds");
+        Check.greaterOrEqual(maxLogOfSaltRounds, "maxLogOfSaltRounds", minLogOfSaltRounds, "minLogOfSaltRounds");
+
+        final int logOfSaltRounds = calibrate(targetHashMilliseconds * 1000L * 1000L, minLogOfSaltRounds, maxLogOfSaltRounds);
+        LogUtils.getLogger().info("Calibrated password hashing to use 2^" + logOfSaltRounds + " rounds, " +
+                                  "for a target time of " + targetHashMilliseconds + " ms per hash");
+
+        hasher = new BCryptPasswordHasher(logOfSaltRounds);
+    }
+
+    @Override public String hashPassword(char[] password) {
+        return hasher.hashPassword(password);
+    }
+
+    @Override public boolean isCorrectPassword(char[] password, String hash) {
+        return hasher.isCorrectPassword(password, hash);
+    }
+
+    @Override public boolean needsRehash(String hash) {
+        return hasher.needsRehash(hash);
+    }
+
+    /**
+     * @return logarithm of the number of salting rounds that was picked for new hashes.
+     */
+    public int getLogOfSaltRounds() {
+        return hasher.getLogOfSaltRounds();
+    }
+
+    private static int calibrate(long targetNanoseconds, int minLogOfSaltRounds, int maxLogOfSaltRounds) {
+        // Each extra round doubles the time, so time the cheapest work factor and extrapolate from it
+        final long minRoundsTime = timeHash(minLogOfSaltRounds, CALIBRATION_SAMPLES);
+        int logOfSaltRounds = minLogOfSaltRounds;
+        while (logOfSaltRounds < maxLogOfSaltRounds &&
+               minRoundsTime << (logOfSaltRounds + 1 - minLogOfSaltRounds) <= targetNanoseconds) {
+            logOfSaltRounds++;
+        }
+
+        // Short timings are noisy, so check the result once and step down if it is clearly too slow
+        if (logOfSaltRounds > minLogOfSaltRounds && timeHash(logOfSaltRounds, 1) > 2 * targetNanoseconds) {
+            logOfSaltRounds--;
+        }
+
+        return logOfSaltRounds;
+    }
+
+    /**
+     * @return the shortest time of the samples for hashing a password with the work factor, in nanoseconds.
+     */
+    private static long timeHash(int logOfSaltRounds, int samples) {
+        final BCryptEngine engine = new BCryptEngine();
+        final String salt = BCrypt.gensalt(logOfSaltRounds);
+        long shortestTime = Long.MAX_VALUE;
+        for (int i = 0; i < samples; i++) {
+            final long startTime = System.nanoTime();
+            engine.hashpw(CALIBRATION_PASSWORD, salt);
+            shortestTime = Math.min(shortestTime, System.nanoTime() - startTime);
+        }
+        return Math.max(1, shortestTime);
+    }
+}
@@ -3,6 +3,14 @@ package org.messageduct.utils;
 import org.flowutils.StreamUtils;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
 
 /**
  * File related utils.
@@ -12,6 +20,9 @@ import java.io.*;
  */
 public final class FileUtils {
 
+    private static final byte[] CHECKSUM_FOOTER_MAGIC = {'M', 'D', 'C', 'h', 'e', 'c', 'k', '1'};
+    private static final int CHECKSUM_FOOTER_SIZE = CHECKSUM_FOOTER_MAGIC.length + 4 + 4;
+
     /**
      * Saves the data to the specified file, using the specified temp file as a temporary initial storage.
      * Checks that the data written to the file matches with the data in memory before deleting the original file and replacing it with the temporary file.
@@ -81,6 +92,104 @@ public final class FileUtils {
         }
     }
 
+    /**
+     * Saves the data to the specified file so that after a crash the file contains either the old or the new data.
+     * The data is written to a temporary file through a FileChannel, followed by a footer with its length and
+     * a CRC32 checksum, forced to the storage device, and then moved over the original file in one atomic step.
+     * Instead of reading the written data back, the checksum is verified when the file is loaded with loadDurableData.
+     *
+     * @param data data to save
+     * @param file file to save data to
+     * @param tempFile temporary file to first save data to.
+     * @throws IOException if there was some problem at any step when saving the data.
+     */
+    public static void saveDurably(byte[] data, final File file, final File tempFile) throws IOException {
+        final CRC32 crc = new CRC32();
+        crc.update(data);
+
+        final ByteBuffer footer = ByteBuffer.allocate(CHECKSUM_FOOTER_SIZE);
+        footer.put(CHECKSUM_FOOTER_MAGIC);
+        footer.putInt(data.length);
+        footer.putInt((int) crc.getValue());
+        footer.flip();
+
+        final FileChannel channel = new FileOutputStream(tempFile, false).getChannel();
+        try {
+            final ByteBuffer dataBuffer = ByteBuffer.wrap(data);
+            while (dataBuffer.hasRemaining()) channel.write(dataBuffer);
+            while (footer.hasRemaining()) channel.write(footer);
+
+            // Make sure the data is on the storage device before it replaces the old file
+            channel.force(true);
+        }
+        finally {
+            channel.close();
+        }
+
+        replaceAtomically(tempFile, file);
+    }
+
+    /**
+     * Loads data saved with saveDurably, and verifies its checksum.
+     * Files without a checksum footer (e.g. saved with saveAndCheck) are returned as they are.
+     *
+     * @param file file to load.
+     * @return the data in the file, without the checksum footer.
+     * @throws IOException if the file could not be read, or the checksum did not match.
+     */
+    public static byte[] loadDurableData(final File file) throws IOException {
+        final byte[] fileData = loadData(file);
+        if (!hasChecksumFooter(fileData)) return fileData;
+
+        final ByteBuffer footer = ByteBuffer.wrap(fileData, fileData.length - CHECKSUM_FOOTER_SIZE, CHECKSUM_FOOTER_SIZE);
+        footer.position(footer.position() + CHECKSUM_FOOTER_MAGIC.length);
+        final int length = footer.getInt();
+        final int checksum = footer.getInt();
+
+        final CRC32 crc = new CRC32();
+        crc.update(fileData, 0, length);
+        if ((int) crc.getValue() != checksum) throw new IOException("The contents of the file (" + file + ") are corrupted, the checksum does not match");
+
+        return Arrays.copyOf(fileData, length);
+    }
+
+    /**
+     * Moves the source file over the target file, as an atomic operation if the file system supports it,
+     * so that the target always exists with either the old or the new contents.
+     *
+     * @param source file to move.
+     * @param target file to replace.
+     * @throws IOException if the file could not be moved.
+     */
+    public static void replaceAtomically(File source, File target) throws IOException {
+        try {
+            try {
+                Files.move(source.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            throw new IOException("Could not move the temporary file (" + source + ") over the file (" + target + ").  " +
+                                  source + " may now contain the only copy of the new data: " + e.getMessage(), e);
+        }
+
+        // Make the rename itself durable, where the platform allows syncing directories
+        final File directory = target.getAbsoluteFile().getParentFile();
+        if (directory != null) {
+            try {
+                final FileChannel directoryChannel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+                try {
+                    directoryChannel.force(true);
+                }
+                finally {
+                    directoryChannel.close();
+                }
+            } catch (IOException e) {
+                // Not supported on all platforms
+            }
+        }
+    }
+
     public static File createTempFileName(File file) {
         return new File(file.getPath() + ".temp");
     }
@@ -97,6 +206,18 @@ public final class FileUtils {
         return data;
     }
 
+    private static boolean hasChecksumFooter(byte[] fileData) {
+        if (fileData.length < CHECKSUM_FOOTER_SIZE) return false;
+
+        final int footerStart = fileData.length - CHECKSUM_FOOTER_SIZE;
+        for (int i = 0; i < CHECKSUM_FOOTER_MAGIC.length; i++) {
+            if (fileData[footerStart + i] != CHECKSUM_FOOTER_MAGIC[i]) return false;
+        }
+
+        // The stored length should match the data before the footer
+        return ByteBuffer.wrap(fileData, footerStart + CHECKSUM_FOOTER_MAGIC.length, 4).getInt() == footerStart;
+    }
+
     private FileUtils() {
     }
 }
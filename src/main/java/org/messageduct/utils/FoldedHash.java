@@ -0,0 +1,56 @@
+package org.messageduct.utils;
+
+/**
+ * 64 bit hash of a case-folded password, shared by the password dictionaries so that the same hash can be computed
+ * from a char array or a String without copying the password.
+ */
+final class FoldedHash {
+
+    /**
+     * @return hash of the lower case version of the characters.
+     */
+    static long of(char[] chars) {
+        // FNV-1a over the lower case characters
+        long hash = 0xcbf29ce484222325L;
+        for (char c : chars) {
+            hash ^= Character.toLowerCase(c);
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * @return hash of the lower case version of the characters, the same as for a char array with the same characters.
+     */
+    static long of(CharSequence chars) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < chars.length(); i++) {
+            hash ^= Character.toLowerCase(chars.charAt(i));
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * @return the characters converted to lower case one at a time, so the length stays the same.
+     */
+    static String fold(CharSequence chars) {
+        final char[] folded = new char[chars.length()];
+        for (int i = 0; i < folded.length; i++) {
+            folded[i] = Character.toLowerCase(chars.charAt(i));
+        }
+        return new String(folded);
+    }
+
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private FoldedHash() {
+    }
+}
@@ -0,0 +1,108 @@
+package org.messageduct.utils;
+
+import java.io.IOException;
+
+import static org.flowutils.Check.notNull;
+
+/**
+ * Combines concurrent requests to make data durable into as few writes as possible.
+ *
+ * Callers first apply their change in memory, then call commit.  If no write is in progress, the caller performs
+ * the write itself.  Callers arriving while a write is in progress are grouped together, and the next write
+ * (performed by one of them) covers all their changes.  Each caller returns when a write that started after its
+ * call has completed, so the number of writes does not grow with the number of concurrent callers.
+ *
+ * The write action must write the current state at the time it is run, e.g. a copy of all data, or a sync of
+ * everything appended so far.
+ */
+public final class GroupCommit {
+
+    /**
+     * Writes the current state durably.
+     */
+    public interface WriteAction {
+        void write() throws IOException;
+    }
+
+    private final WriteAction writeAction;
+    private final Object lock = new Object();
+
+    private Batch pendingBatch = new Batch();
+    private boolean writing;
+    private long writeCount;
+
+    /**
+     * @param writeAction action that writes the current state.  Never called concurrently by this GroupCommit.
+     */
+    public GroupCommit(WriteAction writeAction) {
+        notNull(writeAction, "writeAction");
+
+        this.writeAction = writeAction;
+    }
+
+    /**
+     * Returns when all changes made by the calling thread before this call have been written.
+     *
+     * @throws IOException if the write covering this call failed.
+     */
+    public void commit() throws IOException {
+        final Batch batch;
+        boolean interrupted = false;
+        synchronized (lock) {
+            batch = pendingBatch;
+
+            // Wait until our batch has been written by someone else, or it is our turn to write it
+            while (!batch.done && (writing || pendingBatch != batch)) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    // The change has to be written anyway, so keep waiting
+                    interrupted = true;
+                }
+            }
+
+            if (!batch.done) {
+                // Write this batch, later callers join the next one
+                writing = true;
+                pendingBatch = new Batch();
+            }
+        }
+
+        if (interrupted) Thread.currentThread().interrupt();
+
+        if (!batch.done) {
+            Throwable failure = null;
+            try {
+                writeAction.write();
+            } catch (Throwable e) {
+                failure = e;
+            }
+
+            synchronized (lock) {
+                batch.done = true;
+                batch.failure = failure;
+                writing = false;
+                writeCount++;
+                lock.notifyAll();
+            }
+        }
+
+        if (batch.failure != null) {
+            throw new IOException("Writing the changes failed: " + batch.failure.getMessage(), batch.failure);
+        }
+    }
+
+    /**
+     * @return number of writes done so far.
+     */
+    public long getWriteCount() {
+        synchronized (lock) {
+            return writeCount;
+        }
+    }
+
+    private static final class Batch {
+        private boolean done;
+        private Throwable failure;
+    }
+}
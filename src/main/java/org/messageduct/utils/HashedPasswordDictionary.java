@@ -0,0 +1,105 @@
+package org.messageduct.utils;
+
+import java.util.Collection;
+
+import static org.flowutils.Check.notNull;
+
+/**
+ * Password dictionary for lists that fit in memory, kept as a hash table of the lower case words.
+ *
+ * A lookup hashes the password once and usually compares it to a single word, regardless of the dictionary size,
+ * and does not copy the password.
+ *
+ * Thread safe.  Lookups do not lock.
+ */
+public final class HashedPasswordDictionary implements PasswordDictionary {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    // Open addressing table with linear probing, kept at most half full
+    private volatile String[] table = new String[INITIAL_CAPACITY];
+    private int wordCount;
+
+    public HashedPasswordDictionary() {
+    }
+
+    /**
+     * @param words initial words in the dictionary.
+     */
+    public HashedPasswordDictionary(Collection<String> words) {
+        addAll(words);
+    }
+
+    /**
+     * Adds a word to the dictionary.
+     */
+    public synchronized void add(String word) {
+        notNull(word, "word");
+
+        if (2 * (wordCount + 1) > table.length) {
+            // Fill a larger table before publishing it, so lookups always see a complete table
+            final String[] newTable = new String[2 * table.length];
+            for (String existingWord : table) {
+                if (existingWord != null) insert(newTable, existingWord);
+            }
+            table = newTable;
+        }
+
+        if (insert(table, FoldedHash.fold(word))) wordCount++;
+    }
+
+    /**
+     * Adds words to the dictionary.
+     */
+    public synchronized void addAll(Collection<String> words) {
+        notNull(words, "words");
+        for (String word : words) {
+            add(word);
+        }
+    }
+
+    /**
+     * @return number of different lower case words in the dictionary.
+     */
+    public synchronized int size() {
+        return wordCount;
+    }
+
+    @Override public boolean contains(char[] password) {
+        notNull(password, "password");
+
+        final String[] currentTable = table;
+        final int mask = currentTable.length - 1;
+        int index = (int) FoldedHash.of(password) & mask;
+        while (true) {
+            final String word = currentTable[index];
+            if (word == null) return false;
+            if (equalsFolded(word, password)) return true;
+            index = (index + 1) & mask;
+        }
+    }
+
+    /**
+     * @return true if the word was added, false if it already was in the table.
+     */
+    private static boolean insert(String[] table, String foldedWord) {
+        final int mask = table.length - 1;
+        int index = (int) FoldedHash.of(foldedWord) & mask;
+        while (table[index] != null) {
+            if (table[index].equals(foldedWord)) return false;
+            index = (index + 1) & mask;
+        }
+        table[index] = foldedWord;
+        return true;
+    }
+
+    private static boolean equalsFolded(String foldedWord, char[] password) {
+        if (foldedWord.length() != password.length) return false;
+
+        for (int i = 0; i < password.length; i++) {
+            if (foldedWord.charAt(i) != Character.toLowerCase(password[i])) return false;
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,212 @@
+package org.messageduct.utils;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.flowutils.Check.notNull;
+
+/**
+ * Password dictionary for very large lists, such as passwords from breached sites, kept in a memory mapped file of
+ * sorted 64 bit hashes of the lower case passwords.
+ *
+ * The operating system keeps the used parts of the file in memory without taking up heap space.  As the hashes are
+ * evenly distributed, lookups use interpolation search, which usually finds a hash in two or three reads no matter
+ * how large the file is.  Different passwords with the same hash are very rare, but would both be rejected.
+ *
+ * The file is created from a list of passwords with createDictionaryFile.
+ *
+ * Thread safe.
+ */
+public final class MappedPasswordDictionary implements PasswordDictionary {
+
+    private static final long FILE_MAGIC = 0x4D44505744494331L; // "MDPWDIC1"
+    private static final int HEADER_SIZE = 8;
+    private static final int HASH_SIZE = 8;
+
+    // Large files are mapped in parts, as a single mapping is limited to 2 GB
+    private static final int SEGMENT_SHIFT = 27;
+    private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+    // After this many interpolation steps without finding the hash, fall back to binary search
+    private static final int MAX_INTERPOLATION_STEPS = 8;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private final MappedByteBuffer[] segments;
+    private final long hashCount;
+
+    /**
+     * @param file dictionary file created with createDictionaryFile.
+     * @throws IOException if the file could not be read or is not a dictionary file.
+     */
+    public MappedPasswordDictionary(File file) throws IOException {
+        notNull(file, "file");
+        this.file = file;
+
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = randomAccessFile.getChannel();
+            final long fileSize = channel.size();
+            if (fileSize < HEADER_SIZE || (fileSize - HEADER_SIZE) % HASH_SIZE != 0) {
+                throw new IOException("The file " + file + " is not a password dictionary file");
+            }
+            if (channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE).getLong(0) != FILE_MAGIC) {
+                throw new IOException("The file " + file + " is not a password dictionary file");
+            }
+
+            // The mappings stay valid after the file is closed
+            hashCount = (fileSize - HEADER_SIZE) / HASH_SIZE;
+            segments = new MappedByteBuffer[(int) ((hashCount + SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+            for (int i = 0; i < segments.length; i++) {
+                final long firstHash = (long) i << SEGMENT_SHIFT;
+                final long segmentHashCount = Math.min(hashCount - firstHash, SEGMENT_MASK + 1);
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+                                          HEADER_SIZE + firstHash * HASH_SIZE,
+                                          segmentHashCount * HASH_SIZE);
+            }
+        }
+        finally {
+            randomAccessFile.close();
+        }
+    }
+
+    @Override public boolean contains(char[] password) {
+        notNull(password, "password");
+
+        final long hash = FoldedHash.of(password);
+
+        long low = 0;
+        long high = hashCount - 1;
+        int step = 0;
+        while (low <= high) {
+            final long lowHash = getHash(low);
+            final long highHash = getHash(high);
+            if (hash < lowHash || hash > highHash) return false;
+
+            long index;
+            if (step++ < MAX_INTERPOLATION_STEPS && highHash != lowHash) {
+                // Guess the position from where the hash falls between the hashes at the ends of the range
+                final double fraction = ((double) hash - (double) lowHash) / ((double) highHash - (double) lowHash);
+                index = low + (long) (fraction * (high - low));
+                index = Math.max(low, Math.min(high, index));
+            }
+            else {
+                index = (low + high) >>> 1;
+            }
+
+            final long indexHash = getHash(index);
+            if (indexHash == hash) return true;
+            else if (indexHash < hash) low = index + 1;
+            else high = index - 1;
+        }
+
+        return false;
+    }
+
+    /**
+     * @return number of different password hashes in the dictionary.
+     */
+    public long size() {
+        return hashCount;
+    }
+
+    /**
+     * @return the dictionary file.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Creates a dictionary file from a list of passwords.
+     *
+     * @param passwords passwords to include.
+     * @param dictionaryFile file to create, replaced if it exists.
+     * @return number of different password hashes written.
+     */
+    public static long createDictionaryFile(Iterable<String> passwords, File dictionaryFile) throws IOException {
+        notNull(passwords, "passwords");
+        notNull(dictionaryFile, "dictionaryFile");
+
+        long[] hashes = new long[1024];
+        int count = 0;
+        for (String password : passwords) {
+            if (count == hashes.length) hashes = Arrays.copyOf(hashes, 2 * count);
+            hashes[count++] = FoldedHash.of(password);
+        }
+
+        return writeHashes(hashes, count, dictionaryFile);
+    }
+
+    /**
+     * Creates a dictionary file from a UTF-8 text file with one password per line, as breached password lists
+     * are usually distributed.  Empty lines are skipped.
+     *
+     * @param passwordListFile text file with the passwords.
+     * @param dictionaryFile file to create, replaced if it exists.
+     * @return number of different password hashes written.
+     */
+    public static long createDictionaryFile(File passwordListFile, File dictionaryFile) throws IOException {
+        notNull(passwordListFile, "passwordListFile");
+        notNull(dictionaryFile, "dictionaryFile");
+
+        long[] hashes = new long[1024];
+        int count = 0;
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(passwordListFile), UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) continue;
+
+                if (count == hashes.length) hashes = Arrays.copyOf(hashes, 2 * count);
+                hashes[count++] = FoldedHash.of(line);
+            }
+        }
+        finally {
+            reader.close();
+        }
+
+        return writeHashes(hashes, count, dictionaryFile);
+    }
+
+    private long getHash(long index) {
+        return segments[(int) (index >>> SEGMENT_SHIFT)].getLong((int) (index & SEGMENT_MASK) * HASH_SIZE);
+    }
+
+    private static long writeHashes(long[] hashes, int count, File dictionaryFile) throws IOException {
+        Arrays.sort(hashes, 0, count);
+
+        // Write to a temporary file first, so an existing dictionary is only replaced by a complete one
+        final File tempFile = FileUtils.createTempFileName(dictionaryFile);
+        long writtenCount = 0;
+        final DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile, false)));
+        try {
+            outputStream.writeLong(FILE_MAGIC);
+            for (int i = 0; i < count; i++) {
+                // Skip duplicates
+                if (i > 0 && hashes[i] == hashes[i - 1]) continue;
+
+                outputStream.writeLong(hashes[i]);
+                writtenCount++;
+            }
+        }
+        finally {
+            outputStream.close();
+        }
+
+        FileUtils.replaceAtomically(tempFile, dictionaryFile);
+        return writtenCount;
+    }
+}
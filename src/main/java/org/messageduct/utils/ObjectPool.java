@@ -0,0 +1,96 @@
+package org.messageduct.utils;
+
+import org.flowutils.Check;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread safe pool of reusable objects that are expensive to create or hold a lot of memory.
+ *
+ * Objects are created on demand when the pool is empty, and at most maxIdleObjects are kept around when returned.
+ * Objects that do not fit in the pool are disposed of.
+ */
+public abstract class ObjectPool<T> {
+
+    private final Queue<T> idleObjects = new ConcurrentLinkedQueue<T>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final int maxIdleObjects;
+
+    /**
+     * @param maxIdleObjects maximum number of unused objects to keep in the pool.
+     */
+    protected ObjectPool(int maxIdleObjects) {
+        Check.positiveOrZero(maxIdleObjects, "maxIdleObjects");
+
+        this.maxIdleObjects = maxIdleObjects;
+    }
+
+    /**
+     * @return an object from the pool, or a newly created one if the pool was empty.
+     *         Should be returned with release when no longer needed.
+     */
+    public final T borrow() {
+        final T object = idleObjects.poll();
+        if (object != null) {
+            idleCount.decrementAndGet();
+            return object;
+        }
+        else {
+            return create();
+        }
+    }
+
+    /**
+     * Returns an object to the pool.  The object should not be used by the caller after this.
+     * @param object object obtained earlier with borrow.
+     */
+    public final void release(T object) {
+        if (object == null) return;
+
+        reset(object);
+
+        if (idleCount.incrementAndGet() <= maxIdleObjects) {
+            idleObjects.offer(object);
+        }
+        else {
+            // Pool full, discard object
+            idleCount.decrementAndGet();
+            dispose(object);
+        }
+    }
+
+    /**
+     * @return number of unused objects currently in the pool.
+     */
+    public final int getIdleCount() {
+        return idleCount.get();
+    }
+
+    /**
+     * @return maximum number of unused objects kept in the pool.
+     */
+    public final int getMaxIdleObjects() {
+        return maxIdleObjects;
+    }
+
+    /**
+     * @return a new object for the pool.
+     */
+    protected abstract T create();
+
+    /**
+     * Called when an object is returned to the pool, should clear any state left by the previous user.
+     * Does nothing by default.
+     */
+    protected void reset(T object) {
+    }
+
+    /**
+     * Called when an object is discarded because the pool is full.  Can be used to free native resources.
+     * Does nothing by default.
+     */
+    protected void dispose(T object) {
+    }
+}
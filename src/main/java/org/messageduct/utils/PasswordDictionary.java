@@ -0,0 +1,17 @@
+package org.messageduct.utils;
+
+/**
+ * Set of non-permitted passwords, such as common passwords, dictionary words, or passwords from breached sites.
+ * Passwords are matched without regard to case.
+ *
+ * Lookups should be safe to do from multiple threads.
+ */
+public interface PasswordDictionary {
+
+    /**
+     * @param password password to look up.
+     * @return true if the password is in the dictionary (for probabilistic dictionaries, probably is), ignoring case.
+     */
+    boolean contains(char[] password);
+
+}
@@ -3,15 +3,18 @@ package org.messageduct.utils;
 import org.flowutils.Check;
 
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Password validator with minimum password length requirement, a default dictionary of non-permitted common passwords,
  * check against username as password, and check against password being just one character.
+ *
+ * Additional PasswordDictionary implementations can be added, e.g. a MappedPasswordDictionary or
+ * BloomFilterPasswordDictionary with a large list of passwords from breached sites.
  */
 // TODO: We could add checks for having characters from different groups as well.
 // TODO: We could check that the password has more than N different characters as well
 // TODO: We could maybe do a password strength calculator as well
-// TODO: Could maybe load a dictionary from a file too, but at that point it might be easier to just use a cracking library to test.
 // TODO: Check that the password does not contain the username
 public final class PasswordValidatorImpl implements PasswordValidator {
 
@@ -125,7 +128,10 @@ public final class PasswordValidatorImpl implements PasswordValidator {
             "outlaw", "browns", "billybob", "pickle", "test1", "michele", "antonio", "sucks", "pavilion", "changeme"
     );
 
-    private final List<String> userSpecifiedDictionary = new ArrayList<String>();
+    private static final PasswordDictionary DEFAULT_PASSWORD_DICTIONARY = new HashedPasswordDictionary(DEFAULT_DICTIONARY);
+
+    private final HashedPasswordDictionary userSpecifiedDictionary = new HashedPasswordDictionary();
+    private final List<PasswordDictionary> additionalDictionaries = new CopyOnWriteArrayList<PasswordDictionary>();
     private final int minLength;
     private final int maxLength;
 
@@ -189,7 +195,15 @@ public final class PasswordValidatorImpl implements PasswordValidator {
      * Adds words to the dictionary of non-permitted passwords.
      */
     public void addDictionaryWords(String ... dictionaryWords) {
-        Collections.addAll(userSpecifiedDictionary, dictionaryWords);
+        userSpecifiedDictionary.addAll(Arrays.asList(dictionaryWords));
+    }
+
+    /**
+     * Adds a dictionary of non-permitted passwords, checked in addition to the default dictionary and added words.
+     */
+    public void addDictionary(PasswordDictionary dictionary) {
+        Check.notNull(dictionary, "dictionary");
+        additionalDictionaries.add(dictionary);
     }
 
     @Override public String check(char[] password, String userName) {
@@ -207,19 +221,15 @@ public final class PasswordValidatorImpl implements PasswordValidator {
         if (containsOnlyOneChar(password)) return "The password can not be all the same character.";
 
         // Check against dictionary of known bad passwords / dictionary words
-        if (containedInDictionary(password, userSpecifiedDictionary)) return "The password is not acceptable because it matches a known common password or dictionary word";
-        if (containedInDictionary(password, DEFAULT_DICTIONARY)) return "The password is not acceptable because it matches a known common password or dictionary word";
+        if (userSpecifiedDictionary.contains(password)) return "The password is not acceptable because it matches a known common password or dictionary word";
+        if (DEFAULT_PASSWORD_DICTIONARY.contains(password)) return "The password is not acceptable because it matches a known common password or dictionary word";
+        for (PasswordDictionary dictionary : additionalDictionaries) {
+            if (dictionary.contains(password)) return "The password is not acceptable because it matches a known common password or dictionary word";
+        }
 
         return null;
     }
 
-    private boolean containedInDictionary(char[] password, final List<String> dictionary) {
-        for (String dictionaryWord : dictionary) {
-            if (equalsIgnoreCase(dictionaryWord, password)) return true;
-        }
-        return false;
-    }
-
     private boolean contains(String text, char[] chars) {
         StringBuilder builder = new StringBuilder();
         builder.append(chars);
@@ -0,0 +1,15 @@
+package org.messageduct.utils;
+
+/**
+ * PasswordHasher that can tell when a stored hash was created with outdated settings.
+ */
+public interface RehashingPasswordHasher extends PasswordHasher {
+
+    /**
+     * @param hash a hash that a password was just verified against.
+     * @return true if the hash was created with different settings (e.g. a different work factor) than hashPassword
+     *         currently uses, so the password should be hashed again and the new hash stored.
+     */
+    boolean needsRehash(String hash);
+
+}
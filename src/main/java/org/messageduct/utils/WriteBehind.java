@@ -0,0 +1,163 @@
+package org.messageduct.utils;
+
+import org.flowutils.Check;
+import org.flowutils.LogUtils;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static org.flowutils.Check.notNull;
+
+/**
+ * Writes changes in a background thread, so that the threads making the changes do not have to wait for the write.
+ *
+ * Callers apply their change in memory and then call changed.  The first change after a write schedules the next
+ * write after the maximum staleness delay, and all changes made until the write starts are covered by it.
+ * If a write fails, it is retried after the same delay.
+ *
+ * The write action must write the current state at the time it is run, e.g. a copy of all data.
+ */
+public final class WriteBehind {
+
+    private final GroupCommit.WriteAction writeAction;
+    private final long maxStalenessMilliseconds;
+    private final ScheduledExecutorService writer;
+    private final Object lock = new Object();
+
+    private WriteFuture pendingWrite;
+    private WriteFuture currentWrite;
+    private boolean shutdown;
+
+    private final Runnable writeTask = new Runnable() {
+        @Override public void run() {
+            writePending();
+        }
+    };
+
+    /**
+     * @param writeAction action that writes the current state.  Always called from the same background thread.
+     * @param maxStalenessMilliseconds time to wait after a change before writing it, to collect more changes into the same write.
+     * @param writerThreadName name of the background writer thread.
+     */
+    public WriteBehind(GroupCommit.WriteAction writeAction, long maxStalenessMilliseconds, final String writerThreadName) {
+        notNull(writeAction, "writeAction");
+        Check.positiveOrZero(maxStalenessMilliseconds, "maxStalenessMilliseconds");
+        notNull(writerThreadName, "writerThreadName");
+
+        this.writeAction = writeAction;
+        this.maxStalenessMilliseconds = maxStalenessMilliseconds;
+
+        writer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override public Thread newThread(Runnable runnable) {
+                final Thread thread = new Thread(runnable, writerThreadName);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Notifies that a change was made, and schedules a write if one is not already scheduled.
+     *
+     * @return future that completes when a write covering the change has completed.
+     */
+    public WriteFuture changed() {
+        synchronized (lock) {
+            if (shutdown) throw new IllegalStateException("Changes can not be written after shutdown");
+
+            if (pendingWrite == null) {
+                pendingWrite = new WriteFuture();
+                writer.schedule(writeTask, maxStalenessMilliseconds, TimeUnit.MILLISECONDS);
+            }
+
+            return pendingWrite;
+        }
+    }
+
+    /**
+     * @return future that completes when all changes made so far have been written.
+     *         Already completed if there are no unwritten changes.
+     */
+    public WriteFuture getPendingWrite() {
+        synchronized (lock) {
+            if (pendingWrite != null) return pendingWrite;
+            else if (currentWrite != null) return currentWrite;
+            else return WriteFuture.COMPLETED;
+        }
+    }
+
+    /**
+     * Writes any unwritten changes immediately, and waits until they are written.
+     *
+     * @throws IOException if the write failed.
+     */
+    public void flush() throws IOException {
+        final WriteFuture write;
+        synchronized (lock) {
+            if (pendingWrite != null) {
+                write = pendingWrite;
+                if (!shutdown) writer.execute(writeTask);
+            }
+            else if (currentWrite != null) {
+                // Wait for the write in progress
+                write = currentWrite;
+            }
+            else {
+                return;
+            }
+        }
+
+        write.await();
+    }
+
+    /**
+     * Writes any unwritten changes and stops the writer thread.  No changes are accepted after this.
+     *
+     * @throws IOException if the final write failed.
+     */
+    public void shutdown() throws IOException {
+        try {
+            flush();
+        }
+        finally {
+            synchronized (lock) {
+                shutdown = true;
+            }
+
+            // Cancel any scheduled retry, the data it would write may no longer be valid after shutdown
+            writer.shutdownNow();
+        }
+    }
+
+    private void writePending() {
+        final WriteFuture write;
+        synchronized (lock) {
+            write = pendingWrite;
+            pendingWrite = null;
+            currentWrite = write;
+        }
+
+        // Already written by an earlier scheduled or flushed task
+        if (write == null) return;
+
+        Throwable failure = null;
+        try {
+            writeAction.write();
+        } catch (Throwable e) {
+            failure = e;
+            LogUtils.getLogger().error("Background write failed: " + e.getMessage(), e);
+        }
+
+        synchronized (lock) {
+            currentWrite = null;
+
+            // Retry later, the changes are still unwritten
+            if (failure != null && !shutdown) changed();
+        }
+
+        write.complete(failure);
+    }
+}
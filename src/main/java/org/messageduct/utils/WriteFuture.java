@@ -0,0 +1,143 @@
+package org.messageduct.utils;
+
+import org.flowutils.LogUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import static org.flowutils.Check.notNull;
+
+/**
+ * Result of a background write.  Completes when the write has finished, successfully or not.
+ * Callbacks can be added to be notified without blocking.
+ */
+public final class WriteFuture implements Future<Void> {
+
+    /**
+     * Called when a write has completed.
+     */
+    public interface WriteCallback {
+        /**
+         * @param failure the reason the write failed, or null if it succeeded.
+         */
+        void writeCompleted(Throwable failure);
+    }
+
+    /**
+     * An already successfully completed write.
+     */
+    public static final WriteFuture COMPLETED = new WriteFuture();
+    static {
+        COMPLETED.complete(null);
+    }
+
+    private final CountDownLatch doneLatch = new CountDownLatch(1);
+    private final List<WriteCallback> callbacks = new ArrayList<WriteCallback>(2);
+    private volatile Throwable failure;
+    private boolean done;
+
+    WriteFuture() {
+    }
+
+    /**
+     * Adds a callback to call when the write completes.  Called immediately in the calling thread if already complete,
+     * otherwise in the thread that completes the write.
+     */
+    public void addCallback(WriteCallback callback) {
+        notNull(callback, "callback");
+
+        synchronized (callbacks) {
+            if (!done) {
+                callbacks.add(callback);
+                return;
+            }
+        }
+
+        callback.writeCompleted(failure);
+    }
+
+    /**
+     * Waits for the write to complete.
+     *
+     * @throws IOException if the write failed.
+     */
+    public void await() throws IOException {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                doneLatch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+
+        if (failure != null) throw new IOException("Write failed: " + failure.getMessage(), failure);
+    }
+
+    /**
+     * @return the reason the write failed, or null if it succeeded or has not completed yet.
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * Marks the write as completed and notifies callbacks.
+     *
+     * @param failure the reason the write failed, or null if it succeeded.
+     */
+    void complete(Throwable failure) {
+        final List<WriteCallback> callbacksToNotify;
+        synchronized (callbacks) {
+            if (done) throw new IllegalStateException("Write already completed");
+
+            this.failure = failure;
+            done = true;
+            doneLatch.countDown();
+
+            callbacksToNotify = new ArrayList<WriteCallback>(callbacks);
+            callbacks.clear();
+        }
+
+        for (WriteCallback callback : callbacksToNotify) {
+            try {
+                callback.writeCompleted(failure);
+            } catch (RuntimeException e) {
+                LogUtils.getLogger().error("Exception in write completion callback: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    @Override public boolean cancel(boolean mayInterruptIfRunning) {
+        // Writes can not be cancelled
+        return false;
+    }
+
+    @Override public boolean isCancelled() {
+        return false;
+    }
+
+    @Override public boolean isDone() {
+        return doneLatch.getCount() == 0;
+    }
+
+    @Override public Void get() throws InterruptedException, ExecutionException {
+        doneLatch.await();
+        if (failure != null) throw new ExecutionException(failure);
+        return null;
+    }
+
+    @Override public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!doneLatch.await(timeout, unit)) throw new TimeoutException("Write did not complete in time");
+        if (failure != null) throw new ExecutionException(failure);
+        return null;
+    }
+}
@@ -0,0 +1,147 @@
+package org.messageduct.utils.banlist;
+
+/**
+ * Immutable binary trie of address prefixes, keyed on the raw address bits, with a ban end time for each prefix.
+ *
+ * A lookup follows at most one node per address bit, regardless of the number of prefixes, and does not allocate
+ * anything.
+ *
+ * Changes return a new trie that shares all nodes with the old one except those on the path to the changed prefix,
+ * so a change takes at most one node copy per prefix bit, and a trie can be read by any number of threads without
+ * locking.
+ */
+final class AddressTrie {
+
+    /**
+     * Ban end time for nodes that do not end a banned prefix.
+     */
+    static final long NOT_BANNED = -1;
+
+    /**
+     * Ban end time for permanent bans.
+     */
+    static final long PERMANENT = 0;
+
+    /**
+     * Trie without any prefixes.
+     */
+    static final AddressTrie EMPTY = new AddressTrie(null);
+
+    // Null if the trie has no prefixes
+    private final Node root;
+
+    private AddressTrie(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * @param address address of the prefix, only the first prefixLength bits are used.
+     * @param prefixLength number of significant bits in the address.
+     * @param banEndTime ban end time for the prefix, in epoch milliseconds, or PERMANENT.
+     * @return trie with the prefix added, or its ban end time replaced if it was already in this trie.
+     */
+    AddressTrie with(byte[] address, int prefixLength, long banEndTime) {
+        return new AddressTrie(with(root, address, 0, prefixLength, banEndTime));
+    }
+
+    /**
+     * @param address address of the prefix, only the first prefixLength bits are used.
+     * @param prefixLength number of significant bits in the address.
+     * @return trie without the prefix.
+     */
+    AddressTrie without(byte[] address, int prefixLength) {
+        final Node newRoot = without(root, address, 0, prefixLength);
+        return newRoot == null ? EMPTY : new AddressTrie(newRoot);
+    }
+
+    /**
+     * @return true if the IPv4 address, given as a 32 bit number, matches a prefix whose ban has not ended.
+     */
+    boolean isBanned(int address, long currentTime) {
+        Node node = root;
+        for (int bitIndex = 0; node != null; bitIndex++) {
+            if (isActive(node.banEndTime, currentTime)) return true;
+            if (bitIndex == 32) return false;
+
+            node = ((address >>> (31 - bitIndex)) & 1) == 0 ? node.zero : node.one;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the address matches a prefix whose ban has not ended.
+     */
+    boolean isBanned(byte[] address, long currentTime) {
+        final int bitCount = address.length * 8;
+        Node node = root;
+        for (int bitIndex = 0; node != null; bitIndex++) {
+            if (isActive(node.banEndTime, currentTime)) return true;
+            if (bitIndex == bitCount) return false;
+
+            node = bit(address, bitIndex) == 0 ? node.zero : node.one;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the ban with the first end time lasts at least as long as the ban with the second end time.
+     */
+    static boolean lastsAtLeastAsLong(long banEndTime, long otherBanEndTime) {
+        return banEndTime == PERMANENT || (otherBanEndTime != PERMANENT && banEndTime >= otherBanEndTime);
+    }
+
+    private static Node with(Node node, byte[] address, int bitIndex, int prefixLength, long banEndTime) {
+        Node zero = node != null ? node.zero : null;
+        Node one = node != null ? node.one : null;
+
+        if (bitIndex == prefixLength) return new Node(zero, one, banEndTime);
+
+        if (bit(address, bitIndex) == 0) zero = with(zero, address, bitIndex + 1, prefixLength, banEndTime);
+        else one = with(one, address, bitIndex + 1, prefixLength, banEndTime);
+
+        return new Node(zero, one, node != null ? node.banEndTime : NOT_BANNED);
+    }
+
+    /**
+     * @return the node with the prefix removed below it, or null if nothing is left under the node.
+     */
+    private static Node without(Node node, byte[] address, int bitIndex, int prefixLength) {
+        if (node == null) return null;
+
+        Node zero = node.zero;
+        Node one = node.one;
+        long banEndTime = node.banEndTime;
+
+        if (bitIndex == prefixLength) banEndTime = NOT_BANNED;
+        else if (bit(address, bitIndex) == 0) zero = without(zero, address, bitIndex + 1, prefixLength);
+        else one = without(one, address, bitIndex + 1, prefixLength);
+
+        // Unchanged if the prefix was not in the trie
+        if (zero == node.zero && one == node.one && banEndTime == node.banEndTime) return node;
+
+        if (zero == null && one == null && banEndTime == NOT_BANNED) return null;
+        return new Node(zero, one, banEndTime);
+    }
+
+    private static boolean isActive(long banEndTime, long currentTime) {
+        return banEndTime == PERMANENT || banEndTime > currentTime;
+    }
+
+    private static int bit(byte[] address, int bitIndex) {
+        return (address[bitIndex >>> 3] >>> (7 - (bitIndex & 7))) & 1;
+    }
+
+    private static final class Node {
+        private final Node zero;
+        private final Node one;
+
+        // Ban end time for the prefix ending at this node
+        private final long banEndTime;
+
+        private Node(Node zero, Node one, long banEndTime) {
+            this.zero = zero;
+            this.one = one;
+            this.banEndTime = banEndTime;
+        }
+    }
+}
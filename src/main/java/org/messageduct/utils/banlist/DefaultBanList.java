@@ -1,34 +1,82 @@
 package org.messageduct.utils.banlist;
 
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.Timer;
+import io.netty.util.TimerTask;
 import org.flowutils.LogUtils;
 import org.flowutils.serializer.KryoSerializer;
 import org.messageduct.utils.storage.FileStorage;
+import org.messageduct.utils.storage.Journal;
 import org.messageduct.utils.storage.Storage;
 
 import java.io.File;
+import java.io.IOException;
+import java.net.Inet4Address;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import static org.flowutils.Check.notNull;
 
 /**
- * Simple banlist implementation that allows banning IPs for some duration or permanently, and unbanning them.
+ * Simple banlist implementation that allows banning IPs or IP ranges for some duration or permanently, and unbanning them.
  * Thread safe.
- * Periodically saves banned IPs to the supplied storage or banlist file.
+ * Banned ranges are kept in binary tries of address prefixes, one for IPv4 and one for IPv6, so checking an address
+ * takes at most one step per address bit regardless of the number of banned ranges, and does not need any locking.
+ * Temporary bans are lifted by a hashed wheel timer when they end, so checking an address never changes the banlist.
+ *
+ * If a journal file is used, each ban change is appended to the journal and synced to disk within a second, and the
+ * whole banlist is only saved to the storage when the journal has grown large.  Without a journal the whole banlist
+ * is periodically saved to the supplied storage or banlist file when it has changed.
  */
-public final class DefaultBanList implements BanList {
+public final class DefaultBanList implements RangeBanList {
 
     private static final long MIN_SAVE_INTERVAL_MILLISECONDS = 59*1000L;
+    private static final long JOURNAL_SYNC_INTERVAL_MILLISECONDS = 1000L;
+    private static final int MIN_JOURNAL_RECORDS_BEFORE_SAVE = 1000;
+    private static final int MAX_JOURNAL_RECORD_SIZE = 64;
+    private static final String JOURNAL_SUFFIX = ".journal";
+    private static final String OLD_JOURNAL_SUFFIX = ".old";
+
+    private static final byte JOURNAL_BAN = 1;
+    private static final byte JOURNAL_UNBAN = 2;
 
     private final ConcurrentMap<InetAddress, Long> bannedIPs = new ConcurrentHashMap<InetAddress, Long>();
     private final Storage storage;
     private final AtomicBoolean banListUpdated = new AtomicBoolean(false);
 
+    // Banned ranges and their ban end times.  The tries are updated along with this.
+    private final Map<AddressRange, Long> bannedRanges = new HashMap<AddressRange, Long>();
+    private volatile AddressTrie bannedIpv4Ranges = AddressTrie.EMPTY;
+    private volatile AddressTrie bannedIpv6Ranges = AddressTrie.EMPTY;
+
+    // Held when changing bans, so that the journal records are in the same order as the changes
+    private final Object changeLock = new Object();
+
+    private final Journal journal;
+    private final File oldJournalFile;
+    private final AtomicBoolean journalUpdated = new AtomicBoolean(false);
+    private final AtomicBoolean journalFailed = new AtomicBoolean(false);
+
+    private final Timer expiryTimer = new HashedWheelTimer(new ThreadFactory() {
+        @Override public Thread newThread(Runnable runnable) {
+            final Thread thread = new Thread(runnable, "Ban expiry timer");
+            thread.setDaemon(true);
+            return thread;
+        }
+    }, 1, TimeUnit.SECONDS, 512);
+
     /**
+     * Uses a journal file next to the banlist file.
+     *
      * @param banlistFile banlist file to load and save banlist to.
      */
     public DefaultBanList(File banlistFile) {
@@ -43,7 +91,8 @@ public final class DefaultBanList implements BanList {
                                      HashMap.SimpleImmutableEntry.class
                              ),
                              null),
-             null);
+             null,
+             new File(banlistFile.getPath() + JOURNAL_SUFFIX));
     }
 
     /**
@@ -58,60 +107,85 @@ public final class DefaultBanList implements BanList {
      * @param banDurations initial bans not in storage.
      */
     public DefaultBanList(Storage storage, Map<InetAddress, Long> banDurations) {
+        this(storage, banDurations, null);
+    }
+
+    /**
+     * @param storage storage to load and save banlist to.
+     * @param banDurations initial bans not in storage.
+     * @param journalFile file to append ban changes to, or null to periodically save the whole banlist to the storage instead.
+     */
+    public DefaultBanList(Storage storage, Map<InetAddress, Long> banDurations, File journalFile) {
         notNull(storage, "storage");
 
         this.storage = storage;
+        this.journal = journalFile != null ? new Journal(journalFile, MAX_JOURNAL_RECORD_SIZE) : null;
+        this.oldJournalFile = journalFile != null ? new File(journalFile.getPath() + OLD_JOURNAL_SUFFIX) : null;
 
         // Load stored bans
-        reloadFromStorage();
+        final int journalRecordCount = loadBans(true);
+
+        if (journal != null) {
+            try {
+                journal.open(journalRecordCount);
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not open the banlist journal " + journalFile + ": " + e.getMessage(), e);
+            }
+        }
 
         // Init bans
         if (banDurations != null) {
-            bannedIPs.putAll(banDurations);
-            banListUpdated.set(true);
+            synchronized (changeLock) {
+                for (Map.Entry<InetAddress, Long> entry : banDurations.entrySet()) {
+                    setIpBan(entry.getKey(), entry.getValue());
+                }
+            }
 
             // Save the current bans to storage.
-            saveToStorageIfNeeded();
+            if (journal == null) saveToStorageIfNeeded();
         }
 
         // Start a thread to save the banlist at some interval if it has been updated
-        if (storage != null) {
-            Thread storageUpdateThread = new Thread(new Runnable() {
-                @Override public void run() {
-                    while(true) {
-                        // Delay for some time
-                        try {
-                            Thread.sleep(MIN_SAVE_INTERVAL_MILLISECONDS);
-                        } catch (InterruptedException e) {
-                            // Ignore
-                        }
+        Thread storageUpdateThread = new Thread(new Runnable() {
+            @Override public void run() {
+                while(true) {
+                    // Delay for some time
+                    try {
+                        Thread.sleep(journal != null ? JOURNAL_SYNC_INTERVAL_MILLISECONDS : MIN_SAVE_INTERVAL_MILLISECONDS);
+                    } catch (InterruptedException e) {
+                        // Ignore
+                    }
+
+                    if (journal != null) {
+                        syncJournalIfNeeded();
 
+                        // Save the whole banlist when the journal has grown large, so that it can be started over
+                        if (journalFailed.getAndSet(false) ||
+                            journal.getRecordCount() > Math.max(MIN_JOURNAL_RECORDS_BEFORE_SAVE, 2 * getBanCount())) {
+                            banListUpdated.set(true);
+                            saveToStorageIfNeeded();
+                        }
+                    }
+                    else {
                         // Save banlist if needed
                         saveToStorageIfNeeded();
                     }
                 }
-            });
-            storageUpdateThread.setDaemon(true);
-            storageUpdateThread.start();
-        }
-
+            }
+        });
+        storageUpdateThread.setDaemon(true);
+        storageUpdateThread.start();
     }
 
     @Override public boolean isBanned(InetAddress ipAddress) {
+        // Ended bans may remain until the expiry timer removes them
         final Long banEndTime = bannedIPs.get(ipAddress);
-        if (banEndTime == null) return false;
-        else {
-            if (banEndTime > 0 && banEndTime <= System.currentTimeMillis()) {
-                // The ban has ended, lift it
-                bannedIPs.remove(ipAddress);
-                banListUpdated.set(true);
-                return false;
-            }
-            else {
-                // IP is still banned.
-                return true;
-            }
+        if (banEndTime != null && (banEndTime == AddressTrie.PERMANENT || banEndTime > System.currentTimeMillis())) {
+            // IP is still banned.
+            return true;
         }
+
+        return isInBannedRange(ipAddress);
     }
 
     @Override public void banIp(InetAddress ipAddress) {
@@ -119,67 +193,379 @@ public final class DefaultBanList implements BanList {
     }
 
     @Override public void banIp(InetAddress ipAddress, long banDurationMilliseconds) {
-        if (banDurationMilliseconds == 0) {
-            // Permanently banned
-            bannedIPs.put(ipAddress, 0L);
-            banListUpdated.set(true);
-        }
-        else {
-            // Banned for some time - but if it was earlier banned for a longer time, don't update
-            long banEndTime = System.currentTimeMillis() + banDurationMilliseconds;
+        notNull(ipAddress, "ipAddress");
+        final long banEndTime = banDurationMilliseconds == 0 ? AddressTrie.PERMANENT : System.currentTimeMillis() + banDurationMilliseconds;
+
+        synchronized (changeLock) {
+            // If it was earlier banned for a longer time, don't update
             final Long oldBanEndTime = bannedIPs.get(ipAddress);
-            if (oldBanEndTime == null || oldBanEndTime < banEndTime) {
-                // Only replace ban if it is longer than the old ban
-                bannedIPs.put(ipAddress, banEndTime);
-                banListUpdated.set(true);
+            if (oldBanEndTime == null || !AddressTrie.lastsAtLeastAsLong(oldBanEndTime, banEndTime)) {
+                setIpBan(ipAddress, banEndTime);
             }
         }
 
-        saveToStorageIfNeeded();
+        if (journal == null) saveToStorageIfNeeded();
     }
 
     @Override public void unBanIp(InetAddress ipAddress) {
-        bannedIPs.remove(ipAddress);
+        synchronized (changeLock) {
+            if (bannedIPs.remove(ipAddress) != null) {
+                banListUpdated.set(true);
+                appendToJournal(JOURNAL_UNBAN, ipAddress.getAddress(), 0);
+            }
+        }
+    }
+
+    @Override public void banRange(InetAddress address, int prefixLength) {
+        banRange(address, prefixLength, 0);
+    }
+
+    @Override public void banRange(InetAddress address, int prefixLength, long banDurationMilliseconds) {
+        final AddressRange range = new AddressRange(address, prefixLength);
+        final long banEndTime = banDurationMilliseconds == 0 ? AddressTrie.PERMANENT : System.currentTimeMillis() + banDurationMilliseconds;
+
+        synchronized (changeLock) {
+            // Only replace ban if it is longer than the old ban
+            final Long oldBanEndTime = bannedRanges.get(range);
+            if (oldBanEndTime == null || !AddressTrie.lastsAtLeastAsLong(oldBanEndTime, banEndTime)) {
+                setRangeBan(range, banEndTime);
+                addToRangeTrie(range, banEndTime);
+            }
+        }
+
+        if (journal == null) saveToStorageIfNeeded();
+    }
+
+    @Override public void unBanRange(InetAddress address, int prefixLength) {
+        final AddressRange range = new AddressRange(address, prefixLength);
+
+        synchronized (changeLock) {
+            if (bannedRanges.remove(range) != null) {
+                removeFromRangeTrie(range);
+                banListUpdated.set(true);
+                appendToJournal(JOURNAL_UNBAN, range.toKey(), 0);
+            }
+        }
     }
 
     /**
-     * Reloads the banlist from the storage specified in the constructor.
+     * Reloads the banlist from the storage specified in the constructor, and the journal if one is used.
      * Existing bans are replaced with the ones currently in storage.
      */
     public void reloadFromStorage() {
-        // Clear old bans
-        bannedIPs.clear();
+        loadBans(false);
+    }
 
-        try {
-            // Load bans
-            Map<byte[], Long> bans = storage.load();
+    /**
+     * @param truncateJournal true if the journal is not yet open, and any invalid data at its end should be removed.
+     * @return number of records in the journal.
+     */
+    private int loadBans(boolean truncateJournal) {
+        int journalRecordCount = 0;
+        synchronized (changeLock) {
+            // Clear old bans
+            bannedIPs.clear();
+            bannedRanges.clear();
+
+            try {
+                // Load bans
+                Map<byte[], Long> bans = storage.load();
 
-            // Convert bans from byte representation to InetAddress objects and store them in memory
-            if (bans != null) {
-                for (Map.Entry<byte[], Long> entry : bans.entrySet()) {
-                    bannedIPs.put(InetAddress.getByAddress(entry.getKey()), entry.getValue());
+                // Convert bans from byte representation to InetAddress objects and store them in memory
+                if (bans != null) {
+                    for (Map.Entry<byte[], Long> entry : bans.entrySet()) {
+                        loadBan(entry.getKey(), entry.getValue());
+                    }
                 }
+
+                // Apply the changes made after the banlist was saved.  The journal records set the resulting state,
+                // so replaying changes that were already saved does no harm.
+                if (journal != null) {
+                    final Journal.RecordHandler recordHandler = new Journal.RecordHandler() {
+                        @Override public void handleRecord(byte[] data) throws IOException {
+                            replayJournalRecord(data);
+                        }
+                    };
+                    Journal.replay(oldJournalFile, MAX_JOURNAL_RECORD_SIZE, recordHandler, false);
+                    journalRecordCount = Journal.replay(journal.getFile(), MAX_JOURNAL_RECORD_SIZE, recordHandler, truncateJournal);
+                }
+            } catch (Exception e) {
+                LogUtils.getLogger().error("Could not load banlist: " + e.getMessage(), e);
             }
-        } catch (Exception e) {
-            LogUtils.getLogger().error("Could not load banlist: " + e.getMessage(), e);
+
+            rebuildRangeTries();
         }
+        return journalRecordCount;
     }
 
     /**
      * Saves the banlist to the storage specified in the constructor, if the banlist has been changed.
+     * If a journal is used, the journal is started over.
      */
     public void saveToStorageIfNeeded() {
         if (banListUpdated.getAndSet(false)) {
             Map<byte[], Long> bans = new HashMap<byte[], Long>();
-            for (Map.Entry<InetAddress, Long> entry : bannedIPs.entrySet()) {
-                bans.put(entry.getKey().getAddress(), entry.getValue());
+            boolean journalRotated = false;
+            synchronized (changeLock) {
+                for (Map.Entry<InetAddress, Long> entry : bannedIPs.entrySet()) {
+                    bans.put(entry.getKey().getAddress(), entry.getValue());
+                }
+                for (Map.Entry<AddressRange, Long> entry : bannedRanges.entrySet()) {
+                    bans.put(entry.getKey().toKey(), entry.getValue());
+                }
+
+                // Move the changes included in this save aside, so they can be deleted once the save is done.
+                // If an earlier save failed, its journal is still there, and is also covered by this save.
+                if (journal != null && !oldJournalFile.exists()) {
+                    try {
+                        journal.rotate(oldJournalFile);
+                        journalRotated = true;
+                    } catch (IOException e) {
+                        LogUtils.getLogger().error("Could not rotate banlist journal: " + e.getMessage(), e);
+                    }
+                }
             }
 
             try {
                 storage.save(bans);
+
+                if (journal != null && (journalRotated || oldJournalFile.exists()) && !oldJournalFile.delete()) {
+                    LogUtils.getLogger().error("Could not delete old banlist journal " + oldJournalFile);
+                }
             } catch (Exception e) {
                 LogUtils.getLogger().error("Could not save banlist: " + e.getMessage(), e);
             }
         }
     }
+
+    /**
+     * @return number of banned IPs and IP ranges, including ended bans that have not yet been removed.
+     */
+    public int getBanCount() {
+        synchronized (changeLock) {
+            return bannedIPs.size() + bannedRanges.size();
+        }
+    }
+
+    /**
+     * Should be called while holding the changeLock.
+     */
+    private void setIpBan(final InetAddress ipAddress, final long banEndTime) {
+        bannedIPs.put(ipAddress, banEndTime);
+        banListUpdated.set(true);
+        appendToJournal(JOURNAL_BAN, ipAddress.getAddress(), banEndTime);
+        scheduleExpiry(ipAddress, null, banEndTime);
+    }
+
+    /**
+     * Should be called while holding the changeLock.  Does not update the range tries.
+     */
+    private void setRangeBan(final AddressRange range, final long banEndTime) {
+        bannedRanges.put(range, banEndTime);
+        banListUpdated.set(true);
+        appendToJournal(JOURNAL_BAN, range.toKey(), banEndTime);
+        scheduleExpiry(null, range, banEndTime);
+    }
+
+    /**
+     * Should be called while holding the changeLock.
+     */
+    private void loadBan(byte[] key, long banEndTime) throws IOException {
+        if (AddressRange.isRangeKey(key)) {
+            final AddressRange range = AddressRange.fromKey(key);
+            bannedRanges.put(range, banEndTime);
+            scheduleExpiry(null, range, banEndTime);
+        }
+        else {
+            final InetAddress ipAddress = InetAddress.getByAddress(key);
+            bannedIPs.put(ipAddress, banEndTime);
+            scheduleExpiry(ipAddress, null, banEndTime);
+        }
+    }
+
+    /**
+     * Should be called while holding the changeLock.
+     */
+    private void replayJournalRecord(byte[] data) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(data);
+        final byte type = buffer.get();
+        final byte[] key = new byte[buffer.get() & 0xFF];
+        buffer.get(key);
+        final long banEndTime = buffer.getLong();
+
+        if (type == JOURNAL_BAN) {
+            loadBan(key, banEndTime);
+        }
+        else if (type == JOURNAL_UNBAN) {
+            if (AddressRange.isRangeKey(key)) bannedRanges.remove(AddressRange.fromKey(key));
+            else bannedIPs.remove(InetAddress.getByAddress(key));
+        }
+        else {
+            throw new IOException("Unknown banlist journal record type " + type);
+        }
+    }
+
+    /**
+     * Should be called while holding the changeLock.
+     */
+    private void appendToJournal(byte type, byte[] key, long banEndTime) {
+        if (journal == null) return;
+
+        final ByteBuffer record = ByteBuffer.allocate(2 + key.length + 8);
+        record.put(type);
+        record.put((byte) key.length);
+        record.put(key);
+        record.putLong(banEndTime);
+
+        try {
+            // Synced by the storage update thread, so that bursts of bans do not each wait for the disk
+            journal.append(record.array(), false);
+            journalUpdated.set(true);
+        } catch (IOException e) {
+            LogUtils.getLogger().error("Could not append to banlist journal: " + e.getMessage(), e);
+            journalFailed.set(true);
+        }
+    }
+
+    private void syncJournalIfNeeded() {
+        if (journalUpdated.getAndSet(false)) {
+            try {
+                journal.sync();
+            } catch (Exception e) {
+                LogUtils.getLogger().error("Could not sync banlist journal: " + e.getMessage(), e);
+                journalFailed.set(true);
+            }
+        }
+    }
+
+    /**
+     * Schedules the removal of a temporary ban of an IP or range when it ends, unless it has been changed by then.
+     */
+    private void scheduleExpiry(final InetAddress ipAddress, final AddressRange range, final long banEndTime) {
+        if (banEndTime == AddressTrie.PERMANENT) return;
+
+        expiryTimer.newTimeout(new TimerTask() {
+            @Override public void run(Timeout timeout) {
+                synchronized (changeLock) {
+                    if (ipAddress != null) {
+                        if (bannedIPs.remove(ipAddress, banEndTime)) banListUpdated.set(true);
+                    }
+                    else if (Long.valueOf(banEndTime).equals(bannedRanges.get(range))) {
+                        bannedRanges.remove(range);
+                        removeFromRangeTrie(range);
+                        banListUpdated.set(true);
+                    }
+                }
+            }
+        }, Math.max(0, banEndTime - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+    }
+
+    private boolean isInBannedRange(InetAddress ipAddress) {
+        if (ipAddress instanceof Inet4Address) {
+            final AddressTrie ranges = bannedIpv4Ranges;
+            // The hash code of an IPv4 address is the address itself, so it can be read without copying the address bytes
+            return ranges != AddressTrie.EMPTY && ranges.isBanned(ipAddress.hashCode(), System.currentTimeMillis());
+        }
+        else {
+            final AddressTrie ranges = bannedIpv6Ranges;
+            return ranges != AddressTrie.EMPTY && ranges.isBanned(ipAddress.getAddress(), System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Should be called while holding the changeLock.
+     */
+    private void addToRangeTrie(AddressRange range, long banEndTime) {
+        if (range.isIpv6()) bannedIpv6Ranges = bannedIpv6Ranges.with(range.address, range.prefixLength, banEndTime);
+        else bannedIpv4Ranges = bannedIpv4Ranges.with(range.address, range.prefixLength, banEndTime);
+    }
+
+    /**
+     * Should be called while holding the changeLock.
+     */
+    private void removeFromRangeTrie(AddressRange range) {
+        if (range.isIpv6()) bannedIpv6Ranges = bannedIpv6Ranges.without(range.address, range.prefixLength);
+        else bannedIpv4Ranges = bannedIpv4Ranges.without(range.address, range.prefixLength);
+    }
+
+    /**
+     * Builds the range tries from all banned ranges, after loading them.
+     * Should be called while holding the changeLock.
+     */
+    private void rebuildRangeTries() {
+        AddressTrie ipv4Ranges = AddressTrie.EMPTY;
+        AddressTrie ipv6Ranges = AddressTrie.EMPTY;
+        for (Map.Entry<AddressRange, Long> entry : bannedRanges.entrySet()) {
+            final AddressRange range = entry.getKey();
+            if (range.isIpv6()) ipv6Ranges = ipv6Ranges.with(range.address, range.prefixLength, entry.getValue());
+            else ipv4Ranges = ipv4Ranges.with(range.address, range.prefixLength, entry.getValue());
+        }
+        bannedIpv4Ranges = ipv4Ranges;
+        bannedIpv6Ranges = ipv6Ranges;
+    }
+
+    /**
+     * Address prefix of a banned range, with the bits after the prefix cleared.
+     */
+    private static final class AddressRange {
+        private final byte[] address;
+        private final int prefixLength;
+
+        private AddressRange(InetAddress address, int prefixLength) {
+            this(getAddressBytes(address), prefixLength);
+        }
+
+        private AddressRange(byte[] address, int prefixLength) {
+            final int bitCount = address.length * 8;
+            if (prefixLength < 0 || prefixLength > bitCount) {
+                throw new IllegalArgumentException("The prefixLength should be between 0 and " + bitCount + ", but it was " + prefixLength);
+            }
+
+            // Clear the bits after the prefix, so that any address in the range identifies the same range
+            this.address = new byte[address.length];
+            for (int i = 0; i < address.length; i++) {
+                final int bitsInByte = Math.max(0, Math.min(8, prefixLength - i * 8));
+                this.address[i] = (byte) (address[i] & (0xFF00 >>> bitsInByte));
+            }
+            this.prefixLength = prefixLength;
+        }
+
+        private static byte[] getAddressBytes(InetAddress address) {
+            notNull(address, "address");
+            return address.getAddress();
+        }
+
+        private boolean isIpv6() {
+            return address.length == 16;
+        }
+
+        /**
+         * @return the address followed by the prefix length.  Stored together with the single IPs, which have no prefix length.
+         */
+        private byte[] toKey() {
+            final byte[] key = Arrays.copyOf(address, address.length + 1);
+            key[address.length] = (byte) prefixLength;
+            return key;
+        }
+
+        private static boolean isRangeKey(byte[] key) {
+            return key.length == 5 || key.length == 17;
+        }
+
+        private static AddressRange fromKey(byte[] key) {
+            return new AddressRange(Arrays.copyOf(key, key.length - 1), key[key.length - 1] & 0xFF);
+        }
+
+        @Override public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            final AddressRange that = (AddressRange) o;
+            return prefixLength == that.prefixLength && Arrays.equals(address, that.address);
+        }
+
+        @Override public int hashCode() {
+            return 31 * Arrays.hashCode(address) + prefixLength;
+        }
+    }
 }
@@ -0,0 +1,397 @@
+package org.messageduct.utils.banlist;
+
+import org.flowutils.Check;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.flowutils.Check.notNull;
+
+/**
+ * Counts offences (protocol errors, failed logins, and similar) by IP address, and temporarily bans IPs that commit
+ * too many offences within a sliding time window.  IPs that get banned again soon after an earlier ban get
+ * increasingly long bans.  Offences by IPs that are already banned are not counted, so each ban is only escalated once.
+ *
+ * IPv6 addresses are tracked and banned by their /64 prefix, as a single client usually has a whole /64 network
+ * to pick addresses from.  Banning the /64 requires a RangeBanList, with other banlists only the offending address
+ * is banned.
+ *
+ * The counts are kept in count-min sketches, so memory use is fixed regardless of the number of IPs.  The sketches
+ * are sized from the expected number of offending IPs, and hash with a random seed, so that an attacker can not pick
+ * IPs that share the sketch cells of another IP.  A sketch may still count an IP as having more offences than it
+ * did, so before an IP is banned its offences are confirmed from exact counts, kept for the most recent offenders.
+ *
+ * Thread safe.
+ */
+public final class OffenceTracker {
+
+    /**
+     * Types of offences, with the weight they are counted with.
+     */
+    public enum Offence {
+        /**
+         * The client broke the communication protocol, e.g. sent an invalid handshake.
+         */
+        PROTOCOL_ERROR(5),
+
+        /**
+         * The client sent a message that requires logging in before logging in.
+         */
+        UNAUTHORIZED_MESSAGE(5),
+
+        /**
+         * The client tried to log in with a wrong password or unknown username.
+         */
+        FAILED_LOGIN(1);
+
+        private final int weight;
+
+        Offence(int weight) {
+            this.weight = weight;
+        }
+
+        /**
+         * @return how much the offence counts towards the offence threshold.
+         */
+        public int getWeight() {
+            return weight;
+        }
+    }
+
+    public static final int DEFAULT_OFFENCE_THRESHOLD = 20;
+    public static final long DEFAULT_WINDOW_MILLISECONDS = 60 * 1000L;
+    public static final long DEFAULT_BAN_DURATION_MILLISECONDS = 60 * 1000L;
+    public static final long DEFAULT_MAX_BAN_DURATION_MILLISECONDS = 24 * 60 * 60 * 1000L;
+    public static final int DEFAULT_EXPECTED_OFFENDER_COUNT = 4096;
+
+    // Bans within this time of an earlier ban are longer
+    private static final long BAN_MEMORY_MILLISECONDS = 24 * 60 * 60 * 1000L;
+    private static final int MAX_DOUBLINGS = 30;
+
+    private static final int IPV6_NETWORK_PREFIX_LENGTH = 64;
+
+    private static final int SKETCH_DEPTH = 4;
+    private static final int MIN_SKETCH_WIDTH = 256;
+    private static final int MAX_SKETCH_WIDTH = 1 << 24;
+
+    // Sketch cells per expected offender, keeps the overestimate small while many IPs are offending
+    private static final int SKETCH_CELLS_PER_OFFENDER = 4;
+
+    private static final SecureRandom SEED_RANDOM = new SecureRandom();
+
+    private final BanList banList;
+    private final int offenceThreshold;
+    private final long banDurationMilliseconds;
+    private final long maxBanDurationMilliseconds;
+
+    private final SlidingCountMinSketch offenceCounts;
+    private final SlidingCountMinSketch banCounts;
+    private final RecentOffenders recentOffenders;
+
+    /**
+     * Creates an offence tracker with the default thresholds.
+     *
+     * @param banList banlist to ban offending IPs in.
+     */
+    public OffenceTracker(BanList banList) {
+        this(banList,
+             DEFAULT_OFFENCE_THRESHOLD,
+             DEFAULT_WINDOW_MILLISECONDS,
+             DEFAULT_BAN_DURATION_MILLISECONDS,
+             DEFAULT_MAX_BAN_DURATION_MILLISECONDS);
+    }
+
+    /**
+     * Creates an offence tracker sized for the default number of offending IPs.
+     *
+     * @param banList banlist to ban offending IPs in.
+     * @param offenceThreshold total weight of offences within the time window that results in a ban.
+     * @param windowMilliseconds length of the sliding time window that offences are counted in.
+     * @param banDurationMilliseconds duration of the first ban of an IP.  Each ban within a day of an earlier one is twice as long.
+     * @param maxBanDurationMilliseconds maximum duration of a ban.
+     */
+    public OffenceTracker(BanList banList,
+                          int offenceThreshold,
+                          long windowMilliseconds,
+                          long banDurationMilliseconds,
+                          long maxBanDurationMilliseconds) {
+        this(banList,
+             offenceThreshold,
+             windowMilliseconds,
+             banDurationMilliseconds,
+             maxBanDurationMilliseconds,
+             DEFAULT_EXPECTED_OFFENDER_COUNT);
+    }
+
+    /**
+     * @param banList banlist to ban offending IPs in.
+     * @param offenceThreshold total weight of offences within the time window that results in a ban.
+     * @param windowMilliseconds length of the sliding time window that offences are counted in.
+     * @param banDurationMilliseconds duration of the first ban of an IP.  Each ban within a day of an earlier one is twice as long.
+     * @param maxBanDurationMilliseconds maximum duration of a ban.
+     * @param expectedOffenderCount number of IPs expected to be offending within a time window, e.g. during an attack.
+     *                              Memory use grows with this, by a few hundred bytes per IP.
+     */
+    public OffenceTracker(BanList banList,
+                          int offenceThreshold,
+                          long windowMilliseconds,
+                          long banDurationMilliseconds,
+                          long maxBanDurationMilliseconds,
+                          int expectedOffenderCount) {
+        notNull(banList, "banList");
+        Check.positive(offenceThreshold, "offenceThreshold");
+        Check.positive(windowMilliseconds, "windowMilliseconds");
+        Check.positive(banDurationMilliseconds, "banDurationMilliseconds");
+        Check.positive(expectedOffenderCount, "expectedOffenderCount");
+        if (maxBanDurationMilliseconds < banDurationMilliseconds) {
+            throw new IllegalArgumentException("The maxBanDurationMilliseconds should be at least banDurationMilliseconds, but it was " + maxBanDurationMilliseconds);
+        }
+
+        this.banList = banList;
+        this.offenceThreshold = offenceThreshold;
+        this.banDurationMilliseconds = banDurationMilliseconds;
+        this.maxBanDurationMilliseconds = maxBanDurationMilliseconds;
+
+        // Power of two, so that cells can be picked with a mask
+        final long cellCount = (long) expectedOffenderCount * SKETCH_CELLS_PER_OFFENDER;
+        final int sketchWidth = (int) Math.max(MIN_SKETCH_WIDTH, Math.min(MAX_SKETCH_WIDTH, Long.highestOneBit(cellCount - 1) << 1));
+
+        final long currentTime = System.currentTimeMillis();
+        offenceCounts = new SlidingCountMinSketch(windowMilliseconds, currentTime, sketchWidth, SEED_RANDOM.nextLong());
+        banCounts = new SlidingCountMinSketch(BAN_MEMORY_MILLISECONDS, currentTime, sketchWidth, SEED_RANDOM.nextLong());
+        recentOffenders = new RecentOffenders(windowMilliseconds, expectedOffenderCount);
+    }
+
+    /**
+     * Records an offence by an IP, and bans the IP if it has exceeded the offence threshold.
+     * For IPv6 addresses the whole /64 network of the address is banned, if the banlist is a RangeBanList.
+     *
+     * @param ipAddress IP address of the offender.
+     * @param offence type of the offence.
+     * @return the duration of the ban in milliseconds if the IP was banned, or zero if not, or if it was already banned.
+     */
+    public long recordOffence(InetAddress ipAddress, Offence offence) {
+        notNull(ipAddress, "ipAddress");
+        notNull(offence, "offence");
+
+        // Connections opened before the ban may keep offending until they are closed
+        if (banList.isBanned(ipAddress)) return 0;
+
+        final long currentTime = System.currentTimeMillis();
+        final long key = addressKey(ipAddress);
+
+        final int exactCount = recentOffenders.add(key, offence.getWeight(), currentTime);
+        if (offenceCounts.add(key, offence.getWeight(), currentTime) < offenceThreshold) return 0;
+
+        // The sketch may overestimate, so confirm from the exact count
+        if (exactCount < offenceThreshold) return 0;
+
+        // Double the ban for each earlier recent ban
+        final int earlierBans = banCounts.add(key, 1, currentTime) - 1;
+        final int doublings = Math.min(earlierBans, MAX_DOUBLINGS);
+        final long banDuration = banDurationMilliseconds > maxBanDurationMilliseconds >> doublings
+                                 ? maxBanDurationMilliseconds
+                                 : banDurationMilliseconds << doublings;
+
+        if (ipAddress instanceof Inet4Address || !(banList instanceof RangeBanList)) {
+            banList.banIp(ipAddress, banDuration);
+        }
+        else {
+            ((RangeBanList) banList).banRange(ipAddress, IPV6_NETWORK_PREFIX_LENGTH, banDuration);
+        }
+        return banDuration;
+    }
+
+    /**
+     * @return estimated total weight of the offences by the IP within the current time window.
+     *         Exact for recent offenders.
+     *         For IPv6 addresses this includes the offences by the whole /64 network of the address.
+     */
+    public int getOffenceCount(InetAddress ipAddress) {
+        notNull(ipAddress, "ipAddress");
+
+        final long key = addressKey(ipAddress);
+        final long currentTime = System.currentTimeMillis();
+        final int exactCount = recentOffenders.get(key, currentTime);
+        return exactCount >= 0 ? exactCount : offenceCounts.estimate(key, currentTime);
+    }
+
+    /**
+     * @return the banlist that offending IPs are banned in.
+     */
+    public BanList getBanList() {
+        return banList;
+    }
+
+    private static long addressKey(InetAddress ipAddress) {
+        if (ipAddress instanceof Inet4Address) {
+            // The hash code of an IPv4 address is the address itself
+            return ipAddress.hashCode();
+        }
+        else {
+            // FNV-1a over the network prefix of the address
+            final byte[] address = ipAddress.getAddress();
+            long hash = 0xcbf29ce484222325L;
+            for (int i = 0; i < IPV6_NETWORK_PREFIX_LENGTH / 8; i++) {
+                hash ^= address[i] & 0xFF;
+                hash *= 0x100000001b3L;
+            }
+            return hash;
+        }
+    }
+
+    /**
+     * Count-min sketch that counts over a sliding time window, approximated by weighting the counts of the previous
+     * window by how much of it still overlaps the sliding window.
+     */
+    private static final class SlidingCountMinSketch {
+        private final long windowMilliseconds;
+        private final int width;
+        private final long seed;
+        private final AtomicReference<Window> window;
+
+        private SlidingCountMinSketch(long windowMilliseconds, long currentTime, int width, long seed) {
+            this.windowMilliseconds = windowMilliseconds;
+            this.width = width;
+            this.seed = seed;
+            this.window = new AtomicReference<Window>(new Window(currentTime, SKETCH_DEPTH * width, null));
+        }
+
+        /**
+         * @return the estimated count for the key after adding the amount.
+         */
+        int add(long key, int amount, long currentTime) {
+            final Window current = currentWindow(currentTime);
+            for (int row = 0; row < SKETCH_DEPTH; row++) {
+                current.counts.addAndGet(cellIndex(key, row), amount);
+            }
+            return estimate(current, key, currentTime);
+        }
+
+        int estimate(long key, long currentTime) {
+            return estimate(currentWindow(currentTime), key, currentTime);
+        }
+
+        private int estimate(Window current, long key, long currentTime) {
+            final double previousWeight = 1.0 - Math.min(1.0, (currentTime - current.startTime) / (double) windowMilliseconds);
+
+            int estimate = Integer.MAX_VALUE;
+            for (int row = 0; row < SKETCH_DEPTH; row++) {
+                final int cell = cellIndex(key, row);
+                int count = current.counts.get(cell);
+                if (current.previousCounts != null) count += (int) (current.previousCounts.get(cell) * previousWeight);
+                estimate = Math.min(estimate, count);
+            }
+            return estimate;
+        }
+
+        private Window currentWindow(long currentTime) {
+            while (true) {
+                final Window current = window.get();
+                final long elapsedWindows = (currentTime - current.startTime) / windowMilliseconds;
+                if (elapsedWindows <= 0) return current;
+
+                // The counts of the window before the previous one no longer overlap the sliding window
+                final Window next = new Window(current.startTime + elapsedWindows * windowMilliseconds,
+                                               SKETCH_DEPTH * width,
+                                               elapsedWindows == 1 ? current.counts : null);
+                if (window.compareAndSet(current, next)) return next;
+            }
+        }
+
+        private int cellIndex(long key, int row) {
+            long hash = (key ^ seed) + row * 0x9e3779b97f4a7c15L;
+            hash ^= hash >>> 33;
+            hash *= 0xff51afd7ed558ccdL;
+            hash ^= hash >>> 33;
+            hash *= 0xc4ceb9fe1a85ec53L;
+            hash ^= hash >>> 33;
+            return row * width + ((int) hash & (width - 1));
+        }
+    }
+
+    private static final class Window {
+        private final long startTime;
+        private final AtomicIntegerArray counts;
+        private final AtomicIntegerArray previousCounts;
+
+        private Window(long startTime, int cellCount, AtomicIntegerArray previousCounts) {
+            this.startTime = startTime;
+            this.counts = new AtomicIntegerArray(cellCount);
+            this.previousCounts = previousCounts;
+        }
+    }
+
+    /**
+     * Exact offence counts of the most recently offending IPs, over the same kind of sliding window as the sketch.
+     * The least recently offending IPs are forgotten first when the maximum number of IPs is reached.
+     */
+    private static final class RecentOffenders {
+        private final long windowMilliseconds;
+        private final Map<Long, OffenceCount> counts;
+
+        private RecentOffenders(long windowMilliseconds, final int maxOffenderCount) {
+            this.windowMilliseconds = windowMilliseconds;
+            this.counts = new LinkedHashMap<Long, OffenceCount>(16, 0.75f, true) {
+                @Override protected boolean removeEldestEntry(Map.Entry<Long, OffenceCount> eldest) {
+                    return size() > maxOffenderCount;
+                }
+            };
+        }
+
+        /**
+         * @return the count for the key after adding the amount.
+         */
+        synchronized int add(long key, int amount, long currentTime) {
+            OffenceCount count = counts.get(key);
+            if (count == null) {
+                count = new OffenceCount(currentTime);
+                counts.put(key, count);
+            }
+
+            count.advance(currentTime, windowMilliseconds);
+            count.count += amount;
+            return count.estimate(currentTime, windowMilliseconds);
+        }
+
+        /**
+         * @return the count for the key, or -1 if the key is not among the recent offenders.
+         */
+        synchronized int get(long key, long currentTime) {
+            final OffenceCount count = counts.get(key);
+            if (count == null) return -1;
+
+            count.advance(currentTime, windowMilliseconds);
+            return count.estimate(currentTime, windowMilliseconds);
+        }
+    }
+
+    private static final class OffenceCount {
+        private long startTime;
+        private int count;
+        private int previousCount;
+
+        private OffenceCount(long startTime) {
+            this.startTime = startTime;
+        }
+
+        void advance(long currentTime, long windowMilliseconds) {
+            final long elapsedWindows = (currentTime - startTime) / windowMilliseconds;
+            if (elapsedWindows > 0) {
+                previousCount = elapsedWindows == 1 ? count : 0;
+                count = 0;
+                startTime += elapsedWindows * windowMilliseconds;
+            }
+        }
+
+        int estimate(long currentTime, long windowMilliseconds) {
+            final double previousWeight = 1.0 - Math.min(1.0, (currentTime - startTime) / (double) windowMilliseconds);
+            return count + (int) (previousCount * previousWeight);
+        }
+    }
+}
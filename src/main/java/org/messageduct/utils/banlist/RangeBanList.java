@@ -0,0 +1,29 @@
+package org.messageduct.utils.banlist;
+
+import java.net.InetAddress;
+
+/**
+ * BanList that can also ban whole address ranges, given in CIDR form as an address and a prefix length.
+ */
+public interface RangeBanList extends BanList {
+
+    /**
+     * @param address an address in the range to permanently ban.
+     * @param prefixLength number of leading bits of the address that identify the range, e.g. 16 for an IPv4 /16 range.
+     */
+    void banRange(InetAddress address, int prefixLength);
+
+    /**
+     * @param address an address in the range to ban.
+     * @param prefixLength number of leading bits of the address that identify the range, e.g. 64 for an IPv6 /64 range.
+     * @param banDurationMilliseconds how long the ban is, in milliseconds.  If zero, the ban is permanent (or until unbanned).
+     */
+    void banRange(InetAddress address, int prefixLength, long banDurationMilliseconds);
+
+    /**
+     * Removes a range ban added with banRange.  Does not affect bans of individual IPs or other ranges.
+     * @param address an address in the range to unban.
+     * @param prefixLength number of leading bits of the address that identify the range.
+     */
+    void unBanRange(InetAddress address, int prefixLength);
+}
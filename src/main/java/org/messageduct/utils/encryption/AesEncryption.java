@@ -31,7 +31,7 @@ import static org.flowutils.Check.notNull;
  *
  * Uses the bouncy castle implementation, so that we get 256 bit encryption without requiring users to modify their java installation.
  */
-public final class AesEncryption extends SymmetricEncryptionBase {
+public final class AesEncryption extends SymmetricEncryptionBase implements SaltedSymmetricEncryption {
 
     static {
         EncryptionUtils.installBouncyCastleProviderIfNotInstalled();
@@ -182,6 +182,18 @@ public final class AesEncryption extends SymmetricEncryptionBase {
      * @return a key of the correct length for the cipher used, based on the specified password.
      */
     public SecretKey generateSecretKeyFromPassword(char[] password) {
+        return generateSecretKeyFromPassword(password, salt);
+    }
+
+    /**
+     * @param password password to use for generating the key.
+     * @param salt salt to mix with the password, instead of the salt given to this AesEncryption.
+     * @return a key of the correct length for the cipher used, based on the specified password and salt.
+     */
+    @Override public SecretKey generateSecretKeyFromPassword(char[] password, byte[] salt) {
+        notNull(password, "password");
+        notNull(salt, "salt");
+
         try {
             // Generate raw AES key from password and salt
             SecretKeyFactory factory = SecretKeyFactory.getInstance(KEY_HASH_ALGORITHM, PROVIDER);
@@ -2,8 +2,8 @@ package org.messageduct.utils.encryption;
 
 import org.apache.commons.codec.binary.Base64;
 import org.flowutils.Check;
-import org.flowutils.serializer.KryoSerializer;
 import org.flowutils.serializer.Serializer;
+import org.messageduct.utils.serializer.PooledKryoSerializer;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -28,6 +28,8 @@ public abstract class AsymmetricEncryptionBase implements AsymmetricEncryption {
      */
     public static final byte[] DEFAULT_PASSWORD_VERIFICATION_PREFIX = "EncryptedByAEPB".getBytes(CHARSET);
 
+    private static final int MAX_SERIALIZED_PUBLIC_KEY_LENGTH = 64*1024;
+
     private final byte[] passwordVerificationPrefix;
 
     private final Serializer serializer;
@@ -54,7 +56,7 @@ public abstract class AsymmetricEncryptionBase implements AsymmetricEncryption {
      */
     protected AsymmetricEncryptionBase(Collection<Class> allowedPublicKeySerializationClasses,
                                        byte[] passwordVerificationPrefix) {
-        this(new KryoSerializer(allowedPublicKeySerializationClasses), passwordVerificationPrefix);
+        this(new PooledKryoSerializer(true, allowedPublicKeySerializationClasses, MAX_SERIALIZED_PUBLIC_KEY_LENGTH), passwordVerificationPrefix);
     }
 
     /**
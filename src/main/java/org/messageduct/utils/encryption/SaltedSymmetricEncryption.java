@@ -0,0 +1,17 @@
+package org.messageduct.utils.encryption;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Symmetric encryption that can derive keys from a password with a salt given by the caller, instead of its own
+ * fixed salt.  Allows storing a random salt together with the encrypted data.
+ */
+public interface SaltedSymmetricEncryption extends SymmetricEncryption {
+
+    /**
+     * @param password password to use for generating the key.
+     * @param salt salt to mix with the password, e.g. random data stored together with the encrypted data.
+     * @return a key for the cipher used, based on the specified password and salt.
+     */
+    SecretKey generateSecretKeyFromPassword(char[] password, byte[] salt);
+}
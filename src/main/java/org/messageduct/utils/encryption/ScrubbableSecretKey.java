@@ -0,0 +1,69 @@
+package org.messageduct.utils.encryption;
+
+import javax.crypto.SecretKey;
+import java.util.Arrays;
+
+import static org.flowutils.Check.notNull;
+
+/**
+ * Secret key whose key material can be overwritten when it is no longer needed, so that a key kept around for a long
+ * time (e.g. a key derived once from a storage password) does not linger in memory after use.
+ *
+ * getEncoded returns a copy of the key material, as required by the Key interface, so callers should not keep
+ * the returned array around.
+ */
+public final class ScrubbableSecretKey implements SecretKey {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String algorithm;
+    private final byte[] keyMaterial;
+    private volatile boolean scrubbed;
+
+    /**
+     * @param key key to copy the key material and algorithm from.
+     */
+    public ScrubbableSecretKey(SecretKey key) {
+        this(key.getAlgorithm(), key.getEncoded());
+    }
+
+    /**
+     * @param algorithm algorithm the key is used with, e.g. "AES".
+     * @param keyMaterial raw key data.  Taken over by this key, and cleared when this key is scrubbed.
+     */
+    public ScrubbableSecretKey(String algorithm, byte[] keyMaterial) {
+        notNull(algorithm, "algorithm");
+        notNull(keyMaterial, "keyMaterial");
+
+        this.algorithm = algorithm;
+        this.keyMaterial = keyMaterial;
+    }
+
+    @Override public String getAlgorithm() {
+        return algorithm;
+    }
+
+    @Override public String getFormat() {
+        return "RAW";
+    }
+
+    @Override public byte[] getEncoded() {
+        if (scrubbed) throw new IllegalStateException("The key has been scrubbed and can not be used anymore");
+        return keyMaterial.clone();
+    }
+
+    /**
+     * Overwrites the key material.  The key can not be used after this.
+     */
+    public void scrub() {
+        scrubbed = true;
+        Arrays.fill(keyMaterial, (byte) 0);
+    }
+
+    /**
+     * @return true if the key has been scrubbed.
+     */
+    public boolean isScrubbed() {
+        return scrubbed;
+    }
+}
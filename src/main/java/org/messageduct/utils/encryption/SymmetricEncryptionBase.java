@@ -3,9 +3,9 @@ package org.messageduct.utils.encryption;
 import org.apache.commons.codec.binary.Base64;
 import org.flowutils.Check;
 import org.flowutils.StreamUtils;
-import org.flowutils.serializer.KryoSerializer;
 import org.flowutils.serializer.Serializer;
 import org.messageduct.utils.SecurityUtils;
+import org.messageduct.utils.serializer.PooledKryoSerializer;
 
 import javax.crypto.SecretKey;
 import java.io.IOException;
@@ -58,7 +58,7 @@ public abstract class SymmetricEncryptionBase implements SymmetricEncryption {
     protected SymmetricEncryptionBase(Collection<Class> allowedSecretKeySerializationClasses, byte[] passwordVerificationPrefix) {
         this.passwordVerificationPrefix = passwordVerificationPrefix;
 
-        serializer = new KryoSerializer(allowedSecretKeySerializationClasses);
+        serializer = new PooledKryoSerializer(true, allowedSecretKeySerializationClasses, MAX_SERIALIZED_SECRET_KEY_LENGTH);
     }
 
     @Override
@@ -0,0 +1,328 @@
+package org.messageduct.utils.serializer;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import org.flowutils.Check;
+import org.messageduct.utils.ObjectPool;
+import org.objenesis.strategy.StdInstantiatorStrategy;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static org.flowutils.Check.notNull;
+
+/**
+ * Thread safe pool of pre-configured Kryo instances, each with its own serialization buffers.
+ *
+ * Kryo resolves serializers and instantiators for a class the first time it is used, which involves reflection and
+ * bytecode generation.  The instances in the pool have all registered classes resolved when they are created,
+ * and warmUp can be called at startup to create them before they are needed, so that the first message of each type
+ * does not pay that cost.
+ *
+ * Classes are registered in the order given, so pools created with the same class list produce compatible data.
+ *
+ * The registrationRequired flag has the same meaning as Kryo.setRegistrationRequired: true means that only the
+ * registered classes (and primitive types and Strings) are accepted, which should always be used for data received
+ * from the network.  False means that any class can be serialized, which is only safe for trusted local data.
+ * Note that this is not necessarily the meaning of the boolean parameters of the flowutils KryoSerializer constructors.
+ *
+ * The data format is not compatible with the flowutils KryoSerializer.
+ */
+public final class KryoPool {
+
+    private static final int DEFAULT_INITIAL_BUFFER_SIZE = 1024;
+    private static final int MAX_IDLE_INSTANCES = 4 * Runtime.getRuntime().availableProcessors();
+    private static final int STREAM_BUFFER_SIZE = 8 * 1024;
+    private static final byte[] EMPTY_BUFFER = new byte[0];
+
+    private static final ConcurrentMap<List<Object>, KryoPool> SHARED_POOLS = new ConcurrentHashMap<List<Object>, KryoPool>();
+
+    private final boolean registrationRequired;
+    private final List<Class> registeredClasses;
+    private final int initialBufferSize;
+    private final int maxBufferSize;
+
+    private final ObjectPool<PooledKryo> pool = new ObjectPool<PooledKryo>(MAX_IDLE_INSTANCES) {
+        @Override protected PooledKryo create() {
+            return createPooledKryo();
+        }
+
+        @Override protected void reset(PooledKryo pooledKryo) {
+            pooledKryo.reset();
+        }
+    };
+
+    /**
+     * Returns a pool shared by all users with the same parameters.
+     *
+     * @param registrationRequired if true, only the registered classes (and primitive types and Strings) can be serialized.
+     *                             If false, any class can be serialized.
+     * @param registeredClasses classes to register, in the order to register them.
+     * @param maxBufferSize maximum size of a serialized object in bytes.
+     * @return the shared pool for the given parameters.
+     */
+    public static KryoPool getSharedPool(boolean registrationRequired, Collection<Class> registeredClasses, int maxBufferSize) {
+        notNull(registeredClasses, "registeredClasses");
+
+        // Registration order matters, so the key is an ordered list
+        final List<Object> key = new ArrayList<Object>(registeredClasses.size() + 2);
+        key.add(registrationRequired);
+        key.add(maxBufferSize);
+        key.addAll(registeredClasses);
+
+        KryoPool kryoPool = SHARED_POOLS.get(key);
+        if (kryoPool == null) {
+            kryoPool = new KryoPool(registrationRequired, registeredClasses, Math.min(DEFAULT_INITIAL_BUFFER_SIZE, maxBufferSize), maxBufferSize);
+            final KryoPool existingPool = SHARED_POOLS.putIfAbsent(key, kryoPool);
+            if (existingPool != null) kryoPool = existingPool;
+        }
+
+        return kryoPool;
+    }
+
+    /**
+     * @param registrationRequired if true, only the registered classes (and primitive types and Strings) can be serialized.
+     *                             If false, any class can be serialized.
+     * @param registeredClasses classes to register, in the order to register them.
+     * @param initialBufferSize initial size of the serialization buffer of each Kryo instance.
+     * @param maxBufferSize maximum size of a serialized object in bytes.
+     */
+    public KryoPool(boolean registrationRequired, Collection<Class> registeredClasses, int initialBufferSize, int maxBufferSize) {
+        notNull(registeredClasses, "registeredClasses");
+        Check.positive(initialBufferSize, "initialBufferSize");
+        Check.greaterOrEqual(maxBufferSize, "maxBufferSize", initialBufferSize, "initialBufferSize");
+
+        this.registrationRequired = registrationRequired;
+        this.registeredClasses = Collections.unmodifiableList(new ArrayList<Class>(registeredClasses));
+        this.initialBufferSize = initialBufferSize;
+        this.maxBufferSize = maxBufferSize;
+    }
+
+    /**
+     * Creates Kryo instances for the pool ahead of time, so that they are ready when the first objects are serialized.
+     *
+     * @param instanceCount number of instances to prepare, e.g. the number of threads that will use the pool.
+     *                      At most the maximum number of idle instances are kept.
+     */
+    public void warmUp(int instanceCount) {
+        Check.positiveOrZero(instanceCount, "instanceCount");
+
+        final List<PooledKryo> instances = new ArrayList<PooledKryo>(instanceCount);
+        for (int i = 0; i < instanceCount; i++) {
+            instances.add(pool.borrow());
+        }
+
+        for (PooledKryo instance : instances) {
+            pool.release(instance);
+        }
+    }
+
+    /**
+     * @param object object to serialize.  May be null.
+     * @return serialized form of the object.
+     */
+    public byte[] serialize(Object object) {
+        final PooledKryo pooledKryo = pool.borrow();
+        try {
+            pooledKryo.output.clear();
+            pooledKryo.kryo.writeClassAndObject(pooledKryo.output, object);
+            return pooledKryo.output.toBytes();
+        }
+        catch (RuntimeException e) {
+            // Do not leave references from the failed operation in the instance
+            pooledKryo.kryo.reset();
+            throw e;
+        }
+        finally {
+            pool.release(pooledKryo);
+        }
+    }
+
+    /**
+     * @param data serialized object.
+     * @return the de-serialized object.
+     */
+    public <T> T deserialize(byte[] data) {
+        notNull(data, "data");
+
+        final PooledKryo pooledKryo = pool.borrow();
+        try {
+            pooledKryo.input.setBuffer(data);
+            return (T) pooledKryo.kryo.readClassAndObject(pooledKryo.input);
+        }
+        catch (RuntimeException e) {
+            // Do not leave references from the failed operation in the instance
+            pooledKryo.kryo.reset();
+            throw e;
+        }
+        finally {
+            pool.release(pooledKryo);
+        }
+    }
+
+    /**
+     * Serializes an object directly to a stream, without collecting the serialized form in memory.
+     * The maximum buffer size does not limit the serialized size.
+     *
+     * @param object object to serialize.  May be null.
+     * @param outputStream stream to write to.  Flushed but not closed.
+     * @throws IOException if there was a problem writing to the stream.
+     */
+    public void serialize(Object object, OutputStream outputStream) throws IOException {
+        notNull(outputStream, "outputStream");
+
+        final PooledKryo pooledKryo = pool.borrow();
+        try {
+            final Output output = new Output(outputStream, STREAM_BUFFER_SIZE);
+            pooledKryo.kryo.writeClassAndObject(output, object);
+            output.flush();
+        }
+        catch (KryoException e) {
+            // Do not leave references from the failed operation in the instance
+            pooledKryo.kryo.reset();
+            throw streamException(e);
+        }
+        catch (RuntimeException e) {
+            pooledKryo.kryo.reset();
+            throw e;
+        }
+        finally {
+            pool.release(pooledKryo);
+        }
+    }
+
+    /**
+     * Reads an object directly from a stream, without reading the whole serialized form into memory first.
+     *
+     * @param inputStream stream to read from.  Not closed.
+     * @return the de-serialized object.
+     * @throws IOException if there was a problem reading from the stream.
+     */
+    public <T> T deserialize(InputStream inputStream) throws IOException {
+        notNull(inputStream, "inputStream");
+
+        final PooledKryo pooledKryo = pool.borrow();
+        try {
+            return (T) pooledKryo.kryo.readClassAndObject(new Input(inputStream, STREAM_BUFFER_SIZE));
+        }
+        catch (KryoException e) {
+            // Do not leave references from the failed operation in the instance
+            pooledKryo.kryo.reset();
+            throw streamException(e);
+        }
+        catch (RuntimeException e) {
+            pooledKryo.kryo.reset();
+            throw e;
+        }
+        finally {
+            pool.release(pooledKryo);
+        }
+    }
+
+    /**
+     * @return the registered classes, in registration order.
+     */
+    public List<Class> getRegisteredClasses() {
+        return registeredClasses;
+    }
+
+    /**
+     * @return maximum size of a serialized object in bytes.
+     */
+    public int getMaxBufferSize() {
+        return maxBufferSize;
+    }
+
+    /**
+     * @return number of prepared Kryo instances currently available in the pool.
+     */
+    public int getIdleInstanceCount() {
+        return pool.getIdleCount();
+    }
+
+    private static IOException streamException(KryoException e) {
+        // Kryo wraps stream problems in its own unchecked exception
+        if (e.getCause() instanceof IOException) return (IOException) e.getCause();
+        return new IOException("Problem when serializing to or from a stream: " + e.getMessage(), e);
+    }
+
+    private PooledKryo createPooledKryo() {
+        final Kryo kryo = new Kryo();
+        kryo.setRegistrationRequired(registrationRequired);
+
+        // Use the no-argument constructor if there is one, otherwise create the object without calling a constructor
+        kryo.setInstantiatorStrategy(new StdInstantiatorStrategy());
+
+        // Registering a class creates its serializer
+        for (Class registeredClass : registeredClasses) {
+            kryo.register(registeredClass);
+        }
+
+        final PooledKryo pooledKryo = new PooledKryo(kryo, new Output(initialBufferSize, maxBufferSize), new Input());
+
+        // Exercise the serializers, so that instantiators are created and lazily initialized state is set up
+        for (Class registeredClass : registeredClasses) {
+            warmUpClass(pooledKryo, registeredClass);
+        }
+        pooledKryo.reset();
+
+        return pooledKryo;
+    }
+
+    private void warmUpClass(PooledKryo pooledKryo, Class type) {
+        if (type.isPrimitive() ||
+            type.isArray() ||
+            type.isInterface() ||
+            type.isEnum() ||
+            Modifier.isAbstract(type.getModifiers())) return;
+
+        try {
+            final Object instance = pooledKryo.kryo.newInstance(type);
+            pooledKryo.output.clear();
+            pooledKryo.kryo.writeClassAndObject(pooledKryo.output, instance);
+            pooledKryo.input.setBuffer(pooledKryo.output.toBytes());
+            pooledKryo.kryo.readClassAndObject(pooledKryo.input);
+        }
+        catch (RuntimeException e) {
+            // Not all classes can be serialized in their uninitialized state, the registration is warmed up in any case
+            pooledKryo.kryo.reset();
+        }
+    }
+
+    /**
+     * A Kryo instance along with its buffers.
+     */
+    private final class PooledKryo {
+        private final Kryo kryo;
+        private final Output output;
+        private final Input input;
+
+        private PooledKryo(Kryo kryo, Output output, Input input) {
+            this.kryo = kryo;
+            this.output = output;
+            this.input = input;
+        }
+
+        private void reset() {
+            output.clear();
+
+            // Do not keep large buffers around after serializing a big object
+            if (output.getBuffer().length > 4 * initialBufferSize) {
+                output.setBuffer(new byte[initialBufferSize], maxBufferSize);
+            }
+
+            // Do not hold on to the last deserialized data
+            input.setBuffer(EMPTY_BUFFER);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package org.messageduct.utils.serializer;
+
+import org.flowutils.serializer.Serializer;
+
+import java.util.Collection;
+
+import static org.flowutils.Check.notNull;
+
+/**
+ * Thread safe Serializer that uses Kryo instances from a KryoPool.
+ *
+ * Holds no serialization state of its own, so it is cheap to create and can be shared freely.
+ */
+public final class PooledKryoSerializer implements Serializer {
+
+    private final KryoPool kryoPool;
+
+    /**
+     * Creates a serializer that uses the shared pool for the given parameters.
+     *
+     * @param registrationRequired if true, only the registered classes (and primitive types and Strings) can be serialized.
+     *                             If false, any class can be serialized, so only use false for trusted local data.
+     * @param registeredClasses classes to register, in the order to register them.
+     * @param maxSerializedSize maximum size of a serialized object in bytes.
+     */
+    public PooledKryoSerializer(boolean registrationRequired, Collection<Class> registeredClasses, int maxSerializedSize) {
+        this(KryoPool.getSharedPool(registrationRequired, registeredClasses, maxSerializedSize));
+    }
+
+    /**
+     * @param kryoPool pool to get Kryo instances from.
+     */
+    public PooledKryoSerializer(KryoPool kryoPool) {
+        notNull(kryoPool, "kryoPool");
+
+        this.kryoPool = kryoPool;
+    }
+
+    @Override public byte[] serialize(Object object) {
+        return kryoPool.serialize(object);
+    }
+
+    @Override public <T> T deserialize(byte[] data) {
+        return kryoPool.deserialize(data);
+    }
+
+    /**
+     * @param data serialized object.
+     * @param expectedType type the de-serialized object should have.
+     * @return the de-serialized object.
+     * @throws IllegalStateException if the de-serialized object was not of the expected type.
+     */
+    public <T> T deserialize(byte[] data, Class<T> expectedType) {
+        notNull(expectedType, "expectedType");
+
+        final Object object = kryoPool.deserialize(data);
+        if (object != null && !expectedType.isInstance(object)) {
+            throw new IllegalStateException("Expected the de-serialized object to be of type " + expectedType.getName() +
+                                            ", but it was of type " + object.getClass().getName());
+        }
+
+        return expectedType.cast(object);
+    }
+
+    /**
+     * @return the pool that Kryo instances are taken from.
+     */
+    public KryoPool getKryoPool() {
+        return kryoPool;
+    }
+}
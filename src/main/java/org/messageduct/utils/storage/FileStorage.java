@@ -1,31 +1,51 @@
 package org.messageduct.utils.storage;
 
+import org.flowutils.ByteArrayUtils;
 import org.flowutils.serializer.KryoSerializer;
 import org.flowutils.serializer.Serializer;
 import org.messageduct.utils.FileUtils;
 import org.messageduct.utils.encryption.AesEncryption;
+import org.messageduct.utils.encryption.ScrubbableSecretKey;
+import org.messageduct.utils.encryption.SaltedSymmetricEncryption;
 import org.messageduct.utils.encryption.SymmetricEncryption;
 import org.messageduct.utils.encryption.WrongPasswordException;
 
 import java.io.*;
+import java.security.SecureRandom;
+import java.util.Arrays;
 
 import static org.flowutils.Check.notNull;
 
 /**
  * Utility that serializes data to and from a file.
  * Uses a temporary file to avoid corruption if the program is aborted in the middle of writing.
+ * The file is saved with a checksum that is verified when loading, and replaces the old file atomically.
  * Can optionally use encryption.
  *
+ * By default the encryption key is derived from the password only once, with a random salt that is stored at the
+ * start of the file, instead of deriving the key with a fixed salt on every save and load.  Files saved with
+ * the fixed salt can still be loaded, and are converted to the salted format on the next save.
+ *
  * Synchronizes save and load access, so can be used from multiple threads.
  */
 public final class FileStorage extends SynchronizedStorage {
 
+    private static final byte[] SALTED_FORMAT_MAGIC = {'M', 'D', 'S', 'a', 'l', 't', '0', '1'};
+    private static final int SALT_LENGTH = 16;
+    private static final SecureRandom SECURE_RANDOM = new SecureRandom();
+
     private final File file;
     private final File tempFile;
 
     private final Serializer serializer;
     private final SymmetricEncryption symmetricEncryption;
     private final char[] password;
+    private final boolean deriveKeyOnce;
+    private final Object keyLock = new Object();
+
+    // Key derived from the password, and the salt it was derived with
+    private byte[] keySalt;
+    private ScrubbableSecretKey key;
 
 
     /**
@@ -34,7 +54,7 @@ public final class FileStorage extends SynchronizedStorage {
      * @param file file to save the data to.
      */
     public FileStorage(File file) {
-        this(file, null, new KryoSerializer(false), null);
+        this(file, null, createDefaultSerializer(), null);
     }
 
     /**
@@ -44,7 +64,7 @@ public final class FileStorage extends SynchronizedStorage {
      * @param password password to use for encrypting the file.  If null, no encryption is done.
      */
     public FileStorage(File file, char[] password) {
-        this(file, password, new KryoSerializer(false));
+        this(file, password, createDefaultSerializer());
     }
 
     /**
@@ -83,6 +103,27 @@ public final class FileStorage extends SynchronizedStorage {
      *                 By default the same name as the datafile, except with a ".temp" appended.
      */
     public FileStorage(File file, char[] password, Serializer serializer, SymmetricEncryption symmetricEncryption, File tempFile) {
+        this(file, password, serializer, symmetricEncryption, tempFile, true);
+    }
+
+    /**
+     * Creates a new file based Storage.
+     *
+     * @param file file to save the data to.
+     * @param password password to use for encrypting the file.  If null, no encryption is done.
+     * @param serializer serializer used to serialize the object saved.
+     * @param symmetricEncryption encryption provider to use for encrypting the file, or null if no encryption should be done.
+     *                           If a non-null password is provided, an encryptionProvider has to be provided.
+     * @param tempFile temporary file to save to first, to avoid corruption if there is a problem in the middle of saving.
+     *                 By default the same name as the datafile, except with a ".temp" appended.
+     * @param deriveKeyOnce if true, the key is derived from the password once, using a random salt stored in the file,
+     *                      and kept in memory until clearCachedKey is called.
+     *                      Requires an encryption provider that implements SaltedSymmetricEncryption, otherwise
+     *                      the file is saved as if this was false.
+     *                      If false, the key is derived with the fixed salt of the encryption provider on each save
+     *                      and load, and the file is saved in the format used by earlier versions.
+     */
+    public FileStorage(File file, char[] password, Serializer serializer, SymmetricEncryption symmetricEncryption, File tempFile, boolean deriveKeyOnce) {
         notNull(file, "file");
         notNull(tempFile, "tempFile");
         notNull(serializer, "serializer");
@@ -93,6 +134,18 @@ public final class FileStorage extends SynchronizedStorage {
         this.serializer = serializer;
         this.symmetricEncryption = symmetricEncryption;
         this.password = password;
+        this.deriveKeyOnce = deriveKeyOnce;
+    }
+
+    /**
+     * Overwrites the cached encryption key in memory.  It is derived again from the password if the storage is used later.
+     */
+    public void clearCachedKey() {
+        synchronized (keyLock) {
+            if (key != null) key.scrub();
+            key = null;
+            keySalt = null;
+        }
     }
 
     @Override protected void doSave(Object object) throws IOException {
@@ -101,11 +154,26 @@ public final class FileStorage extends SynchronizedStorage {
 
         // Encrypt if we have a password
         if (symmetricEncryption != null && password != null) {
-            data = symmetricEncryption.encrypt(data, password);
+            if (deriveKeyOnce && symmetricEncryption instanceof SaltedSymmetricEncryption) {
+                synchronized (keyLock) {
+                    // Keep the salt of the file, so that the key does not need to be derived again
+                    if (keySalt == null) {
+                        final byte[] salt = new byte[SALT_LENGTH];
+                        SECURE_RANDOM.nextBytes(salt);
+                        deriveKey(salt);
+                    }
+
+                    data = ByteArrayUtils.concatenate(ByteArrayUtils.concatenate(SALTED_FORMAT_MAGIC, keySalt),
+                                                      symmetricEncryption.encrypt(data, key));
+                }
+            }
+            else {
+                data = symmetricEncryption.encrypt(data, password);
+            }
         }
 
-        // Save the data, making sure it actually got saved
-        FileUtils.saveAndCheck(data, file, tempFile);
+        // Save the data with a checksum, and replace the old file atomically
+        FileUtils.saveDurably(data, file, tempFile);
     }
 
 
@@ -114,12 +182,24 @@ public final class FileStorage extends SynchronizedStorage {
         if (!file.exists()) return null;
 
         // Load file contents
-        byte[] data = FileUtils.loadData(file);
+        byte[] data = FileUtils.loadDurableData(file);
 
         // Decrypt if we have password specified
         if (symmetricEncryption != null && password != null) {
             try {
-                data = symmetricEncryption.decrypt(data, password);
+                if (isSaltedFormat(data)) {
+                    final byte[] salt = Arrays.copyOfRange(data, SALTED_FORMAT_MAGIC.length, SALTED_FORMAT_MAGIC.length + SALT_LENGTH);
+                    final byte[] encryptedData = Arrays.copyOfRange(data, SALTED_FORMAT_MAGIC.length + SALT_LENGTH, data.length);
+                    synchronized (keyLock) {
+                        // Reuse the derived key if the file was saved with it
+                        if (keySalt == null || !Arrays.equals(keySalt, salt)) deriveKey(salt);
+                        data = symmetricEncryption.decrypt(encryptedData, key);
+                    }
+                }
+                else {
+                    // Saved with the fixed salt, a new salt is picked on the next save
+                    data = symmetricEncryption.decrypt(data, password);
+                }
             } catch (WrongPasswordException e) {
                 throw new IOException("Wrong password used for attempting to decrypt the storage: " + e.getMessage(), e);
             }
@@ -129,4 +209,29 @@ public final class FileStorage extends SynchronizedStorage {
         return serializer.deserialize(data);
     }
 
+    private void deriveKey(byte[] salt) throws IOException {
+        if (key != null) key.scrub();
+        if (!(symmetricEncryption instanceof SaltedSymmetricEncryption)) {
+            throw new IOException("The storage " + file + " was saved with a salted key, but the encryption provider " +
+                                  symmetricEncryption.getClass().getSimpleName() + " does not support salted keys");
+        }
+
+        key = new ScrubbableSecretKey(((SaltedSymmetricEncryption) symmetricEncryption).generateSecretKeyFromPassword(password, salt));
+        keySalt = salt;
+    }
+
+    private static boolean isSaltedFormat(byte[] data) {
+        if (data.length < SALTED_FORMAT_MAGIC.length + SALT_LENGTH) return false;
+
+        for (int i = 0; i < SALTED_FORMAT_MAGIC.length; i++) {
+            if (data[i] != SALTED_FORMAT_MAGIC[i]) return false;
+        }
+        return true;
+    }
+
+    private static Serializer createDefaultSerializer() {
+        // Kept the same as in earlier versions, so that existing files can still be loaded
+        return new KryoSerializer(false);
+    }
+
 }
@@ -0,0 +1,370 @@
+package org.messageduct.utils.storage;
+
+import org.flowutils.Check;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import static org.flowutils.Check.notNull;
+
+/**
+ * On-disk hash table from 64 bit keys to positive 64 bit values, e.g. from hashes of names to record ids.
+ *
+ * The file is memory mapped, so lookups of recently used parts of the index do not need any system calls, and
+ * the operating system keeps the used parts in memory without taking up heap space.
+ * Uses open addressing with linear probing, so a lookup usually reads a single slot.  The table is doubled in size
+ * when it gets too full, which rewrites the whole table.  The mapping limits the table to 2^26 slots.
+ *
+ * Thread safe.
+ */
+public final class HashIndex {
+
+    /**
+     * Value returned when there is no entry for a key.
+     */
+    public static final long NO_VALUE = 0;
+
+    /**
+     * Called for each entry when visiting the index.
+     */
+    public interface EntryVisitor {
+        void visitEntry(long key, long value);
+    }
+
+    private static final long FILE_MAGIC = 0x4D44494E44455831L; // "MDINDEX1"
+    private static final int HEADER_SIZE = 32;
+    private static final int SLOT_SIZE = 16;
+    private static final long REMOVED = -1;
+    private static final int MAX_LOAD_PERCENT = 70;
+    private static final int MAX_CAPACITY = 1 << 26;
+
+    private final File file;
+    private final int initialCapacity;
+
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+
+    private int capacity;
+    private int size;
+    private int usedSlots;
+
+    /**
+     * @param file file to store the index in.
+     * @param initialCapacity number of slots to allocate when the file is created.  Rounded up to a power of two.
+     */
+    public HashIndex(File file, int initialCapacity) {
+        notNull(file, "file");
+        Check.positive(initialCapacity, "initialCapacity");
+
+        this.file = file;
+        this.initialCapacity = Math.min(Integer.highestOneBit(Math.max(initialCapacity - 1, 1)) << 1, MAX_CAPACITY);
+    }
+
+    /**
+     * @return a well distributed 64 bit hash of the specified string, usable as a key.
+     */
+    public static long hash(String key) {
+        notNull(key, "key");
+
+        // FNV-1a over the characters
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    /**
+     * Opens the index, creating an empty index file if it does not exist.
+     */
+    public synchronized void open() throws IOException {
+        if (channel != null) throw new IllegalStateException("The index " + file + " is already open");
+
+        final boolean exists = file.exists() && file.length() > 0;
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        channel = randomAccessFile.getChannel();
+
+        if (exists) {
+            readHeader();
+        }
+        else {
+            initialize(initialCapacity);
+        }
+    }
+
+    /**
+     * @return the value for the key, or NO_VALUE if there is none.
+     */
+    public synchronized long get(long key) {
+        ensureOpen();
+
+        int index = slotIndex(key);
+        for (int probes = 0; probes < capacity; probes++) {
+            final long slotValue = slotValue(index);
+
+            if (slotValue == NO_VALUE) return NO_VALUE;
+            if (slotValue != REMOVED && slotKey(index) == key) return slotValue;
+
+            index = nextSlot(index);
+        }
+        return NO_VALUE;
+    }
+
+    /**
+     * Sets the value for a key.
+     *
+     * @param value value to set, must be positive.
+     * @return the previous value for the key, or NO_VALUE if there was none.
+     */
+    public synchronized long put(long key, long value) throws IOException {
+        Check.positive(value, "value");
+        ensureOpen();
+
+        if ((usedSlots + 1) * 100L > capacity * (long) MAX_LOAD_PERCENT) {
+            resize();
+        }
+
+        int index = slotIndex(key);
+        int firstRemoved = -1;
+        for (int probes = 0; probes < capacity; probes++) {
+            final long slotValue = slotValue(index);
+
+            if (slotValue == NO_VALUE) {
+                // Not present, reuse an earlier removed slot if one was passed
+                if (firstRemoved >= 0) {
+                    index = firstRemoved;
+                }
+                else {
+                    usedSlots++;
+                }
+                writeSlot(index, key, value);
+                size++;
+                writeHeader();
+                return NO_VALUE;
+            }
+            else if (slotValue == REMOVED) {
+                if (firstRemoved < 0) firstRemoved = index;
+            }
+            else if (slotKey(index) == key) {
+                writeSlot(index, key, value);
+                return slotValue;
+            }
+
+            index = nextSlot(index);
+        }
+
+        // Only removed slots left on the probe path
+        if (firstRemoved < 0) throw new IllegalStateException("The index " + file + " is full");
+        writeSlot(firstRemoved, key, value);
+        size++;
+        writeHeader();
+        return NO_VALUE;
+    }
+
+    /**
+     * Removes the entry for a key.
+     *
+     * @return the previous value for the key, or NO_VALUE if there was none.
+     */
+    public synchronized long remove(long key) {
+        ensureOpen();
+
+        int index = slotIndex(key);
+        for (int probes = 0; probes < capacity; probes++) {
+            final long slotValue = slotValue(index);
+
+            if (slotValue == NO_VALUE) return NO_VALUE;
+            if (slotValue != REMOVED && slotKey(index) == key) {
+                // Leave a marker so that lookups of keys stored after this one keep probing
+                writeSlot(index, key, REMOVED);
+                size--;
+                writeHeader();
+                return slotValue;
+            }
+
+            index = nextSlot(index);
+        }
+        return NO_VALUE;
+    }
+
+    /**
+     * Calls the visitor for each entry in the index, in no particular order.
+     */
+    public synchronized void visitEntries(EntryVisitor visitor) {
+        notNull(visitor, "visitor");
+        ensureOpen();
+
+        for (int index = 0; index < capacity; index++) {
+            final long slotValue = slotValue(index);
+            if (slotValue != NO_VALUE && slotValue != REMOVED) {
+                visitor.visitEntry(slotKey(index), slotValue);
+            }
+        }
+    }
+
+    /**
+     * @return number of entries in the index.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public synchronized void clear() throws IOException {
+        ensureOpen();
+        initialize(capacity);
+    }
+
+    /**
+     * Waits until all changes have been written to the storage device.
+     */
+    public void sync() {
+        final MappedByteBuffer currentBuffer;
+        synchronized (this) {
+            ensureOpen();
+            currentBuffer = buffer;
+        }
+        currentBuffer.force();
+    }
+
+    /**
+     * @return the file the index is stored in.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Closes the index file.
+     */
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            try {
+                buffer.force();
+            }
+            finally {
+                // The mapping itself is released when the buffer is garbage collected
+                buffer = null;
+                randomAccessFile.close();
+                randomAccessFile = null;
+                channel = null;
+            }
+        }
+    }
+
+    private void resize() throws IOException {
+        // Grow if needed, otherwise just rewrite to get rid of removed slots
+        int newCapacity = capacity;
+        while ((size + 1) * 100L > newCapacity * (long) MAX_LOAD_PERCENT / 2 && newCapacity < MAX_CAPACITY) {
+            newCapacity *= 2;
+        }
+
+        // Collect the entries, and insert them into the cleared table
+        final long[] keys = new long[size];
+        final long[] values = new long[size];
+        int count = 0;
+        for (int index = 0; index < capacity; index++) {
+            final long slotValue = slotValue(index);
+            if (slotValue != NO_VALUE && slotValue != REMOVED) {
+                keys[count] = slotKey(index);
+                values[count] = slotValue;
+                count++;
+            }
+        }
+
+        initialize(newCapacity);
+
+        for (int i = 0; i < count; i++) {
+            int index = slotIndex(keys[i]);
+            while (slotValue(index) != NO_VALUE) {
+                index = nextSlot(index);
+            }
+            writeSlot(index, keys[i], values[i]);
+        }
+        size = count;
+        usedSlots = count;
+        writeHeader();
+    }
+
+    private void initialize(int newCapacity) throws IOException {
+        if (buffer == null || newCapacity != capacity) {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) newCapacity * SLOT_SIZE);
+        }
+
+        capacity = newCapacity;
+        size = 0;
+        usedSlots = 0;
+        for (int index = 0; index < capacity; index++) {
+            writeSlot(index, 0, NO_VALUE);
+        }
+        writeHeader();
+    }
+
+    private int slotIndex(long key) {
+        return (int) mix(key) & (capacity - 1);
+    }
+
+    private int nextSlot(int index) {
+        return (index + 1) & (capacity - 1);
+    }
+
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    private long slotKey(int index) {
+        return buffer.getLong(HEADER_SIZE + index * SLOT_SIZE);
+    }
+
+    private long slotValue(int index) {
+        return buffer.getLong(HEADER_SIZE + index * SLOT_SIZE + 8);
+    }
+
+    private void writeSlot(int index, long key, long value) {
+        buffer.putLong(HEADER_SIZE + index * SLOT_SIZE, key);
+        buffer.putLong(HEADER_SIZE + index * SLOT_SIZE + 8, value);
+    }
+
+    private void readHeader() throws IOException {
+        if (channel.size() < HEADER_SIZE) throw new IOException("The index " + file + " is truncated");
+        final MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+
+        if (header.getLong(0) != FILE_MAGIC) throw new IOException("The file " + file + " is not an index file");
+        final int storedCapacity = header.getInt(8);
+        final int storedSize = header.getInt(12);
+        final int storedUsedSlots = header.getInt(16);
+        if (storedCapacity <= 0 || storedCapacity > MAX_CAPACITY || Integer.bitCount(storedCapacity) != 1 ||
+            storedSize < 0 || storedUsedSlots < storedSize || storedUsedSlots > storedCapacity ||
+            channel.size() < HEADER_SIZE + (long) storedCapacity * SLOT_SIZE) {
+            throw new IOException("The index " + file + " is corrupted");
+        }
+
+        capacity = storedCapacity;
+        size = storedSize;
+        usedSlots = storedUsedSlots;
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) capacity * SLOT_SIZE);
+    }
+
+    private void writeHeader() {
+        buffer.putLong(0, FILE_MAGIC);
+        buffer.putInt(8, capacity);
+        buffer.putInt(12, size);
+        buffer.putInt(16, usedSlots);
+    }
+
+    private void ensureOpen() {
+        if (channel == null) throw new IllegalStateException("The index " + file + " is not open");
+    }
+}
@@ -0,0 +1,220 @@
+package org.messageduct.utils.storage;
+
+import org.flowutils.Check;
+import org.flowutils.LogUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import static org.flowutils.Check.notNull;
+
+/**
+ * Append-only file of binary records.
+ *
+ * Each record is stored as its length, a CRC32 checksum of the data, and the data.  When a journal is replayed,
+ * an incomplete or corrupted record at the end of the file (e.g. from a crash in the middle of an append) ends the
+ * replay, and can be truncated away so that new records are appended after the last valid one.
+ *
+ * Thread safe.
+ */
+public final class Journal {
+
+    private static final int HEADER_SIZE = 8;
+
+    private final File file;
+    private final int maxRecordSize;
+
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+    private int recordCount;
+
+    /**
+     * Listener that is called for each record when replaying a journal.
+     */
+    public interface RecordHandler {
+        /**
+         * @param data the data of the record.
+         */
+        void handleRecord(byte[] data) throws IOException;
+    }
+
+    /**
+     * @param file file to append the records to.
+     * @param maxRecordSize maximum size of the data in a record.  Larger length fields are treated as corruption.
+     */
+    public Journal(File file, int maxRecordSize) {
+        notNull(file, "file");
+        Check.positive(maxRecordSize, "maxRecordSize");
+
+        this.file = file;
+        this.maxRecordSize = maxRecordSize;
+    }
+
+    /**
+     * Reads all valid records in a journal file, in the order they were written.
+     *
+     * @param file journal file to read.  If it does not exist, nothing is done.
+     * @param maxRecordSize maximum size of the data in a record.
+     * @param recordHandler called for each valid record.
+     * @param truncateInvalidTail if true, any invalid or incomplete data after the last valid record is removed from the file.
+     * @return number of valid records read.
+     * @throws IOException if the file could not be read, or if the record handler threw one.
+     */
+    public static int replay(File file, int maxRecordSize, RecordHandler recordHandler, boolean truncateInvalidTail) throws IOException {
+        notNull(file, "file");
+        notNull(recordHandler, "recordHandler");
+
+        if (!file.exists()) return 0;
+
+        final RandomAccessFile input = new RandomAccessFile(file, truncateInvalidTail ? "rw" : "r");
+        try {
+            final long length = input.length();
+            final CRC32 crc = new CRC32();
+            long validPosition = 0;
+            int count = 0;
+
+            while (validPosition + HEADER_SIZE <= length) {
+                input.seek(validPosition);
+                final int recordSize = input.readInt();
+                final int checksum = input.readInt();
+
+                // Stop at records that are not completely written or have been corrupted
+                if (recordSize < 0 || recordSize > maxRecordSize) break;
+                if (validPosition + HEADER_SIZE + recordSize > length) break;
+
+                final byte[] data = new byte[recordSize];
+                input.readFully(data);
+                crc.reset();
+                crc.update(data);
+                if ((int) crc.getValue() != checksum) break;
+
+                recordHandler.handleRecord(data);
+
+                validPosition += HEADER_SIZE + recordSize;
+                count++;
+            }
+
+            if (validPosition < length) {
+                LogUtils.getLogger().warn("Journal " + file + " has " + (length - validPosition) +
+                                          " bytes of incomplete or corrupted data after the last valid record" +
+                                          (truncateInvalidTail ? ", removing it" : ""));
+                if (truncateInvalidTail) {
+                    input.setLength(validPosition);
+                    input.getFD().sync();
+                }
+            }
+
+            return count;
+        }
+        finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Opens the journal for appending.  The file is created if it does not exist.
+     * Existing records should be replayed first, so that any invalid tail is removed.
+     *
+     * @param existingRecordCount number of records already in the file, included in the record count.
+     */
+    public synchronized void open(int existingRecordCount) throws IOException {
+        if (channel != null) throw new IllegalStateException("The journal " + file + " is already open");
+
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        channel = randomAccessFile.getChannel();
+        channel.position(channel.size());
+        recordCount = existingRecordCount;
+    }
+
+    /**
+     * Appends a record to the end of the journal.
+     *
+     * @param data data of the record.
+     * @param sync if true, waits until the record has been written to the storage device.
+     */
+    public synchronized void append(byte[] data, boolean sync) throws IOException {
+        notNull(data, "data");
+        if (data.length > maxRecordSize) throw new IllegalArgumentException("The record is " + data.length + " bytes, but the maximum record size is " + maxRecordSize);
+        ensureOpen();
+
+        final CRC32 crc = new CRC32();
+        crc.update(data);
+
+        final ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + data.length);
+        record.putInt(data.length);
+        record.putInt((int) crc.getValue());
+        record.put(data);
+        record.flip();
+
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+        recordCount++;
+
+        if (sync) sync();
+    }
+
+    /**
+     * Waits until all appended records have been written to the storage device.
+     */
+    public synchronized void sync() throws IOException {
+        ensureOpen();
+        channel.force(false);
+    }
+
+    /**
+     * Closes the journal, renames the journal file to the specified file, and opens a new empty journal file.
+     *
+     * @param rotatedFile file to move the current records to.  Must not exist.
+     */
+    public synchronized void rotate(File rotatedFile) throws IOException {
+        notNull(rotatedFile, "rotatedFile");
+        if (rotatedFile.exists()) throw new IOException("Can not rotate journal " + file + ", the file " + rotatedFile + " already exists");
+        ensureOpen();
+
+        sync();
+        close();
+
+        if (!file.renameTo(rotatedFile)) throw new IOException("Could not rename journal " + file + " to " + rotatedFile);
+
+        open(0);
+    }
+
+    /**
+     * @return number of records in the journal file.
+     */
+    public synchronized int getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * @return the journal file.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Writes any appended records to the storage device and closes the journal file.
+     */
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            try {
+                channel.force(false);
+            }
+            finally {
+                randomAccessFile.close();
+                randomAccessFile = null;
+                channel = null;
+            }
+        }
+    }
+
+    private void ensureOpen() {
+        if (channel == null) throw new IllegalStateException("The journal " + file + " is not open");
+    }
+}
@@ -0,0 +1,441 @@
+package org.messageduct.utils.storage;
+
+import org.flowutils.Check;
+import org.flowutils.LogUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import static org.flowutils.Check.notNull;
+
+/**
+ * File that stores binary records in fixed size pages, so that single records can be read, written and freed
+ * without touching the rest of the file.
+ *
+ * A record occupies a run of consecutive pages, the number of pages being a power of two (the size class of the run).
+ * Freed runs are kept in a linked list per size class, and reused by later records of the same size class.
+ * The id of a record is the index of its first page, and stays valid until the record is freed.
+ *
+ * Each record stores a sequence number that grows with each written record, so that if a crash leaves several
+ * records for the same key, the latest one can be identified.  If the file was not closed cleanly, the free lists
+ * may be inconsistent, and are rebuilt when the file is opened.
+ *
+ * Thread safe.
+ */
+public final class PagedRecordFile {
+
+    /**
+     * Default size of a page in bytes.
+     */
+    public static final int DEFAULT_PAGE_SIZE = 512;
+
+    private static final long FILE_MAGIC = 0x4D44504147455331L; // "MDPAGES1"
+    private static final int RECORD_MAGIC = 0x52454331; // "REC1"
+    private static final int FREE_MAGIC = 0x46524545; // "FREE"
+
+    private static final int SIZE_CLASS_COUNT = 16;
+    private static final int RECORD_HEADER_SIZE = 4 + 4 + 4 + 4 + 8;
+    private static final int FREE_HEADER_SIZE = 4 + 4 + 8;
+    private static final int FILE_HEADER_SIZE = 8 + 4 + 4 + 8 + 8 + 8 + SIZE_CLASS_COUNT * 8;
+    private static final long NO_PAGE = 0;
+
+    private final File file;
+    private int pageSize;
+
+    private RandomAccessFile randomAccessFile;
+    private FileChannel channel;
+
+    private long pageCount;
+    private long nextSequence;
+    private long recordCount;
+    private final long[] freeListHeads = new long[SIZE_CLASS_COUNT];
+    private boolean wasClosedCleanly;
+
+    /**
+     * Called for each record when scanning the file.
+     */
+    public interface RecordVisitor {
+        /**
+         * @param recordId id of the record.
+         * @param sequence sequence number of the record, larger for more recently written records.
+         * @param data data of the record.
+         */
+        void visitRecord(long recordId, long sequence, byte[] data) throws IOException;
+    }
+
+    /**
+     * @param file file to store the records in.
+     * @param pageSize size of a page in bytes.  Only used when the file is created, existing files use the page size
+     *                 they were created with.  Should be somewhat larger than typical records.
+     */
+    public PagedRecordFile(File file, int pageSize) {
+        notNull(file, "file");
+        Check.greaterOrEqual(pageSize, "pageSize", FILE_HEADER_SIZE, "minimum page size");
+
+        this.file = file;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Opens the file, creating it if it does not exist.
+     * If the file was not closed cleanly, all pages are scanned to rebuild the free lists.
+     */
+    public synchronized void open() throws IOException {
+        if (channel != null) throw new IllegalStateException("The record file " + file + " is already open");
+
+        final boolean exists = file.exists() && file.length() > 0;
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        channel = randomAccessFile.getChannel();
+
+        if (exists) {
+            readHeader();
+            if (!wasClosedCleanly) {
+                LogUtils.getLogger().warn("Record file " + file + " was not closed cleanly, rebuilding the free page lists");
+                rebuildFreeLists();
+            }
+        }
+        else {
+            pageCount = 1;
+            nextSequence = 1;
+            recordCount = 0;
+            wasClosedCleanly = true;
+        }
+
+        // Mark the file as open until it is closed cleanly
+        writeHeader(false);
+        channel.force(true);
+    }
+
+    /**
+     * @return true if the file was closed cleanly the last time it was used, or if it was just created.
+     *         If false, any data derived from the file (such as indexes) may be out of date.
+     */
+    public synchronized boolean wasClosedCleanly() {
+        return wasClosedCleanly;
+    }
+
+    /**
+     * Writes a new record.
+     *
+     * @param data data of the record.
+     * @return id of the new record.
+     */
+    public synchronized long write(byte[] data) throws IOException {
+        notNull(data, "data");
+        ensureOpen();
+
+        final int sizeClass = sizeClassFor(RECORD_HEADER_SIZE + data.length);
+        final long recordId = allocate(sizeClass);
+
+        final CRC32 crc = new CRC32();
+        crc.update(data);
+
+        final ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + data.length);
+        buffer.putInt(RECORD_MAGIC);
+        buffer.putInt(sizeClass);
+        buffer.putInt(data.length);
+        buffer.putInt((int) crc.getValue());
+        buffer.putLong(nextSequence++);
+        buffer.put(data);
+        buffer.flip();
+        writeFully(buffer, recordId * pageSize);
+
+        recordCount++;
+        writeHeader(false);
+
+        return recordId;
+    }
+
+    /**
+     * @param recordId id of a record returned by write.
+     * @return the data of the record.
+     * @throws IOException if there is no valid record with the specified id.
+     */
+    public synchronized byte[] read(long recordId) throws IOException {
+        ensureOpen();
+        if (recordId <= 0 || recordId >= pageCount) throw new IOException("Invalid record id " + recordId + " in " + file);
+
+        final ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        readFully(header, recordId * pageSize);
+        header.flip();
+
+        final int magic = header.getInt();
+        final int sizeClass = header.getInt();
+        final int length = header.getInt();
+        final int checksum = header.getInt();
+        if (magic != RECORD_MAGIC || sizeClass < 0 || sizeClass >= SIZE_CLASS_COUNT ||
+            length < 0 || RECORD_HEADER_SIZE + length > pagesInClass(sizeClass) * pageSize) {
+            throw new IOException("No valid record with id " + recordId + " in " + file);
+        }
+
+        final ByteBuffer data = ByteBuffer.allocate(length);
+        readFully(data, recordId * pageSize + RECORD_HEADER_SIZE);
+
+        final CRC32 crc = new CRC32();
+        crc.update(data.array());
+        if ((int) crc.getValue() != checksum) throw new IOException("Record " + recordId + " in " + file + " is corrupted");
+
+        return data.array();
+    }
+
+    /**
+     * Frees the pages used by a record, so that they can be reused for other records.
+     *
+     * @param recordId id of a record returned by write.
+     */
+    public synchronized void free(long recordId) throws IOException {
+        ensureOpen();
+        if (recordId <= 0 || recordId >= pageCount) throw new IOException("Invalid record id " + recordId + " in " + file);
+
+        final ByteBuffer header = ByteBuffer.allocate(8);
+        readFully(header, recordId * pageSize);
+        header.flip();
+        final int magic = header.getInt();
+        final int sizeClass = header.getInt();
+        if (magic != RECORD_MAGIC || sizeClass < 0 || sizeClass >= SIZE_CLASS_COUNT) {
+            throw new IOException("No valid record with id " + recordId + " in " + file);
+        }
+
+        addToFreeList(recordId, sizeClass);
+        recordCount--;
+        writeHeader(false);
+    }
+
+    /**
+     * Calls the visitor for each valid record in the file, in the order they are stored in the file.
+     */
+    public synchronized void scan(RecordVisitor visitor) throws IOException {
+        notNull(visitor, "visitor");
+        ensureOpen();
+
+        long page = 1;
+        while (page < pageCount) {
+            final int sizeClass = runSizeClass(page);
+            if (sizeClass >= 0 && isRecord(page)) {
+                final long sequence = readSequence(page);
+                visitor.visitRecord(page, sequence, read(page));
+            }
+            page += sizeClass >= 0 ? pagesInClass(sizeClass) : 1;
+        }
+    }
+
+    /**
+     * @return number of records currently in the file.
+     */
+    public synchronized long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * @return number of pages in the file, including the header page and free pages.
+     */
+    public synchronized long getPageCount() {
+        return pageCount;
+    }
+
+    /**
+     * @return the file the records are stored in.
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Waits until all written data has been written to the storage device.
+     */
+    public void sync() throws IOException {
+        final FileChannel currentChannel;
+        synchronized (this) {
+            ensureOpen();
+            currentChannel = channel;
+        }
+
+        // Other threads may keep reading and writing while this thread waits for the storage device
+        currentChannel.force(false);
+    }
+
+    /**
+     * Marks the file as cleanly closed and closes it.
+     */
+    public synchronized void close() throws IOException {
+        if (channel != null) {
+            try {
+                channel.force(false);
+                writeHeader(true);
+                channel.force(true);
+            }
+            finally {
+                randomAccessFile.close();
+                randomAccessFile = null;
+                channel = null;
+            }
+        }
+    }
+
+    private long allocate(int sizeClass) throws IOException {
+        final long head = freeListHeads[sizeClass];
+        if (head != NO_PAGE) {
+            // Reuse a freed run
+            final ByteBuffer freeHeader = ByteBuffer.allocate(FREE_HEADER_SIZE);
+            readFully(freeHeader, head * pageSize);
+            freeHeader.flip();
+            if (freeHeader.getInt() != FREE_MAGIC || freeHeader.getInt() != sizeClass) {
+                throw new IOException("The free page list of " + file + " is corrupted at page " + head);
+            }
+            freeListHeads[sizeClass] = freeHeader.getLong();
+            return head;
+        }
+        else {
+            // Append to the end of the file
+            final long page = pageCount;
+            pageCount += pagesInClass(sizeClass);
+            return page;
+        }
+    }
+
+    private void addToFreeList(long page, int sizeClass) throws IOException {
+        final ByteBuffer freeHeader = ByteBuffer.allocate(FREE_HEADER_SIZE);
+        freeHeader.putInt(FREE_MAGIC);
+        freeHeader.putInt(sizeClass);
+        freeHeader.putLong(freeListHeads[sizeClass]);
+        freeHeader.flip();
+        writeFully(freeHeader, page * pageSize);
+
+        freeListHeads[sizeClass] = page;
+    }
+
+    private void rebuildFreeLists() throws IOException {
+        for (int i = 0; i < SIZE_CLASS_COUNT; i++) {
+            freeListHeads[i] = NO_PAGE;
+        }
+        recordCount = 0;
+
+        // Pages may have been allocated after the header was last written
+        pageCount = Math.max(pageCount, (channel.size() + pageSize - 1) / pageSize);
+
+        long page = 1;
+        while (page < pageCount) {
+            final int sizeClass = runSizeClass(page);
+            if (sizeClass >= 0 && page + pagesInClass(sizeClass) <= pageCount) {
+                if (isRecord(page)) {
+                    nextSequence = Math.max(nextSequence, readSequence(page) + 1);
+                    recordCount++;
+                }
+                else {
+                    addToFreeList(page, sizeClass);
+                }
+                page += pagesInClass(sizeClass);
+            }
+            else {
+                // Unknown content, e.g. a record that was being written when the program stopped
+                addToFreeList(page, 0);
+                page++;
+            }
+        }
+    }
+
+    /**
+     * @return size class of the run starting at the page, or -1 if the page does not start a record or free run.
+     */
+    private int runSizeClass(long page) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(8);
+        readFully(header, page * pageSize);
+        header.flip();
+        final int magic = header.getInt();
+        final int sizeClass = header.getInt();
+        if ((magic == RECORD_MAGIC || magic == FREE_MAGIC) && sizeClass >= 0 && sizeClass < SIZE_CLASS_COUNT) {
+            return sizeClass;
+        }
+        else {
+            return -1;
+        }
+    }
+
+    private boolean isRecord(long page) throws IOException {
+        try {
+            read(page);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private long readSequence(long page) throws IOException {
+        final ByteBuffer sequence = ByteBuffer.allocate(8);
+        readFully(sequence, page * pageSize + RECORD_HEADER_SIZE - 8);
+        sequence.flip();
+        return sequence.getLong();
+    }
+
+    private int sizeClassFor(int size) {
+        final long pagesNeeded = (size + pageSize - 1) / pageSize;
+        for (int sizeClass = 0; sizeClass < SIZE_CLASS_COUNT; sizeClass++) {
+            if (pagesInClass(sizeClass) >= pagesNeeded) return sizeClass;
+        }
+        throw new IllegalArgumentException("The record is " + size + " bytes, but the maximum record size is " +
+                                           pagesInClass(SIZE_CLASS_COUNT - 1) * pageSize + " bytes");
+    }
+
+    private static long pagesInClass(int sizeClass) {
+        return 1L << sizeClass;
+    }
+
+    private void readHeader() throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        readFully(header, 0);
+        header.flip();
+
+        if (header.getLong() != FILE_MAGIC) throw new IOException("The file " + file + " is not a paged record file");
+        final int storedPageSize = header.getInt();
+        if (storedPageSize < FILE_HEADER_SIZE) throw new IOException("The file " + file + " has an invalid page size " + storedPageSize);
+        pageSize = storedPageSize;
+        wasClosedCleanly = header.getInt() != 0;
+        pageCount = header.getLong();
+        nextSequence = header.getLong();
+        recordCount = header.getLong();
+        for (int i = 0; i < SIZE_CLASS_COUNT; i++) {
+            freeListHeads[i] = header.getLong();
+        }
+    }
+
+    private void writeHeader(boolean closed) throws IOException {
+        final ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        header.putLong(FILE_MAGIC);
+        header.putInt(pageSize);
+        header.putInt(closed ? 1 : 0);
+        header.putLong(pageCount);
+        header.putLong(nextSequence);
+        header.putLong(recordCount);
+        for (int i = 0; i < SIZE_CLASS_COUNT; i++) {
+            header.putLong(freeListHeads[i]);
+        }
+        header.flip();
+        writeFully(header, 0);
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position);
+            if (read < 0) {
+                // Pages past the end of the file read as zeroes
+                while (buffer.hasRemaining()) buffer.put((byte) 0);
+                return;
+            }
+            position += read;
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private void ensureOpen() {
+        if (channel == null) throw new IllegalStateException("The record file " + file + " is not open");
+    }
+}
@@ -0,0 +1,251 @@
+package org.messageduct.utils.storage;
+
+import org.flowutils.Check;
+import org.messageduct.utils.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import static org.flowutils.Check.notNull;
+
+/**
+ * Storage for maps that splits the map into several shards by the hash of the keys, and stores each shard in its own
+ * FileStorage (so each shard is also encrypted separately if a password is used).
+ *
+ * The shards are loaded in parallel.  Callers that keep track of which keys they changed can use markChanged and
+ * saveChanged to rewrite only the shards containing changed keys.
+ *
+ * The shard files are named after the main file, with the shard number and shard count appended.  If the main file
+ * exists, the map is loaded from it instead of the shards, so existing FileStorage data can be converted.  The main
+ * file is renamed with a ".converted" suffix only after every shard has been saved, so a conversion that fails or is
+ * interrupted part way loads from the main file again on the next start, and no data is lost.  Changing the shard
+ * count later requires converting the data in the same way.
+ */
+public final class ShardedMapStorage extends SynchronizedStorage {
+
+    private final File file;
+    private final File convertedFile;
+    private final FileStorage[] shards;
+    private final File[] shardFiles;
+    private final char[] password;
+
+    // Non-zero for shards with unsaved changes
+    private final AtomicIntegerArray changedShards;
+
+    /**
+     * Creates a new sharded map storage.
+     *
+     * @param file main file name.  The shards are stored next to it.
+     * @param password password to use for encrypting the shards.  If null, no encryption is done.
+     * @param shardCount number of shards to split the map into.
+     */
+    public ShardedMapStorage(File file, char[] password, int shardCount) {
+        notNull(file, "file");
+        Check.positive(shardCount, "shardCount");
+
+        this.file = file;
+        this.convertedFile = new File(file.getPath() + ".converted");
+        this.password = password;
+        shards = new FileStorage[shardCount];
+        shardFiles = new File[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shardFiles[i] = new File(file.getPath() + "." + (i + 1) + "of" + shardCount);
+            shards[i] = new FileStorage(shardFiles[i], password);
+        }
+
+        // Nothing has been saved yet
+        changedShards = new AtomicIntegerArray(shardCount);
+        markAllChanged();
+    }
+
+    /**
+     * @return number of shards the map is split into.
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Notes that the entry with the specified key was changed, so that the next saveChanged saves its shard.
+     * Should be called after changing the map.
+     */
+    public void markChanged(Object key) {
+        changedShards.set(shardOf(key), 1);
+    }
+
+    /**
+     * Saves the shards with keys passed to markChanged since the last save, or all shards if the map has not
+     * been saved or loaded yet.
+     *
+     * @param map map to save.  May be a concurrent map that is changed by other threads during the save.
+     */
+    public void saveChanged(Map<?, ?> map) throws IOException {
+        notNull(map, "map");
+        save(new ChangedShards(map));
+    }
+
+    /**
+     * Saves all shards of the map.
+     *
+     * @param object a Map to save.  May be a concurrent map that is changed by other threads during the save.
+     */
+    @Override protected void doSave(Object object) throws IOException {
+        final Map<?, ?> map;
+        final boolean[] shardsToSave = new boolean[shards.length];
+        if (object instanceof ChangedShards) {
+            map = ((ChangedShards) object).map;
+            for (int i = 0; i < shards.length; i++) {
+                // Clear the flag before copying, so that changes made during the copy are saved next time
+                shardsToSave[i] = changedShards.getAndSet(i, 0) != 0;
+            }
+        }
+        else if (object instanceof Map) {
+            map = (Map<?, ?>) object;
+            for (int i = 0; i < shards.length; i++) {
+                changedShards.set(i, 0);
+                shardsToSave[i] = true;
+            }
+        }
+        else {
+            throw new IllegalArgumentException("Only maps can be stored in a ShardedMapStorage, but got " + object);
+        }
+
+        // Split the entries of the shards to save
+        final List<Map<Object, Object>> shardMaps = new ArrayList<Map<Object, Object>>(shards.length);
+        for (int i = 0; i < shards.length; i++) {
+            shardMaps.add(shardsToSave[i] ? new HashMap<Object, Object>() : null);
+        }
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            final Map<Object, Object> shardMap = shardMaps.get(shardOf(entry.getKey()));
+            if (shardMap != null) shardMap.put(entry.getKey(), entry.getValue());
+        }
+
+        for (int i = 0; i < shards.length; i++) {
+            if (shardsToSave[i]) {
+                try {
+                    shards[i].save(shardMaps.get(i));
+                } catch (IOException e) {
+                    // Try again on the next save
+                    for (int j = i; j < shards.length; j++) {
+                        if (shardsToSave[j]) changedShards.set(j, 1);
+                    }
+                    throw e;
+                }
+            }
+        }
+
+        // Once every shard has been saved, the shards replace the unsharded data
+        if (file.exists() && allShardsSaved()) {
+            FileUtils.replaceAtomically(file, convertedFile);
+        }
+    }
+
+    @Override protected <T> T doLoad() throws IOException {
+        final Map<Object, Object> result = new HashMap<Object, Object>();
+
+        // Unsharded data is used until all shards have been saved from it
+        if (file.exists()) {
+            final Map<?, ?> unshardedMap = new FileStorage(file, password).load();
+            if (unshardedMap != null) result.putAll(unshardedMap);
+            markAllChanged();
+            return (T) result;
+        }
+
+        if (!anyShardExists()) return null;
+
+        // Load the shards in parallel
+        final ExecutorService loader = Executors.newFixedThreadPool(Math.min(shards.length, Runtime.getRuntime().availableProcessors()));
+        try {
+            final List<Future<Map<?, ?>>> loadedShards = new ArrayList<Future<Map<?, ?>>>(shards.length);
+            for (final FileStorage shard : shards) {
+                loadedShards.add(loader.submit(new Callable<Map<?, ?>>() {
+                    @Override public Map<?, ?> call() throws Exception {
+                        return shard.load();
+                    }
+                }));
+            }
+
+            for (int i = 0; i < shards.length; i++) {
+                final Map<?, ?> shardMap = getLoadedShard(loadedShards.get(i), i);
+                if (shardMap != null) result.putAll(shardMap);
+
+                // Missing shard files are created on the next save
+                changedShards.set(i, shardMap == null ? 1 : 0);
+            }
+        }
+        finally {
+            loader.shutdown();
+        }
+
+        return (T) result;
+    }
+
+    private Map<?, ?> getLoadedShard(Future<Map<?, ?>> loadedShard, int shardIndex) throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return loadedShard.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    if (cause instanceof IOException) throw (IOException) cause;
+                    throw new IOException("Problem when loading shard " + shardFiles[shardIndex] + ": " + cause.getMessage(), cause);
+                }
+            }
+        }
+        finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean anyShardExists() {
+        for (File shardFile : shardFiles) {
+            if (shardFile.exists()) return true;
+        }
+        return false;
+    }
+
+    private boolean allShardsSaved() {
+        for (int i = 0; i < shards.length; i++) {
+            if (changedShards.get(i) != 0 || !shardFiles[i].exists()) return false;
+        }
+        return true;
+    }
+
+    private void markAllChanged() {
+        for (int i = 0; i < shards.length; i++) {
+            changedShards.set(i, 1);
+        }
+    }
+
+    private int shardOf(Object key) {
+        // Spread the hash bits, as String hashes of similar keys differ mostly in the low bits
+        int hash = key == null ? 0 : key.hashCode();
+        hash ^= (hash >>> 20) ^ (hash >>> 12);
+        hash ^= (hash >>> 7) ^ (hash >>> 4);
+        return (hash & Integer.MAX_VALUE) % shards.length;
+    }
+
+    /**
+     * Marks a save of only the changed shards.
+     */
+    private static final class ChangedShards {
+        private final Map<?, ?> map;
+
+        private ChangedShards(Map<?, ?> map) {
+            this.map = map;
+        }
+    }
+}
@@ -0,0 +1,428 @@
+package org.messageduct.utils.storage;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.modes.GCMBlockCipher;
+import org.bouncycastle.crypto.params.AEADParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.flowutils.Check;
+import org.messageduct.utils.FileUtils;
+import org.messageduct.utils.encryption.AesEncryption;
+import org.messageduct.utils.encryption.ScrubbableSecretKey;
+import org.messageduct.utils.serializer.KryoPool;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.zip.CRC32;
+
+import static org.flowutils.Check.notNull;
+
+/**
+ * Storage that streams the serialized object through a chunked cipher directly into the file, so that neither the
+ * serialized nor the encrypted form of the whole object needs to be held in memory when saving or loading.
+ *
+ * The data is written in chunks.  When a password is used, each chunk is encrypted and authenticated with AES-GCM,
+ * using the chunk number as part of the nonce and authenticated data, so that modified, reordered or missing chunks
+ * are detected.  Without a password each chunk has a CRC32 checksum.  The end of the data is marked by an empty final
+ * chunk, so truncated files are detected as well.  Because every chunk is verified when read, the written file is not
+ * read back after saving.
+ *
+ * The key is derived from the password with a random salt stored in the file header.  The derived key is kept and
+ * reused for later saves and loads of the same file, so the key derivation is only done once.
+ *
+ * Uses a temporary file to avoid corruption if the program is aborted in the middle of writing.
+ * Synchronizes save and load access, so can be used from multiple threads.
+ */
+public final class StreamingFileStorage extends SynchronizedStorage {
+
+    /**
+     * Default size of the chunks in bytes.
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    private static final long FILE_MAGIC = 0x4D4453545245414DL; // "MDSTREAM"
+    private static final int FORMAT_VERSION = 1;
+    private static final int SALT_LENGTH = 16;
+    private static final int NONCE_PREFIX_LENGTH = 8;
+    private static final int HEADER_SIZE = 8 + 4 + 4 + 1 + SALT_LENGTH + NONCE_PREFIX_LENGTH;
+    private static final int CHUNK_HEADER_SIZE = 4 + 4;
+    private static final int TAG_LENGTH_BITS = 128;
+    private static final int TAG_LENGTH_BYTES = TAG_LENGTH_BITS / 8;
+    private static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+
+    private static final SecureRandom SECURE_RANDOM = new SecureRandom();
+    private static final AesEncryption ENCRYPTION = new AesEncryption();
+
+    private final File file;
+    private final File tempFile;
+    private final char[] password;
+    private final int chunkSize;
+    private final KryoPool kryoPool = KryoPool.getSharedPool(false, Collections.<Class>emptyList(), Integer.MAX_VALUE);
+
+    // Key derived from the password, and the salt it was derived with
+    private byte[] keySalt;
+    private ScrubbableSecretKey key;
+    private final Object keyLock = new Object();
+
+    /**
+     * Creates a new streaming file storage with no encryption.
+     *
+     * @param file file to save the data to.
+     */
+    public StreamingFileStorage(File file) {
+        this(file, null);
+    }
+
+    /**
+     * Creates a new streaming file storage with the default chunk size.
+     *
+     * @param file file to save the data to.
+     * @param password password to use for encrypting the file.  If null, no encryption is done.
+     */
+    public StreamingFileStorage(File file, char[] password) {
+        this(file, password, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Creates a new streaming file storage.
+     *
+     * @param file file to save the data to.
+     * @param password password to use for encrypting the file.  If null, no encryption is done.
+     * @param chunkSize size of the chunks the data is encrypted in.  Determines the memory used when saving and loading.
+     */
+    public StreamingFileStorage(File file, char[] password, int chunkSize) {
+        notNull(file, "file");
+        Check.positive(chunkSize, "chunkSize");
+        Check.greaterOrEqual(MAX_CHUNK_SIZE, "maximum chunk size", chunkSize, "chunkSize");
+
+        this.file = file;
+        this.tempFile = new File(file.getPath() + ".temp");
+        this.password = password;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Overwrites the cached encryption key in memory.  It is derived again from the password if the storage is used later.
+     */
+    public void clearCachedKey() {
+        synchronized (keyLock) {
+            if (key != null) key.scrub();
+            key = null;
+            keySalt = null;
+        }
+    }
+
+    @Override protected void doSave(Object object) throws IOException {
+        final boolean encrypted = password != null;
+        final byte[] salt;
+        final KeyParameter keyParameter;
+        if (encrypted) {
+            synchronized (keyLock) {
+                if (keySalt == null) {
+                    // First save with no loaded file, pick a salt for this file
+                    final byte[] newSalt = new byte[SALT_LENGTH];
+                    SECURE_RANDOM.nextBytes(newSalt);
+                    deriveKey(newSalt);
+                }
+                salt = keySalt;
+                keyParameter = new KeyParameter(key.getEncoded());
+            }
+        }
+        else {
+            salt = new byte[SALT_LENGTH];
+            keyParameter = null;
+        }
+
+        final byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+        SECURE_RANDOM.nextBytes(noncePrefix);
+
+        final RandomAccessFile output = new RandomAccessFile(tempFile, "rw");
+        try {
+            output.setLength(0);
+            final FileChannel channel = output.getChannel();
+
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putLong(FILE_MAGIC);
+            header.putInt(FORMAT_VERSION);
+            header.putInt(chunkSize);
+            header.put((byte) (encrypted ? 1 : 0));
+            header.put(salt);
+            header.put(noncePrefix);
+            header.flip();
+            writeFully(channel, header);
+
+            final ChunkOutputStream chunkOutput = new ChunkOutputStream(channel, keyParameter, noncePrefix, chunkSize);
+            kryoPool.serialize(object, chunkOutput);
+            chunkOutput.finish();
+
+            // Make sure the data is on the storage device before it replaces the old file
+            channel.force(true);
+        }
+        finally {
+            output.close();
+        }
+
+        // Replace the old file
+        FileUtils.replaceAtomically(tempFile, file);
+    }
+
+    @Override protected <T> T doLoad() throws IOException {
+        // If there is no file, the storage has not yet been used
+        if (!file.exists()) return null;
+
+        final RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            final FileChannel channel = input.getChannel();
+
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel, header);
+            header.flip();
+            if (header.getLong() != FILE_MAGIC) throw new IOException("The file " + file + " is not a streaming storage file");
+            final int version = header.getInt();
+            if (version != FORMAT_VERSION) throw new IOException("Unsupported format version " + version + " in " + file);
+            final int fileChunkSize = header.getInt();
+            if (fileChunkSize <= 0 || fileChunkSize > MAX_CHUNK_SIZE) throw new IOException("Invalid chunk size " + fileChunkSize + " in " + file);
+            final boolean encrypted = header.get() != 0;
+            final byte[] salt = new byte[SALT_LENGTH];
+            header.get(salt);
+            final byte[] noncePrefix = new byte[NONCE_PREFIX_LENGTH];
+            header.get(noncePrefix);
+
+            KeyParameter keyParameter = null;
+            if (encrypted) {
+                if (password == null) throw new IOException("The file " + file + " is encrypted, but no password was given");
+
+                // Reuse the derived key if the file was saved with it
+                synchronized (keyLock) {
+                    if (keySalt == null || !Arrays.equals(keySalt, salt)) deriveKey(salt);
+                    keyParameter = new KeyParameter(key.getEncoded());
+                }
+            }
+            else if (password != null) {
+                throw new IOException("The file " + file + " is not encrypted, but a password was given");
+            }
+
+            final ChunkInputStream chunkInput = new ChunkInputStream(channel, keyParameter, noncePrefix, fileChunkSize);
+            final T object = kryoPool.deserialize(chunkInput);
+            chunkInput.verifyEnd();
+            return object;
+        }
+        finally {
+            input.close();
+        }
+    }
+
+    private void deriveKey(byte[] salt) {
+        if (key != null) key.scrub();
+        key = new ScrubbableSecretKey(ENCRYPTION.generateSecretKeyFromPassword(password, salt));
+        keySalt = salt;
+    }
+
+    private static GCMBlockCipher createCipher(boolean encrypt, KeyParameter key, byte[] noncePrefix, int chunkIndex, boolean last) {
+        // The nonce is unique for each chunk of each save, and the authenticated data ties the chunk to its position
+        final byte[] nonce = Arrays.copyOf(noncePrefix, NONCE_PREFIX_LENGTH + 4);
+        ByteBuffer.wrap(nonce, NONCE_PREFIX_LENGTH, 4).putInt(chunkIndex);
+        final byte[] associatedData = ByteBuffer.allocate(5).putInt(chunkIndex).put((byte) (last ? 1 : 0)).array();
+
+        final GCMBlockCipher cipher = new GCMBlockCipher(new AESEngine());
+        cipher.init(encrypt, new AEADParameters(key, TAG_LENGTH_BITS, nonce, associatedData));
+        return cipher;
+    }
+
+    private static int checksum(byte[] data, int length) {
+        final CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        return (int) crc.getValue();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) throw new IOException("Unexpected end of file, the storage file is truncated");
+        }
+    }
+
+    /**
+     * Collects written data into chunks, and writes each chunk to the file when it is full.
+     * A chunk is stored as its plaintext length, a checksum (unencrypted) or zero (encrypted), and the chunk data
+     * (followed by the authentication tag if encrypted).
+     */
+    private static final class ChunkOutputStream extends OutputStream {
+        private final FileChannel channel;
+        private final KeyParameter key;
+        private final byte[] noncePrefix;
+        private final byte[] chunk;
+        private final ByteBuffer chunkBuffer;
+        private int chunkLength;
+        private int chunkIndex;
+
+        private ChunkOutputStream(FileChannel channel, KeyParameter key, byte[] noncePrefix, int chunkSize) {
+            this.channel = channel;
+            this.key = key;
+            this.noncePrefix = noncePrefix;
+            this.chunk = new byte[chunkSize];
+            this.chunkBuffer = ByteBuffer.allocate(CHUNK_HEADER_SIZE + chunkSize + TAG_LENGTH_BYTES);
+        }
+
+        @Override public void write(int b) throws IOException {
+            if (chunkLength == chunk.length) writeChunk(false);
+            chunk[chunkLength++] = (byte) b;
+        }
+
+        @Override public void write(byte[] data, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (chunkLength == chunk.length) writeChunk(false);
+
+                final int count = Math.min(length, chunk.length - chunkLength);
+                System.arraycopy(data, offset, chunk, chunkLength, count);
+                chunkLength += count;
+                offset += count;
+                length -= count;
+            }
+        }
+
+        /**
+         * Writes any remaining data and the final empty chunk.
+         */
+        private void finish() throws IOException {
+            if (chunkLength > 0) writeChunk(false);
+            writeChunk(true);
+        }
+
+        private void writeChunk(boolean last) throws IOException {
+            chunkBuffer.clear();
+            chunkBuffer.putInt(chunkLength);
+
+            if (key != null) {
+                chunkBuffer.putInt(0);
+                final GCMBlockCipher cipher = createCipher(true, key, noncePrefix, chunkIndex, last);
+                final byte[] output = chunkBuffer.array();
+                try {
+                    int length = cipher.processBytes(chunk, 0, chunkLength, output, CHUNK_HEADER_SIZE);
+                    length += cipher.doFinal(output, CHUNK_HEADER_SIZE + length);
+                    chunkBuffer.position(CHUNK_HEADER_SIZE + length);
+                } catch (InvalidCipherTextException e) {
+                    throw new IllegalStateException("Problem when encrypting data: " + e.getMessage(), e);
+                }
+            }
+            else {
+                chunkBuffer.putInt(checksum(chunk, chunkLength));
+                chunkBuffer.put(chunk, 0, chunkLength);
+            }
+
+            chunkBuffer.flip();
+            writeFully(channel, chunkBuffer);
+
+            chunkLength = 0;
+            chunkIndex++;
+        }
+    }
+
+    /**
+     * Reads and verifies chunks written by ChunkOutputStream.
+     */
+    private static final class ChunkInputStream extends InputStream {
+        private final FileChannel channel;
+        private final KeyParameter key;
+        private final byte[] noncePrefix;
+        private final int chunkSize;
+        private final byte[] chunk;
+        private final ByteBuffer chunkBuffer;
+        private int chunkLength;
+        private int chunkPosition;
+        private int chunkIndex;
+        private boolean endReached;
+
+        private ChunkInputStream(FileChannel channel, KeyParameter key, byte[] noncePrefix, int chunkSize) {
+            this.channel = channel;
+            this.key = key;
+            this.noncePrefix = noncePrefix;
+            this.chunkSize = chunkSize;
+            this.chunk = new byte[chunkSize + TAG_LENGTH_BYTES];
+            this.chunkBuffer = ByteBuffer.allocate(CHUNK_HEADER_SIZE + chunkSize + TAG_LENGTH_BYTES);
+        }
+
+        @Override public int read() throws IOException {
+            if (!ensureData()) return -1;
+            return chunk[chunkPosition++] & 0xFF;
+        }
+
+        @Override public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) return 0;
+            if (!ensureData()) return -1;
+
+            final int count = Math.min(length, chunkLength - chunkPosition);
+            System.arraycopy(chunk, chunkPosition, buffer, offset, count);
+            chunkPosition += count;
+            return count;
+        }
+
+        /**
+         * Checks that all data was read and the final chunk is present, so that the file was not truncated.
+         */
+        private void verifyEnd() throws IOException {
+            if (chunkPosition < chunkLength || (!endReached && ensureData())) {
+                throw new IOException("The storage file contains more data than expected");
+            }
+        }
+
+        /**
+         * @return true if there is data to read, false if the final chunk was reached.
+         */
+        private boolean ensureData() throws IOException {
+            while (chunkPosition == chunkLength) {
+                if (endReached) return false;
+                readChunk();
+            }
+            return true;
+        }
+
+        private void readChunk() throws IOException {
+            final ByteBuffer chunkHeader = ByteBuffer.allocate(CHUNK_HEADER_SIZE);
+            readFully(channel, chunkHeader);
+            chunkHeader.flip();
+            final int length = chunkHeader.getInt();
+            final int checksum = chunkHeader.getInt();
+            if (length < 0 || length > chunkSize) throw new IOException("The storage file is corrupted, invalid chunk length " + length);
+
+            final boolean last = length == 0;
+            final int storedLength = key != null ? length + TAG_LENGTH_BYTES : length;
+            chunkBuffer.clear();
+            chunkBuffer.limit(storedLength);
+            readFully(channel, chunkBuffer);
+
+            if (key != null) {
+                final GCMBlockCipher cipher = createCipher(false, key, noncePrefix, chunkIndex, last);
+                try {
+                    int decryptedLength = cipher.processBytes(chunkBuffer.array(), 0, storedLength, chunk, 0);
+                    decryptedLength += cipher.doFinal(chunk, decryptedLength);
+                    if (decryptedLength != length) throw new IOException("The storage file is corrupted, wrong chunk length");
+                } catch (InvalidCipherTextException e) {
+                    throw new IOException("Wrong password, or the storage file is corrupted: " + e.getMessage(), e);
+                }
+            }
+            else {
+                System.arraycopy(chunkBuffer.array(), 0, chunk, 0, length);
+                if (checksum(chunk, length) != checksum) throw new IOException("The storage file is corrupted, chunk " + chunkIndex + " has a wrong checksum");
+            }
+
+            chunkLength = length;
+            chunkPosition = 0;
+            chunkIndex++;
+            endReached = last;
+        }
+    }
+}
@@ -0,0 +1,306 @@
+package org.messageduct;
+
+import io.netty.channel.ChannelConfig;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.DefaultChannelConfig;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+import org.messageduct.account.DefaultAccountService;
+import org.messageduct.account.persistence.MemoryAccountPersistence;
+import org.messageduct.common.DefaultNetworkConfig;
+import org.messageduct.common.netty.EncryptionCodec;
+import org.messageduct.server.netty.AcceptFilterHandler;
+import org.messageduct.server.netty.NettyServerNetworking;
+import org.messageduct.serverinfo.DefaultServerInfo;
+import org.messageduct.utils.banlist.DefaultBanList;
+import org.messageduct.utils.encryption.RsaEncryption;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the filtering of new connections on the server.
+ */
+public class AcceptFilterHandlerTest {
+
+    private static final int TEST_PORT = DefaultNetworkConfig.DEFAULT_PORT + 1;
+
+    private static final File BANLIST_FILE = new File("AcceptFilterHandlerTest.db");
+    private static final File JOURNAL_FILE = new File("AcceptFilterHandlerTest.db.journal");
+
+    @Test
+    public void testBannedIpRejected() throws Exception {
+        deleteBanListFiles();
+        final DefaultBanList banList = new DefaultBanList(BANLIST_FILE);
+        banList.banIp(InetAddress.getByName("192.168.7.7"));
+
+        final DefaultNetworkConfig networkConfig = new DefaultNetworkConfig();
+        final AcceptFilterHandler acceptFilterHandler = createAcceptFilterHandler(networkConfig, banList);
+        final EmbeddedChannel serverChannel = new EmbeddedChannel(acceptFilterHandler);
+
+        // Banned IP is reset, and not passed on to get the pipeline handlers of a client connection
+        final TestConnection bannedConnection = new TestConnection("192.168.7.7");
+        serverChannel.writeInbound(bannedConnection);
+        assertNull("Banned connection should not be passed on", serverChannel.readInbound());
+        assertFalse("Banned connection should be closed", bannedConnection.isOpen());
+        assertEquals("Banned connection should be reset", Integer.valueOf(0), bannedConnection.getLinger());
+        assertEquals(1, acceptFilterHandler.getRejectedConnectionCount());
+        assertEquals(0, acceptFilterHandler.getConnectionCount());
+
+        // Other IPs are admitted
+        final TestConnection connection = new TestConnection("192.168.7.8");
+        serverChannel.writeInbound(connection);
+        assertSame("Connection from another IP should be passed on", connection, serverChannel.readInbound());
+        assertTrue(connection.isOpen());
+        assertNull("Admitted connection should not be reset", connection.getLinger());
+        assertEquals(1, acceptFilterHandler.getRejectedConnectionCount());
+        assertEquals(1, acceptFilterHandler.getConnectionCount());
+
+        connection.close();
+        serverChannel.finish();
+        deleteBanListFiles();
+    }
+
+    @Test
+    public void testConnectionLimits() throws Exception {
+        final DefaultNetworkConfig networkConfig = new DefaultNetworkConfig();
+        networkConfig.setEncryptionEnabled(false);
+        networkConfig.setMaxNewConnectionsPerSecond(0);
+        networkConfig.setMaxConnectionsPerIp(2);
+        networkConfig.setMaxConnections(3);
+        final AcceptFilterHandler acceptFilterHandler = createAcceptFilterHandler(networkConfig, null);
+        final EmbeddedChannel serverChannel = new EmbeddedChannel(acceptFilterHandler);
+
+        // Limit per IP
+        final TestConnection first = connect(serverChannel, "192.168.7.1", true);
+        final TestConnection second = connect(serverChannel, "192.168.7.1", true);
+        connect(serverChannel, "192.168.7.1", false);
+        assertEquals(1, acceptFilterHandler.getRejectedConnectionCount());
+
+        // Limit for the whole server
+        final TestConnection third = connect(serverChannel, "192.168.7.2", true);
+        connect(serverChannel, "192.168.7.3", false);
+        assertEquals(2, acceptFilterHandler.getRejectedConnectionCount());
+        assertEquals(3, acceptFilterHandler.getConnectionCount());
+        assertEquals(2, acceptFilterHandler.getConnectedIpCount());
+
+        // Closed connections free their places
+        first.close();
+        second.close();
+        assertEquals(1, acceptFilterHandler.getConnectionCount());
+        assertEquals("IP without connections should be forgotten", 1, acceptFilterHandler.getConnectedIpCount());
+        final TestConnection fourth = connect(serverChannel, "192.168.7.1", true);
+
+        third.close();
+        fourth.close();
+        assertEquals(0, acceptFilterHandler.getConnectionCount());
+        assertEquals(0, acceptFilterHandler.getConnectedIpCount());
+        assertEquals(2, acceptFilterHandler.getRejectedConnectionCount());
+
+        serverChannel.finish();
+    }
+
+    @Test
+    public void testIpv6ConnectionLimit() throws Exception {
+        final DefaultNetworkConfig networkConfig = new DefaultNetworkConfig();
+        networkConfig.setEncryptionEnabled(false);
+        networkConfig.setMaxNewConnectionsPerSecond(0);
+        networkConfig.setMaxConnectionsPerIp(2);
+        final AcceptFilterHandler acceptFilterHandler = createAcceptFilterHandler(networkConfig, null);
+        final EmbeddedChannel serverChannel = new EmbeddedChannel(acceptFilterHandler);
+
+        // Addresses in the same /64 network share the limit
+        final TestConnection first = connect(serverChannel, "2001:db8:7:7::1", true);
+        final TestConnection second = connect(serverChannel, "2001:db8:7:7:abcd::2", true);
+        connect(serverChannel, "2001:db8:7:7:ffff::3", false);
+
+        // Other networks have their own limit
+        final TestConnection otherNetwork = connect(serverChannel, "2001:db8:7:8::1", true);
+        assertEquals(2, acceptFilterHandler.getConnectedIpCount());
+
+        first.close();
+        second.close();
+        otherNetwork.close();
+        assertEquals(0, acceptFilterHandler.getConnectedIpCount());
+        assertEquals(1, acceptFilterHandler.getRejectedConnectionCount());
+
+        serverChannel.finish();
+    }
+
+    @Test
+    public void testHandshakeLimit() throws Exception {
+        final DefaultNetworkConfig networkConfig = new DefaultNetworkConfig();
+        networkConfig.setEncryptionEnabled(true);
+        networkConfig.setMaxNewConnectionsPerSecond(0);
+        networkConfig.setMaxConcurrentHandshakes(2);
+        networkConfig.setHandshakeTimeoutSeconds(0);
+        final AcceptFilterHandler acceptFilterHandler = createAcceptFilterHandler(networkConfig, null);
+        final EmbeddedChannel serverChannel = new EmbeddedChannel(acceptFilterHandler);
+
+        final TestConnection first = connect(serverChannel, "192.168.7.1", true);
+        final TestConnection second = connect(serverChannel, "192.168.7.2", true);
+        connect(serverChannel, "192.168.7.3", false);
+        assertEquals(2, acceptFilterHandler.getHandshakeCount());
+
+        // Completing the handshake frees the slot, but the connection stays
+        first.pipeline().addLast(acceptFilterHandler.getHandshakeCompletionHandler());
+        first.pipeline().fireUserEventTriggered(EncryptionCodec.HANDSHAKE_COMPLETED_EVENT);
+        assertEquals(1, acceptFilterHandler.getHandshakeCount());
+        assertEquals(2, acceptFilterHandler.getConnectionCount());
+        final TestConnection third = connect(serverChannel, "192.168.7.3", true);
+
+        // Closing frees the slot if the handshake was not completed, and only once
+        first.close();
+        assertEquals(2, acceptFilterHandler.getHandshakeCount());
+        second.close();
+        third.close();
+        assertEquals(0, acceptFilterHandler.getHandshakeCount());
+        assertEquals(0, acceptFilterHandler.getConnectionCount());
+        assertEquals(1, acceptFilterHandler.getRejectedConnectionCount());
+
+        serverChannel.finish();
+    }
+
+    @Test
+    public void testRateLimit() throws Exception {
+        final DefaultNetworkConfig networkConfig = new DefaultNetworkConfig();
+        networkConfig.setEncryptionEnabled(false);
+        networkConfig.setMaxNewConnectionsPerSecond(5);
+        final AcceptFilterHandler acceptFilterHandler = createAcceptFilterHandler(networkConfig, null);
+        final EmbeddedChannel serverChannel = new EmbeddedChannel(acceptFilterHandler);
+
+        // A burst of up to a second worth of connections is accepted
+        for (int i = 0; i < 5; i++) {
+            connect(serverChannel, "192.168.7." + i, true);
+        }
+        connect(serverChannel, "192.168.7.10", false);
+        assertEquals(1, acceptFilterHandler.getRejectedConnectionCount());
+
+        // After that one connection is accepted every fifth of a second
+        Thread.sleep(250);
+        connect(serverChannel, "192.168.7.11", true);
+        connect(serverChannel, "192.168.7.12", false);
+        assertEquals(2, acceptFilterHandler.getRejectedConnectionCount());
+
+        serverChannel.finish();
+    }
+
+    @Test
+    public void testHandshakeTimeout() throws Exception {
+        final DefaultNetworkConfig networkConfig = new DefaultNetworkConfig();
+        networkConfig.setPort(TEST_PORT);
+        networkConfig.setEncryptionEnabled(true);
+        networkConfig.setServerKeys(new RsaEncryption(1024).createNewPublicPrivateKey());
+        networkConfig.setHandshakeTimeoutSeconds(1);
+
+        final NettyServerNetworking serverNetworking = new NettyServerNetworking(networkConfig,
+                                                                                 new DefaultAccountService(new MemoryAccountPersistence()),
+                                                                                 new DefaultServerInfo("localhost", TEST_PORT));
+        serverNetworking.init();
+        try {
+            // A client that connects but never starts the handshake
+            final Socket socket = new Socket("127.0.0.1", TEST_PORT);
+            try {
+                // Well below the idle time, so only the handshake timeout can close the connection
+                socket.setSoTimeout(10000);
+                final long startTime = System.currentTimeMillis();
+                assertTrue("Connection without a handshake should be closed", isClosedByServer(socket));
+                assertTrue("Connection should not be closed before the handshake timeout",
+                           System.currentTimeMillis() - startTime >= 900);
+            } finally {
+                socket.close();
+            }
+        } finally {
+            serverNetworking.shutdown();
+        }
+    }
+
+    private boolean isClosedByServer(Socket socket) throws IOException {
+        final InputStream inputStream = socket.getInputStream();
+        try {
+            // Skip anything the server sends before closing the connection
+            while (inputStream.read() >= 0) {
+            }
+            return true;
+        } catch (SocketTimeoutException e) {
+            return false;
+        } catch (SocketException e) {
+            // Connection reset
+            return true;
+        }
+    }
+
+    private TestConnection connect(EmbeddedChannel serverChannel, String ip, boolean shouldBeAdmitted) throws IOException {
+        final TestConnection connection = new TestConnection(ip);
+        serverChannel.writeInbound(connection);
+        if (shouldBeAdmitted) {
+            assertSame("Connection from " + ip + " should be admitted", connection, serverChannel.readInbound());
+            assertTrue(connection.isOpen());
+        }
+        else {
+            assertNull("Connection from " + ip + " should be rejected", serverChannel.readInbound());
+            assertFalse(connection.isOpen());
+        }
+        return connection;
+    }
+
+    private AcceptFilterHandler createAcceptFilterHandler(DefaultNetworkConfig networkConfig, DefaultBanList banList) {
+        final NettyServerNetworking serverNetworking = new NettyServerNetworking(networkConfig,
+                                                                                 new DefaultAccountService(new MemoryAccountPersistence()),
+                                                                                 new DefaultServerInfo("localhost", TEST_PORT),
+                                                                                 null,
+                                                                                 banList);
+        return new AcceptFilterHandler(serverNetworking, networkConfig);
+    }
+
+    private void deleteBanListFiles() {
+        BANLIST_FILE.delete();
+        JOURNAL_FILE.delete();
+    }
+
+    /**
+     * Accepted client connection from the specified IP, that remembers the SO_LINGER value set for it.
+     */
+    private static final class TestConnection extends EmbeddedChannel {
+        private final InetSocketAddress remoteAddress;
+
+        // Created on first use, as the superclass constructor already uses the config
+        private ChannelConfig testConfig;
+        private Integer linger;
+
+        private TestConnection(String ip) throws IOException {
+            super(new ChannelInboundHandlerAdapter());
+            remoteAddress = new InetSocketAddress(InetAddress.getByName(ip), 40000);
+        }
+
+        @Override public SocketAddress remoteAddress() {
+            return remoteAddress;
+        }
+
+        @Override public ChannelConfig config() {
+            if (testConfig == null) {
+                testConfig = new DefaultChannelConfig(this) {
+                    @Override public <T> boolean setOption(ChannelOption<T> option, T value) {
+                        if (option == ChannelOption.SO_LINGER) linger = (Integer) value;
+                        return super.setOption(option, value);
+                    }
+                };
+            }
+            return testConfig;
+        }
+
+        private Integer getLinger() {
+            return linger;
+        }
+    }
+}
@@ -4,16 +4,35 @@ import static org.junit.Assert.*;
 
 import org.junit.Test;
 import org.messageduct.account.model.Account;
+import org.messageduct.account.model.CompactAccount;
 import org.messageduct.account.model.DefaultAccount;
 import org.messageduct.account.persistence.AccountPersistence;
+import org.messageduct.account.persistence.JournalAccountPersistence;
 import org.messageduct.account.persistence.MemoryAccountPersistence;
+import org.messageduct.account.persistence.PagedAccountPersistence;
 import org.messageduct.account.persistence.StorageAccountPersistence;
 
+import org.messageduct.utils.BCrypt;
+import org.messageduct.utils.WriteFuture;
+import org.messageduct.utils.serializer.PooledKryoSerializer;
+import org.messageduct.utils.storage.SynchronizedStorage;
+
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class AccountPersistenceTest {
 
     private static final File STORAGE_FILE = new File("AccountPersistenceTestDatabase.db");
+    private static final File JOURNAL_SNAPSHOT_FILE = new File("AccountPersistenceTestJournaled.db");
+    private static final File PAGED_FILE = new File("AccountPersistenceTestPaged.db");
+    private static final File SHARDED_FILE = new File("AccountPersistenceTestSharded.db");
 
     @Test
     public void testBasicOperations() throws Exception {
@@ -61,6 +80,255 @@ public class AccountPersistenceTest {
         STORAGE_FILE.delete();
     }
 
+    @Test
+    public void testJournalPersistence() throws Exception {
+        deleteJournalFiles();
+
+        checkBasicOperations(createJournalAccountPersistence());
+
+        // Make enough changes to cause snapshots
+        final AccountPersistence accountPersistence = createJournalAccountPersistence();
+        accountPersistence.init();
+        for (int i = 0; i < 20; i++) {
+            assertTrue(accountPersistence.createAccount("user" + i, createTestAccount("user" + i, "mail" + i)));
+        }
+        assertTrue(accountPersistence.updateAccount("user3", createTestAccount("user3", "changedMail")));
+        assertTrue(accountPersistence.deleteAccount("user5"));
+        accountPersistence.shutdown();
+
+        // Simulate a crash in the middle of appending a record
+        final FileOutputStream journalOutput = new FileOutputStream(new File(JOURNAL_SNAPSHOT_FILE.getPath() + ".journal"), true);
+        journalOutput.write(new byte[]{0, 0, 0, 100, 1, 2, 3});
+        journalOutput.close();
+
+        // Reload, the snapshot and journal should be combined and the incomplete record ignored
+        final AccountPersistence accountPersistence2 = createJournalAccountPersistence();
+        accountPersistence2.init();
+        assertAccountEquals("Should remember accounts", "user0", "mail0", accountPersistence2.getAccount("user0"));
+        assertAccountEquals("Should remember accounts", "user19", "mail19", accountPersistence2.getAccount("user19"));
+        assertAccountEquals("Should remember updates", "user3", "changedMail", accountPersistence2.getAccount("user3"));
+        assertFalse("Should remember deletions", accountPersistence2.hasAccount("user5"));
+
+        // Changes after recovering from the incomplete record should be kept
+        assertTrue(accountPersistence2.createAccount("late", createTestAccount("late", "late")));
+        accountPersistence2.shutdown();
+
+        final AccountPersistence accountPersistence3 = createJournalAccountPersistence();
+        accountPersistence3.init();
+        assertAccountEquals("Should remember accounts added after recovery", "late", "late", accountPersistence3.getAccount("late"));
+        accountPersistence3.shutdown();
+
+        deleteJournalFiles();
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        final AtomicInteger saveCount = new AtomicInteger();
+        final Map<String, Account> savedAccounts = new HashMap<String, Account>();
+        final SynchronizedStorage slowStorage = new SynchronizedStorage() {
+            @Override protected void doSave(Object object) throws IOException {
+                saveCount.incrementAndGet();
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                savedAccounts.clear();
+                savedAccounts.putAll((Map<String, Account>) object);
+            }
+
+            @Override protected <T> T doLoad() throws IOException {
+                return null;
+            }
+        };
+
+        final StorageAccountPersistence accountPersistence = new StorageAccountPersistence(slowStorage);
+        accountPersistence.init();
+
+        final int threadCount = 10;
+        final int accountsPerThread = 5;
+        final AtomicInteger accountCounter = new AtomicInteger();
+        TestUtils.testConcurrently("Concurrent account creation should work", threadCount, accountsPerThread, new TestRun() {
+            @Override public void run() throws Exception {
+                final String userName = "user" + accountCounter.incrementAndGet();
+                assertTrue(accountPersistence.createAccount(userName, createTestAccount(userName, userName)));
+            }
+        });
+
+        final int accountCount = threadCount * accountsPerThread;
+        assertEquals("All accounts should have been saved", accountCount, savedAccounts.size());
+        assertTrue("Concurrent changes should be saved together, but there were " + saveCount.get() + " saves for " + accountCount + " changes",
+                   saveCount.get() < accountCount);
+
+        accountPersistence.shutdown();
+    }
+
+    @Test
+    public void testWriteBehind() throws Exception {
+        final AtomicInteger saveCount = new AtomicInteger();
+        final Map<String, Account> savedAccounts = new ConcurrentHashMap<String, Account>();
+        final SynchronizedStorage storage = new SynchronizedStorage() {
+            @Override protected void doSave(Object object) throws IOException {
+                saveCount.incrementAndGet();
+                savedAccounts.clear();
+                savedAccounts.putAll((Map<String, Account>) object);
+            }
+
+            @Override protected <T> T doLoad() throws IOException {
+                return null;
+            }
+        };
+
+        final StorageAccountPersistence accountPersistence = new StorageAccountPersistence(storage, 50);
+        accountPersistence.init();
+        assertTrue(accountPersistence.isWriteBehind());
+
+        // Changes return before they are saved
+        assertTrue(accountPersistence.createAccount("foo", createTestAccount("foo", "foo")));
+        assertTrue(accountPersistence.createAccount("bar", createTestAccount("bar", "bar")));
+        final WriteFuture pendingWrite = accountPersistence.getPendingWrite();
+        assertFalse("Changes should not be saved immediately", pendingWrite.isDone());
+
+        final AtomicInteger callbackCount = new AtomicInteger();
+        pendingWrite.addCallback(new WriteFuture.WriteCallback() {
+            @Override public void writeCompleted(Throwable failure) {
+                assertNull(failure);
+                callbackCount.incrementAndGet();
+            }
+        });
+
+        // Both changes are saved in one write
+        pendingWrite.get(5, TimeUnit.SECONDS);
+        assertEquals(1, saveCount.get());
+        assertEquals(2, savedAccounts.size());
+        assertTrue(accountPersistence.getPendingWrite().isDone());
+
+        // Unsaved changes are saved at shutdown
+        assertTrue(accountPersistence.deleteAccount("foo"));
+        accountPersistence.shutdown();
+        assertEquals(2, saveCount.get());
+        assertEquals(1, savedAccounts.size());
+        assertTrue(savedAccounts.containsKey("bar"));
+
+        // The writer thread has called the callback of the first write before doing the final one
+        assertEquals("Callback should have been called", 1, callbackCount.get());
+    }
+
+    @Test
+    public void testPagedPersistence() throws Exception {
+        deletePagedFiles();
+
+        checkBasicOperations(new PagedAccountPersistence(PAGED_FILE));
+
+        // Only recently used accounts are kept in memory
+        final PagedAccountPersistence accountPersistence = new PagedAccountPersistence(PAGED_FILE, "foobar".toCharArray(), 5);
+        accountPersistence.init();
+        for (int i = 0; i < 100; i++) {
+            assertTrue(accountPersistence.createAccount("user" + i, createTestAccount("user" + i, "email" + i)));
+        }
+        assertTrue(accountPersistence.updateAccount("user3", createTestAccount("user3", "updated")));
+        assertTrue(accountPersistence.deleteAccount("user4"));
+        assertFalse(accountPersistence.createAccount("user5", createTestAccount("user5", "taken")));
+        assertTrue(accountPersistence.getCachedAccountCount() <= 5);
+        accountPersistence.shutdown();
+
+        // Reload
+        final PagedAccountPersistence accountPersistence2 = new PagedAccountPersistence(PAGED_FILE, "foobar".toCharArray(), 5);
+        accountPersistence2.init();
+        assertEquals("Accounts should not be loaded at startup", 0, accountPersistence2.getCachedAccountCount());
+        checkPagedAccounts(accountPersistence2);
+        assertTrue(accountPersistence2.hasAccount("user50"));
+        assertFalse(accountPersistence2.hasAccount("unknownUser"));
+
+        // Changes made without a clean shutdown are recovered by rebuilding the index
+        assertTrue(accountPersistence2.updateAccount("user7", createTestAccount("user7", "unclean")));
+        assertTrue(accountPersistence2.createAccount("newUser", createTestAccount("newUser", "newUser")));
+        final PagedAccountPersistence accountPersistence3 = new PagedAccountPersistence(PAGED_FILE, "foobar".toCharArray(), 5);
+        accountPersistence3.init();
+        checkPagedAccounts(accountPersistence3);
+        assertAccountEquals("Unclean update should be recovered", "user7", "unclean", accountPersistence3.getAccount("user7"));
+        assertAccountEquals("Unclean creation should be recovered", "newUser", "newUser", accountPersistence3.getAccount("newUser"));
+        accountPersistence3.shutdown();
+
+        deletePagedFiles();
+    }
+
+    private void checkPagedAccounts(AccountPersistence accountPersistence) {
+        for (int i = 0; i < 100; i++) {
+            final String userName = "user" + i;
+            if (i == 4) {
+                assertFalse("Deleted account should stay deleted", accountPersistence.hasAccount(userName));
+            }
+            else if (i == 3) {
+                assertAccountEquals("Updated account should be stored", userName, "updated", accountPersistence.getAccount(userName));
+            }
+            else if (i != 7) {
+                assertAccountEquals("Account should be stored", userName, "email" + i, accountPersistence.getAccount(userName));
+            }
+        }
+    }
+
+    private void deletePagedFiles() {
+        PAGED_FILE.delete();
+        new File(PAGED_FILE.getPath() + ".index").delete();
+    }
+
+    @Test
+    public void testShardedPersistence() throws Exception {
+        final int shardCount = 4;
+        deleteShardFiles(shardCount);
+
+        checkBasicOperations(new StorageAccountPersistence(SHARDED_FILE, "foobar".toCharArray(), shardCount));
+
+        final StorageAccountPersistence accountPersistence = new StorageAccountPersistence(SHARDED_FILE, "foobar".toCharArray(), shardCount);
+        accountPersistence.init();
+        for (int i = 0; i < 50; i++) {
+            assertTrue(accountPersistence.createAccount("user" + i, createTestAccount("user" + i, "email" + i)));
+        }
+
+        // A change only rewrites the shard containing the changed account
+        for (int i = 1; i <= shardCount; i++) {
+            assertTrue(getShardFile(i, shardCount).setLastModified(0));
+        }
+        assertTrue(accountPersistence.updateAccount("user7", createTestAccount("user7", "updated")));
+        int rewrittenShards = 0;
+        for (int i = 1; i <= shardCount; i++) {
+            if (getShardFile(i, shardCount).lastModified() != 0) rewrittenShards++;
+        }
+        assertEquals("Only one shard should have been rewritten", 1, rewrittenShards);
+        accountPersistence.shutdown();
+
+        // Reload
+        final StorageAccountPersistence accountPersistence2 = new StorageAccountPersistence(SHARDED_FILE, "foobar".toCharArray(), shardCount);
+        accountPersistence2.init();
+        assertEquals(50, accountPersistence2.getAccounts().size());
+        assertAccountEquals("Updated account should be stored", "user7", "updated", accountPersistence2.getAccount("user7"));
+        assertAccountEquals("Account should be stored", "user8", "email8", accountPersistence2.getAccount("user8"));
+        accountPersistence2.shutdown();
+
+        deleteShardFiles(shardCount);
+    }
+
+    private File getShardFile(int shard, int shardCount) {
+        return new File(SHARDED_FILE.getPath() + "." + shard + "of" + shardCount);
+    }
+
+    private void deleteShardFiles(int shardCount) {
+        for (int i = 1; i <= shardCount; i++) {
+            getShardFile(i, shardCount).delete();
+        }
+    }
+
+    private JournalAccountPersistence createJournalAccountPersistence() {
+        return new JournalAccountPersistence(JOURNAL_SNAPSHOT_FILE, "foobar".toCharArray(), 7);
+    }
+
+    private void deleteJournalFiles() {
+        JOURNAL_SNAPSHOT_FILE.delete();
+        new File(JOURNAL_SNAPSHOT_FILE.getPath() + ".journal").delete();
+        new File(JOURNAL_SNAPSHOT_FILE.getPath() + ".journal.old").delete();
+    }
+
     private void checkBasicOperations(AccountPersistence accountPersistence) {
         final String userName = "igor";
 
@@ -101,6 +369,34 @@ public class AccountPersistenceTest {
         accountPersistence.shutdown();
     }
 
+    @Test
+    public void testCompactAccount() throws Exception {
+        final String passwordHash = BCrypt.hashpw("secret".toCharArray(), BCrypt.gensalt(4));
+        final byte[] packedHash = BCrypt.packHash(passwordHash);
+        assertNotNull("A standard hash should be packable", packedHash);
+        assertEquals(BCrypt.PACKED_HASH_LENGTH, packedHash.length);
+        assertEquals("Unpacking should restore the hash", passwordHash, BCrypt.unpackHash(packedHash));
+        assertNull("Non-standard hashes should not be packed", BCrypt.packHash("fooHash"));
+
+        final PooledKryoSerializer serializer = new PooledKryoSerializer(false, Collections.<Class>emptyList(), 1024);
+        final CompactAccount account = new CompactAccount("foobar", passwordHash, "foo@example.com", "fooKey");
+        final byte[] data = serializer.serialize(account);
+        final CompactAccount result = serializer.deserialize(data, CompactAccount.class);
+        assertEquals("Account should survive serialization", account, result);
+        assertEquals(passwordHash, result.getPasswordHash());
+        assertEquals("foo@example.com", result.getEmail());
+        assertEquals("fooKey", result.getPublicKey());
+        assertTrue("Compact account should serialize smaller than the default one, but was " + data.length + " bytes",
+                   data.length < serializer.serialize(new DefaultAccount("foobar", passwordHash, "foo@example.com", "fooKey")).length);
+
+        // Unpackable hashes and missing fields are kept as they are
+        final CompactAccount plainAccount = new CompactAccount("foobar", "fooHash");
+        final CompactAccount plainResult = serializer.deserialize(serializer.serialize(plainAccount), CompactAccount.class);
+        assertEquals("fooHash", plainResult.getPasswordHash());
+        assertNull(plainResult.getEmail());
+        assertNull(plainResult.getPublicKey());
+    }
+
     private void assertAccountEquals(String msg, String expectedUserName, String expectedEmail, Account account) {
         final DefaultAccount expectedAccount = createTestAccount(expectedUserName, expectedEmail);
         assertEquals(msg, expectedAccount.getUserName(), account.getUserName());
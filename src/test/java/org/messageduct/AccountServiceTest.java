@@ -6,8 +6,16 @@ import org.junit.Before;
 import org.junit.Test;
 import org.messageduct.account.AccountService;
 import org.messageduct.account.DefaultAccountService;
+import org.messageduct.account.LoginThrottle;
+import org.messageduct.account.SessionTokens;
 import org.messageduct.account.messages.*;
 import org.messageduct.account.persistence.MemoryAccountPersistence;
+import org.messageduct.utils.BCrypt;
+import org.messageduct.utils.BCryptPasswordHasher;
+import org.messageduct.utils.PasswordValidatorImpl;
+import org.messageduct.utils.UsernameValidator;
+
+import java.net.InetAddress;
 
 public class AccountServiceTest {
 
@@ -124,6 +132,104 @@ public class AccountServiceTest {
     }
 
 
+    @Test
+    public void testLoginThrottling() throws Exception {
+        final DefaultAccountService throttledAccountService = new DefaultAccountService(accountPersistence,
+                                                                                        new UsernameValidator(),
+                                                                                        new PasswordValidatorImpl(),
+                                                                                        new BCryptPasswordHasher(),
+                                                                                        new LoginThrottle(1, 2, 1, 3, 1));
+        accountService = throttledAccountService;
+        accountService.init();
+        checkCreateAccount(true, false, username, password, email);
+
+        // A burst of attempts for the same user is allowed, after that they are throttled without checking the password
+        checkLogin(false, true, username, "soWrongPassword".toCharArray());
+        checkLogin(false, true, username, "soWrongPassword".toCharArray());
+        final AccountResponseMessage throttled = checkLogin(false, true, username, "veryPasswordSoWow".toCharArray());
+        assertEquals("LoginThrottled", ((AccountErrorMessage) throttled).getErrorType());
+
+        // Attempts from the same IP are limited across users
+        final InetAddress ipAddress = InetAddress.getByName("192.168.1.10");
+        for (int i = 0; i < 3; i++) {
+            final AccountResponseMessage response = throttledAccountService.handleMessage(new LoginMessage("user" + i, "foo".toCharArray()), ipAddress);
+            assertEquals("UnknownUsername", ((AccountErrorMessage) response).getErrorType());
+        }
+        final AccountResponseMessage response = throttledAccountService.handleMessage(new LoginMessage("user4", "foo".toCharArray()), ipAddress);
+        assertEquals("LoginThrottled", ((AccountErrorMessage) response).getErrorType());
+    }
+
+    @Test
+    public void testLoginThrottleIpv6Networks() throws Exception {
+        final LoginThrottle loginThrottle = new LoginThrottle(100, 100, 1, 2, 1, 1024);
+
+        // Addresses in the same /64 network share the limit
+        assertTrue(loginThrottle.tryAttempt("user1", InetAddress.getByName("2001:db8:1:1::1")));
+        assertTrue(loginThrottle.tryAttempt("user2", InetAddress.getByName("2001:db8:1:1:abcd::2")));
+        assertFalse(loginThrottle.tryAttempt("user3", InetAddress.getByName("2001:db8:1:1:ffff::3")));
+
+        // Other networks have their own limit
+        assertTrue(loginThrottle.tryAttempt("user4", InetAddress.getByName("2001:db8:1:2::1")));
+    }
+
+    @Test
+    public void testSessionTokenLogin() throws Exception {
+        accountService.init();
+        checkCreateAccount(true, false, username, password, email);
+
+        // A password login issues a session token
+        final AccountResponseMessage loginResponse = checkLogin(true, false, username, "veryPasswordSoWow".toCharArray());
+        final byte[] sessionToken = ((LoginSuccessMessage) loginResponse).getSessionToken();
+        assertNotNull("A session token should have been issued", sessionToken);
+
+        // The token can be used to log in again, and a new token is issued
+        final AccountResponseMessage tokenResponse = accountService.handleMessage(new TokenLoginMessage(username, sessionToken));
+        assertTrue("Token login should succeed", tokenResponse instanceof LoginSuccessMessage);
+        assertNotNull(((LoginSuccessMessage) tokenResponse).getSessionToken());
+
+        // The token is only valid for the account it was issued for
+        checkCreateAccount(true, false, "cate", "alsoVeryPassword".toCharArray(), email);
+        final AccountResponseMessage otherUserResponse = accountService.handleMessage(new TokenLoginMessage("cate", sessionToken));
+        assertEquals("InvalidToken", ((AccountErrorMessage) otherUserResponse).getErrorType());
+
+        // A modified token is rejected
+        final byte[] modifiedToken = sessionToken.clone();
+        modifiedToken[modifiedToken.length - 1] ^= 1;
+        final AccountResponseMessage modifiedResponse = accountService.handleMessage(new TokenLoginMessage(username, modifiedToken));
+        assertEquals("InvalidToken", ((AccountErrorMessage) modifiedResponse).getErrorType());
+
+        // Tokens are only valid until they expire
+        final SessionTokens sessionTokens = new SessionTokens(SessionTokens.createRandomKey(), 1);
+        final byte[] expiringToken = sessionTokens.createToken(username, "hash");
+        Thread.sleep(10);
+        assertFalse(sessionTokens.isValidToken(username, "hash", expiringToken));
+    }
+
+    @Test
+    public void testRehashOnLogin() throws Exception {
+        accountService = new DefaultAccountService(accountPersistence,
+                                                   new UsernameValidator(),
+                                                   new PasswordValidatorImpl(),
+                                                   new BCryptPasswordHasher(8));
+        accountService.init();
+        checkCreateAccount(true, false, username, password, email);
+        assertEquals(8, BCrypt.getLogRounds(accountPersistence.getAccount(username).getPasswordHash()));
+
+        // When the work factor is raised, the hash is upgraded on the next successful login
+        accountService = new DefaultAccountService(accountPersistence,
+                                                   new UsernameValidator(),
+                                                   new PasswordValidatorImpl(),
+                                                   new BCryptPasswordHasher(9));
+        accountService.init();
+        checkLogin(false, true, username, "soWrongPassword".toCharArray());
+        assertEquals(8, BCrypt.getLogRounds(accountPersistence.getAccount(username).getPasswordHash()));
+
+        checkLogin(true, false, username, "veryPasswordSoWow".toCharArray());
+        assertEquals(9, BCrypt.getLogRounds(accountPersistence.getAccount(username).getPasswordHash()));
+        assertEquals(email, accountPersistence.getAccount(username).getEmail());
+        checkLogin(true, false, username, "veryPasswordSoWow".toCharArray());
+    }
+
     @Test
     public void testNoInit() throws Exception {
 
@@ -0,0 +1,161 @@
+package org.messageduct;
+
+import org.junit.Test;
+import org.messageduct.utils.banlist.DefaultBanList;
+import org.messageduct.utils.banlist.OffenceTracker;
+
+import java.io.File;
+import java.net.InetAddress;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests banning IPs and IP ranges.
+ */
+public class BanListTest {
+
+    private static final File BANLIST_FILE = new File("BanListTest.db");
+    private static final File JOURNAL_FILE = new File("BanListTest.db.journal");
+    private static final File OLD_JOURNAL_FILE = new File("BanListTest.db.journal.old");
+
+    @Test
+    public void testRangeBans() throws Exception {
+        deleteBanListFiles();
+        final DefaultBanList banList = new DefaultBanList(BANLIST_FILE);
+
+        banList.banRange(InetAddress.getByName("10.20.30.40"), 16);
+        assertTrue(banList.isBanned(InetAddress.getByName("10.20.0.1")));
+        assertTrue(banList.isBanned(InetAddress.getByName("10.20.255.255")));
+        assertFalse(banList.isBanned(InetAddress.getByName("10.21.0.1")));
+
+        banList.banRange(InetAddress.getByName("2001:db8:1:2::"), 64);
+        assertTrue(banList.isBanned(InetAddress.getByName("2001:db8:1:2:abcd::1")));
+        assertFalse(banList.isBanned(InetAddress.getByName("2001:db8:1:3::1")));
+        assertFalse("IPv6 ranges should not affect IPv4 addresses", banList.isBanned(InetAddress.getByName("32.1.13.184")));
+
+        // Single IP bans still work next to the ranges
+        banList.banIp(InetAddress.getByName("192.168.1.1"));
+        assertTrue(banList.isBanned(InetAddress.getByName("192.168.1.1")));
+        assertFalse(banList.isBanned(InetAddress.getByName("192.168.1.2")));
+
+        // Bans are saved and loaded
+        banList.saveToStorageIfNeeded();
+        final DefaultBanList loadedBanList = new DefaultBanList(BANLIST_FILE);
+        assertTrue(loadedBanList.isBanned(InetAddress.getByName("10.20.1.2")));
+        assertTrue(loadedBanList.isBanned(InetAddress.getByName("2001:db8:1:2::5")));
+        assertTrue(loadedBanList.isBanned(InetAddress.getByName("192.168.1.1")));
+
+        // Any address in the range identifies it
+        banList.unBanRange(InetAddress.getByName("10.20.99.99"), 16);
+        assertFalse(banList.isBanned(InetAddress.getByName("10.20.0.1")));
+
+        // Temporary range bans end
+        banList.banRange(InetAddress.getByName("172.16.0.0"), 12, 50);
+        assertTrue(banList.isBanned(InetAddress.getByName("172.31.1.1")));
+        Thread.sleep(100);
+        assertFalse(banList.isBanned(InetAddress.getByName("172.31.1.1")));
+
+        deleteBanListFiles();
+    }
+
+    @Test
+    public void testJournaledBans() throws Exception {
+        deleteBanListFiles();
+        final DefaultBanList banList = new DefaultBanList(BANLIST_FILE);
+
+        banList.banIp(InetAddress.getByName("192.168.1.1"));
+        banList.banIp(InetAddress.getByName("192.168.1.2"));
+        banList.banIp(InetAddress.getByName("192.168.1.3"), 60000);
+        banList.banRange(InetAddress.getByName("10.0.0.0"), 8);
+        banList.unBanIp(InetAddress.getByName("192.168.1.2"));
+
+        // The changes are loaded from the journal without saving the whole banlist
+        final DefaultBanList loadedBanList = new DefaultBanList(BANLIST_FILE);
+        assertTrue(loadedBanList.isBanned(InetAddress.getByName("192.168.1.1")));
+        assertFalse("Unban should be persisted", loadedBanList.isBanned(InetAddress.getByName("192.168.1.2")));
+        assertTrue(loadedBanList.isBanned(InetAddress.getByName("192.168.1.3")));
+        assertTrue(loadedBanList.isBanned(InetAddress.getByName("10.1.2.3")));
+        assertEquals(3, loadedBanList.getBanCount());
+
+        // Saving the whole banlist starts the journal over
+        banList.saveToStorageIfNeeded();
+        assertFalse("The old journal should be removed after saving", OLD_JOURNAL_FILE.exists());
+        assertEquals(0, JOURNAL_FILE.length());
+        assertEquals(3, new DefaultBanList(BANLIST_FILE).getBanCount());
+
+        // Ended bans are removed by the expiry timer
+        banList.banIp(InetAddress.getByName("192.168.1.4"), 10);
+        Thread.sleep(2500);
+        assertFalse(banList.isBanned(InetAddress.getByName("192.168.1.4")));
+        assertEquals(3, banList.getBanCount());
+
+        deleteBanListFiles();
+    }
+
+    @Test
+    public void testOffenceTracker() throws Exception {
+        deleteBanListFiles();
+        final DefaultBanList banList = new DefaultBanList(BANLIST_FILE);
+        final OffenceTracker offenceTracker = new OffenceTracker(banList, 10, 60000, 1000, 3000);
+        final InetAddress offender = InetAddress.getByName("192.168.5.5");
+        final InetAddress bystander = InetAddress.getByName("192.168.5.6");
+
+        for (int i = 0; i < 9; i++) {
+            assertEquals("Should not be banned below the threshold", 0, offenceTracker.recordOffence(offender, OffenceTracker.Offence.FAILED_LOGIN));
+        }
+        assertFalse(banList.isBanned(offender));
+        assertEquals(9, offenceTracker.getOffenceCount(offender));
+        assertEquals(0, offenceTracker.getOffenceCount(bystander));
+
+        // Reaching the threshold bans
+        assertEquals(1000, offenceTracker.recordOffence(offender, OffenceTracker.Offence.FAILED_LOGIN));
+        assertTrue(banList.isBanned(offender));
+        assertFalse(banList.isBanned(bystander));
+
+        // Offences while banned do not lengthen the ban
+        assertEquals(0, offenceTracker.recordOffence(offender, OffenceTracker.Offence.PROTOCOL_ERROR));
+        assertEquals(10, offenceTracker.getOffenceCount(offender));
+
+        // Further bans get longer up to the maximum
+        banList.unBanIp(offender);
+        assertEquals(2000, offenceTracker.recordOffence(offender, OffenceTracker.Offence.PROTOCOL_ERROR));
+        banList.unBanIp(offender);
+        assertEquals(3000, offenceTracker.recordOffence(offender, OffenceTracker.Offence.PROTOCOL_ERROR));
+        banList.unBanIp(offender);
+        assertEquals(3000, offenceTracker.recordOffence(offender, OffenceTracker.Offence.PROTOCOL_ERROR));
+
+        deleteBanListFiles();
+    }
+
+    @Test
+    public void testIpv6OffenceTracker() throws Exception {
+        deleteBanListFiles();
+        final DefaultBanList banList = new DefaultBanList(BANLIST_FILE);
+        final OffenceTracker offenceTracker = new OffenceTracker(banList, 10, 60000, 1000, 3000);
+        final InetAddress offender = InetAddress.getByName("2001:db8:5:5::1");
+        final InetAddress sameNetwork = InetAddress.getByName("2001:db8:5:5:abcd::2");
+        final InetAddress otherNetwork = InetAddress.getByName("2001:db8:5:6::1");
+
+        // Changing addresses within the /64 network does not avoid the counting
+        for (int i = 0; i < 9; i++) {
+            final InetAddress address = i % 2 == 0 ? offender : sameNetwork;
+            assertEquals(0, offenceTracker.recordOffence(address, OffenceTracker.Offence.FAILED_LOGIN));
+        }
+        assertEquals(9, offenceTracker.getOffenceCount(sameNetwork));
+        assertEquals(0, offenceTracker.getOffenceCount(otherNetwork));
+
+        // The whole network is banned
+        assertEquals(1000, offenceTracker.recordOffence(sameNetwork, OffenceTracker.Offence.FAILED_LOGIN));
+        assertTrue(banList.isBanned(offender));
+        assertTrue(banList.isBanned(InetAddress.getByName("2001:db8:5:5:ffff::3")));
+        assertFalse(banList.isBanned(otherNetwork));
+
+        deleteBanListFiles();
+    }
+
+    private void deleteBanListFiles() {
+        BANLIST_FILE.delete();
+        JOURNAL_FILE.delete();
+        OLD_JOURNAL_FILE.delete();
+    }
+}
@@ -0,0 +1,35 @@
+package org.messageduct;
+
+import org.junit.Test;
+import org.messageduct.utils.BloomFilter;
+import org.messageduct.utils.storage.HashIndex;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the Bloom filter used in front of the account index.
+ */
+public class BloomFilterTest {
+
+    @Test
+    public void testBloomFilter() throws Exception {
+        final int keyCount = 10000;
+        final BloomFilter filter = new BloomFilter(keyCount, 0.01);
+
+        for (int i = 0; i < keyCount; i++) {
+            filter.add(HashIndex.hash("user" + i));
+        }
+
+        // No false negatives
+        for (int i = 0; i < keyCount; i++) {
+            assertTrue("Added key should be found", filter.mightContain(HashIndex.hash("user" + i)));
+        }
+
+        // Few false positives
+        int falsePositives = 0;
+        for (int i = 0; i < keyCount; i++) {
+            if (filter.mightContain(HashIndex.hash("unknown" + i))) falsePositives++;
+        }
+        assertTrue("Too many false positives: " + falsePositives, falsePositives < keyCount * 0.03);
+    }
+}
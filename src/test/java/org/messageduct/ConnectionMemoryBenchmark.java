@@ -0,0 +1,66 @@
+package org.messageduct;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+import org.messageduct.common.DefaultNetworkConfig;
+import org.messageduct.utils.encryption.RsaEncryption;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures the heap memory retained by idle server side connections.
+ *
+ * The measurement depends on the garbage collector, so it is not run with the unit tests, but with the benchmark
+ * profile: mvn test -Pbenchmark.  Native zlib memory is not included.
+ */
+public class ConnectionMemoryBenchmark {
+
+    private static final int CONNECTION_COUNT = 1000;
+    private static final long MAX_BYTES_PER_CONNECTION = 16 * 1024;
+
+    @Test
+    public void testIdleConnectionMemory() throws Exception {
+        final DefaultNetworkConfig networkConfig = new DefaultNetworkConfig();
+        networkConfig.setEncryptionEnabled(true);
+        networkConfig.setCompressionEnabled(true);
+        networkConfig.setServerKeys(new RsaEncryption().createNewPublicPrivateKey());
+
+        final ChannelInitializer<Channel> initializer = ConnectionMemoryTest.createServerInitializer(networkConfig);
+
+        // Warm up, so that shared and lazily created state is not counted for the connections
+        final EmbeddedChannel warmUpChannel = ConnectionMemoryTest.createConnection(initializer);
+
+        final long memoryBefore = usedMemory();
+
+        final List<EmbeddedChannel> connections = new ArrayList<EmbeddedChannel>(CONNECTION_COUNT);
+        for (int i = 0; i < CONNECTION_COUNT; i++) {
+            connections.add(ConnectionMemoryTest.createConnection(initializer));
+        }
+
+        final long memoryAfter = usedMemory();
+
+        final long bytesPerConnection = (memoryAfter - memoryBefore) / CONNECTION_COUNT;
+        assertTrue("An idle connection should retain less than " + MAX_BYTES_PER_CONNECTION + " bytes, but retained " + bytesPerConnection,
+                   bytesPerConnection < MAX_BYTES_PER_CONNECTION);
+
+        // Keep the connections reachable until measured
+        for (EmbeddedChannel connection : connections) {
+            connection.finish();
+        }
+        warmUpChannel.finish();
+    }
+
+    private static long usedMemory() throws InterruptedException {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
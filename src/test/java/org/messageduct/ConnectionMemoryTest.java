@@ -0,0 +1,99 @@
+package org.messageduct;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.logging.LoggingHandler;
+import io.netty.util.ReferenceCountUtil;
+import org.junit.Test;
+import org.messageduct.account.DefaultAccountService;
+import org.messageduct.account.persistence.MemoryAccountPersistence;
+import org.messageduct.common.DefaultNetworkConfig;
+import org.messageduct.common.netty.NettyPipelineBuilder;
+import org.messageduct.server.MessageListener;
+import org.messageduct.server.netty.AuthenticationHandler;
+import org.messageduct.server.netty.MessageListenerHandler;
+import org.messageduct.server.netty.ServerInfoHandler;
+import org.messageduct.serverinfo.DefaultServerInfo;
+import org.messageduct.utils.encryption.RsaEncryption;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that idle server side connections only create the handlers that need per connection state.
+ * The retained heap per connection is measured by ConnectionMemoryBenchmark.
+ */
+public class ConnectionMemoryTest {
+
+    // Framing, encryption, compression and serialization codecs, and the three server handlers
+    private static final int MAX_HANDLERS_PER_CONNECTION = 8;
+
+    @Test
+    public void testIdleConnectionHandlers() throws Exception {
+        final DefaultNetworkConfig networkConfig = new DefaultNetworkConfig();
+        networkConfig.setEncryptionEnabled(true);
+        networkConfig.setCompressionEnabled(true);
+        networkConfig.setMessageLoggingEnabled(true);
+        networkConfig.setServerKeys(new RsaEncryption().createNewPublicPrivateKey());
+
+        final ChannelInitializer<Channel> initializer = createServerInitializer(networkConfig);
+        final EmbeddedChannel firstConnection = createConnection(initializer);
+        final EmbeddedChannel secondConnection = createConnection(initializer);
+
+        final List<ChannelHandler> firstHandlers = new ArrayList<ChannelHandler>(firstConnection.pipeline().toMap().values());
+        final List<ChannelHandler> secondHandlers = new ArrayList<ChannelHandler>(secondConnection.pipeline().toMap().values());
+        assertEquals("Connections should have the same handlers", firstHandlers.size(), secondHandlers.size());
+
+        // Stateless handlers should be shared by the connections
+        int handlersPerConnection = 0;
+        for (ChannelHandler handler : secondHandlers) {
+            if (handler instanceof LoggingHandler) {
+                assertTrue("The logging handler should be shared", firstHandlers.contains(handler));
+            }
+            if (!firstHandlers.contains(handler)) handlersPerConnection++;
+        }
+
+        assertTrue("An idle connection should create at most " + MAX_HANDLERS_PER_CONNECTION + " handlers, but created " + handlersPerConnection,
+                   handlersPerConnection <= MAX_HANDLERS_PER_CONNECTION);
+
+        firstConnection.finish();
+        secondConnection.finish();
+    }
+
+    /**
+     * @return initializer that builds the same pipeline as the server does for client connections.
+     */
+    static ChannelInitializer<Channel> createServerInitializer(final DefaultNetworkConfig networkConfig) {
+        final DefaultServerInfo serverInfo = new DefaultServerInfo("localhost", networkConfig.getPort());
+        final DefaultAccountService accountService = new DefaultAccountService(new MemoryAccountPersistence());
+        final List<MessageListener> messageListeners = new ArrayList<MessageListener>();
+
+        return new ChannelInitializer<Channel>() {
+            @Override protected void initChannel(Channel channel) throws Exception {
+                NettyPipelineBuilder.buildCommonServerHandlers(networkConfig, channel.pipeline());
+                channel.pipeline().addLast(new ServerInfoHandler(serverInfo));
+                channel.pipeline().addLast(new AuthenticationHandler(accountService));
+                channel.pipeline().addLast(new MessageListenerHandler(messageListeners));
+            }
+        };
+    }
+
+    /**
+     * @return a new idle connection with the pipeline built by the initializer.
+     */
+    static EmbeddedChannel createConnection(ChannelInitializer<Channel> initializer) {
+        final EmbeddedChannel channel = new EmbeddedChannel(initializer);
+
+        // Discard anything sent on connect
+        Object sent;
+        while ((sent = channel.readOutbound()) != null) {
+            ReferenceCountUtil.release(sent);
+        }
+
+        return channel;
+    }
+}
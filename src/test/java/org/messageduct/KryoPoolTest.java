@@ -0,0 +1,96 @@
+package org.messageduct;
+
+import org.junit.Test;
+import org.messageduct.account.messages.LoginMessage;
+import org.messageduct.utils.serializer.KryoPool;
+import org.messageduct.utils.serializer.PooledKryoSerializer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the pooled Kryo serialization.
+ */
+public class KryoPoolTest {
+
+    private static final List<Class> CLASSES = Arrays.<Class>asList(LoginMessage.class, char[].class, ArrayList.class);
+
+    @Test
+    public void testSerialization() throws Exception {
+        final KryoPool kryoPool = new KryoPool(true, CLASSES, 16, 1024);
+        kryoPool.warmUp(3);
+        assertEquals("Warmed up instances should be available", 3, kryoPool.getIdleInstanceCount());
+
+        final PooledKryoSerializer serializer = new PooledKryoSerializer(kryoPool);
+        final LoginMessage message = new LoginMessage("foobar", "secretpass".toCharArray());
+        final LoginMessage result = serializer.deserialize(serializer.serialize(message), LoginMessage.class);
+        assertEquals("foobar", result.getUsername());
+        assertArrayEquals("secretpass".toCharArray(), result.getPassword());
+
+        assertEquals("Used instance should be returned to the pool", 3, kryoPool.getIdleInstanceCount());
+    }
+
+    @Test
+    public void testUnregisteredClassesRejected() throws Exception {
+        final PooledKryoSerializer serializer = new PooledKryoSerializer(true, CLASSES, 1024);
+
+        try {
+            serializer.serialize(new StringBuilder("not allowed"));
+            fail("Serializing an unregistered class should fail");
+        } catch (Exception e) {
+            // Expected
+        }
+
+        // The pool should still work after the failure
+        assertEquals("foo", serializer.deserialize(serializer.serialize("foo")));
+    }
+
+    @Test
+    public void testInvalidDataRejected() throws Exception {
+        final KryoPool kryoPool = new KryoPool(true, CLASSES, 16, 1024);
+        final byte[] data = kryoPool.serialize(new LoginMessage("foobar", "secretpass".toCharArray()));
+
+        try {
+            kryoPool.deserialize(Arrays.copyOf(data, data.length / 2));
+            fail("Deserializing truncated data should fail");
+        } catch (Exception e) {
+            // Expected
+        }
+
+        // The instance used for the failed operation should still work
+        assertEquals("Failed instance should be returned to the pool", 1, kryoPool.getIdleInstanceCount());
+        final LoginMessage result = kryoPool.deserialize(data);
+        assertEquals("foobar", result.getUsername());
+    }
+
+    @Test
+    public void testMaximumSize() throws Exception {
+        final PooledKryoSerializer serializer = new PooledKryoSerializer(new KryoPool(true, CLASSES, 16, 64));
+
+        try {
+            serializer.serialize(new char[1000]);
+            fail("Serializing an object larger than the maximum size should fail");
+        } catch (Exception e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testConcurrentSerialization() throws Exception {
+        final PooledKryoSerializer serializer = new PooledKryoSerializer(true, CLASSES, 1024);
+
+        TestUtils.testConcurrently("Pooled serializer should be thread safe", 10, 100, new TestRun() {
+            @Override public void run() throws Exception {
+                final ArrayList<String> list = new ArrayList<String>();
+                list.add(Thread.currentThread().getName());
+                list.add("test");
+
+                final ArrayList<String> result = serializer.deserialize(serializer.serialize(list));
+                assertEquals(list, result);
+            }
+        });
+    }
+}
@@ -3,9 +3,14 @@ package org.messageduct;
 import static org.junit.Assert.*;
 
 import org.junit.Test;
+import org.messageduct.utils.BCrypt;
+import org.messageduct.utils.BCryptEngine;
 import org.messageduct.utils.BCryptPasswordHasher;
+import org.messageduct.utils.CalibratingPasswordHasher;
 import org.messageduct.utils.PasswordHasher;
 
+import java.util.Random;
+
 public class PasswordHasherTest {
 
     @Test
@@ -15,6 +20,52 @@ public class PasswordHasherTest {
         checkHasher(new BCryptPasswordHasher(8));
     }
 
+    @Test
+    public void testCalibratingPasswordHasher() throws Exception {
+        // A very short target time results in the minimum work factor
+        final CalibratingPasswordHasher hasher = new CalibratingPasswordHasher(1, 8, 10);
+        assertEquals(8, hasher.getLogOfSaltRounds());
+        checkHasher(hasher);
+
+        // Hashes with a different work factor need to be rehashed
+        final String hash = hasher.hashPassword("HUNTER123!".toCharArray());
+        assertFalse(hasher.needsRehash(hash));
+        assertTrue(hasher.needsRehash(new BCryptPasswordHasher(9).hashPassword("HUNTER123!".toCharArray())));
+        assertTrue(hasher.needsRehash("notABCryptHash"));
+        assertEquals(9, BCrypt.getLogRounds(new BCryptPasswordHasher(9).hashPassword("foo".toCharArray())));
+    }
+
+    @Test
+    public void testBCryptEngineMatchesBCrypt() throws Exception {
+        // The same engine is reused for all hashes, so state left from earlier hashes would show up as differences
+        final BCryptEngine engine = new BCryptEngine();
+        final String[] passwords = {"", "a", "HUNTER123!", "p\u00e4ssw\u00f6rd", "\u5bc6\u7801\u5bc6\u7801",
+                                    "smile\ud83d\ude00", "unpaired\ud800high", "\udc00unpaired low", "trailing\udbff",
+                                    "a long password that is longer than the 72 bytes that bcrypt uses from a password, so it gets cut"};
+        for (String password : passwords) {
+            checkEngine(engine, password, BCrypt.gensalt(4));
+            checkEngine(engine, password, BCrypt.gensalt(5));
+            if (!password.isEmpty()) checkEngine(engine, password, BCrypt.gensalt(4).replace("$2a$", "$2$"));
+        }
+
+        final Random random = new Random(42);
+        for (int i = 0; i < 30; i++) {
+            final char[] password = new char[1 + random.nextInt(100)];
+            for (int j = 0; j < password.length; j++) {
+                // Mostly ASCII, with some chars of each UTF-8 length and surrogates
+                password[j] = random.nextBoolean() ? (char) (32 + random.nextInt(95)) : (char) random.nextInt(0x10000);
+            }
+            checkEngine(engine, new String(password), BCrypt.gensalt(4));
+        }
+    }
+
+    private void checkEngine(BCryptEngine engine, String password, String salt) {
+        final String expectedHash = BCrypt.hashpw(password.toCharArray(), salt);
+        assertEquals("Hash of '" + password + "' with salt " + salt, expectedHash, engine.hashpw(password.toCharArray(), salt));
+        assertTrue(engine.checkpw(password.toCharArray(), expectedHash));
+        assertFalse(engine.checkpw(("x" + password).toCharArray(), expectedHash));
+    }
+
     private void checkHasher(final PasswordHasher passwordHasher) {
         checkPassword(passwordHasher, "HUNTER123!");
         checkPassword(passwordHasher, " ");
@@ -3,12 +3,20 @@ package org.messageduct;
 import static org.junit.Assert.*;
 
 import org.junit.Test;
+import org.messageduct.utils.BloomFilterPasswordDictionary;
+import org.messageduct.utils.HashedPasswordDictionary;
+import org.messageduct.utils.MappedPasswordDictionary;
 import org.messageduct.utils.PasswordValidator;
 import org.messageduct.utils.PasswordValidatorImpl;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
 public class PasswordValidatorTest {
 
     private static final String USERNAME = "longusername";
+    private static final File DICTIONARY_FILE = new File("PasswordDictionaryTest.dat");
 
     @Test
     public void testPasswordValidator() throws Exception {
@@ -50,6 +58,48 @@ public class PasswordValidatorTest {
 
     }
 
+    @Test
+    public void testPasswordDictionaries() throws Exception {
+        final List<String> breachedPasswords = new ArrayList<String>();
+        for (int i = 0; i < 10000; i++) {
+            breachedPasswords.add("Breached" + i);
+        }
+
+        final HashedPasswordDictionary hashedDictionary = new HashedPasswordDictionary(breachedPasswords);
+        final BloomFilterPasswordDictionary bloomFilterDictionary = new BloomFilterPasswordDictionary(breachedPasswords.size(), 0.01);
+        bloomFilterDictionary.addAll(breachedPasswords);
+        DICTIONARY_FILE.delete();
+        assertEquals(breachedPasswords.size(), MappedPasswordDictionary.createDictionaryFile(breachedPasswords, DICTIONARY_FILE));
+        final MappedPasswordDictionary mappedDictionary = new MappedPasswordDictionary(DICTIONARY_FILE);
+
+        // All dictionaries find the passwords regardless of case
+        for (int i = 0; i < breachedPasswords.size(); i++) {
+            final char[] password = ("bREACHED" + i).toCharArray();
+            assertTrue(hashedDictionary.contains(password));
+            assertTrue(bloomFilterDictionary.contains(password));
+            assertTrue(mappedDictionary.contains(password));
+        }
+
+        // Only the Bloom filter has false positives
+        int falsePositives = 0;
+        for (int i = 0; i < breachedPasswords.size(); i++) {
+            final char[] password = ("Other" + i).toCharArray();
+            assertFalse(hashedDictionary.contains(password));
+            assertFalse(mappedDictionary.contains(password));
+            if (bloomFilterDictionary.contains(password)) falsePositives++;
+        }
+        assertTrue("Too many false positives: " + falsePositives, falsePositives < breachedPasswords.size() * 0.03);
+
+        // Dictionaries can be added to the validator
+        final PasswordValidatorImpl passwordValidator = new PasswordValidatorImpl();
+        checkPassword(passwordValidator, true, "Breached1234");
+        passwordValidator.addDictionary(mappedDictionary);
+        checkPassword(passwordValidator, false, "Breached1234");
+        checkPassword(passwordValidator, true, "Breached12345");
+
+        DICTIONARY_FILE.delete();
+    }
+
     private void checkPassword(PasswordValidator passwordValidator, boolean valid, final String password) {
         assertEquals(valid, passwordValidator.check(password.toCharArray(), USERNAME) == null);
     }
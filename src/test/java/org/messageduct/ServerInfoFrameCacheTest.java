@@ -0,0 +1,76 @@
+package org.messageduct;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.junit.Test;
+import org.messageduct.common.DefaultNetworkConfig;
+import org.messageduct.common.netty.CompressionCodec;
+import org.messageduct.common.netty.MessageSerializerCodec;
+import org.messageduct.common.netty.PreEncodedMessage;
+import org.messageduct.server.netty.ServerInfoFrameCache;
+import org.messageduct.serverinfo.DefaultServerInfo;
+import org.messageduct.serverinfo.ServerInfoMessage;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the cached pre-encoded server info.
+ */
+public class ServerInfoFrameCacheTest {
+
+    @Test
+    public void testCacheInvalidation() throws Exception {
+        final DefaultNetworkConfig networkConfig = new DefaultNetworkConfig();
+        final DefaultServerInfo serverInfo = new DefaultServerInfo("localhost", networkConfig.getPort());
+        final ServerInfoFrameCache cache = new ServerInfoFrameCache(serverInfo, networkConfig);
+
+        final PreEncodedMessage message = cache.getServerInfoMessage();
+        assertSame("Unchanged server info should be reused", message, cache.getServerInfoMessage());
+
+        serverInfo.setName("Renamed server");
+        final PreEncodedMessage renamedMessage = cache.getServerInfoMessage();
+        assertNotSame("Changed server info should be encoded again", message, renamedMessage);
+        assertEquals("Renamed server", sendAndReceive(networkConfig, renamedMessage).getServerInfo().getName());
+
+        networkConfig.setCompressionEnabled(!networkConfig.isCompressionEnabled());
+        final PreEncodedMessage toggledMessage = cache.getServerInfoMessage();
+        assertEquals(networkConfig.isCompressionEnabled(), toggledMessage.isCompressed());
+        assertEquals("Renamed server", sendAndReceive(networkConfig, toggledMessage).getServerInfo().getName());
+    }
+
+    @Test
+    public void testConcurrentChanges() throws Exception {
+        final DefaultServerInfo serverInfo = new DefaultServerInfo("localhost", DefaultNetworkConfig.DEFAULT_PORT);
+        final long initialVersion = serverInfo.getVersion();
+
+        TestUtils.testConcurrently("Server info changes should be thread safe", 10, 100, new TestRun() {
+            @Override public void run() throws Exception {
+                serverInfo.setDescription(Thread.currentThread().getName());
+            }
+        });
+
+        assertEquals("No change should be lost", initialVersion + 10 * 100, serverInfo.getVersion());
+    }
+
+    private ServerInfoMessage sendAndReceive(DefaultNetworkConfig networkConfig, PreEncodedMessage message) {
+        final EmbeddedChannel sender = createChannel(networkConfig);
+        final EmbeddedChannel receiver = createChannel(networkConfig);
+
+        assertTrue(sender.writeOutbound(message));
+        final ByteBuf frame = (ByteBuf) sender.readOutbound();
+
+        assertTrue(receiver.writeInbound(frame));
+        return (ServerInfoMessage) receiver.readInbound();
+    }
+
+    private EmbeddedChannel createChannel(DefaultNetworkConfig networkConfig) {
+        final MessageSerializerCodec serializerCodec = new MessageSerializerCodec(networkConfig.getMaximumMessageSize(),
+                                                                                  networkConfig.getAllowedClasses());
+        if (networkConfig.isCompressionEnabled()) {
+            return new EmbeddedChannel(new CompressionCodec(networkConfig.getMaximumMessageSize()), serializerCodec);
+        }
+        else {
+            return new EmbeddedChannel(serializerCodec);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package org.messageduct;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.socket.DatagramPacket;
+import org.junit.Test;
+import org.messageduct.account.DefaultAccountService;
+import org.messageduct.account.persistence.MemoryAccountPersistence;
+import org.messageduct.common.DefaultNetworkConfig;
+import org.messageduct.server.netty.NettyServerNetworking;
+import org.messageduct.server.netty.StatusQueryHandler;
+import org.messageduct.serverinfo.DefaultServerInfo;
+import org.messageduct.serverinfo.ServerStatus;
+import org.messageduct.utils.ByteBufUtils;
+import org.messageduct.utils.encryption.RsaEncryption;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.security.KeyPair;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the server status query protocol.
+ */
+public class ServerStatusTest {
+
+    private static final InetSocketAddress SERVER_ADDRESS = new InetSocketAddress("127.0.0.1", DefaultNetworkConfig.DEFAULT_PORT);
+    private static final InetSocketAddress CLIENT_ADDRESS = new InetSocketAddress("127.0.0.1", 40000);
+
+    @Test
+    public void testSignedStatus() throws Exception {
+        final RsaEncryption rsaEncryption = new RsaEncryption(1024);
+        final KeyPair serverKeys = rsaEncryption.createNewPublicPrivateKey();
+        final KeyPair otherKeys = rsaEncryption.createNewPublicPrivateKey();
+
+        final ServerStatus status = new ServerStatus("Test server", "A server for testing", 42, 1234L);
+        final byte[] response = createResponse(7L, status.createSignedResponseBody(serverKeys.getPrivate()));
+
+        final ServerStatus parsedStatus = ServerStatus.parseResponse(response, 7L, serverKeys.getPublic());
+        assertEquals("Test server", parsedStatus.getName());
+        assertEquals("A server for testing", parsedStatus.getDescription());
+        assertEquals(42, parsedStatus.getUserCount());
+        assertEquals(1234L, parsedStatus.getTimestamp());
+
+        try {
+            ServerStatus.parseResponse(response, 7L, otherKeys.getPublic());
+            fail("Status signed by another key should not be accepted");
+        } catch (IOException e) {
+            // Expected
+        }
+
+        try {
+            ServerStatus.parseResponse(response, 8L, serverKeys.getPublic());
+            fail("Status for another request should not be accepted");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testStatusQueryHandler() throws Exception {
+        final KeyPair serverKeys = new RsaEncryption(1024).createNewPublicPrivateKey();
+        final DefaultNetworkConfig networkConfig = new DefaultNetworkConfig();
+        networkConfig.setServerKeys(serverKeys);
+        final DefaultServerInfo serverInfo = new DefaultServerInfo(SERVER_ADDRESS, "Status server");
+        final NettyServerNetworking serverNetworking = new NettyServerNetworking(networkConfig,
+                                                                                 new DefaultAccountService(new MemoryAccountPersistence()),
+                                                                                 serverInfo);
+
+        final EmbeddedChannel channel = new EmbeddedChannel(new StatusQueryHandler(serverNetworking, serverInfo, serverKeys.getPrivate()));
+
+        // Valid request is answered
+        channel.writeInbound(new DatagramPacket(Unpooled.wrappedBuffer(ServerStatus.createRequest(99L)), SERVER_ADDRESS, CLIENT_ADDRESS));
+        final DatagramPacket answer = (DatagramPacket) channel.readOutbound();
+        assertNotNull("Status request should be answered", answer);
+        assertEquals(CLIENT_ADDRESS, answer.recipient());
+        final byte[] response = ByteBufUtils.byteBufToByteArray(answer.content());
+        assertTrue("Response should not be larger than the request", response.length <= ServerStatus.REQUEST_SIZE);
+
+        final ServerStatus status = ServerStatus.parseResponse(response, 99L, serverKeys.getPublic());
+        assertEquals("Status server", status.getName());
+        assertEquals(0, status.getUserCount());
+
+        // Request without padding is ignored
+        final byte[] shortRequest = Arrays.copyOf(ServerStatus.createRequest(100L), 16);
+        channel.writeInbound(new DatagramPacket(Unpooled.wrappedBuffer(shortRequest), SERVER_ADDRESS, CLIENT_ADDRESS));
+        assertNull("Unpadded request should not be answered", channel.readOutbound());
+    }
+
+    private byte[] createResponse(long token, byte[] body) {
+        final byte[] response = new byte[ServerStatus.getResponseHeaderSize() + body.length];
+        System.arraycopy(ServerStatus.RESPONSE_MAGIC, 0, response, 0, ServerStatus.RESPONSE_MAGIC.length);
+        for (int i = 0; i < 8; i++) {
+            response[ServerStatus.RESPONSE_MAGIC.length + i] = (byte) (token >>> (56 - 8 * i));
+        }
+        System.arraycopy(body, 0, response, ServerStatus.getResponseHeaderSize(), body.length);
+        return response;
+    }
+}
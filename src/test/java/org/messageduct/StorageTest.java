@@ -0,0 +1,220 @@
+package org.messageduct;
+
+import org.flowutils.serializer.KryoSerializer;
+import org.junit.Test;
+import org.messageduct.utils.FileUtils;
+import org.messageduct.utils.encryption.AesEncryption;
+import org.messageduct.utils.storage.FileStorage;
+import org.messageduct.utils.storage.ShardedMapStorage;
+import org.messageduct.utils.storage.StreamingFileStorage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Tests the file based storages.
+ */
+public class StorageTest {
+
+    private static final File STORAGE_FILE = new File("StorageTestData.db");
+
+    @Test
+    public void testStreamingFileStorage() throws Exception {
+        STORAGE_FILE.delete();
+
+        final Map<String, String> data = createTestData(1000);
+
+        // Encrypted, with data spanning many chunks
+        final StreamingFileStorage storage = new StreamingFileStorage(STORAGE_FILE, "foobar".toCharArray(), 1024);
+        assertNull("Nothing should be loaded before saving", storage.load());
+        storage.save(data);
+        assertEquals("Loaded data should match saved data", data, storage.load());
+        assertEquals("A new storage should be able to load the data", data,
+                     new StreamingFileStorage(STORAGE_FILE, "foobar".toCharArray(), 1024).load());
+
+        // Wrong password is detected
+        try {
+            new StreamingFileStorage(STORAGE_FILE, "wrong".toCharArray()).load();
+            fail("Loading with the wrong password should fail");
+        } catch (IOException e) {
+            // Expected
+        }
+
+        // Modified data is detected
+        corruptByte(STORAGE_FILE, STORAGE_FILE.length() / 2);
+        try {
+            storage.load();
+            fail("Loading modified data should fail");
+        } catch (IOException e) {
+            // Expected
+        }
+
+        // Unencrypted, truncated data is detected
+        final StreamingFileStorage plainStorage = new StreamingFileStorage(STORAGE_FILE, null, 1024);
+        plainStorage.save(data);
+        assertEquals(data, plainStorage.load());
+        final RandomAccessFile file = new RandomAccessFile(STORAGE_FILE, "rw");
+        try {
+            file.setLength(file.length() - 8);
+        } finally {
+            file.close();
+        }
+        try {
+            plainStorage.load();
+            fail("Loading truncated data should fail");
+        } catch (IOException e) {
+            // Expected
+        }
+
+        STORAGE_FILE.delete();
+    }
+
+    @Test
+    public void testLoadFileSavedByEarlierVersion() throws Exception {
+        STORAGE_FILE.delete();
+
+        final Map<String, String> data = createTestData(100);
+
+        // Earlier versions saved the data serialized with the flowutils KryoSerializer, without a checksum footer
+        FileUtils.saveAndCheck(new KryoSerializer(false).serialize(data), STORAGE_FILE);
+        assertEquals("Files saved by earlier versions should load", data, new FileStorage(STORAGE_FILE).load());
+
+        STORAGE_FILE.delete();
+    }
+
+    @Test
+    public void testFileStorageKeyCaching() throws Exception {
+        STORAGE_FILE.delete();
+
+        final Map<String, String> data = createTestData(100);
+
+        // Files saved in the old format with the fixed salt can still be loaded
+        new FileStorage(STORAGE_FILE, "foobar".toCharArray(), new KryoSerializer(false),
+                        new AesEncryption(), new File(STORAGE_FILE.getPath() + ".temp"), false).save(data);
+        final FileStorage storage = new FileStorage(STORAGE_FILE, "foobar".toCharArray());
+        assertEquals(data, storage.load());
+
+        // Saved with a random salt stored in the file
+        storage.save(data);
+        assertEquals(data, storage.load());
+        assertEquals("A new storage should be able to load the data", data, new FileStorage(STORAGE_FILE, "foobar".toCharArray()).load());
+        final byte[] saltedData = FileUtils.loadData(STORAGE_FILE);
+        assertEquals('M', saltedData[0]);
+
+        // Each file gets its own salt
+        final File otherFile = new File("StorageTestData2.db");
+        new FileStorage(otherFile, "foobar".toCharArray()).save(data);
+        final byte[] otherData = FileUtils.loadData(otherFile);
+        assertFalse("Files should have different salts", Arrays.equals(Arrays.copyOfRange(saltedData, 8, 24), Arrays.copyOfRange(otherData, 8, 24)));
+        otherFile.delete();
+
+        // The key is derived again after clearing it
+        storage.clearCachedKey();
+        assertEquals(data, storage.load());
+
+        // Wrong password is detected
+        try {
+            new FileStorage(STORAGE_FILE, "wrong".toCharArray()).load();
+            fail("Loading with the wrong password should fail");
+        } catch (IOException e) {
+            // Expected
+        }
+
+        STORAGE_FILE.delete();
+    }
+
+    @Test
+    public void testDurableSave() throws Exception {
+        STORAGE_FILE.delete();
+        final File tempFile = FileUtils.createTempFileName(STORAGE_FILE);
+
+        final byte[] data = "Some test data".getBytes("UTF8");
+        FileUtils.saveDurably(data, STORAGE_FILE, tempFile);
+        assertFalse("Temporary file should have been moved", tempFile.exists());
+        assertArrayEquals(data, FileUtils.loadDurableData(STORAGE_FILE));
+
+        // Replacing an existing file
+        final byte[] newData = "Some other test data".getBytes("UTF8");
+        FileUtils.saveDurably(newData, STORAGE_FILE, tempFile);
+        assertArrayEquals(newData, FileUtils.loadDurableData(STORAGE_FILE));
+
+        // Corruption is detected from the checksum
+        corruptByte(STORAGE_FILE, 3);
+        try {
+            FileUtils.loadDurableData(STORAGE_FILE);
+            fail("Loading corrupted data should fail");
+        } catch (IOException e) {
+            // Expected
+        }
+
+        // Files saved without a checksum can still be loaded
+        FileUtils.saveAndCheck(data, STORAGE_FILE, tempFile);
+        assertArrayEquals(data, FileUtils.loadDurableData(STORAGE_FILE));
+
+        STORAGE_FILE.delete();
+    }
+
+    @Test
+    public void testInterruptedShardConversion() throws Exception {
+        final int shardCount = 4;
+        final File convertedFile = new File(STORAGE_FILE.getPath() + ".converted");
+        deleteShardedFiles(convertedFile, shardCount);
+
+        final Map<String, String> data = createTestData(100);
+        new FileStorage(STORAGE_FILE, "foobar".toCharArray()).save(data);
+
+        // A conversion that was interrupted after writing the first shard
+        new FileStorage(getShardFile(1, shardCount), "foobar".toCharArray()).save(createTestData(3));
+
+        // The unsharded data is still used, until all shards have been saved
+        final ShardedMapStorage storage = new ShardedMapStorage(STORAGE_FILE, "foobar".toCharArray(), shardCount);
+        final Map<String, String> loaded = storage.load();
+        assertEquals("Data should be loaded from the unsharded file", data, loaded);
+        assertTrue(STORAGE_FILE.exists());
+
+        storage.save(loaded);
+        assertFalse("The unsharded file should be set aside after all shards are saved", STORAGE_FILE.exists());
+        assertTrue(convertedFile.exists());
+        assertEquals(data, new ShardedMapStorage(STORAGE_FILE, "foobar".toCharArray(), shardCount).load());
+
+        deleteShardedFiles(convertedFile, shardCount);
+    }
+
+    private File getShardFile(int shard, int shardCount) {
+        return new File(STORAGE_FILE.getPath() + "." + shard + "of" + shardCount);
+    }
+
+    private void deleteShardedFiles(File convertedFile, int shardCount) {
+        STORAGE_FILE.delete();
+        convertedFile.delete();
+        for (int i = 1; i <= shardCount; i++) {
+            getShardFile(i, shardCount).delete();
+        }
+    }
+
+    private Map<String, String> createTestData(int entryCount) {
+        final Map<String, String> data = new HashMap<String, String>();
+        for (int i = 0; i < entryCount; i++) {
+            data.put("key" + i, "value number " + i);
+        }
+        return data;
+    }
+
+    private void corruptByte(File file, long position) throws IOException {
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.seek(position);
+            final int value = randomAccessFile.read();
+            randomAccessFile.seek(position);
+            randomAccessFile.write(value ^ 0xFF);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+}